@@ -60,6 +60,7 @@ public class SecurityConfig{
                         .requestMatchers("/api/video/selectAllVideoWaitToReview").hasAuthority("ROLE_ADMIN")
                         .requestMatchers("/api/video/updateVideoReviewStatus").hasAuthority("ROLE_ADMIN")
                         .requestMatchers("/api/sensitiveDict/addWord").hasAuthority("ROLE_ADMIN")
+                        .requestMatchers("/api/metrics/**").hasAuthority("ROLE_ADMIN")
                         .anyRequest().authenticated() // 其他所有请求都需要认证
                 )
                 //添加JWT认证过滤器
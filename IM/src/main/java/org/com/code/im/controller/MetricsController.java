@@ -0,0 +1,101 @@
+package org.com.code.im.controller;
+
+import org.com.code.im.netty.nettyCodec.CompressionMetrics;
+import org.com.code.im.netty.nettyHandler.BackpressurePolicy;
+import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import org.com.code.im.netty.nettyHandler.HandlerStageExecutor;
+import org.com.code.im.netty.nettyHandler.HeartBeatManager;
+import org.com.code.im.netty.nettyHandler.MessageValidator;
+import org.com.code.im.netty.nettyHandler.RateLimiter;
+import org.com.code.im.responseHandler.ResponseHandler;
+import org.com.code.im.rocketMq.consumer.ChatMsgConsumer;
+import org.com.code.im.rocketMq.producer.ChatMsgBatcher;
+import org.com.code.im.service.session.impl.ConversationIndex;
+import org.com.code.im.service.session.impl.GroupDismissalJobs;
+import org.com.code.im.service.session.impl.MessageWriteBehind;
+import org.com.code.im.service.session.impl.SessionListCache;
+import org.com.code.im.service.session.impl.SessionSync;
+import org.com.code.im.utils.MessageDedup;
+import org.com.code.im.utils.SessionMembershipCache;
+import org.com.code.im.utils.UserNameCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Netty长连接相关的运行指标,只有管理员可以访问
+ */
+@RestController
+public class MetricsController {
+
+    @Autowired
+    private RateLimiter rateLimiter;
+
+    @Autowired
+    private HeartBeatManager heartBeatManager;
+
+    @Autowired
+    private BackpressurePolicy backpressurePolicy;
+
+    @Autowired
+    private HandlerStageExecutor handlerStageExecutor;
+
+    @Autowired
+    private MessageValidator messageValidator;
+
+    @Autowired
+    private SessionMembershipCache sessionMembershipCache;
+
+    @Autowired
+    private ChatMsgBatcher chatMsgBatcher;
+
+    @Autowired
+    private ChatMsgConsumer chatMsgConsumer;
+
+    @Autowired
+    private MessageDedup messageDedup;
+
+    @Autowired
+    private MessageWriteBehind messageWriteBehind;
+
+    @Autowired
+    private SessionSync sessionSync;
+
+    @Autowired
+    private ConversationIndex conversationIndex;
+
+    @Autowired
+    private UserNameCache userNameCache;
+
+    @Autowired
+    private SessionListCache sessionListCache;
+
+    @Autowired
+    private GroupDismissalJobs groupDismissalJobs;
+
+    @GetMapping("/api/metrics/netty")
+    public ResponseHandler nettyMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("onlineUsers", ChannelCrud.onlineUser.size());
+        metrics.put("compression", CompressionMetrics.snapshot());
+        metrics.put("rateLimit", rateLimiter.snapshot());
+        metrics.put("heartbeat", heartBeatManager.snapshot());
+        metrics.put("backpressure", backpressurePolicy.snapshot());
+        metrics.put("stages", handlerStageExecutor.snapshot());
+        metrics.put("messageCheck", messageValidator.snapshot());
+        metrics.put("sessionCache", sessionMembershipCache.snapshot());
+        metrics.put("chatProducer", chatMsgBatcher.snapshot());
+        metrics.put("chatConsumer", chatMsgConsumer.snapshot());
+        metrics.put("dedup", messageDedup.snapshot());
+        metrics.put("persistence", messageWriteBehind.snapshot());
+        metrics.put("sync", sessionSync.snapshot());
+        metrics.put("conversations", conversationIndex.snapshot());
+        metrics.put("userNames", userNameCache.snapshot());
+        metrics.put("sessionLists", sessionListCache.snapshot());
+        metrics.put("groupDismissals", groupDismissalJobs.snapshot());
+        return new ResponseHandler(ResponseHandler.SUCCESS, "查询成功", metrics);
+    }
+}
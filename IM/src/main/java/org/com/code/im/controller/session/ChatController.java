@@ -1,11 +1,23 @@
 package org.com.code.im.controller.session;
 
 import jakarta.servlet.http.HttpServletRequest;
+import org.com.code.im.netty.nettyCluster.PushRouter;
+import org.com.code.im.pojo.Messages;
 import org.com.code.im.responseHandler.ResponseHandler;
+import org.com.code.im.service.session.MessageService;
+import org.com.code.im.service.session.impl.ConversationIndex;
+import org.com.code.im.utils.SessionMembershipCache;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * 这里应用层的接口是同步返回的,web的普通http请求直接获取返回结果
  */
@@ -54,9 +66,77 @@ public class ChatController {
 
     @Value("${app.url}")
     private String url;
+    @Value("${app.messages.history-max-page-size:100}")
+    private int historyMaxPageSize;
+    @Value("${app.conversation.max-page-size:50}")
+    private int conversationMaxPageSize;
+    @Autowired
+    private MessageService messageService;
+    @Autowired
+    private SessionMembershipCache sessionMembershipCache;
+    @Autowired
+    private ConversationIndex conversationIndex;
+    @Autowired
+    private PushRouter pushRouter;
+
     @GetMapping("/api/chat")
     public ResponseHandler getWebSocketUrl(HttpServletRequest request) {
         String token = request.getHeader("token");
         return new ResponseHandler(ResponseHandler.SUCCESS, "前端访问该返回的URL码建立ws连接","ws://"+url+":8081/api/chat?token="+token);
     }
+
+    /**
+     * 按对话从新到旧翻页查询历史消息
+     * 第一页beforeMessageId传0,之后每一页传上一页最后一条消息的messageId,返回的消息少于pageSize条说明没有更早的消息了
+     */
+    @GetMapping("/api/chat/history")
+    public ResponseHandler queryHistoryMessages(@RequestParam("sessionId") long sessionId,
+                                                @RequestParam(value = "beforeMessageId", defaultValue = "0") long beforeMessageId,
+                                                @RequestParam(value = "pageSize", defaultValue = "50") int pageSize) {
+        if (sessionId <= 0 || beforeMessageId < 0) {
+            return new ResponseHandler(ResponseHandler.BAD_REQUEST, "翻页参数无效");
+        }
+        if (pageSize <= 0 || pageSize > historyMaxPageSize) {
+            return new ResponseHandler(ResponseHandler.BAD_REQUEST, "pageSize必须在1到" + historyMaxPageSize + "之间");
+        }
+        long userId = Long.parseLong(SecurityContextHolder.getContext().getAuthentication().getName());
+        SessionMembershipCache.SessionMembers members = sessionMembershipCache.get(sessionId);
+        if (members == null || !members.contains(userId)) {
+            return new ResponseHandler(ResponseHandler.BAD_REQUEST, "你不在这个对话中");
+        }
+        List<Messages> messages = messageService.queryHistoryMessages(sessionId, beforeMessageId, pageSize);
+        return new ResponseHandler(ResponseHandler.SUCCESS, "查询成功", messages);
+    }
+
+    /**
+     * 按最后一条消息从新到旧分页查询对话列表,page从0开始,
+     * 每一项包含 sessionId, unreadCount, lastMessageId, lastSeq, lastTimestamp, senderId, messageType, preview
+     * 返回的对话少于pageSize个说明没有更多了
+     */
+    @GetMapping("/api/chat/conversations")
+    public ResponseHandler queryConversations(@RequestParam(defaultValue = "0") int page,
+                                              @RequestParam(defaultValue = "20") int size) {
+        if (page < 0) {
+            return new ResponseHandler(ResponseHandler.BAD_REQUEST, "翻页参数无效");
+        }
+        if (size <= 0 || size > conversationMaxPageSize) {
+            return new ResponseHandler(ResponseHandler.BAD_REQUEST, "size必须在1到" + conversationMaxPageSize + "之间");
+        }
+        long userId = Long.parseLong(SecurityContextHolder.getContext().getAuthentication().getName());
+        List<Map<String, Object>> conversations = conversationIndex.page(userId, page, size);
+        return new ResponseHandler(ResponseHandler.SUCCESS, "查询成功", conversations);
+    }
+
+    /**
+     * 客户端打开对话之后调用,清零这个对话的未读数量,
+     * 同时通知这个用户的其他在线设备清零,这个通知是低优先级的,同一个对话只保留最新的一条
+     */
+    @PostMapping("/api/chat/conversations/read")
+    public ResponseHandler markConversationRead(@RequestParam("sessionId") long sessionId) {
+        long userId = Long.parseLong(SecurityContextHolder.getContext().getAuthentication().getName());
+        conversationIndex.markRead(userId, sessionId);
+        pushRouter.sendLowPriority(userId, "read_" + sessionId,
+                new ResponseHandler(ResponseHandler.SUCCESS, "对话已读", Map.of("sessionId", sessionId)));
+        return new ResponseHandler(ResponseHandler.SUCCESS, "已读");
+    }
 }
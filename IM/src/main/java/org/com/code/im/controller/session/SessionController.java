@@ -4,12 +4,16 @@ import org.com.code.im.exception.BadRequestException;
 import org.com.code.im.responseHandler.ResponseHandler;
 import org.com.code.im.pojo.ConsumerMessageType;
 import org.com.code.im.pojo.dto.CreateSessionOrInviteRequest;
+import org.com.code.im.pojo.PrivateMemberQueryHandler;
 import org.com.code.im.pojo.Sessions;
+import org.com.code.im.pojo.query.GroupMemberQuery;
 import org.com.code.im.rocketMq.producer.MsgProducer;
 import org.com.code.im.service.session.SessionService;
+import org.com.code.im.service.session.impl.SessionListCache;
 import org.com.code.im.utils.FriendManager;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
@@ -53,6 +57,20 @@ public class SessionController {
     @Qualifier("redisTemplateLong")
     @Autowired
     private RedisTemplate redisTemplate;
+    /**
+     * 一次邀请最多多少人,成员分批写入(见SessionImpl.writeGroupMembers),批量导入时可以调大
+     */
+    @Value("${app.group.max-invite-size:99}")
+    private int maxInviteSize;
+
+    @Autowired
+    private SessionListCache sessionListCache;
+
+    /**
+     * 私聊列表,群聊列表,群成员列表一页最多多少项,不传size时一次返回这么多
+     */
+    @Value("${app.session-list-cache.max-page-size:500}")
+    private int sessionListMaxPageSize;
     /**
      * 用户传上来的参数是CreateSessionRequest类，包含
      *
@@ -149,8 +167,8 @@ public class SessionController {
         if(role!=2&&role!=1)
             return new ResponseHandler(ResponseHandler.BAD_REQUEST,"您不是该群的群主或者管理员，无法邀请成员入群");
 
-        if(createSessionOrInviteRequest.getUserIds().length<1|| createSessionOrInviteRequest.getUserIds().length>99) {
-            return new ResponseHandler(ResponseHandler.BAD_REQUEST,"一次邀请最少1人,最多100人");
+        if(createSessionOrInviteRequest.getUserIds().length<1|| createSessionOrInviteRequest.getUserIds().length>maxInviteSize) {
+            return new ResponseHandler(ResponseHandler.BAD_REQUEST,"一次邀请最少1人,最多"+maxInviteSize+"人");
         }
 
         List<Long> notFriendIdListIds = getNotFriendMembers(ownerId, createSessionOrInviteRequest);
@@ -247,12 +265,16 @@ public class SessionController {
 
 
     /**
-     * 异步返回结果
+     * redis中有缓存时同步返回结果,没有时异步返回结果
      */
     @GetMapping("/api/session/queryGroupInfo/{sessionId}")
     public ResponseHandler queryGroupInfo(@PathVariable("sessionId") long sessionId) throws BadRequestException {
 
         Long userId = Long.parseLong(SecurityContextHolder.getContext().getAuthentication().getName());
+        Sessions cached = sessionListCache.cachedGroupInfo(sessionId);
+        if (cached != null) {
+            return new ResponseHandler(ResponseHandler.SUCCESS, "查询群信息", cached);
+        }
         /**
          * 把查询群聊信息的请求发给消息队列，异步查询群聊信息
          * ConsumerMessageType的-1表示占位符,没有意义
@@ -264,16 +286,22 @@ public class SessionController {
     }
 
     /**
-     *  异步返回结果
-     *  查询群聊列表
+     *  redis中有缓存时同步分页返回结果,没有时异步返回整个列表,同时写入缓存
+     *  查询群聊列表,从新到旧
      */
     @GetMapping("/api/session/queryGroupSessionList")
-    public ResponseHandler queryGroupList() throws BadRequestException {
+    public ResponseHandler queryGroupList(@RequestParam(defaultValue = "0") int page,
+                                          @RequestParam(required = false) Integer size) throws BadRequestException {
 
         /**
          * 先验证用户是否登录
          */
         long userId = Long.parseLong(SecurityContextHolder.getContext().getAuthentication().getName());
+        int pageSize = checkPage(page, size);
+        List<Sessions> cached = sessionListCache.pageGroupSessions(userId, page, pageSize);
+        if (cached != null) {
+            return new ResponseHandler(ResponseHandler.SUCCESS, "查询群聊列表", cached);
+        }
 
         /**
          * 把查询群聊列表请求发送到消息队列,异步查询群聊列表
@@ -286,15 +314,22 @@ public class SessionController {
     }
 
     /**
-     * 异步返回结果
+     * redis中有缓存时同步分页返回结果,没有时异步返回整个列表,同时写入缓存
+     * 查询私聊列表,从新到旧
      */
     @GetMapping("/api/session/queryPrivateSessionList")
-    public ResponseHandler queryPrivateSessionList() throws BadRequestException {
+    public ResponseHandler queryPrivateSessionList(@RequestParam(defaultValue = "0") int page,
+                                                   @RequestParam(required = false) Integer size) throws BadRequestException {
 
         /**
          * 先验证用户是否登录
          */
         long userId = Long.parseLong(SecurityContextHolder.getContext().getAuthentication().getName());
+        int pageSize = checkPage(page, size);
+        List<PrivateMemberQueryHandler> cached = sessionListCache.pagePrivateSessions(userId, page, pageSize);
+        if (cached != null) {
+            return new ResponseHandler(ResponseHandler.SUCCESS, "查询私人会话列表", cached);
+        }
 
         /**
          * 把查询私聊列表请求发送到消息队列,异步查询私聊列表
@@ -308,22 +343,42 @@ public class SessionController {
 
 
     /**
-     * 异步返回结果
-     * 查询群聊成员列表
+     * redis中有缓存时同步分页返回结果,没有时异步返回整个列表,同时写入缓存
+     * 查询群聊成员列表,按入群顺序
      */
     @GetMapping("/api/session/queryGroupMemberList/{sessionId}")
-    public ResponseHandler queryGroupMemberList(@PathVariable("sessionId") long sessionId) throws BadRequestException {
+    public ResponseHandler queryGroupMemberList(@PathVariable("sessionId") long sessionId,
+                                                @RequestParam(defaultValue = "0") int page,
+                                                @RequestParam(required = false) Integer size) throws BadRequestException {
 
         /**
          * 先验证用户是否登录
          */
         long userId = Long.parseLong(SecurityContextHolder.getContext().getAuthentication().getName());
+        int pageSize = checkPage(page, size);
+        List<GroupMemberQuery> cached = sessionListCache.pageGroupMembers(sessionId, page, pageSize);
+        if (cached != null) {
+            return new ResponseHandler(ResponseHandler.SUCCESS, "查询群成员列表", cached);
+        }
         ConsumerMessageType messageType = new ConsumerMessageType(sessionId,userId,"groupMemberList");
         msgProducer.sendQuerySessionMessage(messageType);
 
         return new ResponseHandler(ResponseHandler.PROCESSING, "正在查询群聊成员列表");
     }
 
+    /**
+     * 不传size时返回第一页的最大数量
+     */
+    private int checkPage(int page, Integer size) throws BadRequestException {
+        if (size == null) {
+            size = sessionListMaxPageSize;
+        }
+        if (page < 0 || size <= 0 || size > sessionListMaxPageSize) {
+            throw new BadRequestException("翻页参数无效,size必须在1到" + sessionListMaxPageSize + "之间");
+        }
+        return size;
+    }
+
     /**
      * 同步返回结果
      * 查询群聊成员角色,给前端为管理员和普通群成员分别显示功能按钮用的
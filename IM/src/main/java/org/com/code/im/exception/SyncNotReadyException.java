@@ -0,0 +1,13 @@
+package org.com.code.im.exception;
+
+/**
+ * 增量同步时缺口中的消息还没有从redis写入mysql,稍后重试,不能跳过
+ */
+public class SyncNotReadyException extends RuntimeException {
+    public SyncNotReadyException(String message) {
+        super(message);
+    }
+    public String getMessage() {
+        return super.getMessage();
+    }
+}
@@ -1,6 +1,7 @@
 package org.com.code.im.mapper;
 
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
 import org.com.code.im.pojo.query.GroupMemberQuery;
 import org.com.code.im.pojo.GroupMembers;
 
@@ -13,5 +14,9 @@ public interface GroupMemberMapper {
     public List<GroupMemberQuery> queryGroupMemberList(long sessionId);
     public int deleteGroupMember(long sessionId, long userId);
     public int deleteAllGroupMembers(long sessionId);
+    /**
+     * 按主键(sessionId, userId)的顺序删除群里最多limit个成员,返回删除的数量
+     */
+    public int deleteGroupMembersChunk(@Param("sessionId") long sessionId, @Param("limit") int limit);
     public int updateMemberRole(Map map);
 }
@@ -1,14 +1,121 @@
 package org.com.code.im.mapper;
 
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
 import org.com.code.im.pojo.Messages;
+import org.com.code.im.pojo.SnowflakeIdWorker;
+import org.com.code.im.utils.TimeConverter;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 @Mapper
 public interface MessageMapper {
     void insertBatchMsg(List<Messages> messages);
-    List<Messages> queryUnreadMessages(List<Long> unreadMessageIds);
+    /**
+     * 按messageId批量查询消息,createdAt的范围用来让mysql只扫描范围内的分区,为null表示不限制
+     */
+    List<Messages> queryUnreadMessages(@Param("messageIds") List<Long> unreadMessageIds,
+                                       @Param("fromCreatedAt") LocalDateTime fromCreatedAt,
+                                       @Param("toCreatedAt") LocalDateTime toCreatedAt);
+
+    /**
+     * 按messageId批量查询消息,用snowflake id中的时间戳估计createdAt的范围,只扫描这个范围内的分区
+     *
+     * createdAt是ChatMsgConsumer消费时设置的,晚于id生成的时间,一般只晚几毫秒,
+     * 超出估计范围的消息(比如消费积压了很久)再不限制范围补查一次
+     */
+    default List<Messages> queryMessagesByIds(List<Long> messageIds) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (Long messageId : messageIds) {
+            long timestamp = SnowflakeIdWorker.timestampOf(messageId);
+            min = Math.min(min, timestamp);
+            max = Math.max(max, timestamp);
+        }
+        List<Messages> messages = queryUnreadMessages(messageIds,
+                TimeConverter.ofTimestamp(min - CREATED_AT_SKEW_MILLIS),
+                TimeConverter.ofTimestamp(max + CREATED_AT_LAG_MILLIS));
+        if (messages.size() < messageIds.size()) {
+            Set<Long> missing = new HashSet<>(messageIds);
+            for (Messages message : messages) {
+                missing.remove(message.getMessageId());
+            }
+            messages = new ArrayList<>(messages);
+            messages.addAll(queryUnreadMessages(new ArrayList<>(missing), null, null));
+        }
+        return messages;
+    }
+
+    /**
+     * 服务器之间的时钟误差
+     */
+    long CREATED_AT_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    /**
+     * 消息从生成id到被消费设置createdAt最多间隔多久
+     */
+    long CREATED_AT_LAG_MILLIS = TimeUnit.DAYS.toMillis(1);
     int deleteGroupMessages(long sessionId);
     List<Messages> queryMessagesByTimestamp(List<Long> sessionIdList,long earliestMessageTimestamp,long minimumTimeStampScoreOfUnreadMessage);
+
+    /**
+     * 查询对话中某条消息的创建时间,作为翻页的游标,消息不在这个对话里返回null
+     */
+    LocalDateTime queryCreatedAtOfMessage(@Param("sessionId") long sessionId, @Param("messageId") long messageId);
+
+    /**
+     * 按(createdAt, messageId)从新到旧翻页查询一个对话的历史消息,
+     * cursorCreatedAt为null时从最新的消息开始,否则返回游标那条消息之前的消息
+     */
+    List<Messages> queryMessagesBySessionCursor(@Param("sessionId") long sessionId,
+                                                @Param("cursorCreatedAt") LocalDateTime cursorCreatedAt,
+                                                @Param("cursorMessageId") long cursorMessageId,
+                                                @Param("limit") int limit);
+
+    /**
+     * 按(createdAt, messageId)从旧到新翻页查询这些对话在[fromCreatedAt, toCreatedAt)之间的消息,
+     * cursorCreatedAt为null时从fromCreatedAt开始,否则返回游标那条消息之后的消息
+     */
+    List<Messages> queryMessagesOfSessionsByTimeRangePage(@Param("sessionIds") List<Long> sessionIds,
+                                                @Param("fromCreatedAt") LocalDateTime fromCreatedAt,
+                                                @Param("toCreatedAt") LocalDateTime toCreatedAt,
+                                                @Param("cursorCreatedAt") LocalDateTime cursorCreatedAt,
+                                                @Param("cursorMessageId") long cursorMessageId,
+                                                @Param("limit") int limit);
+
+    /**
+     * 按seq从小到大查询对话中seq大于afterSeq的消息,用于客户端按游标增量同步
+     */
+    List<Messages> queryMessagesBySessionSeq(@Param("sessionId") long sessionId,
+                                             @Param("afterSeq") long afterSeq,
+                                             @Param("limit") int limit);
+
+    /**
+     * 对话中按主键(createdAt, messageId)从旧到新第offset+1条消息,只查询主键,
+     * 作为分批删除的边界,消息数量不超过offset时返回null
+     */
+    Messages queryGroupMessageChunkBoundary(@Param("sessionId") long sessionId, @Param("offset") int offset);
+
+    /**
+     * 删除对话中主键不超过边界(boundaryCreatedAt, boundaryMessageId)的消息,
+     * boundaryCreatedAt为null时删除对话剩下的所有消息(调用前已经确认不超过一批)
+     */
+    int deleteGroupMessagesUpTo(@Param("sessionId") long sessionId,
+                                @Param("boundaryCreatedAt") LocalDateTime boundaryCreatedAt,
+                                @Param("boundaryMessageId") long boundaryMessageId);
+
+    /**
+     * messages表现有的分区名,表没有分区时返回的列表里只有一个null
+     */
+    List<String> queryMessagePartitionNames();
+
+    /**
+     * 把pmax拆成 partitionName (createdAt < lessThan) 和新的pmax,
+     * 参数由MessagePartitionMaintainer生成,不来自用户输入
+     */
+    void addMessagePartition(@Param("partitionName") String partitionName, @Param("lessThan") String lessThan);
 }
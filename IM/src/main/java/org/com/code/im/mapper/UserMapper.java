@@ -30,6 +30,11 @@ public interface UserMapper {
 
     List<String> queryUserNameByManyIds(List<Long> ids);
 
+    /**
+     * 只查询id和userName,返回的顺序和ids无关,按id对应
+     */
+    List<User> queryIdAndNameByIds(List<Long> ids);
+
     String selectAvatarById(long userId);
 
     List<UserNameAndAvatar> selectNameAndAvatarByIds(List<Long> ids);
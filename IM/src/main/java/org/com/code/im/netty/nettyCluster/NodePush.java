@@ -0,0 +1,25 @@
+package org.com.code.im.netty.nettyCluster;
+
+import lombok.*;
+
+/**
+ * 转发给其他服务器的推送,同一台服务器上的所有接收者只转发一次
+ */
+@Getter
+@Setter
+@ToString
+@NoArgsConstructor
+@AllArgsConstructor
+public class NodePush {
+    // 连接在目标服务器上的接收者id
+    long[] userIds;
+
+    // 已经序列化好的ResponseHandler的JSON
+    String payload;
+
+    // 如果推送的是聊天消息,则是消息的id和时间戳,接收者积压太多时用来转为离线消息,否则为0
+    long messageId;
+    long timestamp;
+    // 低优先级推送的coalesceKey,目标服务器用ChannelCrud.sendLowPriority写出,普通推送为null
+    String coalesceKey;
+}
@@ -0,0 +1,68 @@
+package org.com.code.im.netty.nettyCluster;
+
+import com.alibaba.fastjson.JSONObject;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.common.consumer.ConsumeFromWhere;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import org.com.code.im.responseHandler.ResponseHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 消费其他服务器转发给本机的推送
+ *
+ * topic的名字里带着本机的nodeId,只有启动之后才知道,
+ * 所以不能用@RocketMQMessageListener注解,这里手动创建DefaultMQPushConsumer
+ * 每台服务器一个单独的消费者组,推送只关心当前在线的连接,所以从最新的位置开始消费
+ */
+@Component
+public class NodePushConsumer {
+
+    @Value("${rocketmq.name-server}")
+    private String nameServer;
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    private DefaultMQPushConsumer consumer;
+
+    @PostConstruct
+    public void start() throws Exception {
+        String topic = PresenceRegistry.topicOf(presenceRegistry.getNodeId());
+        consumer = new DefaultMQPushConsumer(topic + "_consumer");
+        consumer.setNamesrvAddr(nameServer);
+        consumer.setConsumeFromWhere(ConsumeFromWhere.CONSUME_FROM_LAST_OFFSET);
+        consumer.subscribe(topic, PushRouter.PUSH_TAG);
+        consumer.registerMessageListener((MessageListenerConcurrently) (messages, context) -> {
+            for (MessageExt message : messages) {
+                NodePush push = JSONObject.parseObject(new String(message.getBody(), StandardCharsets.UTF_8), NodePush.class);
+                if (push.getCoalesceKey() != null) {
+                    ResponseHandler response = JSONObject.parseObject(push.getPayload(), ResponseHandler.class);
+                    for (long userId : push.getUserIds()) {
+                        ChannelCrud.sendLowPriority(userId, push.getCoalesceKey(), response);
+                    }
+                    continue;
+                }
+                ChannelCrud.broadcastJson(push.getPayload(), push.getMessageId(), push.getTimestamp(),
+                        push.getUserIds(), push.getUserIds().length);
+            }
+            return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        });
+        consumer.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (consumer != null) {
+            consumer.shutdown();
+        }
+    }
+}
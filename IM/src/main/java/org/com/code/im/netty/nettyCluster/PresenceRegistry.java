@@ -0,0 +1,345 @@
+package org.com.code.im.netty.nettyCluster;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多台网关服务器时的在线状态: 用户连接在哪些服务器上
+ *
+ * redis中的数据:
+ *   user_nodes_userId   set  , 用户有设备连接着的服务器的nodeId
+ *   node_users_nodeId   set  , 连接在这台服务器上的用户id,服务器重启时用来清理自己留下的记录
+ *   online_user         hash , userId -> userId, 和原来一样表示用户是否在线(任意一台服务器上),
+ *                              只有当user_nodes_userId变成空集合的时候才会删除
+ *   node_alive_nodeId   string, 服务器的心跳,每隔heartbeatSeconds续期一次,nodeTtlSeconds之后过期
+ *   gateway_nodes       set  , 所有登记过的服务器的nodeId
+ *
+ * 上线和下线都用lua脚本完成,保证几个key的修改是原子的
+ *
+ * 服务器崩溃或者被直接杀掉时来不及删除自己的记录,如果换了主机名也不会再用同一个nodeId启动,
+ * 所以每台服务器在心跳的时候顺便检查gateway_nodes中其他服务器的心跳:
+ * 1. 心跳已经过期的服务器不会出现在nodesOf的结果中,推送不会再转发给它,发送方把这些用户当作离线处理
+ * 2. 同时用CLEAR_DEAD_NODE_SCRIPT删除它留下的user_nodes_和node_users_记录,脚本里再检查一次心跳,
+ *    这台服务器恰好在这时重新启动的话不会误删
+ * 3. 服务器自己的心跳过期过(比如长时间GC停顿),它的记录可能已经被其他服务器删除,重新登记本机所有在线用户
+ */
+@Component
+public class PresenceRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(PresenceRegistry.class);
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    /**
+     * 当前服务器的id,不配置则使用 主机名-端口,
+     * 会作为RocketMQ的topic名字的一部分,所以只保留字母,数字,下划线和横线
+     */
+    @Value("${netty.node-id:}")
+    private String configuredNodeId;
+
+    @Value("${netty.port}")
+    private int nettyPort;
+
+    @Value("${netty.presence.heartbeat-seconds:10}")
+    private long heartbeatSeconds;
+
+    /**
+     * 超过这个时间没有心跳的服务器视为已经下线,要比heartbeatSeconds大几倍,避免网络抖动时误判
+     */
+    @Value("${netty.presence.node-ttl-seconds:30}")
+    private long nodeTtlSeconds;
+
+    private String nodeId;
+
+    /**
+     * 最近一次心跳时还活着的服务器,nodesOf用来过滤掉已经下线的服务器
+     */
+    private volatile Set<String> aliveNodes = Collections.emptySet();
+
+    private ScheduledExecutorService heartbeatExecutor;
+
+    private static final String ONLINE_USER = "online_user";
+    private static final String USER_NODES = "user_nodes_";
+    private static final String NODE_USERS = "node_users_";
+    private static final String NODE_ALIVE = "node_alive_";
+    private static final String GATEWAY_NODES = "gateway_nodes";
+
+    private static final int REJOIN_BATCH_SIZE = 1000;
+
+    private static final DefaultRedisScript<Long> ONLINE_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('SADD', KEYS[1], ARGV[1]) " +
+            "redis.call('SADD', KEYS[2], ARGV[2]) " +
+            "redis.call('HSET', KEYS[3], ARGV[2], ARGV[2]) " +
+            "return 1",
+            Long.class);
+
+    /**
+     * ARGV[1]是nodeId,后面的参数都是用户id,返回真正变成离线(所有服务器上都没有设备)的用户数量
+     */
+    private static final DefaultRedisScript<Long> OFFLINE_SCRIPT = new DefaultRedisScript<>(
+            "local offline = 0 " +
+            "for i = 2, #ARGV do " +
+            "    local key = 'user_nodes_' .. ARGV[i] " +
+            "    redis.call('SREM', key, ARGV[1]) " +
+            "    redis.call('SREM', KEYS[2], ARGV[i]) " +
+            "    if redis.call('SCARD', key) == 0 then " +
+            "        redis.call('HDEL', KEYS[1], ARGV[i]) " +
+            "        offline = offline + 1 " +
+            "    end " +
+            "end " +
+            "return offline",
+            Long.class);
+
+    /**
+     * 服务器重启后,上一次运行时连接在这台服务器上的用户都已经掉线了
+     * 有多台服务器时不能像原来一样直接删除整个online_user,只清理本机留下的记录
+     */
+    private static final DefaultRedisScript<Long> CLEAR_NODE_SCRIPT = new DefaultRedisScript<>(
+            "local users = redis.call('SMEMBERS', KEYS[2]) " +
+            "for i, userId in ipairs(users) do " +
+            "    local key = 'user_nodes_' .. userId " +
+            "    redis.call('SREM', key, ARGV[1]) " +
+            "    if redis.call('SCARD', key) == 0 then " +
+            "        redis.call('HDEL', KEYS[1], userId) " +
+            "    end " +
+            "end " +
+            "redis.call('DEL', KEYS[2]) " +
+            "return #users",
+            Long.class);
+
+    /**
+     * 清理一台心跳已经过期的服务器留下的记录,心跳又出现了(服务器重新启动)则什么都不做
+     * KEYS[1] online_user, KEYS[2] node_users_nodeId, KEYS[3] node_alive_nodeId, KEYS[4] gateway_nodes
+     * ARGV[1] nodeId
+     */
+    private static final DefaultRedisScript<Long> CLEAR_DEAD_NODE_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('EXISTS', KEYS[3]) == 1 then return -1 end " +
+            "local users = redis.call('SMEMBERS', KEYS[2]) " +
+            "for i, userId in ipairs(users) do " +
+            "    local key = 'user_nodes_' .. userId " +
+            "    redis.call('SREM', key, ARGV[1]) " +
+            "    if redis.call('SCARD', key) == 0 then " +
+            "        redis.call('HDEL', KEYS[1], userId) " +
+            "    end " +
+            "end " +
+            "redis.call('DEL', KEYS[2]) " +
+            "redis.call('SREM', KEYS[4], ARGV[1]) " +
+            "return #users",
+            Long.class);
+
+    /**
+     * 重新登记本机的一批在线用户,ARGV[1]是nodeId,后面的参数都是用户id
+     */
+    private static final DefaultRedisScript<Long> REJOIN_SCRIPT = new DefaultRedisScript<>(
+            "for i = 2, #ARGV do " +
+            "    redis.call('SADD', 'user_nodes_' .. ARGV[i], ARGV[1]) " +
+            "    redis.call('SADD', KEYS[2], ARGV[i]) " +
+            "    redis.call('HSET', KEYS[1], ARGV[i], ARGV[i]) " +
+            "end " +
+            "return #ARGV - 1",
+            Long.class);
+
+    @PostConstruct
+    public void init() throws Exception {
+        String id = configuredNodeId;
+        if (id == null || id.isBlank()) {
+            id = InetAddress.getLocalHost().getHostName() + "-" + nettyPort;
+        }
+        nodeId = id.replaceAll("[^a-zA-Z0-9_-]", "_");
+
+        Long cleared = (Long) stringRedisTemplate.execute(CLEAR_NODE_SCRIPT,
+                Arrays.asList(ONLINE_USER, NODE_USERS + nodeId), nodeId);
+        logger.info("网关服务器 {} 启动,清理了上次留下的 {} 个在线用户", nodeId, cleared);
+
+        stringRedisTemplate.opsForValue().set(NODE_ALIVE + nodeId, String.valueOf(System.currentTimeMillis()),
+                nodeTtlSeconds, TimeUnit.SECONDS);
+        stringRedisTemplate.opsForSet().add(GATEWAY_NODES, nodeId);
+        refreshAliveNodes();
+
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        heartbeatExecutor.shutdown();
+    }
+
+    private void heartbeat() {
+        try {
+            Boolean refreshed = stringRedisTemplate.opsForValue().setIfPresent(NODE_ALIVE + nodeId,
+                    String.valueOf(System.currentTimeMillis()), nodeTtlSeconds, TimeUnit.SECONDS);
+            if (!Boolean.TRUE.equals(refreshed)) {
+                stringRedisTemplate.opsForValue().set(NODE_ALIVE + nodeId, String.valueOf(System.currentTimeMillis()),
+                        nodeTtlSeconds, TimeUnit.SECONDS);
+                logger.warn("网关服务器 {} 的心跳已经过期,重新登记了 {} 个在线用户", nodeId, rejoinLocalUsers());
+            }
+            stringRedisTemplate.opsForSet().add(GATEWAY_NODES, nodeId);
+            refreshAliveNodes();
+        } catch (Exception e) {
+            logger.error("网关服务器 {} 心跳失败: {}", nodeId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 用pipeline检查gateway_nodes中每台服务器的心跳,清理已经下线的服务器
+     */
+    private void refreshAliveNodes() {
+        Set<String> members = stringRedisTemplate.opsForSet().members(GATEWAY_NODES);
+        List<String> nodes = members == null ? Collections.emptyList() : new ArrayList<>(members);
+        List<Object> exists = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                for (String node : nodes) {
+                    connection.exists(stringRedisTemplate.getStringSerializer().serialize(NODE_ALIVE + node));
+                }
+                return null;
+            }
+        });
+        Set<String> alive = new HashSet<>();
+        alive.add(nodeId);
+        for (int i = 0; i < nodes.size(); i++) {
+            String node = nodes.get(i);
+            if (Boolean.TRUE.equals(exists.get(i))) {
+                alive.add(node);
+            } else if (!node.equals(nodeId)) {
+                Long cleared = (Long) stringRedisTemplate.execute(CLEAR_DEAD_NODE_SCRIPT,
+                        Arrays.asList(ONLINE_USER, NODE_USERS + node, NODE_ALIVE + node, GATEWAY_NODES), node);
+                if (cleared != null && cleared >= 0) {
+                    logger.warn("网关服务器 {} 已经下线,清理了 {} 个在线用户", node, cleared);
+                } else {
+                    alive.add(node);
+                }
+            }
+        }
+        aliveNodes = alive;
+    }
+
+    /**
+     * 重新登记本机所有在线用户,返回登记的用户数量
+     */
+    private long rejoinLocalUsers() {
+        List<String> args = new ArrayList<>();
+        long[] rejoined = new long[1];
+        args.add(nodeId);
+        ChannelCrud.onlineUser.forEachUser(userId -> {
+            args.add(String.valueOf(userId));
+            if (args.size() > REJOIN_BATCH_SIZE) {
+                rejoined[0] += rejoin(args);
+                args.subList(1, args.size()).clear();
+            }
+        });
+        if (args.size() > 1) {
+            rejoined[0] += rejoin(args);
+        }
+        return rejoined[0];
+    }
+
+    private long rejoin(List<String> args) {
+        Long rejoined = (Long) stringRedisTemplate.execute(REJOIN_SCRIPT,
+                Arrays.asList(ONLINE_USER, NODE_USERS + nodeId), args.toArray());
+        return rejoined == null ? 0 : rejoined;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 用户在这台服务器上的第一个设备上线
+     */
+    public void online(long userId) {
+        String stringUserId = String.valueOf(userId);
+        stringRedisTemplate.execute(ONLINE_SCRIPT,
+                Arrays.asList(USER_NODES + stringUserId, NODE_USERS + nodeId, ONLINE_USER),
+                nodeId, stringUserId);
+    }
+
+    /**
+     * 这些用户在这台服务器上的所有设备都下线了
+     *
+     * @return 在所有服务器上都已经没有设备的用户数量
+     */
+    public long offline(Collection<String> userIds) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        List<String> args = new ArrayList<>(userIds.size() + 1);
+        args.add(nodeId);
+        args.addAll(userIds);
+        Long offline = (Long) stringRedisTemplate.execute(OFFLINE_SCRIPT,
+                Arrays.asList(ONLINE_USER, NODE_USERS + nodeId), args.toArray());
+        return offline == null ? 0 : offline;
+    }
+
+    /**
+     * 用pipeline批量查询每个用户连接在哪些服务器上,返回的列表和userIds一一对应,不在线的用户对应空集合,
+     * 心跳已经过期的服务器会被过滤掉
+     */
+    public List<Set<String>> nodesOf(List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Object> results = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                for (Long userId : userIds) {
+                    connection.sMembers(stringRedisTemplate.getStringSerializer().serialize(USER_NODES + userId));
+                }
+                return null;
+            }
+        });
+        Set<String> alive = aliveNodes;
+        List<Set<String>> nodes = new ArrayList<>(results.size());
+        for (Object result : results) {
+            nodes.add(result == null ? Collections.emptySet() : aliveOnly((Set<String>) result, alive));
+        }
+        return nodes;
+    }
+
+    private Set<String> aliveOnly(Set<String> userNodes, Set<String> alive) {
+        if (alive.containsAll(userNodes)) {
+            return userNodes;
+        }
+        Set<String> filtered = new HashSet<>(userNodes);
+        filtered.retainAll(alive);
+        return filtered;
+    }
+
+    /**
+     * 每台服务器都订阅自己的topic,其他服务器通过这个topic把推送转发给它
+     */
+    public static String topicOf(String nodeId) {
+        return "im_push_" + nodeId;
+    }
+}
@@ -0,0 +1,161 @@
+package org.com.code.im.netty.nettyCluster;
+
+import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.responseHandler.ResponseHandler;
+import org.com.code.im.rocketMq.producer.MsgProducer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 推送消息的路由
+ *
+ * 消息队列的消费者和用户的WebSocket连接不一定在同一台服务器上,
+ * 先通过PresenceRegistry查出每个接收者连接在哪些服务器上,然后:
+ * 1. 连接在本机的接收者,直接用ChannelCrud推送
+ * 2. 连接在其他服务器的接收者,按服务器分组,每台服务器只发送一条NodePush到它自己的topic,
+ *    由那台服务器的NodePushConsumer推送给它本地的channel
+ */
+@Component
+public class PushRouter {
+
+    public static final String PUSH_TAG = "push";
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    @Autowired
+    private MsgProducer msgProducer;
+
+    /**
+     * 把消息推送给所有在线的接收者
+     *
+     * @return 不在任何一台服务器上在线的接收者,由调用方存为未读消息
+     */
+    public List<Long> push(ResponseHandler response, List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return route(response, userIds, presenceRegistry.nodesOf(userIds));
+    }
+
+    /**
+     * 批量查询接收者连接在哪些服务器上,结果交给push(response, userIds, nodesByUser)使用,
+     * 批量消费消息时,一批消息的所有接收者只需要查询一次
+     */
+    public Map<Long, Set<String>> nodesOf(Collection<Long> userIds) {
+        List<Long> ids = new ArrayList<>(userIds);
+        List<Set<String>> nodes = presenceRegistry.nodesOf(ids);
+        Map<Long, Set<String>> nodesByUser = new HashMap<>(ids.size() * 2);
+        for (int i = 0; i < ids.size(); i++) {
+            nodesByUser.put(ids.get(i), nodes.get(i));
+        }
+        return nodesByUser;
+    }
+
+    /**
+     * 和push(response, userIds)一样,使用已经查询好的在线状态,不在nodesByUser中的接收者当作不在线
+     */
+    public List<Long> push(ResponseHandler response, List<Long> userIds, Map<Long, Set<String>> nodesByUser) {
+        if (userIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Set<String>> nodes = new ArrayList<>(userIds.size());
+        for (Long userId : userIds) {
+            nodes.add(nodesByUser.getOrDefault(userId, Collections.emptySet()));
+        }
+        return route(response, userIds, nodes);
+    }
+
+    private List<Long> route(ResponseHandler response, List<Long> userIds, List<Set<String>> nodes) {
+        String localNodeId = presenceRegistry.getNodeId();
+
+        List<Long> offlineUserIds = new ArrayList<>();
+        long[] localUserIds = new long[userIds.size()];
+        int localNumber = 0;
+        Map<String, List<Long>> remoteUserIds = new HashMap<>();
+
+        for (int i = 0; i < userIds.size(); i++) {
+            long userId = userIds.get(i);
+            Set<String> userNodes = nodes.get(i);
+            if (userNodes.isEmpty()) {
+                offlineUserIds.add(userId);
+                continue;
+            }
+            for (String nodeId : userNodes) {
+                if (nodeId.equals(localNodeId)) {
+                    localUserIds[localNumber++] = userId;
+                } else {
+                    remoteUserIds.computeIfAbsent(nodeId, k -> new ArrayList<>()).add(userId);
+                }
+            }
+        }
+
+        if (localNumber > 0) {
+            ChannelCrud.broadcast(response, localUserIds, localNumber);
+        }
+        if (!remoteUserIds.isEmpty()) {
+            String payload = response.toJSONString();
+            long messageId = 0;
+            long timestamp = 0;
+            if (response.getData() instanceof Messages) {
+                messageId = ((Messages) response.getData()).getMessageId();
+                timestamp = ((Messages) response.getData()).getTimestamp();
+            }
+            for (Map.Entry<String, List<Long>> entry : remoteUserIds.entrySet()) {
+                forward(entry.getKey(), entry.getValue(), payload, messageId, timestamp);
+            }
+        }
+        return offlineUserIds;
+    }
+
+    /**
+     * 给一个用户的所有设备推送已经序列化好的消息,用户可能连接在其他服务器上
+     */
+    public void sendMessage(long userId, String json) {
+        String localNodeId = presenceRegistry.getNodeId();
+        for (String nodeId : presenceRegistry.nodesOf(Collections.singletonList(userId)).get(0)) {
+            if (nodeId.equals(localNodeId)) {
+                ChannelCrud.sendMessage(userId, json);
+            } else {
+                forward(nodeId, Collections.singletonList(userId), json, 0, 0);
+            }
+        }
+    }
+
+    /**
+     * 给一个用户的所有设备推送低优先级的消息(比如对话已读的多端同步),用户可能连接在其他服务器上,
+     * 客户端处理不过来的时候同一个coalesceKey只保留最新的一条,见OutboundPolicyHandler
+     */
+    public void sendLowPriority(long userId, String coalesceKey, ResponseHandler response) {
+        String localNodeId = presenceRegistry.getNodeId();
+        String payload = null;
+        for (String nodeId : presenceRegistry.nodesOf(Collections.singletonList(userId)).get(0)) {
+            if (nodeId.equals(localNodeId)) {
+                ChannelCrud.sendLowPriority(userId, coalesceKey, response);
+            } else {
+                if (payload == null) {
+                    payload = response.toJSONString();
+                }
+                msgProducer.asyncSendMessage(new NodePush(new long[]{userId}, payload, 0, 0, coalesceKey),
+                        PresenceRegistry.topicOf(nodeId), PUSH_TAG);
+            }
+        }
+    }
+
+    private void forward(String nodeId, List<Long> userIds, String payload, long messageId, long timestamp) {
+        long[] ids = new long[userIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = userIds.get(i);
+        }
+        msgProducer.asyncSendMessage(new NodePush(ids, payload, messageId, timestamp, null), PresenceRegistry.topicOf(nodeId), PUSH_TAG);
+    }
+}
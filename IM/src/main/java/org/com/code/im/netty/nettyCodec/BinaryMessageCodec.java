@@ -0,0 +1,139 @@
+package org.com.code.im.netty.nettyCodec;
+
+import com.alibaba.fastjson.JSON;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.responseHandler.ResponseHandler;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * im.binary 子协议的编解码
+ *
+ * 基本类型:
+ *   varint  : protobuf风格的变长整数,每个字节低7位是数据,最高位表示后面还有没有字节,
+ *             雪花id一般只占8~9个字节,小的数字(状态码,sequenceId)只占1~2个字节
+ *   zigzag  : 可能为负数的值(比如系统消息的senderId为-1)先zigzag再varint
+ *   string  : varint长度 + UTF-8字节
+ *
+ * 客户端 -> 服务器, 发送聊天消息:
+ *   varint sequenceId | varint sessionId | string messageType | string content
+ *
+ * 服务器 -> 客户端, 第一个字节是帧类型:
+ *   0x01 RESPONSE : varint code | string message | varint (zigzag(sequenceId)+1, 0表示没有) | 数据
+ *        数据的第一个字节是数据类型:
+ *          0x00 没有数据
+ *          0x01 string
+ *          0x02 聊天消息: varint messageId | varint sequenceId | varint sessionId | zigzag senderId
+ *                        | varint timestamp | string messageType | string content | varint seq
+ *                        seq放在最后,不认识seq的旧客户端读完content之后忽略剩下的字节即可
+ *          0x03 其他对象, string 形式的JSON
+ *   0x02 JSON     : 剩下的字节就是完整的ResponseHandler的JSON,给那些只拿得到JSON字符串的推送使用
+ */
+public class BinaryMessageCodec {
+
+    public static final byte FRAME_RESPONSE = 0x01;
+    public static final byte FRAME_JSON = 0x02;
+
+    private static final byte DATA_NONE = 0x00;
+    private static final byte DATA_STRING = 0x01;
+    private static final byte DATA_MESSAGE = 0x02;
+    private static final byte DATA_JSON = 0x03;
+
+    public static Messages decodeMessages(ByteBuf in) {
+        Messages messages = new Messages();
+        messages.setSequenceId(readVarLong(in));
+        messages.setSessionId(readVarLong(in));
+        messages.setMessageType(readString(in));
+        messages.setContent(readString(in));
+        return messages;
+    }
+
+    public static void encodeResponse(ResponseHandler response, ByteBuf out) {
+        out.writeByte(FRAME_RESPONSE);
+        writeVarLong(out, response.getCode());
+        writeString(out, response.getMessage());
+
+        Object sequenceId = response.getSequenceId();
+        if (sequenceId instanceof Number) {
+            writeVarLong(out, zigzag(((Number) sequenceId).longValue()) + 1);
+        } else {
+            writeVarLong(out, 0);
+        }
+
+        Object data = response.getData();
+        if (data == null) {
+            out.writeByte(DATA_NONE);
+        } else if (data instanceof String) {
+            out.writeByte(DATA_STRING);
+            writeString(out, (String) data);
+        } else if (data instanceof Messages) {
+            out.writeByte(DATA_MESSAGE);
+            encodeMessages((Messages) data, out);
+        } else {
+            out.writeByte(DATA_JSON);
+            writeString(out, JSON.toJSONString(data));
+        }
+    }
+
+    public static void encodeJson(byte[] json, ByteBuf out) {
+        out.writeByte(FRAME_JSON);
+        out.writeBytes(json);
+    }
+
+    private static void encodeMessages(Messages messages, ByteBuf out) {
+        writeVarLong(out, messages.getMessageId());
+        writeVarLong(out, messages.getSequenceId());
+        writeVarLong(out, messages.getSessionId());
+        writeVarLong(out, zigzag(messages.getSenderId()));
+        writeVarLong(out, messages.getTimestamp());
+        writeString(out, messages.getMessageType());
+        writeString(out, messages.getContent());
+        writeVarLong(out, messages.getSeq());
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void writeVarLong(ByteBuf out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(ByteBuf in) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new CorruptedFrameException("varint too long");
+    }
+
+    static void writeString(ByteBuf out, String value) {
+        if (value == null || value.isEmpty()) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, ByteBufUtil.utf8Bytes(value));
+        ByteBufUtil.writeUtf8(out, value);
+    }
+
+    static String readString(ByteBuf in) {
+        long length = readVarLong(in);
+        if (length < 0 || length > in.readableBytes()) {
+            throw new CorruptedFrameException("string length out of range: " + length);
+        }
+        String value = in.toString(in.readerIndex(), (int) length, StandardCharsets.UTF_8);
+        in.skipBytes((int) length);
+        return value;
+    }
+}
@@ -0,0 +1,50 @@
+package org.com.code.im.netty.nettyCodec;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * permessage-deflate 的压缩统计,所有channel共用
+ *
+ * compressionRatio 压缩后字节数 / 压缩前字节数,越小说明省下的带宽越多
+ * avgCompressNanos 每个被压缩的帧平均花费的CPU时间(纳秒)
+ * 两者结合起来,就可以按部署环境决定压缩阈值和压缩级别,在带宽和CPU之间取舍
+ */
+public class CompressionMetrics {
+
+    private static final LongAdder compressedFrames = new LongAdder();
+    private static final LongAdder skippedFrames = new LongAdder();
+    private static final LongAdder rawBytes = new LongAdder();
+    private static final LongAdder compressedBytes = new LongAdder();
+    private static final LongAdder compressNanos = new LongAdder();
+
+    /**
+     * @param compressedSize 小于0表示这个帧没有被压缩(小于阈值,或者客户端没有协商压缩扩展)
+     */
+    static void record(int rawSize, int compressedSize, long nanos) {
+        if (compressedSize < 0) {
+            skippedFrames.increment();
+            return;
+        }
+        compressedFrames.increment();
+        rawBytes.add(rawSize);
+        compressedBytes.add(compressedSize);
+        compressNanos.add(nanos);
+    }
+
+    public static Map<String, Object> snapshot() {
+        long frames = compressedFrames.sum();
+        long raw = rawBytes.sum();
+        long compressed = compressedBytes.sum();
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("compressedFrames", frames);
+        snapshot.put("skippedFrames", skippedFrames.sum());
+        snapshot.put("rawBytes", raw);
+        snapshot.put("compressedBytes", compressed);
+        snapshot.put("compressionRatio", raw == 0 ? 1.0 : (double) compressed / raw);
+        snapshot.put("avgCompressNanos", frames == 0 ? 0 : compressNanos.sum() / frames);
+        return snapshot;
+    }
+}
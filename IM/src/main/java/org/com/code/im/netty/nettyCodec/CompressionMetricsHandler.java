@@ -0,0 +1,55 @@
+package org.com.code.im.netty.nettyCodec;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtension;
+
+/**
+ * 统计permessage-deflate压缩效果的一对出站处理器,夹在压缩编码器的两边
+ *
+ *   wireSide() -> WebSocketServerExtensionHandler -> (握手后插入的PerMessageDeflateEncoder) -> 本处理器 -> 业务处理器
+ *
+ * 出站数据从右往左走,本处理器先记下原始大小和开始时间,然后调用ctx.write,
+ * 在EventLoop中ctx.write是同步执行的,帧经过压缩编码器之后立即到达wireSide,
+ * wireSide记下压缩后的大小和到达时间,这样就得到了单个帧的压缩率和压缩耗时
+ *
+ * 每个channel一对实例,不能共享
+ */
+public class CompressionMetricsHandler extends ChannelOutboundHandlerAdapter {
+
+    private int compressedSize;
+    private long compressedAt;
+
+    private final ChannelHandler wireSide = new ChannelOutboundHandlerAdapter() {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof WebSocketFrame && (((WebSocketFrame) msg).rsv() & WebSocketExtension.RSV1) != 0) {
+                compressedSize = ((WebSocketFrame) msg).content().readableBytes();
+                compressedAt = System.nanoTime();
+            }
+            ctx.write(msg, promise);
+        }
+    };
+
+    public ChannelHandler wireSide() {
+        return wireSide;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (!(msg instanceof WebSocketFrame)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        int rawSize = ((WebSocketFrame) msg).content().readableBytes();
+        compressedSize = -1;
+        long start = System.nanoTime();
+
+        ctx.write(msg, promise);
+
+        CompressionMetrics.record(rawSize, compressedSize, compressedAt - start);
+    }
+}
@@ -0,0 +1,30 @@
+package org.com.code.im.netty.nettyCodec;
+
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilter;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketExtensionFilterProvider;
+
+/**
+ * permessage-deflate 的过滤器
+ *
+ * 小于threshold字节的帧不压缩: 一条几十个字节的聊天回执压缩之后几乎不会变小,
+ * 反而要付出deflate的CPU开销,只有离线消息,历史消息,会话列表这类大的帧才值得压缩
+ * 客户端发过来的压缩帧总是要解压的
+ */
+public class DeflateThresholdFilterProvider implements WebSocketExtensionFilterProvider {
+
+    private final WebSocketExtensionFilter encoderFilter;
+
+    public DeflateThresholdFilterProvider(int threshold) {
+        this.encoderFilter = frame -> frame.content().readableBytes() < threshold;
+    }
+
+    @Override
+    public WebSocketExtensionFilter encoderFilter() {
+        return encoderFilter;
+    }
+
+    @Override
+    public WebSocketExtensionFilter decoderFilter() {
+        return WebSocketExtensionFilter.NEVER_SKIP;
+    }
+}
@@ -0,0 +1,90 @@
+package org.com.code.im.netty.nettyCodec;
+
+import com.alibaba.fastjson.JSON;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import org.com.code.im.responseHandler.ResponseHandler;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 放在WebSocketServerProtocolHandler后面
+ *
+ * 入站: 握手完成时,把协商出来的子协议(JSON或者BINARY)绑定到channel上,然后继续传递HandshakeComplete事件
+ * 出站: 把业务代码写出的ResponseHandler按照channel的子协议编码成TextWebSocketFrame或者BinaryWebSocketFrame,
+ *      业务代码只需要 ctx.writeAndFlush(responseHandler) ,不用关心客户端用的是哪种协议
+ *
+ * 这个处理器没有状态,所有channel共享同一个实例
+ */
+@ChannelHandler.Sharable
+public class ResponseFrameCodec extends ChannelDuplexHandler {
+
+    public static final ResponseFrameCodec INSTANCE = new ResponseFrameCodec();
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof WebSocketServerProtocolHandler.HandshakeComplete) {
+            WireProtocol.bind(ctx.channel(), ((WebSocketServerProtocolHandler.HandshakeComplete) evt).selectedSubprotocol());
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ResponseHandler) {
+            WireProtocol protocol = WireProtocol.of(ctx.channel());
+            ctx.write(newFrame(protocol, encode(ctx.alloc(), (ResponseHandler) msg, protocol)), promise);
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    /**
+     * 把ResponseHandler编码成帧的内容,用于需要把同一条消息发给很多channel的场景,只编码一次
+     */
+    public static ByteBuf encode(ResponseHandler response, WireProtocol protocol) {
+        return encode(PooledByteBufAllocator.DEFAULT, response, protocol);
+    }
+
+    /**
+     * 把已经序列化好的ResponseHandler的JSON编码成帧的内容
+     */
+    public static ByteBuf encodeJson(String json, WireProtocol protocol) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ByteBuf content = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length + 1);
+        if (protocol == WireProtocol.BINARY) {
+            BinaryMessageCodec.encodeJson(bytes, content);
+        } else {
+            content.writeBytes(bytes);
+        }
+        return content;
+    }
+
+    public static WebSocketFrame newFrame(WireProtocol protocol, ByteBuf content) {
+        return protocol == WireProtocol.BINARY ? new BinaryWebSocketFrame(content) : new TextWebSocketFrame(content);
+    }
+
+    private static ByteBuf encode(ByteBufAllocator allocator, ResponseHandler response, WireProtocol protocol) {
+        if (protocol == WireProtocol.BINARY) {
+            ByteBuf content = allocator.directBuffer();
+            try {
+                BinaryMessageCodec.encodeResponse(response, content);
+            } catch (RuntimeException e) {
+                content.release();
+                throw e;
+            }
+            return content;
+        }
+        byte[] bytes = JSON.toJSONBytes(response);
+        return allocator.directBuffer(bytes.length).writeBytes(bytes);
+    }
+}
@@ -0,0 +1,46 @@
+package org.com.code.im.netty.nettyCodec;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+/**
+ * 客户端和服务器之间WebSocket帧的编码方式,在WebSocket握手时通过 Sec-WebSocket-Protocol 子协议协商
+ *
+ * JSON   子协议 im.json   , 或者客户端没有指定子协议, 使用TextWebSocketFrame + JSON, 也就是原来的格式
+ * BINARY 子协议 im.binary , 使用BinaryWebSocketFrame + BinaryMessageCodec 的紧凑二进制格式,
+ *        id用varint编码,适合弱网环境下的移动端
+ */
+public enum WireProtocol {
+    JSON("im.json"),
+    BINARY("im.binary");
+
+    public static final AttributeKey<WireProtocol> WIRE_PROTOCOL = AttributeKey.valueOf("wireProtocol");
+
+    /**
+     * 服务器支持的全部子协议,传给WebSocketServerProtocolHandler
+     */
+    public static final String SUBPROTOCOLS = "im.json,im.binary";
+
+    private final String subprotocol;
+
+    WireProtocol(String subprotocol) {
+        this.subprotocol = subprotocol;
+    }
+
+    public String getSubprotocol() {
+        return subprotocol;
+    }
+
+    /**
+     * 握手完成后根据协商出来的子协议绑定到channel上
+     */
+    public static void bind(Channel channel, String selectedSubprotocol) {
+        WireProtocol protocol = BINARY.subprotocol.equals(selectedSubprotocol) ? BINARY : JSON;
+        channel.attr(WIRE_PROTOCOL).set(protocol);
+    }
+
+    public static WireProtocol of(Channel channel) {
+        WireProtocol protocol = channel.attr(WIRE_PROTOCOL).get();
+        return protocol == null ? JSON : protocol;
+    }
+}
@@ -0,0 +1,176 @@
+package org.com.code.im.netty.nettyHandler;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所有channel共用的出站背压策略配置和统计,每个channel的具体执行见OutboundPolicyHandler
+ *
+ * 转为离线的聊天消息不能在EventLoop里直接写redis,
+ * 先放进队列,由单独的线程每隔一段时间用pipeline批量写入unread_message_userId,
+ * 写入失败时整批放回队列,下一次再写,ZADD是幂等的,已经写进去的部分重复写入也没有影响
+ */
+@Component
+public class BackpressurePolicy {
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    /**
+     * channel出站缓冲区积压超过这个字节数,之后的聊天消息都转为离线消息,
+     * 应该比netty.write-buffer-high-water-mark大,超过高水位线之后只丢弃低优先级的消息
+     */
+    @Value("${netty.backpressure.max-pending-bytes:1048576}")
+    private long maxPendingBytes;
+
+    /**
+     * 不可写期间每个channel最多暂存多少个不同coalesceKey的低优先级消息,超过的丢弃
+     */
+    @Value("${netty.backpressure.max-coalesced:32}")
+    private int maxCoalesced;
+
+    private static final int TOP_CHANNELS = 20;
+
+    private final Set<OutboundPolicyHandler> handlers = ConcurrentHashMap.newKeySet();
+
+    private final Queue<long[]> divertedMessages = new ConcurrentLinkedQueue<>();
+
+    private ScheduledExecutorService flushExecutor;
+
+    final LongAdder coalesced = new LongAdder();
+    final LongAdder droppedLowPriority = new LongAdder();
+    final LongAdder diverted = new LongAdder();
+    final LongAdder laggingChannels = new LongAdder();
+    final LongAdder divertFlushFailures = new LongAdder();
+    final LongAdder divertRequeued = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "backpressure-divert");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushExecutor.scheduleWithFixedDelay(this::flushDiverted, 200, 200, TimeUnit.MILLISECONDS);
+        ChannelCrud.setUndeliveredPolicy(this);
+    }
+
+    @PreDestroy
+    public void stop() {
+        flushExecutor.shutdown();
+        flushDiverted();
+    }
+
+    long getMaxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    int getMaxCoalesced() {
+        return maxCoalesced;
+    }
+
+    void register(OutboundPolicyHandler handler) {
+        handlers.add(handler);
+    }
+
+    void unregister(OutboundPolicyHandler handler) {
+        handlers.remove(handler);
+    }
+
+    /**
+     * 把一条聊天消息转为这个用户的未读消息,格式和ChatMsgConsumer中离线用户的未读消息一样
+     * 积压太多的channel和已经关闭的channel(见ChannelCrud)都走这里
+     */
+    void divert(long userId, long messageId, long timestamp) {
+        diverted.increment();
+        divertedMessages.add(new long[]{userId, messageId, timestamp});
+    }
+
+    private void flushDiverted() {
+        if (divertedMessages.isEmpty()) {
+            return;
+        }
+        List<long[]> batch = new ArrayList<>();
+        long[] message;
+        while ((message = divertedMessages.poll()) != null) {
+            batch.add(message);
+        }
+        try {
+            stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+                @Override
+                public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                    for (long[] m : batch) {
+                        connection.zAdd(
+                                stringRedisTemplate.getStringSerializer().serialize("unread_message_" + m[0]),
+                                m[2],
+                                stringRedisTemplate.getStringSerializer().serialize(String.valueOf(m[1])));
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+            // 这些channel已经关闭或者跳过了,放回队列是这些消息变成未读消息的唯一机会
+            divertFlushFailures.increment();
+            divertRequeued.add(batch.size());
+            divertedMessages.addAll(batch);
+        }
+    }
+
+    /**
+     * 每个channel的出站积压情况,只返回积压最多的前TOP_CHANNELS个channel
+     */
+    public Map<String, Object> snapshot() {
+        List<Map<String, Object>> channels = new ArrayList<>();
+        int unwritable = 0;
+        int lagging = 0;
+        for (OutboundPolicyHandler handler : handlers) {
+            Map<String, Object> depth = handler.queueDepth();
+            if (!(Boolean) depth.get("writable")) {
+                unwritable++;
+            }
+            if ((Boolean) depth.get("lagging")) {
+                lagging++;
+            }
+            channels.add(depth);
+        }
+        channels.sort(Comparator.comparingLong((Map<String, Object> depth) -> (Long) depth.get("pendingBytes")).reversed());
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("channels", handlers.size());
+        snapshot.put("unwritableChannels", unwritable);
+        snapshot.put("laggingChannels", lagging);
+        snapshot.put("laggingChannelsTotal", laggingChannels.sum());
+        snapshot.put("coalesced", coalesced.sum());
+        snapshot.put("droppedLowPriority", droppedLowPriority.sum());
+        snapshot.put("divertedToOffline", diverted.sum());
+        snapshot.put("divertQueue", divertedMessages.size());
+        snapshot.put("divertFlushFailures", divertFlushFailures.sum());
+        snapshot.put("divertRequeued", divertRequeued.sum());
+        snapshot.put("topChannels", channels.subList(0, Math.min(TOP_CHANNELS, channels.size())));
+        return snapshot;
+    }
+}
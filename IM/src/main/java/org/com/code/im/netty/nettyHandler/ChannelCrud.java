@@ -1,55 +1,246 @@
 package org.com.code.im.netty.nettyHandler;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.channel.EventLoop;
+import org.com.code.im.netty.nettyCodec.ResponseFrameCodec;
+import org.com.code.im.netty.nettyCodec.WireProtocol;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.responseHandler.ResponseHandler;
+import org.com.code.im.utils.JWTUtils;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 public class ChannelCrud {
     /**
-     * 本地的服务器的上下文ConcurrentHashMap,同时保证线程安全
-     * 同时由于是以ConcurrentHashMap<Long, CopyOnWriteArrayList<Channel>>的存储格式
+     * 本地的服务器的上下文,userId -> 该用户所有在线设备的channel数组
      * 意味着同一个用户id在上下文可以对应多个channel，也就是同一个账号可以同时在不同设备以WebSocket连接在线，并同时接收消息
      *
      * 我设置成一个账号最多 MAX_ONLINE_NUMBER 设备同时在线,超出限制的,最早登录的账号会被挤下线
+     * 读操作无锁,具体实现见ChannelRegistry
      */
-    public static ConcurrentHashMap<Long, CopyOnWriteArrayList<Channel>> onlineUser = new ConcurrentHashMap<>();
+    public static final ChannelRegistry onlineUser = new ChannelRegistry();
 
-    public static void addChannel(Long userId, ChannelHandlerContext ctx) {
-        onlineUser.compute(userId, (key, channelList) -> {
-            if (channelList == null) {
-                channelList = new CopyOnWriteArrayList<>();
-            }
-            channelList.add(ctx.channel());
-            return channelList;
-        });
+    /**
+     * 用户的channel已经关闭,但是online_user里的记录还没有删除的这段时间内,其他服务器仍然会把消息路由到本机,
+     * 这些聊天消息通过BackpressurePolicy转为未读消息,不会被丢弃;由BackpressurePolicy启动时设置
+     */
+    private static volatile BackpressurePolicy undeliveredPolicy;
+
+    static void setUndeliveredPolicy(BackpressurePolicy policy) {
+        undeliveredPolicy = policy;
     }
 
-    public static void removeChannel(Long userId, ChannelHandlerContext ctx) {
-        onlineUser.computeIfPresent(userId, (key, channelList) -> {
-            channelList.remove(ctx.channel());
-            if (channelList.isEmpty()) {
-                onlineUser.remove(key);
-                return null;
-            }
-            return channelList;
-        });
+    /**
+     * 添加用户的channel,超出MAX_ONLINE_NUMBER的最早登录的设备会被原子地移出注册表并关闭,
+     * 同时给channel的closeFuture注册监听器,channel无论以什么方式关闭都会自动从注册表中移除
+     *
+     * @return 添加之后该用户的在线设备数量
+     */
+    public static int addChannel(long userId, Channel channel) {
+        Channel[] evicted = onlineUser.add(userId, channel, (int) JWTUtils.getMaxOnlineNumber());
+        channel.closeFuture().addListener(future -> onlineUser.remove(userId, channel));
+
+        // 被挤下线的设备,在握手完成前不能发送任何数据，直接关闭连接
+        for (Channel oldestChannel : evicted) {
+            oldestChannel.close();
+        }
+        return onlineUser.get(userId).length;
+    }
+
+    /**
+     * @return 移除之后该用户是否已经没有任何在线设备
+     */
+    public static boolean removeChannel(long userId, Channel channel) {
+        return onlineUser.remove(userId, channel);
     }
 
-    public static List<Channel> getChannel(Long userId) {
+    /**
+     * 返回的数组不能修改,用户不在线时返回空数组
+     */
+    public static Channel[] getChannels(long userId) {
         return onlineUser.get(userId);
     }
 
+    public static boolean isOnline(long userId) {
+        return onlineUser.get(userId).length > 0;
+    }
+
+    /**
+     * 给一个用户的所有在线设备发送消息,消息只编码一次,所有设备共享同一块内存
+     * 使用JSON子协议的设备收到TextWebSocketFrame,使用二进制子协议的设备收到包裹着JSON的BinaryWebSocketFrame
+     */
     public static void sendMessage(Long userId, String message) {
-        List<Channel> channelList = onlineUser.get(userId);
-        if (channelList != null) {
-            for (Channel ctx : channelList) {
-                ctx.writeAndFlush(new TextWebSocketFrame(message));
+        Channel[] channels = onlineUser.get(userId);
+        if (channels.length == 0) {
+            return;
+        }
+        ByteBuf[] contents = new ByteBuf[WireProtocol.values().length];
+        try {
+            for (Channel channel : channels) {
+                WireProtocol protocol = WireProtocol.of(channel);
+                ByteBuf content = contents[protocol.ordinal()];
+                if (content == null) {
+                    content = contents[protocol.ordinal()] = ResponseFrameCodec.encodeJson(message, protocol);
+                }
+                channel.writeAndFlush(ResponseFrameCodec.newFrame(protocol, content.retainedDuplicate()));
+            }
+        } finally {
+            release(contents);
+        }
+    }
+
+    /**
+     * 把同一条消息推送给多个用户的所有在线设备,用于群聊消息的扇出
+     *
+     * 1. ResponseHandler对每种子协议最多只序列化一次,写入池化的直接内存ByteBuf,
+     *    每个channel拿到的是retainedDuplicate(),共享同一块内存,只是各自有独立的读写索引,
+     *    不会因为群成员数量产生N次序列化和N次内存复制
+     * 2. 在非EventLoop线程(比如消息队列的消费线程)里直接调用channel.writeAndFlush,
+     *    每一次调用都会往channel所在的EventLoop提交一个任务,
+     *    所以这里先按EventLoop给channel分组,每个EventLoop只提交一个任务,
+     *    在任务里先对所有channel调用write,最后再统一flush
+     *
+     * @param userIds 接收者id,只使用前count个
+     */
+    public static void broadcast(ResponseHandler response, long[] userIds, int count) {
+        if (response.getData() instanceof Messages) {
+            Messages message = (Messages) response.getData();
+            broadcast(response, null, message.getMessageId(), message.getTimestamp(), userIds, count);
+        } else {
+            broadcast(response, null, 0, 0, userIds, count);
+        }
+    }
+
+    /**
+     * 和broadcast一样,用于其他服务器转发过来的,已经序列化成JSON的推送
+     *
+     * @param messageId 如果推送的是聊天消息,则是消息id,否则为0
+     */
+    public static void broadcastJson(String json, long messageId, long timestamp, long[] userIds, int count) {
+        broadcast(null, json, messageId, timestamp, userIds, count);
+    }
+
+    /**
+     * 给本机上一个用户的所有设备发送低优先级的消息(比如对话已读的多端同步),
+     * 客户端处理不过来的时候,同一个coalesceKey只保留最新的一条,见OutboundPolicyHandler
+     */
+    public static void sendLowPriority(long userId, String coalesceKey, ResponseHandler response) {
+        for (Channel channel : onlineUser.get(userId)) {
+            channel.writeAndFlush(new LowPriorityMessage(coalesceKey, response), channel.voidPromise());
+        }
+    }
+
+    /**
+     * response和json只有一个不为null
+     * messageId不为0表示是聊天消息,接收者积压太多时会转为离线消息,见OutboundPolicyHandler
+     */
+    private static void broadcast(ResponseHandler response, String json, long messageId, long timestamp, long[] userIds, int count) {
+        Map<EventLoop, List<Channel>> channelsByEventLoop = new IdentityHashMap<>();
+        ByteBuf[] contents = new ByteBuf[WireProtocol.values().length];
+        try {
+            for (int i = 0; i < count; i++) {
+                Channel[] userChannels = onlineUser.get(userIds[i]);
+                if (userChannels.length == 0 && messageId != 0) {
+                    divertUndelivered(userIds[i], messageId, timestamp);
+                    continue;
+                }
+                for (Channel channel : userChannels) {
+                    WireProtocol protocol = WireProtocol.of(channel);
+                    if (contents[protocol.ordinal()] == null) {
+                        contents[protocol.ordinal()] = response != null
+                                ? ResponseFrameCodec.encode(response, protocol)
+                                : ResponseFrameCodec.encodeJson(json, protocol);
+                    }
+                    channelsByEventLoop.computeIfAbsent(channel.eventLoop(), k -> new ArrayList<>()).add(channel);
+                }
+            }
+
+            channelsByEventLoop.forEach((eventLoop, channels) -> {
+                retain(contents);
+                try {
+                    eventLoop.execute(() -> writeAndFlushAll(channels, contents, response, json, messageId, timestamp));
+                } catch (RejectedExecutionException e) {
+                    // EventLoop已经关闭,服务器正在停机
+                    release(contents);
+                }
+            });
+        } finally {
+            release(contents);
+        }
+    }
+
+    /**
+     * 在channel所在的EventLoop中执行,结束后释放调用方为这个任务retain的引用
+     */
+    private static void writeAndFlushAll(List<Channel> channels, ByteBuf[] contents, ResponseHandler response, String json,
+                                         long messageId, long timestamp) {
+        try {
+            for (Channel channel : channels) {
+                if (messageId != 0 && !channel.isActive()) {
+                    // 分组之后channel才关闭,这个用户没有其他还连着的设备时转为未读消息
+                    Long userId = channel.attr(WebSocketAuthenticationHandler.USER_ID).get();
+                    if (userId != null && !hasActiveChannel(userId)) {
+                        divertUndelivered(userId, messageId, timestamp);
+                    }
+                    continue;
+                }
+                if (messageId != 0 && !OutboundPolicyHandler.admitChatMessage(channel, messageId, timestamp)) {
+                    continue;
+                }
+                WireProtocol protocol = WireProtocol.of(channel);
+                ByteBuf content = contents[protocol.ordinal()];
+                if (content != null) {
+                    channel.write(ResponseFrameCodec.newFrame(protocol, content.retainedDuplicate()), channel.voidPromise());
+                } else {
+                    // 分组之后channel才完成握手,子协议变了,单独编码
+                    if (response != null) {
+                        channel.write(response, channel.voidPromise());
+                    } else {
+                        channel.write(ResponseFrameCodec.newFrame(protocol, ResponseFrameCodec.encodeJson(json, protocol)), channel.voidPromise());
+                    }
+                }
+            }
+            for (Channel channel : channels) {
+                channel.flush();
+            }
+        } finally {
+            release(contents);
+        }
+    }
+
+    private static boolean hasActiveChannel(long userId) {
+        for (Channel channel : onlineUser.get(userId)) {
+            if (channel.isActive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void divertUndelivered(long userId, long messageId, long timestamp) {
+        BackpressurePolicy policy = undeliveredPolicy;
+        if (policy != null) {
+            policy.divert(userId, messageId, timestamp);
+        }
+    }
+
+    private static void retain(ByteBuf[] contents) {
+        for (ByteBuf content : contents) {
+            if (content != null) {
+                content.retain();
+            }
+        }
+    }
+
+    private static void release(ByteBuf[] contents) {
+        for (ByteBuf content : contents) {
+            if (content != null) {
+                content.release();
             }
         }
     }
@@ -0,0 +1,247 @@
+package org.com.code.im.netty.nettyHandler;
+
+import io.netty.channel.Channel;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongConsumer;
+
+/**
+ * 本地在线用户的 userId -> 设备channel数组 的注册表
+ *
+ * 1. key是原始的long类型,不需要装箱成Long,查询时也不会产生任何对象
+ * 2. 按userId的哈希值分成 SHARD_COUNT 个分片,每个分片是一个开放寻址的哈希表,
+ *    写操作(上线,下线,挤下线)只锁住自己所在的分片,不同分片的写操作互不影响
+ * 3. 读操作完全无锁: 每个用户的设备列表是一个不可变的Channel[],修改的时候复制一份新的数组再替换,
+ *    由于一个账号最多只有 MAX_ONLINE_NUMBER 个设备,复制的代价可以忽略,
+ *    群聊消息扇出时直接拿到这个数组遍历,不需要复制,也不会被并发修改
+ */
+public class ChannelRegistry {
+
+    public static final Channel[] EMPTY = new Channel[0];
+
+    /**
+     * 被删除的槽位的占位符,删除时保留key,只把value替换成TOMBSTONE,
+     * 这样无锁读的时候探测链不会断开,同一个用户重新上线时也可以直接复用这个槽位
+     */
+    private static final Channel[] TOMBSTONE = new Channel[0];
+
+    private static final int SHARD_COUNT = 64;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+
+    public ChannelRegistry() {
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * 获取用户所有在线设备的channel,返回的数组不可修改,不在线则返回EMPTY
+     */
+    public Channel[] get(long userId) {
+        long hash = mix(userId);
+        return shardFor(hash).get(userId, hash);
+    }
+
+    /**
+     * 添加用户的一个设备channel,如果设备数量超过maxDevices,则最早登录的设备会被移出注册表,
+     * 移出和添加在同一个分片锁内完成,不会出现其他线程看到超出数量的中间状态
+     *
+     * @return 被挤下线的channel,由调用方在锁外关闭
+     */
+    public Channel[] add(long userId, Channel channel, int maxDevices) {
+        long hash = mix(userId);
+        return shardFor(hash).add(userId, hash, channel, maxDevices);
+    }
+
+    /**
+     * 移除用户的一个设备channel
+     *
+     * @return 移除之后该用户是否已经没有任何在线设备
+     */
+    public boolean remove(long userId, Channel channel) {
+        long hash = mix(userId);
+        return shardFor(hash).remove(userId, hash, channel);
+    }
+
+    /**
+     * 当前在线的用户数量(不是设备数量)
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    /**
+     * 遍历当前在线的用户id,不加锁,遍历期间上线或下线的用户可能看得到也可能看不到
+     */
+    public void forEachUser(LongConsumer action) {
+        for (Shard shard : shards) {
+            Table t = shard.table;
+            for (int i = 0; i <= t.mask; i++) {
+                Channel[] channels = t.values.get(i);
+                if (channels != null && channels != TOMBSTONE) {
+                    action.accept(t.keys[i]);
+                }
+            }
+        }
+    }
+
+    private Shard shardFor(long hash) {
+        return shards[(int) (hash >>> 58) & (SHARD_COUNT - 1)];
+    }
+
+    /**
+     * 雪花算法生成的id低位变化不均匀,这里打散一下(murmur3的fmix64)
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static final class Table {
+        final long[] keys;
+        /**
+         * null 表示槽位从未使用过,探测到null即可停止
+         * 写线程先写keys[i],再通过volatile写发布values[i],
+         * 读线程先volatile读values[i],再读keys[i],保证读到的key一定是和value对应的
+         */
+        final AtomicReferenceArray<Channel[]> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    private static final class Shard {
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        /**
+         * 在线用户数量
+         */
+        private volatile int size;
+        /**
+         * 已使用的槽位数量,包括TOMBSTONE,超过容量的一半时重建哈希表
+         */
+        private int used;
+
+        Channel[] get(long userId, long hash) {
+            Table t = table;
+            for (int i = (int) hash & t.mask; ; i = (i + 1) & t.mask) {
+                Channel[] channels = t.values.get(i);
+                if (channels == null) {
+                    return EMPTY;
+                }
+                if (t.keys[i] == userId) {
+                    return channels;
+                }
+            }
+        }
+
+        synchronized Channel[] add(long userId, long hash, Channel channel, int maxDevices) {
+            Table t = table;
+            int slot = findSlot(t, userId, hash);
+            Channel[] current = t.values.get(slot);
+            if (current == null) {
+                // 新的槽位,先写key,再发布value
+                t.keys[slot] = userId;
+                t.values.set(slot, new Channel[]{channel});
+                size++;
+                if (++used > (t.mask + 1) >> 1) {
+                    rehash();
+                }
+                return EMPTY;
+            }
+            if (current == TOMBSTONE) {
+                t.values.set(slot, new Channel[]{channel});
+                size++;
+                return EMPTY;
+            }
+
+            int evictedNumber = maxDevices > 0 ? Math.max(0, current.length + 1 - maxDevices) : 0;
+            Channel[] evicted = EMPTY;
+            if (evictedNumber > 0) {
+                evicted = new Channel[evictedNumber];
+                System.arraycopy(current, 0, evicted, 0, evictedNumber);
+            }
+            Channel[] updated = new Channel[current.length + 1 - evictedNumber];
+            System.arraycopy(current, evictedNumber, updated, 0, current.length - evictedNumber);
+            updated[updated.length - 1] = channel;
+            t.values.set(slot, updated);
+            return evicted;
+        }
+
+        synchronized boolean remove(long userId, long hash, Channel channel) {
+            Table t = table;
+            int slot = findSlot(t, userId, hash);
+            Channel[] current = t.values.get(slot);
+            if (current == null || current == TOMBSTONE) {
+                return true;
+            }
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == channel) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return false;
+            }
+            if (current.length == 1) {
+                t.values.set(slot, TOMBSTONE);
+                size--;
+                return true;
+            }
+            Channel[] updated = new Channel[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+            t.values.set(slot, updated);
+            return false;
+        }
+
+        /**
+         * 找到userId所在的槽位,如果不存在则返回探测链上第一个空槽位
+         */
+        private static int findSlot(Table t, long userId, long hash) {
+            for (int i = (int) hash & t.mask; ; i = (i + 1) & t.mask) {
+                if (t.values.get(i) == null || t.keys[i] == userId) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * 丢弃TOMBSTONE并在必要时扩容,新表构建完成后一次性替换,读线程要么看到旧表要么看到新表
+         */
+        private void rehash() {
+            Table old = table;
+            int capacity = old.mask + 1;
+            while (size > capacity >> 2) {
+                capacity <<= 1;
+            }
+            Table fresh = new Table(capacity);
+            for (int i = 0; i <= old.mask; i++) {
+                Channel[] channels = old.values.get(i);
+                if (channels == null || channels == TOMBSTONE) {
+                    continue;
+                }
+                int slot = findSlot(fresh, old.keys[i], mix(old.keys[i]));
+                fresh.keys[slot] = old.keys[i];
+                fresh.values.lazySet(slot, channels);
+            }
+            used = size;
+            table = fresh;
+        }
+    }
+}
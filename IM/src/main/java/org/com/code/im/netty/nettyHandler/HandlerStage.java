@@ -0,0 +1,39 @@
+package org.com.code.im.netty.nettyHandler;
+
+/**
+ * netty处理器中需要阻塞等待数据库或者redis的阶段,每个阶段使用单独的线程池,见HandlerStageExecutor
+ *
+ * 配置项 netty.stages.<key>.enabled / threads / queue-capacity
+ */
+public enum HandlerStage {
+    /**
+     * 用户上线时查询并推送未读消息,历史消息和任务提醒,会查询mysql
+     */
+    OFFLINE_REPLAY("offline-replay", 4, 1024),
+    /**
+     * 检查用户发来的消息是否合法,会查询好几次redis
+     */
+    MESSAGE_CHECK("message-check", 8, 65536);
+
+    private final String key;
+    private final int defaultThreads;
+    private final int defaultQueueCapacity;
+
+    HandlerStage(String key, int defaultThreads, int defaultQueueCapacity) {
+        this.key = key;
+        this.defaultThreads = defaultThreads;
+        this.defaultQueueCapacity = defaultQueueCapacity;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getDefaultThreads() {
+        return defaultThreads;
+    }
+
+    public int getDefaultQueueCapacity() {
+        return defaultQueueCapacity;
+    }
+}
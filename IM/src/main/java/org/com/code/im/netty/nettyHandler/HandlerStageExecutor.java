@@ -0,0 +1,182 @@
+package org.com.code.im.netty.nettyHandler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.RejectedExecutionHandlers;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * 把netty处理器中阻塞的操作(查询mysql,redis)从EventLoop中移出去执行
+ *
+ * 一个EventLoop上有成百上千个channel,如果在EventLoop中执行一次很慢的数据库查询,
+ * 这段时间里这个EventLoop上所有的channel都收不到也发不出任何数据
+ *
+ * 1. 每个HandlerStage一个DefaultEventExecutorGroup,阻塞的操作提交到这里执行
+ * 2. 每个channel第一次提交任务时绑定stage中的一个线程,之后都提交到同一个线程,
+ *    所以同一个channel提交的任务按顺序执行,不会乱序
+ * 3. 阻塞的操作执行完之后,回调切换回channel所在的EventLoop执行,处理器的状态仍然只在EventLoop中修改
+ * 4. stage的enabled配置为false时,直接在EventLoop中同步执行,也就是原来的方式
+ *
+ * 没有使用虚拟线程,项目使用的是java17
+ */
+@Component
+public class HandlerStageExecutor {
+
+    @Autowired
+    private Environment environment;
+
+    private final Map<HandlerStage, Stage> stages = new EnumMap<>(HandlerStage.class);
+
+    @PostConstruct
+    public void start() {
+        for (HandlerStage handlerStage : HandlerStage.values()) {
+            String prefix = "netty.stages." + handlerStage.getKey();
+            boolean enabled = environment.getProperty(prefix + ".enabled", Boolean.class, true);
+            int threads = environment.getProperty(prefix + ".threads", Integer.class, handlerStage.getDefaultThreads());
+            int queueCapacity = environment.getProperty(prefix + ".queue-capacity", Integer.class, handlerStage.getDefaultQueueCapacity());
+            stages.put(handlerStage, new Stage(handlerStage, enabled, threads, queueCapacity));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        for (Stage stage : stages.values()) {
+            if (stage.group != null) {
+                stage.group.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * 在stage的线程中执行blocking,然后在channel的EventLoop中执行callback(结果, 异常)
+     * 必须在channel所在的EventLoop中调用
+     */
+    public <T> void submit(HandlerStage handlerStage, ChannelHandlerContext ctx, Callable<T> blocking, BiConsumer<T, Throwable> callback) {
+        Stage stage = stages.get(handlerStage);
+        stage.submitted.increment();
+        if (stage.group == null) {
+            stage.run(blocking, callback, System.nanoTime());
+            return;
+        }
+        long submittedAt = System.nanoTime();
+        try {
+            stage.executorOf(ctx.channel()).execute(() -> stage.run(blocking, (result, cause) -> {
+                try {
+                    ctx.executor().execute(() -> callback.accept(result, cause));
+                } catch (RejectedExecutionException e) {
+                    // EventLoop已经关闭,服务器正在停机
+                }
+            }, submittedAt));
+        } catch (RejectedExecutionException e) {
+            // 队列已满
+            stage.rejected.increment();
+            callback.accept(null, e);
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        for (Stage stage : stages.values()) {
+            snapshot.put(stage.handlerStage.getKey(), stage.snapshot());
+        }
+        return snapshot;
+    }
+
+    private static final class Stage {
+        final HandlerStage handlerStage;
+        final DefaultEventExecutorGroup group;
+        final int threads;
+        final AttributeKey<EventExecutor> executorKey;
+
+        final LongAdder submitted = new LongAdder();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder queueNanos = new LongAdder();
+        final LongAdder executeNanos = new LongAdder();
+        final LongAccumulator maxExecuteNanos = new LongAccumulator(Long::max, 0);
+
+        Stage(HandlerStage handlerStage, boolean enabled, int threads, int queueCapacity) {
+            this.handlerStage = handlerStage;
+            this.threads = threads;
+            this.executorKey = AttributeKey.valueOf("stageExecutor." + handlerStage.getKey());
+            this.group = enabled
+                    ? new DefaultEventExecutorGroup(threads, new DefaultThreadFactory("stage-" + handlerStage.getKey(), true),
+                            queueCapacity, RejectedExecutionHandlers.reject())
+                    : null;
+        }
+
+        /**
+         * 只在channel的EventLoop中调用,不需要考虑并发绑定
+         */
+        EventExecutor executorOf(Channel channel) {
+            EventExecutor executor = channel.attr(executorKey).get();
+            if (executor == null) {
+                executor = group.next();
+                channel.attr(executorKey).set(executor);
+            }
+            return executor;
+        }
+
+        <T> void run(Callable<T> blocking, BiConsumer<T, Throwable> callback, long submittedAt) {
+            long start = System.nanoTime();
+            queueNanos.add(start - submittedAt);
+            T result = null;
+            Throwable cause = null;
+            try {
+                result = blocking.call();
+            } catch (Throwable t) {
+                cause = t;
+                failed.increment();
+            }
+            long elapsed = System.nanoTime() - start;
+            executeNanos.add(elapsed);
+            maxExecuteNanos.accumulate(elapsed);
+            completed.increment();
+            callback.accept(result, cause);
+        }
+
+        Map<String, Object> snapshot() {
+            long pending = 0;
+            if (group != null) {
+                for (EventExecutor executor : group) {
+                    if (executor instanceof SingleThreadEventExecutor) {
+                        pending += ((SingleThreadEventExecutor) executor).pendingTasks();
+                    }
+                }
+            }
+            long done = completed.sum();
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("enabled", group != null);
+            snapshot.put("threads", group != null ? threads : 0);
+            snapshot.put("pendingTasks", pending);
+            snapshot.put("submitted", submitted.sum());
+            snapshot.put("completed", done);
+            snapshot.put("failed", failed.sum());
+            snapshot.put("rejected", rejected.sum());
+            snapshot.put("avgQueueMicros", done == 0 ? 0 : queueNanos.sum() / done / 1000);
+            snapshot.put("avgExecuteMicros", done == 0 ? 0 : executeNanos.sum() / done / 1000);
+            snapshot.put("maxExecuteMicros", maxExecuteNanos.get() / 1000);
+            return snapshot;
+        }
+    }
+}
@@ -1,46 +1,107 @@
 package org.com.code.im.netty.nettyHandler;
 
-import com.alibaba.fastjson2.JSON;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
-import io.netty.handler.timeout.IdleState;
-import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.util.ReferenceCountUtil;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import org.com.code.im.netty.nettyCodec.WireProtocol;
 
 
-public class HeartBeatEventHandler extends ChannelDuplexHandler {
+public class HeartBeatEventHandler extends ChannelDuplexHandler implements TimerTask {
     /**
      * ChannelDuplexHandle是一个双向通道，既可以入站也可以出站
      *
-     * 浏览器的客户端与netty服务器建立连接后，实现的是基于
-     * WebSocket协议实现的长连接，所以客户端期望的是一个WebSocketFrame类型的消息，
-     * 所以这里发送一个TextWebSocketFrame类型的消息，
-     * 这样客户端才可以收到这个心跳消息
+     * 入站和出站的时候只记录最后一次读写的时间,不创建任何定时任务,
+     * 由HeartBeatManager的时间轮定时回调run方法检查是否空闲:
+     * 读空闲则交给HeartBeatManager批量关闭,写空闲则发送WebSocket的Ping帧
+     *
+     * 这个处理器放在WebSocketServerProtocolHandler前面,握手完成后客户端回复的Pong帧也会经过这里,
+     * 所以Pong帧同样会刷新最后一次读的时间
      */
 
-    //利用创建好的心跳消息对象，避免频繁创建对象
-    TextWebSocketFrame heartBeat = new TextWebSocketFrame();
+    private final HeartBeatManager heartBeatManager;
+
+    private Channel channel;
+
+    private volatile long lastReadTime;
+    private volatile long lastWriteTime;
+
+    private volatile Timeout timeout;
+
+    public HeartBeatEventHandler(HeartBeatManager heartBeatManager) {
+        this.heartBeatManager = heartBeatManager;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        channel = ctx.channel();
+        lastReadTime = lastWriteTime = System.nanoTime();
+        scheduleNext(lastReadTime);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        lastReadTime = System.nanoTime();
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        lastWriteTime = System.nanoTime();
+        ctx.write(msg, promise);
+    }
+
+    /**
+     * 在时间轮的线程中执行,只读取volatile的时间戳,需要操作channel的地方都是线程安全的
+     */
     @Override
-    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
-        if(evt instanceof IdleStateEvent){
-            IdleStateEvent event = (IdleStateEvent) evt;
-            if (event.state() == IdleState.WRITER_IDLE ) {
-
-                /**
-                 * 发送心跳消息，并刷新缓冲区
-                 * 每一次刷新缓冲区都会把heartbeat的ByteBuf内容情况,同时把heartbeat的引用次数减一
-                 * 所以这里需要调用retain()方法，让heartbeat的引用次数加一,同时往它的BYteBuf中写内容，
-                 */
-                ReferenceCountUtil.retain(heartBeat);
-                heartBeat.content().writeBytes(JSON.toJSONBytes("Ping"));
-                ctx.channel().writeAndFlush(heartBeat);
-            }else if(event.state() == IdleState.READER_IDLE){
-                //如果读超时，则关闭连接
-                ctx.channel().close();
-            }
-        }else{
-            ctx.fireUserEventTriggered(evt);
+    public void run(Timeout timeout) {
+        if (!channel.isActive()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long readerIdle = heartBeatManager.readerIdleNanos();
+        long writerIdle = heartBeatManager.writerIdleNanos();
+
+        if (readerIdle > 0 && now - lastReadTime >= readerIdle) {
+            //读超时,连接已经断开,不再调度
+            heartBeatManager.evict(channel);
+            return;
+        }
+        // 握手完成之前还不是WebSocket连接,不能发送Ping帧
+        if (writerIdle > 0 && now - lastWriteTime >= writerIdle && channel.hasAttr(WireProtocol.WIRE_PROTOCOL)) {
+            lastWriteTime = now;
+            heartBeatManager.ping(channel);
+        }
+        scheduleNext(now);
+    }
+
+    /**
+     * 下一次检查的时间是读超时和写超时里最早到期的那个
+     */
+    private void scheduleNext(long now) {
+        long readerIdle = heartBeatManager.readerIdleNanos();
+        long writerIdle = heartBeatManager.writerIdleNanos();
+        long delay = Long.MAX_VALUE;
+        if (readerIdle > 0) {
+            delay = Math.min(delay, lastReadTime + readerIdle - now);
+        }
+        if (writerIdle > 0) {
+            delay = Math.min(delay, lastWriteTime + writerIdle - now);
+        }
+        if (delay == Long.MAX_VALUE) {
+            return;
         }
+        timeout = heartBeatManager.schedule(this, Math.max(delay, heartBeatManager.tickNanos()));
     }
 }
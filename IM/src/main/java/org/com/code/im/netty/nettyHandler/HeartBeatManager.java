@@ -0,0 +1,250 @@
+package org.com.code.im.netty.nettyHandler;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.com.code.im.netty.nettyCluster.PresenceRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 所有channel共用的心跳调度
+ *
+ * 原来每个channel一个IdleStateHandler,每个IdleStateHandler要在channel的EventLoop里维护自己的定时任务,
+ * 现在所有channel共用一个HashedWheelTimer(时间轮),每个channel在时间轮里最多只有一个待触发的任务,
+ * 添加和触发都是O(1)的,十万个空闲连接也只是时间轮里的十万个节点
+ *
+ * 1. 超过 writerIdle 没有给客户端发过任何数据,就发一个WebSocket的Ping帧,浏览器会自动回复Pong帧
+ * 2. 超过 readerIdle 没有收到客户端的任何数据(包括Pong帧),说明连接已经断了,
+ *    把channel放进待关闭队列,每隔flushInterval按EventLoop分组,批量关闭
+ * 3. 用户下线后放进队列,马上在heartbeat-flush线程中通过PresenceRegistry用一次lua脚本删除队列里所有用户的在线记录,
+ *    大量连接同时断开时,排在同一次执行里的用户合并成一次redis请求
+ *
+ * 访问redis的操作都在单独的heartbeat-flush线程中执行,不占用时间轮的线程,不会推迟其他连接的超时检测
+ * 删除在线记录之前推送给这个用户的聊天消息,由ChannelCrud转为未读消息,不会丢失
+ */
+@Component
+public class HeartBeatManager {
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    /**
+     * 读空闲时间,超过这个时间没有收到客户端的任何数据就关闭连接,0表示不检测
+     */
+    @Value("${netty.heartbeat.reader-idle-seconds:60}")
+    private long readerIdleSeconds;
+
+    /**
+     * 写空闲时间,超过这个时间没有给客户端发送过数据就发送Ping帧,0表示不发送
+     * 应该比readerIdleSeconds小,保证客户端在读超时之前有机会回复Pong
+     */
+    @Value("${netty.heartbeat.writer-idle-seconds:25}")
+    private long writerIdleSeconds;
+
+    /**
+     * 时间轮每一格的时间,心跳的精度不需要太高
+     */
+    @Value("${netty.heartbeat.tick-millis:500}")
+    private long tickMillis;
+
+    /**
+     * 批量关闭连接和批量删除online_user的间隔
+     */
+    @Value("${netty.heartbeat.flush-interval-millis:1000}")
+    private long flushIntervalMillis;
+
+    private static final int OFFLINE_BATCH_SIZE = 1000;
+
+    private HashedWheelTimer timer;
+
+    private ScheduledExecutorService flushExecutor;
+
+    /**
+     * 已经提交了一次下线任务还没有执行,新下线的用户会在那次任务中一起处理
+     */
+    private final AtomicBoolean offlineFlushScheduled = new AtomicBoolean();
+
+    private long readerIdleNanos;
+    private long writerIdleNanos;
+
+    private final Queue<Channel> deadChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Long> offlineUsers = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder pings = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder offlineCleared = new LongAdder();
+    private final LongAdder offlineRetries = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        readerIdleNanos = TimeUnit.SECONDS.toNanos(readerIdleSeconds);
+        writerIdleNanos = TimeUnit.SECONDS.toNanos(writerIdleSeconds);
+        timer = new HashedWheelTimer(new DefaultThreadFactory("heartbeat-timer", true),
+                tickMillis, TimeUnit.MILLISECONDS, 512);
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("heartbeat-flush", true));
+        flushExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        timer.stop();
+        flushExecutor.shutdown();
+    }
+
+    long readerIdleNanos() {
+        return readerIdleNanos;
+    }
+
+    long writerIdleNanos() {
+        return writerIdleNanos;
+    }
+
+    long tickNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    }
+
+    Timeout schedule(TimerTask task, long delayNanos) {
+        return timer.newTimeout(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Ping帧没有内容,直接用空的ByteBuf,不需要分配内存
+     */
+    void ping(Channel channel) {
+        pings.increment();
+        channel.writeAndFlush(new PingWebSocketFrame(Unpooled.EMPTY_BUFFER), channel.voidPromise());
+    }
+
+    void evict(Channel channel) {
+        evictions.increment();
+        deadChannels.add(channel);
+    }
+
+    /**
+     * 用户在本机的所有设备都下线了,在channel关闭时调用,马上提交删除online_user中的记录
+     */
+    public void markOffline(long userId) {
+        offlineUsers.add(userId);
+        if (offlineFlushScheduled.compareAndSet(false, true)) {
+            try {
+                flushExecutor.execute(() -> {
+                    offlineFlushScheduled.set(false);
+                    try {
+                        clearOfflineUsers();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 服务器正在停机,PresenceRegistry下次启动时会清理本机留下的记录
+            }
+        }
+    }
+
+    /**
+     * 在heartbeat-flush线程中执行,下线任务失败时留在队列里的用户也在这里重试
+     */
+    private void flush() {
+        try {
+            closeDeadChannels();
+            clearOfflineUsers();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 按EventLoop分组,每个EventLoop只提交一个关闭任务
+     */
+    private void closeDeadChannels() {
+        if (deadChannels.isEmpty()) {
+            return;
+        }
+        Map<EventLoop, List<Channel>> channelsByEventLoop = new IdentityHashMap<>();
+        Channel channel;
+        while ((channel = deadChannels.poll()) != null) {
+            channelsByEventLoop.computeIfAbsent(channel.eventLoop(), k -> new ArrayList<>()).add(channel);
+        }
+        channelsByEventLoop.forEach((eventLoop, channels) -> eventLoop.execute(() -> {
+            for (Channel deadChannel : channels) {
+                deadChannel.close();
+            }
+        }));
+    }
+
+    /**
+     * 在排队期间用户可能又在其他设备上线了,删除之前再检查一次本地是否还有他的channel
+     * 每一批单独处理,一批失败时这一批的用户放回offlineUsers,由下一次flush重试,其他批照常继续
+     */
+    private void clearOfflineUsers() {
+        if (offlineUsers.isEmpty()) {
+            return;
+        }
+        Set<String> userIds = new LinkedHashSet<>();
+        Long userId;
+        while ((userId = offlineUsers.poll()) != null) {
+            if (!ChannelCrud.isOnline(userId)) {
+                userIds.add(String.valueOf(userId));
+            }
+        }
+        List<String> batch = new ArrayList<>(Math.min(userIds.size(), OFFLINE_BATCH_SIZE));
+        for (String id : userIds) {
+            batch.add(id);
+            if (batch.size() == OFFLINE_BATCH_SIZE) {
+                offline(batch);
+                batch = new ArrayList<>(OFFLINE_BATCH_SIZE);
+            }
+        }
+        if (!batch.isEmpty()) {
+            offline(batch);
+        }
+    }
+
+    private void offline(List<String> batch) {
+        try {
+            offlineCleared.add(presenceRegistry.offline(batch));
+        } catch (Exception e) {
+            e.printStackTrace();
+            offlineRetries.add(batch.size());
+            for (String id : batch) {
+                offlineUsers.add(Long.parseLong(id));
+            }
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("pings", pings.sum());
+        snapshot.put("evictions", evictions.sum());
+        snapshot.put("offlineCleared", offlineCleared.sum());
+        snapshot.put("offlineRetries", offlineRetries.sum());
+        snapshot.put("offlinePending", offlineUsers.size());
+        snapshot.put("pendingTimeouts", timer.pendingTimeouts());
+        return snapshot;
+    }
+}
@@ -0,0 +1,26 @@
+package org.com.code.im.netty.nettyHandler;
+
+import org.com.code.im.responseHandler.ResponseHandler;
+
+/**
+ * 低优先级的推送,比如对话已读的多端同步(见PushRouter.sendLowPriority)
+ * 客户端处理不过来的时候,同一个coalesceKey只保留最新的一条,丢掉也不影响正确性
+ */
+public class LowPriorityMessage {
+
+    private final String coalesceKey;
+    private final ResponseHandler response;
+
+    public LowPriorityMessage(String coalesceKey, ResponseHandler response) {
+        this.coalesceKey = coalesceKey;
+        this.response = response;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    public ResponseHandler getResponse() {
+        return response;
+    }
+}
@@ -0,0 +1,204 @@
+package org.com.code.im.netty.nettyHandler;
+
+import org.com.code.im.utils.SessionMembershipCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 校验用户能不能往某个对话里发消息
+ *
+ * 原来每条消息要依次调用 hasKey(是不是对话成员), hasKey(是不是私聊), keys(私聊的对方是谁), isMember(有没有被对方拉黑),
+ * 最多4次redis往返,现在:
+ * 1. 是否成员,角色,是否私聊 从SessionMembershipCache的本地缓存中读取,对话成员变化时会通知所有服务器失效
+ * 2. 只有私聊需要查询是否被对方拉黑,一次SISMEMBER
+ *
+ * 同时在本机缓存校验结果nearCacheTtlMillis毫秒,同一个用户在同一个对话里连续发消息时不需要每条都访问redis,
+ * 代价是拉黑最多延迟nearCacheTtlMillis毫秒才生效,ttl配置为0则不缓存
+ */
+@Component
+public class MessageValidator {
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SessionMembershipCache sessionMembershipCache;
+
+    @Value("${netty.message-check.near-cache-ttl-millis:1000}")
+    private long nearCacheTtlMillis;
+
+    /**
+     * 超过这个数量就清空缓存,缓存的时间很短,清空的代价只是多几次redis调用
+     */
+    @Value("${netty.message-check.near-cache-max-size:100000}")
+    private int nearCacheMaxSize;
+
+    private static final Access NOT_MEMBER = new Access(false, 0, false, false, Long.MAX_VALUE);
+
+    private final Map<String, Access> nearCache = new ConcurrentHashMap<>();
+
+    private final LongAdder nearCacheHits = new LongAdder();
+    private final LongAdder nearCacheMisses = new LongAdder();
+
+    private final AckLatency ackLatency = new AckLatency();
+
+    /**
+     * 在HandlerStage.MESSAGE_CHECK的线程中调用
+     */
+    public Access validate(long sessionId, long userId) {
+        SessionMembershipCache.SessionMembers members = sessionMembershipCache.get(sessionId);
+        Long role = members == null ? null : members.roleOf(userId);
+        if (role == null) {
+            return NOT_MEMBER;
+        }
+        if (!members.isPrivateSession()) {
+            return new Access(true, role, false, false, 0);
+        }
+
+        String cacheKey = sessionId + ":" + userId;
+        long now = System.nanoTime();
+        if (nearCacheTtlMillis > 0) {
+            Access cached = nearCache.get(cacheKey);
+            if (cached != null && now < cached.expireAt && cached.role == role) {
+                nearCacheHits.increment();
+                return cached;
+            }
+        }
+        nearCacheMisses.increment();
+
+        long peerId = members.peerOf(userId);
+        boolean blocked = peerId != -1 && Boolean.TRUE.equals(
+                stringRedisTemplate.opsForSet().isMember("BlockedUserList_" + peerId, String.valueOf(userId)));
+        Access access = new Access(true, role, true, blocked, now + TimeUnit.MILLISECONDS.toNanos(nearCacheTtlMillis));
+
+        if (nearCacheTtlMillis > 0) {
+            if (nearCache.size() >= nearCacheMaxSize) {
+                nearCache.clear();
+            }
+            nearCache.put(cacheKey, access);
+        }
+        return access;
+    }
+
+    /**
+     * 记录从收到消息到返回ack的耗时
+     */
+    public void recordAckLatency(long nanos) {
+        ackLatency.record(nanos);
+    }
+
+    public Map<String, Object> snapshot() {
+        long hits = nearCacheHits.sum();
+        long misses = nearCacheMisses.sum();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("nearCacheSize", nearCache.size());
+        snapshot.put("nearCacheHits", hits);
+        snapshot.put("nearCacheMisses", misses);
+        snapshot.put("nearCacheHitRatio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        snapshot.put("ackCount", ackLatency.count());
+        snapshot.put("ackP50Micros", ackLatency.percentileMicros(0.50));
+        snapshot.put("ackP99Micros", ackLatency.percentileMicros(0.99));
+        return snapshot;
+    }
+
+    /**
+     * 一次校验的结果
+     */
+    public static final class Access {
+        private final boolean member;
+        /**
+         * 用户在对话中的值: 群聊中 -1 禁言, 0 普通成员, 1 管理员, 2 群主; 私聊中是发送状态
+         */
+        private final long role;
+        private final boolean privateSession;
+        private final boolean blocked;
+        private final long expireAt;
+
+        Access(boolean member, long role, boolean privateSession, boolean blocked, long expireAt) {
+            this.member = member;
+            this.role = role;
+            this.privateSession = privateSession;
+            this.blocked = blocked;
+            this.expireAt = expireAt;
+        }
+
+        public boolean isMember() {
+            return member;
+        }
+
+        public long getRole() {
+            return role;
+        }
+
+        public boolean isPrivateSession() {
+            return privateSession;
+        }
+
+        public boolean isBlocked() {
+            return blocked;
+        }
+
+        public boolean isMuted() {
+            return !privateSession && role == -1;
+        }
+    }
+
+    /**
+     * 按2的幂分桶的耗时统计,第i个桶记录耗时在[2^(i-1), 2^i)微秒之间的次数,
+     * 百分位数取桶的上界,误差在一倍以内,对看延迟的数量级已经足够
+     */
+    private static final class AckLatency {
+        private final LongAdder[] buckets = new LongAdder[32];
+
+        AckLatency() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = Math.min(buckets.length - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets[bucket].increment();
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        long percentileMicros(double percentile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (counts.length - 1);
+        }
+    }
+}
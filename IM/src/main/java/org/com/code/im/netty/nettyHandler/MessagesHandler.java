@@ -1,10 +1,12 @@
 package org.com.code.im.netty.nettyHandler;
 import com.alibaba.fastjson.JSON;
-import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
 import io.netty.util.AttributeKey;
+import org.com.code.im.netty.nettyCodec.BinaryMessageCodec;
 import org.com.code.im.netty.nettyServer.WebSocketChannelInitializer;
 import org.com.code.im.responseHandler.ResponseHandler;
 import org.com.code.im.pojo.Messages;
@@ -20,12 +22,13 @@ import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 @Component
 @Scope("prototype")
-public class MessagesHandler extends SimpleChannelInboundHandler<TextWebSocketFrame> {
+public class MessagesHandler extends SimpleChannelInboundHandler<WebSocketFrame> {
 
     /**
      *  RedisConfig用的是@Configuration注解,同时这里是用它的Bean方法,
@@ -39,12 +42,18 @@ public class MessagesHandler extends SimpleChannelInboundHandler<TextWebSocketFr
     @Autowired
     private MsgProducer msgProducer;
 
+    @Autowired
+    private HeartBeatManager heartBeatManager;
+
+    @Autowired
+    private HandlerStageExecutor handlerStageExecutor;
+
+    @Autowired
+    private MessageValidator messageValidator;
+
     private long userId=0;
     private String stringUserId =null;
 
-    private long lastTime = 0;
-    private long currentTime = 0;
-
     /**
      *  因为sequenceId只是为了保证某一段时间内客户端向服务器发送的消息的唯一性,
      *  不需要永远不变,只需要保存那一段连接时间的sequenceId,
@@ -53,8 +62,13 @@ public class MessagesHandler extends SimpleChannelInboundHandler<TextWebSocketFr
      *  之后客户端每次发送消息时,都会把sequenceId+1,
      *  然后服务器比较每一次消息的sequenceId看看有没有重复
      */
-    //不同channel有自己的sequenceId用于消息去重
+    //不同channel有自己的sequenceId用于消息去重,只在消息检查通过并且发送到消息队列之后才推进
     private long sequenceId = -1;
+    /**
+     * 已经提交到MESSAGE_CHECK阶段还没有结果的sequenceId,只在EventLoop中读写,
+     * 用于在sequenceId推进之前拦截重复发送的同一条消息
+     */
+    private final Set<Long> pendingSequenceIds = new HashSet<>();
 
     @Override
     public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
@@ -107,14 +121,11 @@ public class MessagesHandler extends SimpleChannelInboundHandler<TextWebSocketFr
             return;
         }
         
-        // 从本地缓存中移除用户的channel
-        ChannelCrud.removeChannel(userId, ctx);
-        
-        // 检查该用户是否还有其他活跃的channel
-        List<Channel> ctxList = ChannelCrud.getChannel(userId);
+        // 从本地缓存中移除用户的channel,closeFuture的监听器可能已经移除过了,这里重复移除没有影响
+        ChannelCrud.removeChannel(userId, ctx.channel());
         
         // 如果用户没有任何活跃channel，则从Redis中移除在线状态
-        if(ctxList == null || ctxList.isEmpty()) {
+        if(!ChannelCrud.isOnline(userId)) {
             /**
              * 因为在执行如下代码块之前，如果网络异常或者用户强行断开连接，
              * 那么stringUserId字段可能还未被初始化,此时stringUserId字段为null，
@@ -129,9 +140,11 @@ public class MessagesHandler extends SimpleChannelInboundHandler<TextWebSocketFr
              * 
              * 所以不能依赖stringUserId字段，因为stringUserId字段在连接异常断开时可能还未被初始化
              * 所以使用userId作为key
-             * 
+             *
+             * 大量连接同时断开时(比如网络抖动),逐个删除会产生大量的redis请求,
+             * 所以交给HeartBeatManager排队,每隔一段时间用一条HDEL批量删除
              *  */
-            redisTemplate.opsForHash().delete("online_user", String.valueOf(userId));
+            heartBeatManager.markOffline(userId);
         }
     }
 
@@ -143,7 +156,8 @@ public class MessagesHandler extends SimpleChannelInboundHandler<TextWebSocketFr
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, TextWebSocketFrame textWebSocketFrame) throws Exception {
+    protected void channelRead0(ChannelHandlerContext ctx, WebSocketFrame frame) throws Exception {
+        long receivedAt = System.nanoTime();
         /**
          * 消息的创建时间的值可以有客户端本地创建,也可以选择服务器收到消息后创建
          * 我选择后者,因为客户端本地创建的时间可能不准确,
@@ -156,59 +170,35 @@ public class MessagesHandler extends SimpleChannelInboundHandler<TextWebSocketFr
          *     "content":"hello",
          *     "messageType":"text"
          * }
+         * 使用im.binary子协议的客户端发送BinaryWebSocketFrame,格式见BinaryMessageCodec
          */
-        String jsonMessage = textWebSocketFrame.text();
         Messages messages=null;
 
         /**
-         * 如果消息的格式不对，或者敏感词或者用户不存在某个对话里但他却仍然往这个对话里发消息，等等其他
-         * 或者出现异常,被try catch捕获,则消息不合法
+         * 如果消息的格式不对,被try catch捕获,则消息不合法
          */
         try{
-            messages = JSON.parseObject(jsonMessage, Messages.class);
-            /**
-             * 限流操作：
-             *
-             * 设置一个currentTime和lastTime,
-             * 如果当前时间与lastTime的差值大于1000毫秒,则接受此消息，则更新lastTime为当前时间
-             * 如果小于1000毫秒，则不接收此消息，直接return
-             */
-            currentTime = System.currentTimeMillis();
-            if(currentTime-lastTime>1000) {
-                lastTime = currentTime;
-            }else {
-                ctx.channel().writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(new ResponseHandler(ResponseHandler.BAD_REQUEST, "消息发送失败","请不要频繁发送消息",sequenceId))));
+            if (frame instanceof TextWebSocketFrame) {
+                messages = JSON.parseObject(((TextWebSocketFrame) frame).text(), Messages.class);
+            } else if (frame instanceof BinaryWebSocketFrame) {
+                messages = BinaryMessageCodec.decodeMessages(frame.content());
+            } else {
                 return;
             }
-
-            String messageError = checkMessage(messages);
-            if(!messageError.isEmpty()){
-                ctx.channel().writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(new ResponseHandler(ResponseHandler.BAD_REQUEST,"消息发送失败",messageError,sequenceId))));
-                return;
-            }
-        }catch (Exception e){
             /**
-             * 如果被try catch捕获到异常,一般是消息格式原因，则消息不合法
+             * 限流在前面的RateLimitHandler里完成,能到这里的消息都已经拿到了令牌
              */
-            ctx.channel().write(new TextWebSocketFrame(JSON.toJSONString(new ResponseHandler(ResponseHandler.BAD_REQUEST, "消息发送失败",  "未知错误",sequenceId))));
+        }catch (Exception e){
+            ctx.channel().writeAndFlush(new ResponseHandler(ResponseHandler.BAD_REQUEST, "消息发送失败",  "未知错误",sequenceId));
             return;
         }
 
-        //如果消息合法,将当前channel的sequenceId更新为消息的sequenceId
-        sequenceId = messages.getSequenceId();
-        // 返回ResponseHandler,返回客户端 success和消息的sequenceId表示成功收到且合法
-        ctx.writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(new ResponseHandler(ResponseHandler.SUCCESS,"OK",null,messages.getSequenceId()))));
-
-        // 设置消息的messageId,使用雪花算法生成
-        messages.setMessageId(SnowflakeIdUtil.messageIdWorker.nextId());
-        //设置消息发送者的id
-        messages.setSenderId((Long) ctx.channel().attr(AttributeKey.valueOf("userId")).get());
-        //把用户发送的消息发送到消息队列中
-        msgProducer.sendChatMessage(messages);
-    }
+        if (stringUserId == null) {
+            // 离线消息的推送在单独的线程中执行,推送完成之前用户就可能发来消息
+            userId = (long) ctx.channel().attr(AttributeKey.valueOf("userId")).get();
+            stringUserId = String.valueOf(userId);
+        }
 
-    public String checkMessage(Messages messages){
-        String messageError="";
         /**
          * sequenceId要求在本地发送的时候,每发送一次,该sequenceId自增1
          * 因此通过比较接收的消息的sequenceId和该channel中保存的sequenceId进行比较，
@@ -216,15 +206,63 @@ public class MessagesHandler extends SimpleChannelInboundHandler<TextWebSocketFr
          * 从而达到消息去重
          *
          * 用户每次上线后,初始化channel,然后channel的初始化变量的sequenceId默认为-1,用户的客户端每次也可以默认从0开始发消息
+         *
+         * 去重只读写这个channel自己的字段,直接在EventLoop中完成,
+         * 检查还没有结果的sequenceId记在pendingSequenceIds中,同一条消息重复发送也能正确去重;
+         * 检查通过并且发送到消息队列之后才更新sequenceId,被拒绝的消息客户端可以用同一个sequenceId重新发送
          */
-        if(!(sequenceId < messages.getSequenceId())){
-            return messageError+="sequenceId重复,发送失败\n";
+        if(!(sequenceId < messages.getSequenceId()) || pendingSequenceIds.contains(messages.getSequenceId())){
+            ctx.channel().writeAndFlush(new ResponseHandler(ResponseHandler.BAD_REQUEST,"消息发送失败","sequenceId重复,发送失败\n",sequenceId));
+            return;
         }
+        pendingSequenceIds.add(messages.getSequenceId());
+
+        /**
+         * checkMessage需要查询好几次redis,放到MESSAGE_CHECK阶段的线程中执行,不阻塞EventLoop,
+         * 同一个channel的消息在同一个线程中按顺序检查并发送到消息队列,结果回到EventLoop中返回给客户端
+         */
+        Messages message = messages;
+        long senderId = userId;
+        handlerStageExecutor.submit(HandlerStage.MESSAGE_CHECK, ctx, () -> {
+            String messageError = checkMessage(message);
+            if (messageError.isEmpty()) {
+                // 设置消息的messageId,使用雪花算法生成
+                message.setMessageId(SnowflakeIdUtil.messageIdWorker.nextId());
+                //设置消息发送者的id
+                message.setSenderId(senderId);
+                //把用户发送的消息发送到消息队列中
+                msgProducer.sendChatMessage(message);
+            }
+            return messageError;
+        }, (messageError, cause) -> {
+            pendingSequenceIds.remove(message.getSequenceId());
+            if (cause != null) {
+                ctx.channel().writeAndFlush(new ResponseHandler(ResponseHandler.BAD_REQUEST, "消息发送失败", "未知错误", message.getSequenceId()));
+            } else if (!messageError.isEmpty()) {
+                ctx.channel().writeAndFlush(new ResponseHandler(ResponseHandler.BAD_REQUEST, "消息发送失败", messageError, message.getSequenceId()));
+            } else {
+                sequenceId = Math.max(sequenceId, message.getSequenceId());
+                // 返回ResponseHandler,返回客户端 success和消息的sequenceId表示成功收到且合法
+                ctx.writeAndFlush(new ResponseHandler(ResponseHandler.SUCCESS, "OK", null, message.getSequenceId()));
+                messageValidator.recordAckLatency(System.nanoTime() - receivedAt);
+            }
+        });
+    }
+
+    public String checkMessage(Messages messages){
+        String messageError="";
+        /**
+         * sequenceId的去重已经在channelRead0中完成
+         * 这个方法在HandlerStage.MESSAGE_CHECK的线程中执行
+         *
+         * 是否在对话中,是否私聊,是否被对方拉黑,见MessageValidator
+         */
+        MessageValidator.Access access = messageValidator.validate(messages.getSessionId(), userId);
         //判断用户是否存在与这个对话中,防止用户发消息发到一个他不在的群里或私人聊天对话中
-        if(!redisTemplate.opsForHash().hasKey("Session_"+messages.getSessionId(), stringUserId)){
+        if(!access.isMember()){
             return messageError+="用户不存在与这个对话中,发送失败\n";
         }
-        if(checkIfBeingBlocked(messages.getSessionId())){
+        if(access.isBlocked()){
             return messageError+="你已被对方拉黑,发送失败\n";
         }
 
@@ -311,24 +349,9 @@ public class MessagesHandler extends SimpleChannelInboundHandler<TextWebSocketFr
     }
 
     public boolean checkIfNotBeingMuted(Messages messages){
-        long sessionId=messages.getSessionId();
-        long roleId=(long)redisTemplate.opsForHash().get("Session_"+sessionId,stringUserId);
-        return roleId != -1;
+        return !messageValidator.validate(messages.getSessionId(), userId).isMuted();
     }
 
-    public boolean checkIfBeingBlocked(long sessionId){
-        if(redisTemplate.opsForHash().hasKey("Session_"+sessionId,"private")){
-            Set<String> keys = redisTemplate.opsForHash().keys("Session_" + sessionId);
-            keys.remove("private");
-            keys.remove(stringUserId);
-            String targetUserId=keys.iterator().next();
-            if(redisTemplate.opsForSet().isMember("BlockedUserList_"+targetUserId,stringUserId))
-                return true;
-        }
-        return false;
-    }
-
-
     /**
      *对发来的消息进行审核
      */
@@ -1,33 +1,40 @@
 package org.com.code.im.netty.nettyHandler;
 
 import com.alibaba.fastjson.JSONObject;
-import com.alibaba.fastjson2.JSON;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
 import io.netty.util.AttributeKey;
+import org.com.code.im.exception.SyncNotReadyException;
 import org.com.code.im.mapper.MessageMapper;
 import org.com.code.im.mapper.SessionMapper;
 import org.com.code.im.netty.nettyServer.WebSocketChannelInitializer;
 import org.com.code.im.pojo.LearningTask;
 import org.com.code.im.pojo.Messages;
 import org.com.code.im.responseHandler.ResponseHandler;
+import org.com.code.im.service.session.impl.LargeGroupTimeline;
+import org.com.code.im.service.session.impl.SessionSync;
+import org.com.code.im.utils.TimeConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Scope;
-import org.springframework.dao.DataAccessException;
-import org.springframework.data.redis.connection.RedisConnection;
-import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.connection.zset.Aggregate;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 @Component
 @Scope("prototype")
@@ -37,20 +44,43 @@ public class OfflineMessageHandler extends SimpleChannelInboundHandler<String> {
     @Autowired
     RedisTemplate stringRedisTemplate;
 
-    @Qualifier("redisTemplateLong")
-    @Autowired
-    RedisTemplate redisTemplate;
-
     @Autowired
     MessageMapper messageMapper;
     @Autowired
     SessionMapper sessionMapper;
 
+    @Autowired
+    HandlerStageExecutor handlerStageExecutor;
+
+    @Autowired
+    SessionSync sessionSync;
+
+    @Autowired
+    LargeGroupTimeline largeGroupTimeline;
+
+    /**
+     * 离线推送每次从redis或mysql读取多少条消息,一页写完并且channel可写之后才读取下一页
+     */
+    @Value("${netty.offline-replay.page-size:200}")
+    private int pageSize;
+
+    /**
+     * 历史消息一条SQL最多查询多少个对话(sessionId in (...)),参与的对话更多时分成几批依次分页
+     */
+    @Value("${netty.offline-replay.history-session-batch:500}")
+    private int historySessionBatch;
+
     private int count=0;
 
     private long userId=0;
 
+    /**
+     * 用 sync=cursor 连接的客户端由SessionSyncHandler增量同步消息,这里只推送任务提醒
+     */
+    private boolean cursorSync = false;
+
     private long unreadMessageNumber = 0;
+    private long largeGroupUnreadNumber = 0;
 
     /**
      * 最早的未读消息的时间戳减去 下面这个变量 后获取的时间戳设为A
@@ -61,6 +91,58 @@ public class OfflineMessageHandler extends SimpleChannelInboundHandler<String> {
     private static final long earliestUnreadMessageTimestampMinusDays=1000*60*60*24*15;
     private long minimumTimeStampScoreOfUnreadMessage=System.currentTimeMillis();
 
+    /**
+     * 推送过程中的快照在redis中最多保留多久,服务器在推送的过程中崩溃时由redis自动删除
+     */
+    private static final long SNAPSHOT_TTL_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    /**
+     * 数据库中的createdAt和redis中的时间戳是分别获取的,可能相差几毫秒,
+     * mysql和redis两部分历史消息的分界线前后这段时间内的消息两边都查,再按messageId去掉重复的
+     */
+    private static final long BOUNDARY_MILLIS = 1000;
+
+    /**
+     * 离线推送分成四个阶段,依次进行:
+     * UNREAD           未读消息,从unread_message_userId的快照中按排名分页
+     * LARGE_GROUP      读扩散的大群没有写入unread_message_userId,按读取游标从session_timeline_或mysql中按seq分页(见LargeGroupTimeline)
+     * HISTORY_DATABASE 历史消息中已经不在redis里的部分,每批最多historySessionBatch个对话一起按(createdAt, messageId)游标从mysql分页
+     * HISTORY_REDIS    历史消息中还在redis里的部分,从recent_messages_userId的快照中按排名分页
+     */
+    private enum ReplayPhase { UNREAD, LARGE_GROUP, HISTORY_DATABASE, HISTORY_REDIS, DONE }
+
+    /**
+     * 以下的推送进度只在HandlerStage.OFFLINE_REPLAY的线程中读写,
+     * 同一时间只有一页在读取,提交任务和回调本身保证了前后两页之间的可见性
+     */
+    private ReplayPhase phase = ReplayPhase.UNREAD;
+    private String unreadSnapshotKey;
+    private String recentSnapshotKey;
+    private long unreadOffset;
+    private long recentOffset;
+    private List<Long> sessionIds = Collections.emptyList();
+    private final ArrayDeque<SessionSync.Gap> largeGroupGaps = new ArrayDeque<>();
+    private int sessionIndex;
+    private LocalDateTime historyFrom;
+    private LocalDateTime historyTo;
+    private LocalDateTime cursorCreatedAt;
+    private long cursorMessageId;
+    private long boundaryFromTimestamp = Long.MAX_VALUE;
+    private final Set<Long> boundaryMessageIds = new HashSet<>();
+    private TaskReminders taskReminders = TaskReminders.EMPTY;
+
+    /**
+     * 以下只在EventLoop中读写
+     */
+    private boolean replayStarted;
+    private boolean loading;
+    private boolean replayFinished;
+    private boolean historyMarkerSent;
+    /**
+     * 已经成功写出的未读消息的排名,连接在推送的过程中断开时,从这里开始的未读消息放回unread_message_userId
+     */
+    private long unreadWritten;
+
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, String str) throws Exception {
@@ -93,263 +175,476 @@ public class OfflineMessageHandler extends SimpleChannelInboundHandler<String> {
             count++;
         }
         if(count==2){
-            List<Messages> messages =queryUnreadMessages(userId);
-
-            /**
-             * 1. 先发送用户的全部未读消息数量
-             */
-            ctx.channel().writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(new ResponseHandler(ResponseHandler.SUCCESS,"未读消息数量",unreadMessageNumber))));
-
-            if(messages!=null){
-                for (Messages message : messages) {
-                    ResponseHandler responseMessage = new ResponseHandler(ResponseHandler.SUCCESS, "聊天消息", message);
-                    ctx.channel().write(new TextWebSocketFrame(JSON.toJSONString(responseMessage)));
-                }
-                //统一刷新缓冲区，减小服务器压力
-                ctx.channel().flush();
+            cursorSync = Boolean.TRUE.equals(ctx.channel().attr(WebSocketAuthenticationHandler.CURSOR_SYNC).get());
+            if (cursorSync) {
+                /**
+                 * 必须在握手完成的这个事件里同步加入管道,客户端收到握手响应之后发来的第一帧(同步请求)才不会被MessagesHandler处理
+                 */
+                ctx.pipeline().addAfter(ctx.name(), "sessionSync", new SessionSyncHandler(sessionSync, handlerStageExecutor, userId));
+                handlerStageExecutor.submit(HandlerStage.OFFLINE_REPLAY, ctx, this::queryTaskRemindMessages, (reminders, cause) -> {
+                    if (cause != null) {
+                        cause.printStackTrace();
+                    } else {
+                        pushTaskRemindMessages(ctx, reminders);
+                    }
+                    ctx.fireUserEventTriggered(new WebSocketChannelInitializer.timeToRemoveOfflineMessageHandler());
+                });
+                return;
             }
-
             /**
-             * 2. 再发送用户的最早未读消息前一段时间内的历史消息
+             * 未读消息和历史消息可能有几万条,不能一次全部读进内存再一次性写出去:
+             * 1. prepareReplay 给未读消息和最近的消息各做一个快照,只读取数量和最早的时间戳
+             * 2. pump 每次读取一页,写出并flush之后,channel还可写才读取下一页,
+             *    不可写时停下来,等channelWritabilityChanged变回可写再继续
+             * 读取都在OFFLINE_REPLAY阶段的线程中执行,不阻塞EventLoop上的其他channel
              */
-            ctx.channel().writeAndFlush(new TextWebSocketFrame(JSON.toJSONString(new ResponseHandler(ResponseHandler.SUCCESS,"接收部分历史消息",null))));
-
-            //最早未读消息的时间戳 - 15天 = 需要恢复历史消息的最早消息的时间戳
-            long earliestMessageTimestamp = minimumTimeStampScoreOfUnreadMessage - earliestUnreadMessageTimestampMinusDays;
-
-            //从earliestMessageTimestamp时间戳开始，查询earliestMessageTimestamp时间戳到minimumTimeStampScore时间戳之间的所有消息
-            //当然因为这些历史消息有些在redis中，有些在数据库中，所以需要分开查询
-            List<Messages> historicalMessages = queryHistoricalMessagesByTimestampRange(earliestMessageTimestamp);
-            if(historicalMessages!=null){
-                for (Messages message : historicalMessages) {
-                    ResponseHandler responseMessage = new ResponseHandler(ResponseHandler.SUCCESS, "聊天消息", message);
-                    ctx.channel().write(new TextWebSocketFrame(JSON.toJSONString(responseMessage)));
+            replayStarted = true;
+            String snapshotSuffix = userId + "_" + ctx.channel().id().asShortText();
+            handlerStageExecutor.submit(HandlerStage.OFFLINE_REPLAY, ctx, () -> {
+                prepareReplay(snapshotSuffix);
+                return Boolean.TRUE;
+            }, (prepared, cause) -> {
+                if (cause != null) {
+                    cause.printStackTrace();
+                    finishReplay(ctx, true);
+                    return;
                 }
-                //统一刷新缓冲区，减小服务器压力
-                ctx.channel().flush();
-            }
-
-            /**
-             * 3. 再发送用户的设置的任务提醒消息
-             */
-            Set<String> taskRemindMessages = stringRedisTemplate.opsForSet().members("task_reminder_"+userId);
-            List<LearningTask> taskRemindMessagesList = new ArrayList<>();
-            for (String taskRemindMessage : taskRemindMessages) {
-                LearningTask task = JSONObject.parseObject(taskRemindMessage,LearningTask.class);
-                taskRemindMessagesList.add(task);
-            }
-            //删除task_reminder_userId集合
-            stringRedisTemplate.delete("task_reminder_"+userId);
-            
-            // 根据reminderTime从早到晚排序（reminderTime不会为空）
-            taskRemindMessagesList.sort((task1, task2) -> {
-                return task1.getReminderTime().compareTo(task2.getReminderTime());
+                // 1. 先发送用户的全部未读消息数量
+                ctx.channel().writeAndFlush(new ResponseHandler(ResponseHandler.SUCCESS,"未读消息数量",unreadMessageNumber + largeGroupUnreadNumber));
+                pump(ctx);
             });
-            
-            // 发送排序后的任务提醒消息列表
-            for (LearningTask task : taskRemindMessagesList) {
-                ResponseHandler responseHandler = new ResponseHandler(ResponseHandler.SUCCESS, "任务提醒消息", task);
-                ChannelCrud.sendMessage(userId, JSON.toJSONString(responseHandler));
-            }
-
-            /**
-             * 进行到这一步后offlineMessageHandler该做的都做了,可以移除掉了
-             */
-            ctx.fireUserEventTriggered(new WebSocketChannelInitializer.timeToRemoveOfflineMessageHandler());
         }
     }
-    @Override
-    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        super.exceptionCaught(ctx, cause);
-        cause.printStackTrace();
-        ctx.close();
-    }
 
     /**
+     * 在HandlerStage.OFFLINE_REPLAY的线程中执行
      *
-     *查询用户未读消息
-     * 1. 先查询redis中的unread_message_userId,获取用户对应的unreadMessageId未读消息id集合
-     * 如果没有未读消息,则返回空
+     * 未读消息: 把unread_message_userId整个RENAME成这个channel自己的快照,
+     *          推送期间新产生的未读消息(比如OutboundPolicyHandler转为离线的消息)进入新的unread_message_userId,不会和快照混在一起
      *
-     * 2. 若有未读消息,则根据获取的unread_messageId集合从redis中的messages,即暂时缓存最新消息的集合，
-     *    从中获取未读消息,如果获取完后，发现还有未读消息没有获取，说明那部分未读消息已经同步到数据库了
-     *    所以此时需要查询数据库
-     *    极端情况下，redis返回的未读消息id集合不为空，但是里面的未读消息元素都为空，此时也要查询数据库
+     * 历史消息: 最早未读消息之前15天内的消息,
+     *          假设每一个消息在redis中缓存n个小时，则recent_messages_userId集合存储这n小时内userId的全部消息的messageId和对应的messageTimestamp,
+     *          recent_messages_userId按时间整体裁剪,所以它最早的一条消息(T)之后的消息都还在redis里,
+     *          T之前的部分从mysql查询,T之后的部分从redis的快照中读取
      */
-    public List<Messages> queryUnreadMessages(long userId){
-        //
-        String key = "unread_message_"+userId;
-        //获取用户所有未读消息id的集合
-        /**
-         * range(...) 返回的是一个 有序的 Set（虽然 Set 通常无序）。
-         * 实际上，Spring Data Redis 的 ZSetOperations.range(...) 返回的是 LinkedHashSet，它保留了插入顺序。
-         * 所以 unreadMessageIds 是有序的，并且顺序是你从 ZSET 中按 score 升序取出来的顺序。
-         */
-        Set<String> unreadMessageIds = stringRedisTemplate.opsForZSet().range(key,0,-1);
+    private void prepareReplay(String snapshotSuffix) {
+        String unreadKey = "unread_message_" + userId;
+        unreadSnapshotKey = "unread_replay_" + snapshotSuffix;
+        recentSnapshotKey = "recent_replay_" + snapshotSuffix;
+
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(unreadKey))) {
+            try {
+                stringRedisTemplate.rename(unreadKey, unreadSnapshotKey);
+                stringRedisTemplate.expire(unreadSnapshotKey, SNAPSHOT_TTL_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                // 同一个用户的另一台设备刚刚拿走了这些未读消息
+            }
+        }
+        Long unreadNumber = stringRedisTemplate.opsForZSet().zCard(unreadSnapshotKey);
+        unreadMessageNumber = unreadNumber == null ? 0 : unreadNumber;
+        Long earliestUnread = oldestScore(unreadSnapshotKey);
+        minimumTimeStampScoreOfUnreadMessage = earliestUnread != null ? earliestUnread : System.currentTimeMillis();
+
+        //最早未读消息的时间戳 - 15天 = 需要恢复历史消息的最早消息的时间戳
+        long earliestMessageTimestamp = minimumTimeStampScoreOfUnreadMessage - earliestUnreadMessageTimestampMinusDays;
+
+        stringRedisTemplate.opsForZSet().unionAndStore("recent_messages_" + userId, Collections.emptyList(), recentSnapshotKey);
+        stringRedisTemplate.opsForZSet().removeRangeByScore(recentSnapshotKey, Double.NEGATIVE_INFINITY, earliestMessageTimestamp - 1);
+        stringRedisTemplate.opsForZSet().removeRangeByScore(recentSnapshotKey, minimumTimeStampScoreOfUnreadMessage, Double.POSITIVE_INFINITY);
+        stringRedisTemplate.expire(recentSnapshotKey, SNAPSHOT_TTL_SECONDS, TimeUnit.SECONDS);
+
+        Long oldestRecent = oldestScore(recentSnapshotKey);
+        long databaseUntil = minimumTimeStampScoreOfUnreadMessage;
+        if (oldestRecent != null) {
+            databaseUntil = Math.min(databaseUntil, oldestRecent + BOUNDARY_MILLIS);
+            boundaryFromTimestamp = oldestRecent - BOUNDARY_MILLIS;
+        }
+        historyFrom = TimeConverter.ofTimestamp(earliestMessageTimestamp);
+        historyTo = TimeConverter.ofTimestamp(databaseUntil);
+
+        //先从数据库中查询出用户参与的所有sessionId
+        List<Long> sessionIdList = sessionMapper.queryAllSessionIdList(userId);
+        sessionIds = sessionIdList == null ? new ArrayList<>() : new ArrayList<>(sessionIdList);
 
         /**
-         *获取全部未读消息id集合后,删除这个未读消息集合
-         *
-         * 同步删除（可能阻塞主线程）
-         * stringRedisTemplate.delete(key);
-         *
-         * 异步删除（非阻塞）
-         * stringRedisTemplate.unlink(key);
+         * 大群只推送读取游标之后的未读消息,历史消息由客户端通过/api/chat/history按需翻页
          */
-        stringRedisTemplate.unlink(key);
+        List<Long> largeSessionIds = largeGroupTimeline.filterLarge(sessionIds);
+        if (!largeSessionIds.isEmpty()) {
+            sessionIds.removeAll(largeSessionIds);
+            Map<Long, Long> readCursors = largeGroupTimeline.readCursors(userId, largeSessionIds);
+            largeGroupGaps.addAll(sessionSync.gapsOf(largeSessionIds, readCursors));
+            Map<Long, Long> missingCursors = new HashMap<>();
+            for (Long sessionId : largeSessionIds) {
+                if (!readCursors.containsKey(sessionId)) {
+                    missingCursors.put(sessionId, 0L);
+                }
+            }
+            for (SessionSync.Gap gap : largeGroupGaps) {
+                largeGroupUnreadNumber += gap.getLatestSeq() - gap.getAfterSeq();
+                if (missingCursors.containsKey(gap.getSessionId())) {
+                    missingCursors.put(gap.getSessionId(), gap.getAfterSeq());
+                }
+            }
+            largeGroupTimeline.initMissingReadCursors(userId, missingCursors);
+        }
 
-        if(unreadMessageIds==null||unreadMessageIds.size()==0)
-            return null;
+        taskReminders = queryTaskRemindMessages();
+    }
 
-        unreadMessageNumber = unreadMessageIds.size();
+    private Long oldestScore(String key) {
+        Set<ZSetOperations.TypedTuple<String>> oldest = stringRedisTemplate.opsForZSet().rangeWithScores(key, 0, 0);
+        if (oldest == null || oldest.isEmpty()) {
+            return null;
+        }
+        Double score = oldest.iterator().next().getScore();
+        return score == null ? null : score.longValue();
+    }
 
-        //获取未读消息id的列表
+    /**
+     * 一页读取的结果
+     */
+    private static class ReplayPage {
+        final ReplayPhase phase;
+        final List<Messages> messages;
         /**
-         * 构造新的 ArrayList 时，使用的是 unreadMessageIds.iterator() 遍历的顺序。
-         * 因为 unreadMessageIds 是 LinkedHashSet（或类似有序 Set），所以 iterator 的顺序保持了原始 ZSET 的排序。
-         * 最终生成的 messageIds 列表仍然保持原始的排序。
+         * phase为UNREAD时,这一页写完之后已经推送到的未读消息排名
          */
-        List<String> messageIds = new ArrayList<>(unreadMessageIds);
-
-        // 安全获取第一个消息的时间戳分数，防止空值异常
-        Double scoreValue = redisTemplate.opsForZSet().score(key, messageIds.get(0));
-        if (scoreValue != null) {
-            minimumTimeStampScoreOfUnreadMessage = scoreValue.longValue();
-        } else {
-            // 如果获取不到分数，使用当前时间戳作为默认值
-            minimumTimeStampScoreOfUnreadMessage = System.currentTimeMillis();
+        final long unreadEnd;
+
+        ReplayPage(ReplayPhase phase, List<Messages> messages, long unreadEnd) {
+            this.phase = phase;
+            this.messages = messages;
+            this.unreadEnd = unreadEnd;
         }
+    }
 
-        /**
-         * 也有可能有redis缓存的部分消息已经同步到数据库了
-         * 所以我先通过未读消息Id的集合，用管道批量查询redis获取未读的消息体,得到messageList
-         */
-        List<String> messageList =getMessageListFromRedis(messageIds);
-        /**
-         * 由于getMessageListFromRedis 方法:
-         * 使用 executePipelined 方法批量查询消息。
-         * 返回一个 List<String>，其中包含查询到的消息 JSON 字符串，如果某个 messageId 不存在，则对应位置为 null。
-         *
-         * 所以，如果 messageList 中某个位置为 null，则表示对应 messageId 不存在，需要从数据库中查询
-         * 此时就把需要查询的messageId 加入到 unreadMessageIdInDatabase 集合中
-         */
-        List<Messages> messages = new ArrayList<>();
-        List<Long> unreadMessageIdInDatabase = new ArrayList<>();
-        for (int i = 0; i < messageList.size(); i++) {
-            if(messageList.get(i)!=null){
-                Messages message = JSON.parseObject(messageList.get(i), Messages.class);
+    /**
+     * 在HandlerStage.OFFLINE_REPLAY的线程中执行,读取下一页不为空的消息,全部读完返回DONE
+     */
+    private ReplayPage loadNextPage() {
+        while (phase != ReplayPhase.DONE) {
+            if (phase == ReplayPhase.UNREAD) {
+                List<String> messageIds = rangeIds(unreadSnapshotKey, unreadOffset);
+                if (messageIds.isEmpty()) {
+                    phase = ReplayPhase.LARGE_GROUP;
+                    continue;
+                }
+                unreadOffset += messageIds.size();
+                List<Messages> messages = loadMessageBodies(messageIds);
+                if (!messages.isEmpty()) {
+                    return new ReplayPage(ReplayPhase.UNREAD, messages, unreadOffset);
+                }
+            } else if (phase == ReplayPhase.LARGE_GROUP) {
+                SessionSync.Gap gap = largeGroupGaps.peek();
+                if (gap == null) {
+                    phase = ReplayPhase.HISTORY_DATABASE;
+                    continue;
+                }
+                List<Messages> messages;
+                try {
+                    messages = sessionSync.loadPage(gap);
+                } catch (SyncNotReadyException e) {
+                    // 缺口中的消息还没有写入mysql,这个大群的读取游标停在这里,下次上线再推送
+                    largeGroupGaps.poll();
+                    continue;
+                }
+                if (messages.isEmpty()) {
+                    largeGroupGaps.poll();
+                    continue;
+                }
+                gap.setAfterSeq(messages.get(messages.size() - 1).getSeq());
+                if (gap.getAfterSeq() >= gap.getLatestSeq()) {
+                    largeGroupGaps.poll();
+                }
+                return new ReplayPage(ReplayPhase.LARGE_GROUP, messages, 0);
+            } else if (phase == ReplayPhase.HISTORY_DATABASE) {
+                if (sessionIndex >= sessionIds.size()) {
+                    phase = ReplayPhase.HISTORY_REDIS;
+                    continue;
+                }
+                List<Long> sessionBatch = sessionIds.subList(sessionIndex,
+                        Math.min(sessionIndex + historySessionBatch, sessionIds.size()));
+                List<Messages> messages = messageMapper.queryMessagesOfSessionsByTimeRangePage(sessionBatch,
+                        historyFrom, historyTo, cursorCreatedAt, cursorMessageId, pageSize);
+                if (messages.size() < pageSize) {
+                    sessionIndex += sessionBatch.size();
+                    cursorCreatedAt = null;
+                    cursorMessageId = 0;
+                } else {
+                    Messages last = messages.get(messages.size() - 1);
+                    cursorCreatedAt = last.getCreatedAt();
+                    cursorMessageId = last.getMessageId();
+                }
+                for (Messages message : messages) {
+                    fillTimestamp(message);
+                    if (message.getTimestamp() >= boundaryFromTimestamp) {
+                        boundaryMessageIds.add(message.getMessageId());
+                    }
+                }
+                if (!messages.isEmpty()) {
+                    return new ReplayPage(ReplayPhase.HISTORY_DATABASE, messages, 0);
+                }
+            } else {
+                List<String> messageIds = rangeIds(recentSnapshotKey, recentOffset);
+                if (messageIds.isEmpty()) {
+                    phase = ReplayPhase.DONE;
+                    continue;
+                }
+                recentOffset += messageIds.size();
+                List<Messages> messages = loadMessageBodies(messageIds);
+                // 分界线附近已经从mysql推送过的消息
+                messages.removeIf(message -> boundaryMessageIds.contains(message.getMessageId()));
+                if (!messages.isEmpty()) {
+                    return new ReplayPage(ReplayPhase.HISTORY_REDIS, messages, 0);
+                }
+            }
+        }
+        return new ReplayPage(ReplayPhase.DONE, Collections.emptyList(), 0);
+    }
+
+    private List<String> rangeIds(String snapshotKey, long offset) {
+        Set<String> ids = stringRedisTemplate.opsForZSet().range(snapshotKey, offset, offset + pageSize - 1);
+        return ids == null ? Collections.emptyList() : new ArrayList<>(ids);
+    }
+
+    /**
+     * 按messageIds的顺序取出消息,先用一条HMGET从redis暂时缓存的messages中读取,
+     * 已经写入mysql并且从redis中删除的消息,再用一条SQL从mysql中读取
+     */
+    private List<Messages> loadMessageBodies(List<String> messageIds) {
+        List<Object> bodies = stringRedisTemplate.opsForHash().multiGet("messages", messageIds);
+        List<Long> inDatabase = new ArrayList<>();
+        for (int i = 0; i < messageIds.size(); i++) {
+            if (bodies.get(i) == null) {
+                inDatabase.add(Long.parseLong(messageIds.get(i)));
+            }
+        }
+        Map<Long, Messages> messagesInDatabase = new HashMap<>();
+        if (!inDatabase.isEmpty()) {
+            for (Messages message : messageMapper.queryMessagesByIds(inDatabase)) {
+                fillTimestamp(message);
+                messagesInDatabase.put(message.getMessageId(), message);
+            }
+        }
+        List<Messages> messages = new ArrayList<>(messageIds.size());
+        for (int i = 0; i < messageIds.size(); i++) {
+            Object body = bodies.get(i);
+            Messages message = body != null
+                    ? JSONObject.parseObject(body.toString(), Messages.class)
+                    : messagesInDatabase.get(Long.parseLong(messageIds.get(i)));
+            if (message != null) {
                 messages.add(message);
-            }else{
-                unreadMessageIdInDatabase.add(Long.parseLong(messageIds.get(i)));
             }
         }
-        /**
-         * 此时循环遍历后，获取了已经被同步到数据库的未读消息Id，unreadMessageIdInDatabase
-         * 所以此时需要从数据库中批量查询未读消息
-         *
-         * 如果unreadMessageIdInDatabase集合为空，则说明redis缓存中获取的未读消息就是全部未读消息，此时直接返回未读消息即可
-         */
-        if(unreadMessageIdInDatabase.size()==0)
-            return messages;
-        List<Messages> messagesInDatabase = messageMapper.queryUnreadMessages(unreadMessageIdInDatabase);
-        messages.addAll(messagesInDatabase);
         return messages;
     }
 
+    private static void fillTimestamp(Messages message) {
+        if (message.getTimestamp() == 0 && message.getCreatedAt() != null) {
+            message.setTimestamp(TimeConverter.toTimestamp(message.getCreatedAt()));
+        }
+    }
+
+    /**
+     * 在EventLoop中执行,一次只有一页在读取
+     */
+    private void pump(ChannelHandlerContext ctx) {
+        if (loading || replayFinished) {
+            return;
+        }
+        if (!ctx.channel().isWritable()) {
+            // 等channelWritabilityChanged
+            return;
+        }
+        loading = true;
+        handlerStageExecutor.submit(HandlerStage.OFFLINE_REPLAY, ctx, this::loadNextPage, (page, cause) -> {
+            loading = false;
+            if (replayFinished) {
+                return;
+            }
+            if (cause != null) {
+                cause.printStackTrace();
+                finishReplay(ctx, true);
+                return;
+            }
+            boolean unreadPhase = page.phase == ReplayPhase.UNREAD || page.phase == ReplayPhase.LARGE_GROUP;
+            if (!unreadPhase && !historyMarkerSent) {
+                // 2. 再发送用户的最早未读消息前一段时间内的历史消息
+                historyMarkerSent = true;
+                ctx.channel().write(new ResponseHandler(ResponseHandler.SUCCESS,"接收部分历史消息",null));
+            }
+            if (page.phase == ReplayPhase.DONE) {
+                ctx.channel().flush();
+                finishReplay(ctx, false);
+                return;
+            }
+            ChannelFuture lastWrite = null;
+            for (Messages message : page.messages) {
+                lastWrite = ctx.channel().write(new ResponseHandler(ResponseHandler.SUCCESS, "聊天消息", message));
+            }
+            if (page.phase == ReplayPhase.UNREAD && lastWrite != null) {
+                long unreadEnd = page.unreadEnd;
+                lastWrite.addListener(future -> {
+                    if (future.isSuccess()) {
+                        unreadWritten = Math.max(unreadWritten, unreadEnd);
+                    }
+                });
+            } else if (page.phase == ReplayPhase.LARGE_GROUP && lastWrite != null) {
+                // 大群的消息没有进入unread_message_userId,这一页写出之后把读取游标移到这一页的最后一个seq
+                Messages last = page.messages.get(page.messages.size() - 1);
+                lastWrite.addListener(future -> {
+                    if (!future.isSuccess()) {
+                        return;
+                    }
+                    handlerStageExecutor.submit(HandlerStage.OFFLINE_REPLAY, ctx, () -> {
+                        largeGroupTimeline.advanceReadCursor(userId, last.getSessionId(), last.getSeq());
+                        return Boolean.TRUE;
+                    }, (advanced, advanceCause) -> {
+                        if (advanceCause != null) {
+                            advanceCause.printStackTrace();
+                        }
+                    });
+                });
+            }
+            ctx.channel().flush();
+            pump(ctx);
+        });
+    }
+
     /**
-     *这个方法是拿一个人未读消息id的集合从暂时缓存到redis中的消息集合中拿数据
+     * 在EventLoop中执行
      *
-     * messageIds: 未读消息id的集合
-     * messageList: 未读消息的集合
+     * @param interrupted true表示推送没有完成(连接断开或者读取失败),还没有写出的未读消息放回unread_message_userId,下次上线再推送
      */
-    public List<String> getMessageListFromRedis(List<String> messageIds){
-        List<String> messageList = stringRedisTemplate.executePipelined(new RedisCallback<String>() {
-            @Override
-            public String doInRedis(RedisConnection connection) throws DataAccessException {
-                byte[] key = stringRedisTemplate.getStringSerializer().serialize("messages");
-                for (String messageId : messageIds) {
-                    byte[] messageIdSerialized = stringRedisTemplate.getStringSerializer().serialize(messageId);
-                    connection.hGet(key, messageIdSerialized);
-                }
-                return null;
+    private void finishReplay(ChannelHandlerContext ctx, boolean interrupted) {
+        if (replayFinished) {
+            return;
+        }
+        replayFinished = true;
+        long restoreFrom = interrupted ? unreadWritten : Long.MAX_VALUE;
+        handlerStageExecutor.submit(HandlerStage.OFFLINE_REPLAY, ctx, () -> {
+            cleanupSnapshots(restoreFrom);
+            return Boolean.TRUE;
+        }, (done, cause) -> {
+            if (cause != null) {
+                cause.printStackTrace();
             }
         });
-        return messageList;
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        // 3. 再发送用户的设置的任务提醒消息
+        pushTaskRemindMessages(ctx, taskReminders);
+        /**
+         * 进行到这一步后offlineMessageHandler该做的都做了,可以移除掉了
+         */
+        ctx.fireUserEventTriggered(new WebSocketChannelInitializer.timeToRemoveOfflineMessageHandler());
     }
 
+    /**
+     * 在HandlerStage.OFFLINE_REPLAY的线程中执行
+     */
+    private void cleanupSnapshots(long restoreFrom) {
+        if (unreadSnapshotKey == null) {
+            return;
+        }
+        if (restoreFrom < unreadMessageNumber) {
+            if (restoreFrom > 0) {
+                stringRedisTemplate.opsForZSet().removeRange(unreadSnapshotKey, 0, restoreFrom - 1);
+            }
+            String unreadKey = "unread_message_" + userId;
+            // 推送期间又转为离线的消息两边都有,默认的SUM会把时间戳加倍,取MIN保持原来的时间戳
+            stringRedisTemplate.opsForZSet().unionAndStore(unreadKey, List.of(unreadSnapshotKey), unreadKey,
+                    Aggregate.MIN);
+        }
+        stringRedisTemplate.unlink(List.of(unreadSnapshotKey, recentSnapshotKey));
+    }
 
-    //从earliestMessageTimestamp时间戳开始，查询earliestMessageTimestamp时间戳到minimumTimeStampScore时间戳之间的所有消息
-    //当然因为这些历史消息有些在redis中，有些在数据库中，所以需要分开查询
-    public List<Messages> queryHistoricalMessagesByTimestampRange(long earliestMessageTimestamp){
-        //先从数据库中查询出用户参与的所有sessionId
-        List<Long> sessionIdList = sessionMapper.queryAllSessionIdList(userId);
-        //再根据sessionIdList从数据库中查询出earliestMessageTimestamp时间戳到minimumTimeStampScore时间戳之间的
-        //所有对应不同sessionId的消息,并按时间戳从小到大排序
-        List<Messages> historicalMessageListInDatabase = new ArrayList<>();
-        if(sessionIdList!=null&&sessionIdList.size()!=0)
-            historicalMessageListInDatabase = messageMapper.queryMessagesByTimestamp(sessionIdList,earliestMessageTimestamp,minimumTimeStampScoreOfUnreadMessage);
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (replayStarted && ctx.channel().isWritable()) {
+            pump(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
 
-        /**
-         * 假设每一个消息在redis中缓存n个小时，则recent_messages_userId集合存储
-         * 这n小时内userId的全部消息的messageId和对应的messageTimestamp
-         * 等到了n小时后，则删除recent_messages_userId集合及其对应的recent_message_member集合(记录userId的集合)，
-         * 之后再有消息的时候，则重新存储recent_messages_userId集合和recent_message_member集合
-         * 
-         * 这是为了历史消息的恢复，每当用户登录账号的时候，获取最早的未读消息的时间戳，
-         * 然后获取这n个小时内，所有早于最早未读消息时间戳的缓存的消息，
-         * 然后再查询mysql，获取存储在mysql中剩余的历史消息，然后就获取了所有历史消息
-         * 
-         * 当然，历史消息和未读消息是分开查询的，先查询未读消息，再查询最早未读消息前m天之内的历史消息
-         * 
-         */
-        List<Messages> recentMessageListInRedis = getHistoricalMessagesFromRedis(userId, earliestMessageTimestamp, minimumTimeStampScoreOfUnreadMessage);
-        historicalMessageListInDatabase.addAll(recentMessageListInRedis);
-        return historicalMessageListInDatabase;
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (replayStarted && !replayFinished) {
+            finishReplay(ctx, true);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    /**
+     * 读取出来的任务提醒,members是task_reminder_userId中对应的原始成员,写出之后按原样删除
+     */
+    private static class TaskReminders {
+        static final TaskReminders EMPTY = new TaskReminders(Collections.emptyList(), Collections.emptyList());
+
+        final List<LearningTask> tasks;
+        final List<String> members;
+
+        TaskReminders(List<LearningTask> tasks, List<String> members) {
+            this.tasks = tasks;
+            this.members = members;
+        }
     }
 
     /**
-     * 这里必须使用lua脚本，因为先要从recent_messages_userId集合中获取这个用户的
-     * 比最早未读消息时间戳早的，但是又还在redis缓存中的消息的messageId
-     * 然后根据获取的messageId从redis中的messages集合中获取消息，最终获取到还在redis缓存中历史的消息
-     * 
-     * 但是这是两个步骤，如果刚刚完成从recent_messages_userId集合中获取messageId，
-     * 然后因为定时任务的原因，接下来的messages集合中的消息被删除了，
-     * 那就相当于卡住了
-     * 
-     * 所以必须使用lua脚本，一步完成两个操作，刚好redis是原子性的，所以在执行这个二并一的操作的时候，
-     * 不会出现键值因为其他原因被突然删除的情况
+     * 只读取,不删除;推送期间连接断开或者写出失败,提醒还留在task_reminder_userId中,下次上线再推送
      */
-    public List<Messages> getHistoricalMessagesFromRedis(long userId, long earliestTimestamp, long latestTimestamp) {
-        // 使用Lua脚本一步完成两个操作
-        String script = 
-            "local ids = redis.call('ZRANGEBYSCORE', KEYS[1], ARGV[1], ARGV[2]) " +
-            "local messages = {} " +
-            "for i, id in ipairs(ids) do " +
-            "    local msg = redis.call('HGET', KEYS[2], id) " +
-            "    if msg then " +
-            "        table.insert(messages, msg) " +
-            "    end " +
-            "end " +
-            "return messages";
-        
-        List<String> keys = Arrays.asList(
-            "recent_messages_" + userId,
-            "messages"
-        );
-        
-        List<String> args = Arrays.asList(
-            String.valueOf(earliestTimestamp),
-            String.valueOf(latestTimestamp)
-        );
-        
-        List<String> results = (List<String>) stringRedisTemplate.execute(
-            new DefaultRedisScript<>(script, List.class), 
-            keys, 
-            args.toArray()
-        );
-        
-        return results.stream()
-                .map(jsonStr -> JSON.parseObject(jsonStr, Messages.class))
-                .collect(Collectors.toList());
+    private TaskReminders queryTaskRemindMessages() {
+        Set<String> taskRemindMessages = stringRedisTemplate.opsForSet().members("task_reminder_"+userId);
+        if (taskRemindMessages == null || taskRemindMessages.isEmpty()) {
+            return TaskReminders.EMPTY;
+        }
+        List<LearningTask> taskRemindMessagesList = new ArrayList<>();
+        for (String taskRemindMessage : taskRemindMessages) {
+            LearningTask task = JSONObject.parseObject(taskRemindMessage,LearningTask.class);
+            taskRemindMessagesList.add(task);
+        }
+
+        // 根据reminderTime从早到晚排序（reminderTime不会为空）
+        taskRemindMessagesList.sort((task1, task2) -> {
+            return task1.getReminderTime().compareTo(task2.getReminderTime());
+        });
+        return new TaskReminders(taskRemindMessagesList, new ArrayList<>(taskRemindMessages));
+    }
+
+    /**
+     * 在EventLoop中执行,全部提醒写出成功之后,再从task_reminder_userId中删除这些成员,
+     * 推送期间新加入的提醒不会被删除
+     */
+    private void pushTaskRemindMessages(ChannelHandlerContext ctx, TaskReminders reminders) {
+        if (reminders.tasks.isEmpty()) {
+            return;
+        }
+        ChannelFuture lastWrite = null;
+        for (LearningTask task : reminders.tasks) {
+            lastWrite = ctx.channel().write(new ResponseHandler(ResponseHandler.SUCCESS, "任务提醒消息", task));
+        }
+        ctx.channel().flush();
+        lastWrite.addListener(future -> {
+            if (!future.isSuccess()) {
+                return;
+            }
+            handlerStageExecutor.submit(HandlerStage.OFFLINE_REPLAY, ctx, () -> {
+                stringRedisTemplate.opsForSet().remove("task_reminder_" + userId, reminders.members.toArray());
+                return Boolean.TRUE;
+            }, (removed, cause) -> {
+                if (cause != null) {
+                    cause.printStackTrace();
+                }
+            });
+        });
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        super.exceptionCaught(ctx, cause);
+        cause.printStackTrace();
+        ctx.close();
     }
 }
@@ -0,0 +1,166 @@
+package org.com.code.im.netty.nettyHandler;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.AttributeKey;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.responseHandler.ResponseHandler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 每个channel的出站背压策略,放在ResponseFrameCodec后面,业务代码写出的消息先经过这里
+ *
+ * 客户端读得慢(比如弱网下的手机在一个很活跃的群里),服务器写出的数据就会堆积在channel的出站缓冲区,
+ * 如果不管不顾地一直writeAndFlush,缓冲区会无限增长,最后把服务器的内存撑爆,所以按积压的程度分级处理:
+ *
+ * 1. 出站缓冲区超过高水位线,channel.isWritable()变成false:
+ *    低优先级的消息(LowPriorityMessage)不再写出,同一个coalesceKey只保留最新的一条,
+ *    等channelWritabilityChanged变回可写之后再一次性写出
+ * 2. 积压超过maxPendingBytes,说明客户端已经落后太多:
+ *    之后的聊天消息都不再写出,转为这个用户的未读消息(unread_message_userId),
+ *    等积压的数据全部发送出去,channel变回可写之后,通知客户端并断开连接,
+ *    客户端重连后由OfflineMessageHandler推送这些未读消息
+ *
+ * 每个channel一个实例,状态只在channel所在的EventLoop中修改
+ */
+public class OutboundPolicyHandler extends ChannelDuplexHandler {
+
+    private static final AttributeKey<OutboundPolicyHandler> OUTBOUND_POLICY = AttributeKey.valueOf("outboundPolicy");
+
+    private final BackpressurePolicy policy;
+
+    private Channel channel;
+
+    /**
+     * 不可写期间暂存的低优先级消息,coalesceKey -> 最新的一条
+     */
+    private final LinkedHashMap<String, ResponseHandler> coalesced = new LinkedHashMap<>();
+
+    private volatile boolean lagging;
+    private volatile long divertedNumber;
+
+    public OutboundPolicyHandler(BackpressurePolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * ChannelCrud批量推送聊天消息时,已经编码好的帧没法再看出是不是聊天消息,所以在写出之前先调用这个方法
+     * 必须在channel所在的EventLoop中调用
+     *
+     * @return false表示这个channel积压太多,消息已经转为离线消息,不要再写出
+     */
+    public static boolean admitChatMessage(Channel channel, long messageId, long timestamp) {
+        OutboundPolicyHandler handler = channel.attr(OUTBOUND_POLICY).get();
+        return handler == null || handler.admit(messageId, timestamp);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        channel = ctx.channel();
+        channel.attr(OUTBOUND_POLICY).set(this);
+        policy.register(this);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        policy.unregister(this);
+        coalesced.clear();
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof LowPriorityMessage) {
+            LowPriorityMessage lowPriority = (LowPriorityMessage) msg;
+            if (ctx.channel().isWritable() && !lagging) {
+                ctx.write(lowPriority.getResponse(), promise);
+            } else {
+                coalesce(lowPriority);
+                promise.trySuccess();
+            }
+            return;
+        }
+        if (msg instanceof ResponseHandler && ((ResponseHandler) msg).getData() instanceof Messages) {
+            Messages message = (Messages) ((ResponseHandler) msg).getData();
+            if (!admit(message.getMessageId(), message.getTimestamp())) {
+                promise.trySuccess();
+                return;
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            if (lagging) {
+                // 积压的数据已经发送完了,让客户端重连拉取转为离线的消息
+                coalesced.clear();
+                ctx.writeAndFlush(new ResponseHandler(ResponseHandler.SUCCESS, "消息积压", "部分消息已转为离线消息,请重新连接"))
+                        .addListener(ChannelFutureListener.CLOSE);
+            } else if (!coalesced.isEmpty()) {
+                for (ResponseHandler response : coalesced.values()) {
+                    ctx.write(response, ctx.voidPromise());
+                }
+                coalesced.clear();
+                ctx.flush();
+            }
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    private boolean admit(long messageId, long timestamp) {
+        if (!lagging) {
+            if (pendingBytes() <= policy.getMaxPendingBytes()) {
+                return true;
+            }
+            lagging = true;
+            policy.laggingChannels.increment();
+        }
+        Long userId = (Long) channel.attr(AttributeKey.valueOf("userId")).get();
+        if (userId != null) {
+            policy.divert(userId, messageId, timestamp);
+            divertedNumber++;
+        }
+        return false;
+    }
+
+    private void coalesce(LowPriorityMessage message) {
+        if (coalesced.put(message.getCoalesceKey(), message.getResponse()) != null) {
+            policy.coalesced.increment();
+            return;
+        }
+        if (coalesced.size() > policy.getMaxCoalesced()) {
+            // 丢弃最早的一条
+            Iterator<String> iterator = coalesced.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+            policy.droppedLowPriority.increment();
+        }
+    }
+
+    private long pendingBytes() {
+        ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+        return outboundBuffer == null ? 0 : outboundBuffer.totalPendingWriteBytes();
+    }
+
+    /**
+     * 给BackpressurePolicy统计用,在其他线程中调用,只读取volatile的状态
+     */
+    Map<String, Object> queueDepth() {
+        Map<String, Object> depth = new LinkedHashMap<>();
+        depth.put("userId", channel.attr(AttributeKey.valueOf("userId")).get());
+        depth.put("channelId", channel.id().asShortText());
+        depth.put("pendingBytes", pendingBytes());
+        depth.put("writable", channel.isWritable());
+        depth.put("lagging", lagging);
+        depth.put("diverted", divertedNumber);
+        return depth;
+    }
+}
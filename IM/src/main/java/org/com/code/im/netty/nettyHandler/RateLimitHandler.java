@@ -0,0 +1,116 @@
+package org.com.code.im.netty.nettyHandler;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.com.code.im.responseHandler.ResponseHandler;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 放在MessagesHandler前面,对用户发来的消息帧限流,限流策略见RateLimiter
+ *
+ * 令牌不够的时候不是直接拒绝,而是:
+ * 1. 把消息暂存起来,同时关闭channel的autoRead,不再从socket读取数据,
+ *    客户端继续发送的数据会堆积在TCP接收缓冲区,缓冲区满了之后TCP流量控制会让客户端慢下来
+ * 2. 等到令牌补充之后,按顺序把暂存的消息交给MessagesHandler,然后重新打开autoRead
+ * 3. 关闭autoRead之前已经读到的数据里可能还有好几帧,暂存的消息超过maxPending之后才会被拒绝
+ *
+ * 控制帧(ping,pong,close)不限流
+ * 每个channel一个实例,所有状态都只在channel所在的EventLoop里访问,不需要加锁
+ */
+public class RateLimitHandler extends ChannelInboundHandlerAdapter {
+
+    private final RateLimiter rateLimiter;
+
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+
+    private ScheduledFuture<?> resumeTask;
+
+    public RateLimitHandler(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof TextWebSocketFrame) && !(msg instanceof BinaryWebSocketFrame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        // 前面还有消息在排队,必须排在它们后面,否则消息的顺序会乱
+        if (!pending.isEmpty()) {
+            enqueue(ctx, msg);
+            return;
+        }
+        long waitNanos = rateLimiter.acquire(userId(ctx));
+        if (waitNanos == 0) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        enqueue(ctx, msg);
+        pause(ctx, waitNanos);
+    }
+
+    private void enqueue(ChannelHandlerContext ctx, Object msg) {
+        if (pending.size() >= rateLimiter.getMaxPending()) {
+            ReferenceCountUtil.release(msg);
+            rateLimiter.recordRejected();
+            ctx.writeAndFlush(new ResponseHandler(ResponseHandler.BAD_REQUEST, "消息发送失败", "请不要频繁发送消息", null));
+            return;
+        }
+        pending.add(msg);
+        rateLimiter.recordDelayed();
+    }
+
+    private void pause(ChannelHandlerContext ctx, long waitNanos) {
+        ctx.channel().config().setAutoRead(false);
+        resumeTask = ctx.executor().schedule(() -> resume(ctx), waitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void resume(ChannelHandlerContext ctx) {
+        resumeTask = null;
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        while (!pending.isEmpty()) {
+            long waitNanos = rateLimiter.acquire(userId(ctx));
+            if (waitNanos > 0) {
+                pause(ctx, waitNanos);
+                return;
+            }
+            ctx.fireChannelRead(pending.poll());
+        }
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        Long userId = (Long) ctx.channel().attr(AttributeKey.valueOf("userId")).get();
+        // closeFuture的监听器已经把channel从ChannelCrud中移除了
+        if (userId != null && !ChannelCrud.isOnline(userId)) {
+            rateLimiter.evict(userId);
+        }
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (resumeTask != null) {
+            resumeTask.cancel(false);
+            resumeTask = null;
+        }
+        Object msg;
+        while ((msg = pending.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private static long userId(ChannelHandlerContext ctx) {
+        return (long) ctx.channel().attr(AttributeKey.valueOf("userId")).get();
+    }
+}
@@ -0,0 +1,247 @@
+package org.com.code.im.netty.nettyHandler;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 用户发送消息的令牌桶限流
+ *
+ * 每个用户一个令牌桶,桶里最多 burst 个令牌,每秒补充 refillPerSecond 个令牌,每发一条消息消耗一个令牌
+ * 这样用户可以一次性连发 burst 条消息(比如粘贴多行),但长期来看发送速度不会超过 refillPerSecond
+ *
+ * local 模式: 令牌桶保存在本机内存,同一个用户在本机的所有设备共用一个桶
+ * redis 模式: 同一个用户在所有服务器上的所有设备共用redis中的一个桶
+ *            EventLoop上只从本机的令牌桶拿令牌,不等待redis;
+ *            后台线程每隔syncIntervalMillis把本机这段时间消耗的令牌数量一次性从redis的桶里扣掉,
+ *            再把本机桶里的令牌降到不超过redis桶里剩下的数量,其他服务器消耗的令牌就这样同步过来,
+ *            多个服务器同时发送时最多多放过一个同步间隔的消息;redis不可用时只用本机的令牌桶
+ */
+@Component
+public class RateLimiter {
+
+    @Value("${netty.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * local 或 redis
+     */
+    @Value("${netty.rate-limit.mode:local}")
+    private String mode;
+
+    @Value("${netty.rate-limit.burst:10}")
+    private int burst;
+
+    @Value("${netty.rate-limit.refill-per-second:5}")
+    private double refillPerSecond;
+
+    /**
+     * 令牌不够时,每个连接最多暂存多少条消息等待令牌,超过的直接拒绝
+     */
+    @Value("${netty.rate-limit.max-pending:20}")
+    private int maxPending;
+
+    /**
+     * redis 模式下本机和redis同步令牌的间隔
+     */
+    @Value("${netty.rate-limit.sync-interval-millis:100}")
+    private long syncIntervalMillis;
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    /**
+     * 用redis的TIME作为时间,避免不同服务器的时钟不一致
+     * 从桶里扣掉ARGV[3]个令牌(本机在上一个同步间隔里消耗的数量),令牌可以欠,最多欠capacity个,
+     * 返回扣完之后剩下的令牌数量 * 1000(取整),小于等于0表示所有服务器都要等待补充
+     */
+    private static final DefaultRedisScript<Long> TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>(
+            "local capacity = tonumber(ARGV[1]) " +
+            "local rate = tonumber(ARGV[2]) " +
+            "local consumed = tonumber(ARGV[3]) " +
+            "local time = redis.call('TIME') " +
+            "local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000) " +
+            "local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'timestamp') " +
+            "local tokens = tonumber(bucket[1]) " +
+            "local timestamp = tonumber(bucket[2]) " +
+            "if tokens == nil then " +
+            "    tokens = capacity " +
+            "    timestamp = now " +
+            "end " +
+            "tokens = math.min(capacity, tokens + math.max(0, now - timestamp) * rate) " +
+            "tokens = math.max(-capacity, tokens - consumed) " +
+            "redis.call('HMSET', KEYS[1], 'tokens', tostring(tokens), 'timestamp', now) " +
+            "redis.call('PEXPIRE', KEYS[1], math.ceil(2 * capacity / rate) + 1000) " +
+            "return math.floor(tokens * 1000)",
+            Long.class);
+
+    private final Map<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService syncExecutor;
+
+    /**
+     * 当前时间(纳秒),测试中替换成可以控制的时钟来验证令牌的补充
+     */
+    LongSupplier nanoClock = System::nanoTime;
+
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder delayed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder redisFailures = new LongAdder();
+    private final LongAdder redisSyncs = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        if (!enabled || !"redis".equals(mode)) {
+            return;
+        }
+        syncExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rate-limit-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncExecutor.scheduleWithFixedDelay(this::syncWithRedis, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    /**
+     * 尝试为用户拿一个令牌,在EventLoop上调用,只访问本机的令牌桶,不会阻塞
+     *
+     * @return 0表示拿到了令牌,否则返回还需要等待的纳秒数
+     */
+    public long acquire(long userId) {
+        long now = nanoClock.getAsLong();
+        long waitNanos = buckets.computeIfAbsent(userId, k -> new TokenBucket(burst, now))
+                .tryAcquire(now, burst, refillPerSecond / TimeUnit.SECONDS.toNanos(1));
+        if (waitNanos == 0) {
+            passed.increment();
+        }
+        return waitNanos;
+    }
+
+    /**
+     * redis 模式下在rate-limit-sync线程执行,每个这段时间有消耗的用户一次EVAL
+     */
+    private void syncWithRedis() {
+        for (Map.Entry<Long, TokenBucket> entry : buckets.entrySet()) {
+            TokenBucket bucket = entry.getValue();
+            int consumed = bucket.drainConsumed();
+            if (consumed == 0) {
+                continue;
+            }
+            try {
+                Long remaining = (Long) stringRedisTemplate.execute(
+                        TOKEN_BUCKET_SCRIPT,
+                        Collections.singletonList("rate_limit_" + entry.getKey()),
+                        String.valueOf(burst),
+                        String.valueOf(refillPerSecond / 1000),
+                        String.valueOf(consumed));
+                if (remaining != null) {
+                    bucket.limitTo(remaining / 1000.0);
+                }
+                redisSyncs.increment();
+            } catch (Exception e) {
+                redisFailures.increment();
+            }
+        }
+    }
+
+    /**
+     * 用户在本机的所有设备都下线后,丢弃本机的令牌桶
+     */
+    public void evict(long userId) {
+        buckets.remove(userId);
+    }
+
+    void recordDelayed() {
+        delayed.increment();
+    }
+
+    void recordRejected() {
+        rejected.increment();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("mode", mode);
+        snapshot.put("passed", passed.sum());
+        snapshot.put("delayed", delayed.sum());
+        snapshot.put("rejected", rejected.sum());
+        snapshot.put("redisSyncs", redisSyncs.sum());
+        snapshot.put("redisFailures", redisFailures.sum());
+        snapshot.put("localBuckets", buckets.size());
+        return snapshot;
+    }
+
+    private static final class TokenBucket {
+        private double tokens;
+        private long lastRefillNanos;
+        /**
+         * 上一次和redis同步之后消耗的令牌数量
+         */
+        private int consumed;
+
+        TokenBucket(int capacity, long now) {
+            this.tokens = capacity;
+            this.lastRefillNanos = now;
+        }
+
+        /**
+         * 同一个用户的多个设备可能在不同的EventLoop上,所以需要加锁,
+         * 锁的粒度是单个用户,不同用户之间不会竞争
+         */
+        synchronized long tryAcquire(long now, int capacity, double tokensPerNano) {
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                consumed++;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+        }
+
+        synchronized int drainConsumed() {
+            int n = consumed;
+            consumed = 0;
+            return n;
+        }
+
+        /**
+         * 其他服务器也在消耗同一个用户的令牌,本机的令牌不能比redis桶里剩下的多
+         */
+        synchronized void limitTo(double remaining) {
+            tokens = Math.min(tokens, remaining);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.com.code.im.netty.nettyHandler;
+
+import com.alibaba.fastjson.JSONObject;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import org.com.code.im.exception.SyncNotReadyException;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.responseHandler.ResponseHandler;
+import org.com.code.im.service.session.impl.SessionSync;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按seq游标增量同步消息,只有用 sync=cursor 连接的客户端才会被OfflineMessageHandler加到管道里
+ *
+ * 握手完成之后,客户端发送的第一帧必须是同步请求,包含每个对话已经收到的最大seq:
+ * {
+ *     "syncCursors": {"5455079943446528": "120", "5455079943446529": "8"}
+ * }
+ * 服务器依次返回:
+ * 1. "同步概要": 有缺口的对话列表 [{sessionId, fromSeq, latestSeq, truncated}],
+ *    truncated为true表示缺口太大,只同步了最新的部分,更早的消息通过/api/chat/history翻页获取
+ * 2. "聊天消息": 缺口中的消息,一个对话一个对话地按seq从小到大推送,
+ *    每次读取一页,写完一页并且channel可写之后才读取下一页,channel不可写时等channelWritabilityChanged再继续,
+ *    不会因为一次重连在出站缓冲区里堆积大量消息
+ * 3. "同步完成": sessionId -> 这次同步到的seq,以及同步失败的对话
+ *
+ * 缺口中的消息还没有写入mysql时(SyncNotReadyException),隔一段时间重试这一页,重试次数用完算作这个对话同步失败,
+ * "同步完成"中这个对话的seq停在缺口之前
+ * 每一页写出之后,这一页的消息从unread_message_userId中删除,其他没有同步到的未读消息不动
+ *
+ * 同步的同时新消息照常实时推送,客户端按(sessionId, seq)去重
+ * 第一帧不是同步请求时,按没有任何游标处理,这一帧继续交给后面的MessagesHandler
+ *
+ * 每个channel一个实例,状态只在channel所在的EventLoop中修改,同步完成之后从管道中移除
+ */
+public class SessionSyncHandler extends ChannelInboundHandlerAdapter {
+
+    private final SessionSync sessionSync;
+    private final HandlerStageExecutor handlerStageExecutor;
+    private final long userId;
+
+    private boolean requested;
+    private boolean loading;
+    private boolean finished;
+
+    private final ArrayDeque<SessionSync.Gap> gaps = new ArrayDeque<>();
+    private final Map<String, String> reached = new LinkedHashMap<>();
+    private final List<String> failed = new ArrayList<>();
+
+    public SessionSyncHandler(SessionSync sessionSync, HandlerStageExecutor handlerStageExecutor, long userId) {
+        this.sessionSync = sessionSync;
+        this.handlerStageExecutor = handlerStageExecutor;
+        this.userId = userId;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (requested) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        requested = true;
+        Map<Long, Long> cursors = parseCursors(msg);
+        if (cursors == null) {
+            cursors = new HashMap<>();
+            ctx.fireChannelRead(msg);
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+
+        Map<Long, Long> requestCursors = cursors;
+        handlerStageExecutor.submit(HandlerStage.OFFLINE_REPLAY, ctx, () -> sessionSync.plan(userId, requestCursors), (plan, cause) -> {
+            if (finished) {
+                return;
+            }
+            if (cause != null) {
+                cause.printStackTrace();
+                ctx.channel().writeAndFlush(new ResponseHandler(ResponseHandler.SERVER_ERROR, "同步失败", null));
+                finish(ctx);
+                return;
+            }
+            List<Map<String, Object>> summary = new ArrayList<>(plan.size());
+            for (SessionSync.Gap gap : plan) {
+                summary.add(gap.toSummary());
+            }
+            gaps.addAll(plan);
+            ctx.channel().writeAndFlush(new ResponseHandler(ResponseHandler.SUCCESS, "同步概要", summary));
+            pump(ctx);
+        });
+    }
+
+    /**
+     * 不是同步请求返回null
+     */
+    private static Map<Long, Long> parseCursors(Object msg) {
+        if (!(msg instanceof TextWebSocketFrame)) {
+            return null;
+        }
+        try {
+            JSONObject request = JSONObject.parseObject(((TextWebSocketFrame) msg).text());
+            JSONObject syncCursors = request == null ? null : request.getJSONObject("syncCursors");
+            if (syncCursors == null) {
+                return null;
+            }
+            Map<Long, Long> cursors = new HashMap<>(syncCursors.size() * 2);
+            for (Map.Entry<String, Object> entry : syncCursors.entrySet()) {
+                cursors.put(Long.parseLong(entry.getKey()), Long.parseLong(String.valueOf(entry.getValue())));
+            }
+            return cursors;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 读取并写出下一页,一次只有一页在读取
+     */
+    private void pump(ChannelHandlerContext ctx) {
+        if (loading || finished) {
+            return;
+        }
+        if (gaps.isEmpty()) {
+            finish(ctx);
+            return;
+        }
+        if (!ctx.channel().isWritable()) {
+            // 等channelWritabilityChanged
+            return;
+        }
+        loading = true;
+        SessionSync.Gap gap = gaps.peek();
+        handlerStageExecutor.submit(HandlerStage.OFFLINE_REPLAY, ctx, () -> sessionSync.loadPage(gap), (page, cause) -> {
+            if (finished) {
+                loading = false;
+                return;
+            }
+            if (cause instanceof SyncNotReadyException && gap.incrementNotReadyRetries() <= sessionSync.getNotReadyMaxRetries()) {
+                // 等消息写入mysql之后再读这一页,等待期间loading保持为true,不会读取其他页
+                ctx.executor().schedule(() -> {
+                    loading = false;
+                    pump(ctx);
+                }, sessionSync.getNotReadyRetryMillis(), TimeUnit.MILLISECONDS);
+                return;
+            }
+            loading = false;
+            if (cause != null) {
+                if (!(cause instanceof SyncNotReadyException)) {
+                    cause.printStackTrace();
+                }
+                failed.add(String.valueOf(gap.getSessionId()));
+                gaps.poll();
+            } else if (page.isEmpty()) {
+                gaps.poll();
+            } else {
+                gap.resetNotReadyRetries();
+                ChannelFuture lastWrite = null;
+                for (Messages message : page) {
+                    lastWrite = ctx.channel().write(new ResponseHandler(ResponseHandler.SUCCESS, "聊天消息", message));
+                }
+                ctx.channel().flush();
+                lastWrite.addListener(future -> {
+                    if (future.isSuccess()) {
+                        handlerStageExecutor.submit(HandlerStage.OFFLINE_REPLAY, ctx, () -> {
+                            sessionSync.acknowledge(userId, page);
+                            return Boolean.TRUE;
+                        }, (acknowledged, ackCause) -> {
+                            if (ackCause != null) {
+                                ackCause.printStackTrace();
+                            }
+                        });
+                    }
+                });
+                gap.setAfterSeq(page.get(page.size() - 1).getSeq());
+                reached.put(String.valueOf(gap.getSessionId()), String.valueOf(gap.getAfterSeq()));
+                if (gap.getAfterSeq() >= gap.getLatestSeq()) {
+                    gaps.poll();
+                }
+            }
+            pump(ctx);
+        });
+    }
+
+    private void finish(ChannelHandlerContext ctx) {
+        finished = true;
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("cursors", reached);
+        result.put("failed", failed);
+        ctx.channel().writeAndFlush(new ResponseHandler(ResponseHandler.SUCCESS, "同步完成", result));
+        ctx.pipeline().remove(this);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            pump(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        finished = true;
+        ctx.fireChannelInactive();
+    }
+}
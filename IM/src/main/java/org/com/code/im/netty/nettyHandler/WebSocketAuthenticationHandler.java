@@ -4,13 +4,13 @@ package org.com.code.im.netty.nettyHandler;
 import com.alibaba.fastjson.JSONObject;
 import io.netty.buffer.Unpooled;
 import org.com.code.im.responseHandler.ResponseHandler;
-import io.netty.channel.Channel;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.util.AttributeKey;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.util.ReferenceCountUtil;
+import org.com.code.im.netty.nettyCluster.PresenceRegistry;
 import org.com.code.im.netty.nettyServer.WebSocketChannelInitializer;
 import org.com.code.im.utils.JWTUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -28,6 +28,11 @@ import java.util.List;
 public class WebSocketAuthenticationHandler extends SimpleChannelInboundHandler<HttpObject> {
 
     public static final AttributeKey<Long> USER_ID = AttributeKey.valueOf("userId");
+    /**
+     * 客户端用 sync=cursor 连接时为true,上线时不再推送全部未读消息和15天的历史消息,
+     * 而是由SessionSyncHandler按客户端发来的seq游标增量同步
+     */
+    public static final AttributeKey<Boolean> CURSOR_SYNC = AttributeKey.valueOf("cursorSync");
     /**
      *  RedisConfig用的是@Configuration注解,同时这里是用它的Bean方法,
      *  由于@Configuration注解,这个类是单例的,所以这个Bean方法得到的是同一个RedisTemplate实例
@@ -37,6 +42,9 @@ public class WebSocketAuthenticationHandler extends SimpleChannelInboundHandler<
     @Autowired
     RedisTemplate redisTemplate;
 
+    @Autowired
+    PresenceRegistry presenceRegistry;
+
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, HttpObject httpObject) throws Exception {
         // 获取请求 URI
@@ -70,6 +78,7 @@ public class WebSocketAuthenticationHandler extends SimpleChannelInboundHandler<
         String stringUserId=String.valueOf(userId);
 
         ctx.attr(USER_ID).set(userId);
+        ctx.attr(CURSOR_SYNC).set(decoder.parameters().getOrDefault("sync", List.of()).contains("cursor"));
 
         /**
          * 在用户id与该会话channel绑定后,马上触发一个事件,之后的
@@ -77,26 +86,19 @@ public class WebSocketAuthenticationHandler extends SimpleChannelInboundHandler<
          */
         ctx.fireUserEventTriggered(new WebSocketChannelInitializer.userBeOnlineAlarm());
 
-        ChannelCrud.addChannel(userId,ctx);
-
-        List<Channel> channelList = ChannelCrud.onlineUser.get(userId);
-        // 修复：检查是否超出限制，如果超出则移除最早的连接
-        while(channelList.size() > JWTUtils.getMaxOnlineNumber()){
-            Channel oldestChannel = channelList.get(0);
-            
-            // 发送下线通知给被挤下线的用户
-            // 在握手完成前不能发送任何数据，直接关闭连接
-            oldestChannel.close();
-            channelList.remove(0);
-        }
+        /**
+         * 如果超出MAX_ONLINE_NUMBER,最早的连接会在ChannelCrud内部被原子地移出并关闭
+         */
+        int onlineDeviceNumber = ChannelCrud.addChannel(userId, ctx.channel());
 
         /**
          * 即使是一个账号可以在多台设备上同时在线,建立多个不同的channel连接,但是本质上还只是一个账号在线
          * 所以这里设置成,同一个账号无论在线设备多少个,只有这个账号的第一次与服务器连接的时候才会
          * 往redis中保存自己的用户在线id,只保存1次
+         * 同时记录用户连接在哪台服务器上,其他服务器才能把消息转发过来
          */
-        if(channelList.size()==1){
-            redisTemplate.opsForHash().put("online_user",stringUserId,userId);
+        if(onlineDeviceNumber==1){
+            presenceRegistry.online(userId);
         }
 
         // 检查当前连接是否仍然有效，避免在关闭旧连接时同时关闭了新连接
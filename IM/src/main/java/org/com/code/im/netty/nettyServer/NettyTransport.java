@@ -0,0 +1,83 @@
+package org.com.code.im.netty.nettyServer;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+
+/**
+ * Netty的传输层实现
+ *
+ * NIO 是JDK的Selector实现,所有平台都可以用,但是每次select都会产生垃圾对象(SelectedKeys等),
+ * 几万个空闲长连接的时候,selector的开销和GC都比较明显
+ * EPOLL 是Netty自己的Linux原生实现,边缘触发,不经过JDK的Selector,几乎不产生垃圾
+ * IO_URING 是Linux 5.1+的异步IO接口,系统调用次数更少,但内核版本要求高
+ * AUTO 优先使用epoll,不可用时退回NIO
+ *
+ * 如果配置的传输方式在当前系统不可用(比如在Windows/Mac上开发),会自动按 io_uring -> epoll -> nio 的顺序降级
+ */
+public enum NettyTransport {
+    AUTO,
+    NIO,
+    EPOLL,
+    IO_URING;
+
+    public static NettyTransport of(String name) {
+        if (name == null || name.isBlank()) {
+            return AUTO;
+        }
+        return NettyTransport.valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+
+    /**
+     * 根据当前系统是否支持,得到真正使用的传输方式
+     */
+    public NettyTransport resolve() {
+        switch (this) {
+            case IO_URING:
+                if (IOUring.isAvailable()) {
+                    return IO_URING;
+                }
+                return EPOLL.resolve();
+            case EPOLL:
+            case AUTO:
+                if (Epoll.isAvailable()) {
+                    return EPOLL;
+                }
+                return NIO;
+            default:
+                return NIO;
+        }
+    }
+
+    /**
+     * threads为0时使用Netty的默认线程数,即 CPU核数*2
+     */
+    public EventLoopGroup newEventLoopGroup(int threads) {
+        switch (resolve()) {
+            case IO_URING:
+                return new IOUringEventLoopGroup(threads);
+            case EPOLL:
+                return new EpollEventLoopGroup(threads);
+            default:
+                return new NioEventLoopGroup(threads);
+        }
+    }
+
+    public Class<? extends ServerChannel> serverChannelClass() {
+        switch (resolve()) {
+            case IO_URING:
+                return IOUringServerSocketChannel.class;
+            case EPOLL:
+                return EpollServerSocketChannel.class;
+            default:
+                return NioServerSocketChannel.class;
+        }
+    }
+}
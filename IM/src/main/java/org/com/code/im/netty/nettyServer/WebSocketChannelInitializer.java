@@ -4,23 +4,50 @@ import io.netty.channel.*;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.codec.http.websocketx.WebSocketServerProtocolHandler;
+import io.netty.handler.codec.http.websocketx.extensions.WebSocketServerExtensionHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.PerMessageDeflateServerExtensionHandshaker;
 import io.netty.handler.stream.ChunkedWriteHandler;
-import io.netty.handler.timeout.IdleStateHandler;
+import org.com.code.im.netty.nettyCodec.CompressionMetricsHandler;
+import org.com.code.im.netty.nettyCodec.DeflateThresholdFilterProvider;
+import org.com.code.im.netty.nettyCodec.ResponseFrameCodec;
+import org.com.code.im.netty.nettyCodec.WireProtocol;
+import org.com.code.im.netty.nettyHandler.BackpressurePolicy;
 import org.com.code.im.netty.nettyHandler.HeartBeatEventHandler;
+import org.com.code.im.netty.nettyHandler.HeartBeatManager;
 import org.com.code.im.netty.nettyHandler.OfflineMessageHandler;
+import org.com.code.im.netty.nettyHandler.OutboundPolicyHandler;
+import org.com.code.im.netty.nettyHandler.RateLimitHandler;
+import org.com.code.im.netty.nettyHandler.RateLimiter;
 import org.com.code.im.netty.nettyHandler.WebSocketAuthenticationHandler;
 import org.com.code.im.netty.nettyHandler.MessagesHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
-import java.util.concurrent.TimeUnit;
 
 @Component
 public class WebSocketChannelInitializer extends ChannelInitializer {
     @Value("${netty.path}")
     private String nettyPath;
 
+    /**
+     * permessage-deflate 压缩配置
+     * threshold  小于这个字节数的帧不压缩
+     * level      deflate压缩级别 0~9, 越大压缩率越高, CPU消耗也越大
+     * windowBits 建议客户端使用的滑动窗口大小 8~15, 越小每个连接占用的内存越少
+     */
+    @Value("${netty.compression.enabled:true}")
+    private boolean compressionEnabled;
+
+    @Value("${netty.compression.threshold:1024}")
+    private int compressionThreshold;
+
+    @Value("${netty.compression.level:6}")
+    private int compressionLevel;
+
+    @Value("${netty.compression.window-bits:15}")
+    private int compressionWindowBits;
+
 
     /**
      * handler不能共享用同一个单例,需要为不同的channel创建不同的实例
@@ -39,6 +66,15 @@ public class WebSocketChannelInitializer extends ChannelInitializer {
     @Autowired
     private ApplicationContext applicationContext;
 
+    @Autowired
+    private RateLimiter rateLimiter;
+
+    @Autowired
+    private HeartBeatManager heartBeatManager;
+
+    @Autowired
+    private BackpressurePolicy backpressurePolicy;
+
     @Override
     protected void initChannel(Channel ch) throws Exception {
         ChannelPipeline pipeline = ch.pipeline();
@@ -51,11 +87,25 @@ public class WebSocketChannelInitializer extends ChannelInitializer {
                 //对http请求进行token认证，识别用户身份，如果认证成功，才能往下升级成WebSocket连接
                 //由于我需要提取请求头的token，所以我这个自定义的认证处理器需要继承放在HttpObjectAggregator后面，
                 //HttpObjectAggregator会将Http解码后的数据包聚合成一个完整的HttpRequest和HttpContent，这是Http防止半包粘包的必要措施
-                .addLast(applicationContext.getBean(WebSocketAuthenticationHandler.class))
+                .addLast(applicationContext.getBean(WebSocketAuthenticationHandler.class));
 
-                .addLast(new IdleStateHandler( 0, 0,0, TimeUnit.SECONDS))
-                //处理心跳检测的包
-                .addLast(new HeartBeatEventHandler())
+        if (compressionEnabled) {
+            /**
+             * WebSocket的permessage-deflate压缩扩展,必须放在WebSocketServerProtocolHandler前面
+             * 握手时如果客户端支持压缩,会在WebSocketServerExtensionHandler后面插入压缩和解压的编解码器,
+             * 前后两个CompressionMetricsHandler用来统计压缩率和每一帧的压缩耗时
+             */
+            CompressionMetricsHandler compressionMetricsHandler = new CompressionMetricsHandler();
+            pipeline.addLast(compressionMetricsHandler.wireSide())
+                    .addLast(new WebSocketServerExtensionHandler(new PerMessageDeflateServerExtensionHandshaker(
+                            compressionLevel, true, compressionWindowBits, false, false,
+                            new DeflateThresholdFilterProvider(compressionThreshold))))
+                    .addLast(compressionMetricsHandler);
+        }
+
+        pipeline
+                //心跳检测,由HeartBeatManager的时间轮统一调度,每个channel不再单独创建定时任务
+                .addLast(new HeartBeatEventHandler(heartBeatManager))
                 /**
                  * 浏览器的 WebSocket API 是唯一标准化的全双工通信协议，所有现代浏览器（Chrome/Firefox/Safari/Edge）
                  * 均强制使用 WebSocket 协议进行长连接通信，无法直接使用自定义二进制协议。
@@ -64,16 +114,29 @@ public class WebSocketChannelInitializer extends ChannelInitializer {
                 //      如果是 WebSocket 握手请求，则完成协议升级，后续消息会被解码为
                 //      WebSocket帧（如 `TextWebSocketFrame` 或 `BinaryWebSocketFrame`）。
                 //出站:将WebSocketFrame将消息封装为 WebSocket 协议格式。
-                .addLast(new WebSocketServerProtocolHandler(nettyPath))
+                //同时支持 im.json 和 im.binary 两种子协议,由客户端在握手时通过Sec-WebSocket-Protocol选择
+                .addLast(new WebSocketServerProtocolHandler(nettyPath, WireProtocol.SUBPROTOCOLS))
                 /**
                  * 任何用TextWebSocketFrame或BinaryWebSocketFrame发送给客户端的消息，
                  * 都必须在WebSocketServerProtocolHandler后面,只有这样消息被发送的时候
                  * 才会被正确处理成WebSocket协议格式的字节流,然后发送给客户端，否则会被丢弃。
                  */
 
+                //握手完成后记录协商出来的子协议,并把出站的ResponseHandler按子协议编码成文本帧或二进制帧
+                .addLast(ResponseFrameCodec.INSTANCE)
+
+                //出站背压策略,客户端读得慢时合并低优先级消息,积压太多时把聊天消息转为离线消息
+                .addLast(new OutboundPolicyHandler(backpressurePolicy))
+
                 //推送离线消息
-                .addLast(applicationContext.getBean(OfflineMessageHandler.class))
+                .addLast(applicationContext.getBean(OfflineMessageHandler.class));
+
+        if (rateLimiter.isEnabled()) {
+            //对用户发来的消息限流,令牌不够时暂停读取
+            pipeline.addLast(new RateLimitHandler(rateLimiter));
+        }
 
+        pipeline
                 //处理WebSocketFrame
                 .addLast(applicationContext.getBean(MessagesHandler.class));
     }
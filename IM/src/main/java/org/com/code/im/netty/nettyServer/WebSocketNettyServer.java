@@ -1,15 +1,16 @@
 package org.com.code.im.netty.nettyServer;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.handler.logging.LoggingHandler;
 import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.beans.factory.annotation.Value;
 
@@ -17,13 +18,45 @@ import java.util.concurrent.TimeUnit;
 
 @Component
 public class WebSocketNettyServer {
-    @Qualifier("redisTemplateLong")
-    @Autowired
-    private RedisTemplate redisTemplate;
-
     @Value("${netty.port}")
     private int nettyPort;
 
+    /**
+     * 传输方式: auto / nio / epoll / io_uring, 当前系统不支持时自动降级
+     */
+    @Value("${netty.transport:auto}")
+    private String transport;
+
+    /**
+     * worker线程数,0表示使用Netty默认值(CPU核数*2)
+     */
+    @Value("${netty.worker-threads:0}")
+    private int workerThreads;
+
+    /**
+     * 已完成三次握手但还没有被accept的连接队列长度,大量客户端同时重连时队列太短会直接被拒绝
+     */
+    @Value("${netty.so-backlog:1024}")
+    private int soBacklog;
+
+    @Value("${netty.tcp-nodelay:true}")
+    private boolean tcpNoDelay;
+
+    /**
+     * 每个channel出站缓冲区的高低水位线(字节),超过高水位线时channel.isWritable()返回false
+     */
+    @Value("${netty.write-buffer-low-water-mark:32768}")
+    private int writeBufferLowWaterMark;
+
+    @Value("${netty.write-buffer-high-water-mark:65536}")
+    private int writeBufferHighWaterMark;
+
+    /**
+     * 是否使用池化的直接内存分配器,关闭则使用非池化的堆内存
+     */
+    @Value("${netty.pooled-direct-allocator:true}")
+    private boolean pooledDirectAllocator;
+
     @Autowired
     WebSocketChannelInitializer webSocketChannelInitializer;
 
@@ -53,17 +86,28 @@ public class WebSocketNettyServer {
     }
     public void start() throws Exception {
         try {
-            bossGroup = new NioEventLoopGroup(1);
-            workerGroup = new NioEventLoopGroup();
+            NettyTransport nettyTransport = NettyTransport.of(transport);
+            bossGroup = nettyTransport.newEventLoopGroup(1);
+            workerGroup = nettyTransport.newEventLoopGroup(workerThreads);
+
+            ByteBufAllocator allocator = pooledDirectAllocator
+                    ? new PooledByteBufAllocator(true)
+                    : new UnpooledByteBufAllocator(false);
 
             ServerBootstrap serverBootstrap = new ServerBootstrap();
             serverBootstrap.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(nettyTransport.serverChannelClass())
+                    .option(ChannelOption.SO_BACKLOG, soBacklog)
+                    .option(ChannelOption.ALLOCATOR, allocator)
+                    .childOption(ChannelOption.TCP_NODELAY, tcpNoDelay)
+                    .childOption(ChannelOption.ALLOCATOR, allocator)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark))
                     .handler(new LoggingHandler())
                     .childHandler(webSocketChannelInitializer);
 
             ChannelFuture future = serverBootstrap.bind(nettyPort).sync();
-            System.out.println("Server started on port " + nettyPort);
+            System.out.println("Server started on port " + nettyPort + " with transport " + nettyTransport.resolve());
             future.channel().closeFuture().sync();
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -83,12 +127,4 @@ public class WebSocketNettyServer {
             }
         }
     }
-
-    /**
-     * 每一次服务器重启后,相当于客户端全体掉线,所以每一次重启都要删除redis中在线用户的记录
-     */
-    @PostConstruct
-    public void cleanOnlineUserTrace(){
-        redisTemplate.delete("online_user");
-    }
 }
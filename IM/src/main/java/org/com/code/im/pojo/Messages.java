@@ -31,6 +31,13 @@ public class Messages {
   @JsonFormat(shape = JsonFormat.Shape.STRING)
   private long sessionId;
 
+  /**
+   * 对话内的消息序号,由ChatMsgConsumer按对话递增分配,客户端记录每个对话收到的最大seq,
+   * 重新连接时把它作为游标发给服务器,只同步游标之后的消息,见SessionSync
+   */
+  @JsonFormat(shape = JsonFormat.Shape.STRING)
+  private long seq;
+
   @JsonFormat(shape = JsonFormat.Shape.STRING)
   private long senderId;
 
@@ -4,7 +4,8 @@ public class SnowflakeIdWorker {
     /**
      * 开始时间截 (2025-03-26)
      */
-    private final long twepoch = 1742991958000L;
+    private static final long EPOCH = 1742991958000L;
+    private final long twepoch = EPOCH;
     /**
      * 机器id所占的位数
      */
@@ -57,6 +58,12 @@ public class SnowflakeIdWorker {
      * 上次生成ID的时间截
      */
     private long lastTimestamp = -1L;
+    /**
+     * 从id中取出生成这个id时的毫秒时间戳,时间截在id中左移了22位(5+5+12)
+     */
+    public static long timestampOf(long id) {
+        return (id >>> 22) + EPOCH;
+    }
     /**
      * 构造函数
      * @param workerId     工作ID (0~31)
@@ -8,6 +8,7 @@ import lombok.*;
 @NoArgsConstructor
 @AllArgsConstructor
 public class UserNameAndAvatar {
+    private long id;
     private String userName;
     private String avatar;
 }
@@ -1,65 +1,260 @@
 package org.com.code.im.rocketMq.consumer;
 
+import com.alibaba.fastjson.JSONException;
 import com.alibaba.fastjson.JSONObject;
-import io.netty.channel.Channel;
-import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
-import org.apache.rocketmq.spring.annotation.MessageModel;
-import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
-import org.apache.rocketmq.spring.core.RocketMQListener;
-import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.com.code.im.netty.nettyCluster.PushRouter;
 import org.com.code.im.pojo.Messages;
 import org.com.code.im.responseHandler.ResponseHandler;
-import org.com.code.im.service.session.MessageService;
-import org.com.code.im.utils.BloomFilters;
+import org.com.code.im.service.session.impl.ConversationIndex;
+import org.com.code.im.service.session.impl.LargeGroupTimeline;
+import org.com.code.im.service.session.impl.MessageWriteBehind;
+import org.com.code.im.service.session.impl.SessionSync;
+import org.com.code.im.utils.MessageDedup;
+import org.com.code.im.utils.SessionMembershipCache;
 import org.com.code.im.utils.TimeConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataAccessException;
 import org.springframework.data.redis.connection.RedisConnection;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * 消费聊天消息
+ *
+ * 原来用@RocketMQMessageListener一次只处理一条消息,每条消息都要单独访问好几次redis,
+ * 现在手动创建DefaultMQPushConsumer,一次最多拿到consumeMessageBatchMaxSize条消息一起处理:
+ * 1. 按对话分组,每个对话的成员只读取一次(SessionMembershipCache)
+ * 2. 这一批消息的所有接收者的在线状态只用一次pipeline查询(PushRouter.nodesOf)
+ * 3. 所有接收者的recent_messages_和unread_message_,recent_message_member,以及消息本身的messages,
+ *    在同一个pipeline里写入redis
+ *
+ * 生产者按sessionId选择队列(见ChatMsgBatcher),这里按队列顺序消费(MessageListenerOrderly),
+ * 所以同一个对话的消息按发送的顺序推送,consumeMessageBatchMaxSize配置为1就是原来一次处理一条的方式
+ *
+ * 同样因为同一个对话的消息只在一个队列里顺序消费,这里可以给消息分配对话内递增的seq(见SessionSync)
+ * 每个成员的对话列表(未读数量,最后一条消息)也在同一个pipeline里更新(见ConversationIndex)
+ *
+ * 成员数量达到阈值的大群按读扩散处理(见LargeGroupTimeline),在线成员照常推送,
+ * 但是不再给每个成员写入recent_messages_,unread_message_和对话列表,一条消息的redis写入数量和成员数量无关
+ *
+ * 重复投递:
+ * 每条消息第一次分配的timestamp(createdAt)和seq记录在msg_assigned_messageId中,
+ * 消费失败重试,或者队列重新分配之后在其他服务器上重新消费,都沿用第一次分配的值,mysql中的主键不会变,
+ * 写入redis成功之后再把记录标记为完成,并记录到本机的MessageDedup
+ * 只有msg_assigned_messageId标记为完成的消息才会被丢弃;MessageDedup会误判,只用来决定要不要先读取这条记录,
+ * 没有命中的消息直接分配,分配用的lua发现已经有记录(其他服务器处理过)时同样沿用原来的值或者丢弃
+ */
 @Component
-@RocketMQMessageListener(topic = "${rocketmq.topics.topic1}",
-                        consumerGroup = "${rocketmq.consumer.group1}",
-        selectorExpression = "${rocketmq.tags.tag1}",
-        messageModel = MessageModel.CLUSTERING)
-public class ChatMsgConsumer implements RocketMQListener<String> {
-
-    @Qualifier("redisTemplateLong")
-    @Autowired
-    private RedisTemplate redisTemplate;
+public class ChatMsgConsumer {
 
     @Qualifier("strRedisTemplate")
     @Autowired
     private RedisTemplate stringRedisTemplate;
 
     @Autowired
-    @Qualifier("messageImpl")
-    private MessageService messagesService;
+    private PushRouter pushRouter;
+
+    @Autowired
+    private SessionMembershipCache sessionMembershipCache;
+
+    @Autowired
+    private MessageDedup messageDedup;
+
+    @Autowired
+    private SessionSync sessionSync;
+
+    @Autowired
+    private ConversationIndex conversationIndex;
+
+    @Autowired
+    private LargeGroupTimeline largeGroupTimeline;
+
+    @Value("${rocketmq.name-server}")
+    private String nameServer;
+
+    @Value("${rocketmq.topics.topic1}")
+    private String topic;
+
+    @Value("${rocketmq.tags.tag1}")
+    private String tag;
+
+    @Value("${rocketmq.consumer.group1}")
+    private String consumerGroup;
+
+    @Value("${rocketmq.consumer.chat-batch-max-size:32}")
+    private int consumeMessageBatchMaxSize;
+
+    /**
+     * 顺序消费默认无限重试,一批消息一直失败会堵住整个队列(以及哈希到这个队列的所有对话),
+     * 超过这个次数之后由RocketMQ放进死信队列(%DLQ%消费者组),队列继续往下消费
+     */
+    @Value("${rocketmq.consumer.chat-max-reconsume-times:16}")
+    private int maxReconsumeTimes;
+
+    public static final String ASSIGNED_PREFIX = "msg_assigned_";
+
+    /**
+     * 没有分配记录的消息写入这一次分配的值,已经有记录的(其他服务器先写入了)返回原来的值
+     * KEYS 每条消息的msg_assigned_messageId
+     * ARGV[1] 过期时间(秒), ARGV[i + 1] 和KEYS[i]对应的 timestamp,seq
+     */
+    private static final DefaultRedisScript<List> ASSIGN_SCRIPT = new DefaultRedisScript<>(
+            "local assigned = {} " +
+            "for i, key in ipairs(KEYS) do " +
+            "    local value = redis.call('GET', key) " +
+            "    if not value then " +
+            "        value = ARGV[i + 1] " +
+            "        redis.call('SET', key, value, 'EX', ARGV[1]) " +
+            "    end " +
+            "    assigned[i] = value " +
+            "end " +
+            "return assigned",
+            List.class);
 
-    @Override
-    public void onMessage(String jsonMessage) {
+    private DefaultMQPushConsumer consumer;
 
-        Messages message = JSONObject.parseObject(jsonMessage, Messages.class);
+    private final LongAdder consumedMessages = new LongAdder();
+    private final LongAdder consumedBatches = new LongAdder();
+    private final LongAdder redisCommands = new LongAdder();
+    private final LongAdder redisRoundTrips = new LongAdder();
+    private final LongAdder consumeNanos = new LongAdder();
+    private final LongAdder duplicateMessages = new LongAdder();
+    private final LongAdder redeliveredMessages = new LongAdder();
+    /**
+     * MessageDedup命中,需要读取msg_assigned_messageId确认的消息,以及其中实际上没有处理完成的(误判或者上次写入失败)
+     */
+    private final LongAdder dedupChecks = new LongAdder();
+    private final LongAdder dedupFalseAlarms = new LongAdder();
+    /**
+     * 无法解析的消息,跳过,不让整批消息失败
+     */
+    private final LongAdder malformedMessages = new LongAdder();
+    /**
+     * 按扩散方式分别统计,比较同样的消息量下写扩散和读扩散的redis写入数量
+     */
+    private final LongAdder writeDiffusionMessages = new LongAdder();
+    private final LongAdder writeDiffusionCommands = new LongAdder();
+    private final LongAdder readDiffusionMessages = new LongAdder();
+    private final LongAdder readDiffusionCommands = new LongAdder();
+
+    @PostConstruct
+    public void start() throws Exception {
+        consumer = new DefaultMQPushConsumer(consumerGroup);
+        //默认就是集群消费,一条消息只会被消费者组中的一台服务器消费
+        consumer.setNamesrvAddr(nameServer);
+        consumer.setConsumeMessageBatchMaxSize(consumeMessageBatchMaxSize);
+        consumer.setPullBatchSize(Math.max(consumer.getPullBatchSize(), consumeMessageBatchMaxSize));
+        consumer.setMaxReconsumeTimes(maxReconsumeTimes);
+        consumer.subscribe(topic, tag);
+        consumer.registerMessageListener((MessageListenerOrderly) (messages, context) -> {
+            try {
+                List<String> jsonMessages = new ArrayList<>(messages.size());
+                for (MessageExt message : messages) {
+                    jsonMessages.add(new String(message.getBody(), StandardCharsets.UTF_8));
+                }
+                onMessages(jsonMessages);
+                return ConsumeOrderlyStatus.SUCCESS;
+            } catch (Exception e) {
+                e.printStackTrace();
+                return ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
+            }
+        });
+        consumer.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (consumer != null) {
+            consumer.shutdown();
+        }
+    }
+
+    public void onMessages(List<String> jsonMessages) {
+        long start = System.nanoTime();
         /**
-         * 所有群聊和私人会话的消息的创建时间都在ChatMsgConsumer这里创建
+         * 按对话分组,同一个对话的消息保持原来的顺序
          */
-        // 消息的创建毫秒级别的时间戳
-        message.setTimestamp(System.currentTimeMillis());
-        message.setCreatedAt(TimeConverter.getMilliTime());
+        List<Messages> received = new ArrayList<>(jsonMessages.size());
+        for (String jsonMessage : jsonMessages) {
+            Messages message;
+            try {
+                message = JSONObject.parseObject(jsonMessage, Messages.class);
+            } catch (JSONException e) {
+                message = null;
+            }
+            if (message == null || message.getMessageId() == 0) {
+                // 重试也不会成功,跳过这一条,同一批的其他消息照常处理
+                malformedMessages.increment();
+                System.out.println("ChatMsgConsumer skipped malformed message: " + jsonMessage);
+                continue;
+            }
+            received.add(message);
+        }
+        if (received.isEmpty()) {
+            return;
+        }
 
-        ResponseHandler responseHandler = new ResponseHandler(ResponseHandler.SUCCESS, "聊天消息", message);
         /**
-         * 布隆过滤器去重，原本存在的消息一定会被判断为存在，但是有概率把原本不存在的消息误判为存在
-         * 这里通过布隆过滤器通过消息id给消息去重
+         * 布隆过滤器去重，原本存在的消息一定会被判断为存在，但是有概率把原本不存在的消息误判为存在,
+         * 所以命中只说明需要确认: 读取msg_assigned_messageId,标记为完成的才是重复消息,见MessageDedup
          */
-        if(BloomFilters.checkIfDuplicatedMessage(String.valueOf(message.getMessageId()))){
-            return;
+        List<Messages> suspected = new ArrayList<>();
+        for (Messages message : received) {
+            if (messageDedup.mightContain(message.getMessageId())) {
+                suspected.add(message);
+            }
+        }
+        Set<Long> assigned = new HashSet<>();
+        Set<Long> delivered = new HashSet<>();
+        if (!suspected.isEmpty()) {
+            restoreAssignments(suspected, assigned, delivered);
+        }
+
+        /**
+         * 所有群聊和私人会话的消息的创建时间都在ChatMsgConsumer这里创建,
+         * 重复投递的消息沿用第一次分配的创建时间和seq
+         * fresh按received的顺序排列,同一个对话的seq按发送顺序分配
+         */
+        List<Messages> fresh = new ArrayList<>();
+        for (Messages message : received) {
+            if (!assigned.contains(message.getMessageId()) && !delivered.contains(message.getMessageId())) {
+                fresh.add(message);
+            }
+        }
+        if (!fresh.isEmpty()) {
+            long now = System.currentTimeMillis();
+            for (Messages message : fresh) {
+                // 消息的创建毫秒级别的时间戳
+                message.setTimestamp(now);
+                message.setCreatedAt(TimeConverter.ofTimestamp(now));
+            }
+            assignSequences(fresh);
+            recordAssignments(fresh, delivered);
+        }
+        if (!delivered.isEmpty()) {
+            received.removeIf(message -> delivered.contains(message.getMessageId()));
+            if (received.isEmpty()) {
+                return;
+            }
+        }
+        Map<Long, List<Messages>> messagesBySession = new LinkedHashMap<>();
+        for (Messages message : received) {
+            messagesBySession.computeIfAbsent(message.getSessionId(), k -> new ArrayList<>()).add(message);
         }
 
         /**
@@ -74,160 +269,367 @@ public class ChatMsgConsumer implements RocketMQListener<String> {
          */
 
         /**
-         * 获取到这个消息对应的会话的所有成员
+         * 获取到每个对话的所有成员,从本地缓存中读取,见SessionMembershipCache,
+         * 同时收集这一批消息的全部接收者,一次查询他们的在线状态
          */
-        Map<String,Long> memberOfSession = redisTemplate.opsForHash().entries("Session_"+message.getSessionId());
-        //获取一个会话的全部成员allUserIds
-        List<Long> allUserIds=new ArrayList<>();
-        //如果是私聊则需要跳过private key值的遍历
-        if(memberOfSession.get("private")!=null){
-            memberOfSession.remove("private");
-            for (String userId : memberOfSession.keySet()) {
-                if(Long.parseLong(userId)==message.getSenderId())
-                    continue;
-                allUserIds.add(Long.parseLong(userId));
+        Map<Long, SessionMembershipCache.SessionMembers> membersBySession = new HashMap<>();
+        Set<Long> allReceiverIds = new HashSet<>();
+        for (Long sessionId : messagesBySession.keySet()) {
+            SessionMembershipCache.SessionMembers members = sessionMembershipCache.get(sessionId);
+            if (members == null) {
+                continue;
+            }
+            membersBySession.put(sessionId, members);
+            for (long userId : members.memberIds()) {
+                allReceiverIds.add(userId);
             }
-            /**
-             * 如果是群聊,则直接遍历,不需要担心有没有private这个key值,也就不用每一次遍历就判断一下是不是private
-             * 因为之前一次就判断完有没有private了,节省性能
-             */
-        }else{
-            memberOfSession.forEach((k,v)->{
-                long id=Long.parseLong(k);
-                allUserIds.add(id);
-            });
         }
+        Map<Long, Set<String>> nodesByUser = allReceiverIds.isEmpty()
+                ? Collections.emptyMap() : pushRouter.nodesOf(allReceiverIds);
+        redisRoundTrips.increment();
 
-        /**
-         * 假设每一个消息在redis中缓存n个小时，则recent_messages_集合存储
-         * 这n小时内userId的全部消息的messageId和对应的messageTimestamp
-         * 等到了n小时后，则删除recent_messages_userId集合，之后再有消息的时候，
-         * 则重新存储recent_messages_userId集合
-         * 
-         * 这是为了历史消息的恢复，每当用户登录账号的时候，获取最早的未读消息的时间戳，
-         * 然后获取这n个小时内，所有早于最早未读消息时间戳的缓存的消息，
-         * 然后再查询mysql，获取存储在mysql中剩余的历史消息，然后就获取了所有历史消息
-         * 
-         * 当然，历史消息和未读消息是分开查询的，先查询未读消息，再查询最早未读消息前m天之内的历史消息
-         * 
-         */
-        for(int i=0;i<allUserIds.size();i++){
-            redisTemplate.opsForZSet().add("recent_messages_"+allUserIds.get(i),message.getMessageId(),message.getTimestamp());
-            if(!redisTemplate.opsForSet().isMember("recent_message_member", allUserIds.get(i))){
-                redisTemplate.opsForSet().add("recent_message_member", allUserIds.get(i));
+        List<PendingWrite> writes = new ArrayList<>();
+        messagesBySession.forEach((sessionId, messages) -> {
+            SessionMembershipCache.SessionMembers memberOfSession = membersBySession.get(sessionId);
+            boolean large = largeGroupTimeline.isLarge(memberOfSession);
+            for (Messages message : messages) {
+                writes.add(deliver(message, memberOfSession, nodesByUser, large));
             }
+        });
+
+        writeToRedis(writes, messagesBySession, membersBySession);
+        markDelivered(received);
+
+        consumedMessages.add(writes.size());
+        consumedBatches.increment();
+        consumeNanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * 用pipeline读取MessageDedup命中的消息的msg_assigned_messageId:
+     * 已经标记为完成的消息加入delivered,重新记录到本机的MessageDedup;
+     * 分配过但是没有完成的消息沿用原来的timestamp,createdAt和seq,加入assigned;
+     * 没有记录的说明是误判,和其他新消息一样分配
+     */
+    private void restoreAssignments(List<Messages> suspected, Set<Long> assigned, Set<Long> delivered) {
+        List<Object> values = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                for (Messages message : suspected) {
+                    connection.get(bytes(ASSIGNED_PREFIX + message.getMessageId()));
+                }
+                return null;
+            }
+        });
+        redisCommands.add(suspected.size());
+        redisRoundTrips.increment();
+        dedupChecks.add(suspected.size());
+
+        for (int i = 0; i < suspected.size(); i++) {
+            Messages message = suspected.get(i);
+            Object value = values.get(i);
+            if (value == null) {
+                dedupFalseAlarms.increment();
+                continue;
+            }
+            String[] parts = value.toString().split(",");
+            if (parts.length > 2) {
+                messageDedup.mark(message.getMessageId());
+                duplicateMessages.increment();
+                delivered.add(message.getMessageId());
+                continue;
+            }
+            dedupFalseAlarms.increment();
+            applyAssignment(message, parts);
+            redeliveredMessages.increment();
+            assigned.add(message.getMessageId());
         }
+    }
 
-        /**
-         * 获取到该会话的在线成员的channel,发送消息
-         */
-        List<Long> onlineUserIds = getOnlineUserIds(allUserIds,"online_user");
-        for (Long userId : onlineUserIds) {
-            //如果是自己的channel,则跳过
-            if(userId==message.getSenderId())
+    /**
+     * 记录第一次分配的值,其他服务器同时消费了同一条消息并且先写入了记录的话,改用它分配的值,
+     * 这种情况下这次分配的seq会被跳过;记录已经标记为完成的消息加入delivered
+     */
+    private void recordAssignments(List<Messages> fresh, Set<Long> delivered) {
+        List<String> keys = new ArrayList<>(fresh.size());
+        Object[] args = new Object[fresh.size() + 1];
+        args[0] = String.valueOf(TimeUnit.MINUTES.toSeconds(messageDedup.getWindowMinutes()));
+        for (int i = 0; i < fresh.size(); i++) {
+            Messages message = fresh.get(i);
+            keys.add(ASSIGNED_PREFIX + message.getMessageId());
+            args[i + 1] = message.getTimestamp() + "," + message.getSeq();
+        }
+        List<Object> assigned = (List<Object>) stringRedisTemplate.execute(ASSIGN_SCRIPT, keys, args);
+        redisCommands.add(fresh.size());
+        redisRoundTrips.increment();
+        for (int i = 0; i < fresh.size(); i++) {
+            Messages message = fresh.get(i);
+            String value = assigned.get(i).toString();
+            String[] parts = value.split(",");
+            if (parts.length > 2) {
+                messageDedup.mark(message.getMessageId());
+                duplicateMessages.increment();
+                delivered.add(message.getMessageId());
                 continue;
-            /**
-             * 获取需要发送消息的用户id,获取他们账号的所有在线通道,然后发送消息
-             * 一个账号可以在多台设备同时登录,故有多个channel,账号会被挤下线
-             */
-            List<Channel> channelList = ChannelCrud.getChannel(userId);
-            if (channelList != null) {
-                channelList.forEach(channel -> {
-                    channel.writeAndFlush(new TextWebSocketFrame(JSONObject.toJSONString(responseHandler)));
-                });
             }
+            if (!value.equals(args[i + 1])) {
+                redeliveredMessages.increment();
+            }
+            applyAssignment(message, parts);
         }
+    }
 
-        /**
-         * 获取到哪些成员不在线,然后按照
-         * userId messageId createdAt
-         * 把发送的未读消息id存储到redis的ZSet中，给用户相应的会话的unreadMessageNumber+1
-         * 然后把完整的消息存储到mysql中,然后客户端上线后拉取离线消息的时候,
-         * 用ZSet给未读的消息按照创建时间排序，获取这些未读的消息id
-         * 然后先尝试在redis暂时缓存的最新消息中查找是否有这些消息,
-         *
-         * 1.如果有,直接发送给用户,当然也有可能,一部分未读消息已经同步到mysql数据库中了,
-         *          另一部分还在redis暂时缓存的消息中,所以此时就要判断是否还需要继续访问数据库拉取剩余消息
-         * 2.如果没有,再从mysql中批量获取
-         *
-         */
-        List<Long> offlineUserIds = getOfflineUserIds(allUserIds,onlineUserIds);
-        offlineUserIds.forEach(userId->{
-            //新增该用户的未读消息,使用ZSet同时可以顺便统计所有的未读消息
-            redisTemplate.opsForZSet().add("unread_message_"+userId,String.valueOf(message.getMessageId()),message.getTimestamp());
+    private static void applyAssignment(Messages message, String[] parts) {
+        long timestamp = Long.parseLong(parts[0]);
+        message.setTimestamp(timestamp);
+        message.setCreatedAt(TimeConverter.ofTimestamp(timestamp));
+        message.setSeq(Long.parseLong(parts[1]));
+    }
+
+    /**
+     * 这一批消息已经全部写入redis,标记为完成
+     */
+    private void markDelivered(List<Messages> delivered) {
+        long ttlSeconds = TimeUnit.MINUTES.toSeconds(messageDedup.getWindowMinutes());
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                for (Messages message : delivered) {
+                    connection.setEx(bytes(ASSIGNED_PREFIX + message.getMessageId()), ttlSeconds,
+                            bytes(message.getTimestamp() + "," + message.getSeq() + ",1"));
+                }
+                return null;
+            }
+        });
+        redisCommands.add(delivered.size());
+        redisRoundTrips.increment();
+        for (Messages message : delivered) {
+            messageDedup.mark(message.getMessageId());
+        }
+    }
+
+    /**
+     * 给还没有分配过的消息分配对话内的seq,每个对话一条HINCRBY,所有对话在同一个pipeline里
+     *
+     * 其他服务器同时消费同一条消息时,没有被采用的seq会被跳过,seq只保证递增,不保证连续
+     */
+    private void assignSequences(List<Messages> fresh) {
+        Map<Long, List<Messages>> messagesBySession = new LinkedHashMap<>();
+        for (Messages message : fresh) {
+            messagesBySession.computeIfAbsent(message.getSessionId(), k -> new ArrayList<>()).add(message);
+        }
+        List<Long> sessionIds = new ArrayList<>(messagesBySession.keySet());
+        List<Object> latestSequences = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                byte[] seqKey = bytes(SessionSync.SEQ_KEY);
+                for (Long sessionId : sessionIds) {
+                    connection.hIncrBy(seqKey, bytes(String.valueOf(sessionId)), messagesBySession.get(sessionId).size());
+                }
+                return null;
+            }
         });
+        redisCommands.add(sessionIds.size());
+        redisRoundTrips.increment();
+
+        for (int i = 0; i < sessionIds.size(); i++) {
+            List<Messages> messages = messagesBySession.get(sessionIds.get(i));
+            long seq = ((Number) latestSequences.get(i)).longValue() - messages.size();
+            for (Messages message : messages) {
+                message.setSeq(++seq);
+            }
+        }
+    }
+
+    /**
+     * 推送一条消息,返回需要写入redis的数据
+     */
+    private PendingWrite deliver(Messages message, SessionMembershipCache.SessionMembers memberOfSession,
+                                 Map<Long, Set<String>> nodesByUser, boolean large) {
+        //获取一个会话的全部成员allUserIds,私聊则跳过发送者自己
+        List<Long> allUserIds=new ArrayList<>();
+        if (memberOfSession != null) {
+            for (long userId : memberOfSession.memberIds()) {
+                if (memberOfSession.isPrivateSession() && userId == message.getSenderId())
+                    continue;
+                allUserIds.add(userId);
+            }
+        }
 
         /**
-         * 接下来就把这些消息暂时存储到redis中缓存
-         * 每隔一段时间,把消息统一批量同步到mysql中,然后删除redis中的暂存的消息
-         * 缓解mysql的压力
+         * 把消息推送给该会话的在线成员(发送者自己除外,私聊在前面已经跳过了发送者)
+         * 成员可能连接在其他服务器上,由PushRouter按服务器分组转发,
+         * 本机的成员通过ChannelCrud推送,一个账号可以在多台设备同时登录,故有多个channel,
+         * 消息只序列化一次,所有channel共享同一个ByteBuf
          */
+        List<Long> receiverIds = new ArrayList<>(allUserIds.size());
+        for (Long userId : allUserIds) {
+            if (userId != message.getSenderId()) {
+                receiverIds.add(userId);
+            }
+        }
+        ResponseHandler responseHandler = new ResponseHandler(ResponseHandler.SUCCESS, "聊天消息", message);
+        List<Long> offlineUserIds = pushRouter.push(responseHandler, receiverIds, nodesByUser);
 
-        stringRedisTemplate.opsForHash().put("messages",String.valueOf(message.getMessageId()),JSONObject.toJSONString(message));
+        /**
+         * 大群的离线成员上线时按读取游标拉取,这里不需要记住每个成员
+         */
+        if (large) {
+            return new PendingWrite(message, Collections.emptyList(), Collections.emptyList(), true);
+        }
+        return new PendingWrite(message, allUserIds, offlineUserIds, false);
     }
 
-    /** 每个用户上线,把他们的userId从添加到redis中的online_user
+    /**
+     * 一批消息的redis写入放在同一个pipeline里:
+     *
+     * 假设每一个消息在redis中缓存n个小时，则recent_messages_集合存储
+     * 这n小时内userId的全部消息的messageId和对应的messageTimestamp
+     * 等到了n小时后，则删除recent_messages_userId集合，之后再有消息的时候，
+     * 则重新存储recent_messages_userId集合
      *
-     * 首先上面获取了某个会话id所对应的群聊或者单聊的全体成员的id信息
-     * 然后此处使用 用redis pipeline批量查询这些成员哪些是在线
-     * 在本地服务器获取通过哈希表获取在线人的的channel
+     * 这是为了历史消息的恢复，每当用户登录账号的时候，获取最早的未读消息的时间戳，
+     * 然后获取这n个小时内，所有早于最早未读消息时间戳的缓存的消息，
+     * 然后再查询mysql，获取存储在mysql中剩余的历史消息，然后就获取了所有历史消息
      *
-     * 存储online_user格式,hash形式
-     * online_user userId userId
+     * PushRouter返回不在任何一台服务器上在线的成员,然后按照
+     * userId messageId createdAt
+     * 把发送的未读消息id存储到redis的ZSet中，给用户相应的会话的unreadMessageNumber+1
+     * 然后先尝试在redis暂时缓存的最新消息中查找是否有这些消息,没有再从mysql中批量获取
+     *
+     * 最后把这些消息暂时存储到redis的messages中缓存,同时写入messages_stream,
+     * 由MessageWriteBehind持续地小批量写入mysql,写入mysql一段时间之后再删除redis中缓存的消息
+     *
+     * 每个对话的session_timeline_按seq记录最近的消息id,只保留最新的timelineMaxSize条,客户端增量同步时先从这里读取
+     *
+     * 每个对话这一批消息只给每个成员更新一次对话列表,最后一条消息作为概要,未读数量一次加上这一批的数量,
+     * 大群则只写入一次对话的概要,以及发送者自己的读取游标
+     *
+     * redisTemplateLong和strRedisTemplate的key和value最终都是字符串,这里直接写字节
      */
-    public List<Long> getOnlineUserIds(List<Long> userIds, String accountStatus){
+    private void writeToRedis(List<PendingWrite> writes, Map<Long, List<Messages>> messagesBySession,
+                              Map<Long, SessionMembershipCache.SessionMembers> membersBySession) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        Set<Long> sessionIds = new LinkedHashSet<>();
+        for (PendingWrite write : writes) {
+            sessionIds.add(write.message.getSessionId());
+        }
+        long timelineMaxSize = sessionSync.getTimelineMaxSize();
+        /**
+         * 每条命令只在写入pipeline的地方计数一次,pipeline执行成功之后再累加到指标中
+         */
+        long[] writeCommands = new long[1];
+        long[] readCommands = new long[1];
 
-        List<Long> OnlineUserIds=redisTemplate.executePipelined(new RedisCallback<Long>(){
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
             @Override
-            public Long doInRedis(RedisConnection connection) throws DataAccessException {
-                byte[] key = redisTemplate.getStringSerializer().serialize(accountStatus);
-                for (Object userId : userIds) {
-                    byte[] userIdSerialized = redisTemplate.getStringSerializer().serialize(userId.toString());
-                    connection.hGet(key, userIdSerialized);
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                byte[] recentMessageMember = bytes("recent_message_member");
+                byte[] messagesKey = bytes("messages");
+                byte[] streamKey = bytes(MessageWriteBehind.STREAM_KEY);
+                for (PendingWrite write : writes) {
+                    Messages message = write.message;
+                    byte[] messageId = bytes(String.valueOf(message.getMessageId()));
+                    for (Long userId : write.allUserIds) {
+                        connection.zAdd(bytes("recent_messages_" + userId), message.getTimestamp(), messageId);
+                        //SADD本身就是幂等的,不需要先SISMEMBER
+                        connection.sAdd(recentMessageMember, bytes(String.valueOf(userId)));
+                    }
+                    for (Long userId : write.offlineUserIds) {
+                        //新增该用户的未读消息,使用ZSet同时可以顺便统计所有的未读消息
+                        connection.zAdd(bytes("unread_message_" + userId), message.getTimestamp(), messageId);
+                    }
+                    byte[] body = bytes(JSONObject.toJSONString(message));
+                    connection.hSet(messagesKey, messageId, body);
+                    //由MessageWriteBehind从stream中读取,批量写入mysql
+                    Map<byte[], byte[]> record = new HashMap<>(2);
+                    record.put(bytes("body"), body);
+                    connection.streamCommands().xAdd(streamKey, record);
+                    connection.zAdd(bytes(SessionSync.TIMELINE_PREFIX + message.getSessionId()), message.getSeq(), messageId);
+                    long commands = write.allUserIds.size() * 2L + write.offlineUserIds.size() + 3;
+                    if (write.large) {
+                        readCommands[0] += commands;
+                    } else {
+                        writeCommands[0] += commands;
+                    }
+                }
+                for (Long sessionId : sessionIds) {
+                    connection.zRemRangeByRank(bytes(SessionSync.TIMELINE_PREFIX + sessionId), 0, -(timelineMaxSize + 1));
+                    long commands = 1;
+                    SessionMembershipCache.SessionMembers members = membersBySession.get(sessionId);
+                    List<Messages> messages = messagesBySession.get(sessionId);
+                    if (largeGroupTimeline.isLarge(members)) {
+                        byte[] summary = bytes(conversationIndex.summaryOf(messages.get(messages.size() - 1)));
+                        commands += largeGroupTimeline.write(connection, messages, summary);
+                        readCommands[0] += commands;
+                    } else {
+                        if (members != null) {
+                            if (!members.isPrivateSession()) {
+                                commands += largeGroupTimeline.clear(connection, sessionId);
+                            }
+                            commands += conversationIndex.update(connection, messages, members.memberIds());
+                        }
+                        writeCommands[0] += commands;
+                    }
                 }
                 return null;
             }
         });
-        return OnlineUserIds.stream()
-                .filter(Objects::nonNull)
-                .toList();
+        redisRoundTrips.increment();
+        for (PendingWrite write : writes) {
+            if (write.large) {
+                readDiffusionMessages.increment();
+            } else {
+                writeDiffusionMessages.increment();
+            }
+        }
+        writeDiffusionCommands.add(writeCommands[0]);
+        readDiffusionCommands.add(readCommands[0]);
+        redisCommands.add(writeCommands[0] + readCommands[0]);
     }
-    public List<Long> getOfflineUserIds(List<Long> allUserIds,List<Long> onlineUserIds ){
-        // 将 onlineUserIds 转换为 Set，以提高查找效率
-        Set<Long> onlineUserSet = new HashSet<>(onlineUserIds);
-
-        // 使用 Set 进行快速查找
-        return allUserIds.stream()
-                .filter(userId -> !onlineUserSet.contains(userId))
-                .toList();
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
     }
 
-    /**
-     * 每隔一段时间,把redis的消息统一批量同步到mysql中,然后删除redis中的暂存的消息
-     */
-    @Scheduled(fixedRate = 3600000) // 每1个小时执行一次
-    public void flushMessagesFromRedisToDataBase() {
-        List<Messages> messagesList=new ArrayList<>();
-        if (stringRedisTemplate.hasKey("messages")) {
-            // 获取 Redis 中缓存储的全部离线消息列表
-            Map<String, String> messagesMap = stringRedisTemplate.opsForHash().entries("messages");
-
-            messagesMap.forEach((k,v)->{
-                Messages messages=JSONObject.parseObject(v,Messages.class);
-                messagesList.add(messages);
-            });
-            // 清空 Redis 中的消息列表
-            stringRedisTemplate.delete("messages");
-            //每个最近n小时的缓存的消息是不是都有对应的发送给谁userId
-            //获取那些人的userId，才能把recent_messages_userId集合清空
-            Set<Long> recentMessageMember = redisTemplate.opsForSet().members("recent_message_member");
-            recentMessageMember.forEach(userId->{
-                redisTemplate.opsForZSet().removeRange("recent_messages_"+userId,0,-1);
-            });
-            redisTemplate.delete("recent_message_member");
-
-            // 批量插入消息到数据库
-            messagesService.insertBatchMsg(messagesList);
+    public Map<String, Object> snapshot() {
+        long messages = consumedMessages.sum();
+        long batches = consumedBatches.sum();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("batchMaxSize", consumeMessageBatchMaxSize);
+        snapshot.put("duplicateMessages", duplicateMessages.sum());
+        snapshot.put("redeliveredMessages", redeliveredMessages.sum());
+        snapshot.put("malformedMessages", malformedMessages.sum());
+        snapshot.put("dedupChecks", dedupChecks.sum());
+        snapshot.put("dedupFalseAlarms", dedupFalseAlarms.sum());
+        snapshot.put("messages", messages);
+        snapshot.put("batches", batches);
+        snapshot.put("avgBatchSize", batches == 0 ? 0 : (double) messages / batches);
+        snapshot.put("messagesPerBusySecond", consumeNanos.sum() == 0 ? 0 : messages * 1_000_000_000.0 / consumeNanos.sum());
+        snapshot.put("redisCommandsPerMessage", messages == 0 ? 0 : (double) redisCommands.sum() / messages);
+        snapshot.put("redisRoundTripsPerMessage", messages == 0 ? 0 : (double) redisRoundTrips.sum() / messages);
+        long writeMessages = writeDiffusionMessages.sum();
+        long readMessages = readDiffusionMessages.sum();
+        snapshot.put("writeDiffusionMessages", writeMessages);
+        snapshot.put("writeDiffusionCommandsPerMessage", writeMessages == 0 ? 0 : (double) writeDiffusionCommands.sum() / writeMessages);
+        snapshot.put("readDiffusionMessages", readMessages);
+        snapshot.put("readDiffusionCommandsPerMessage", readMessages == 0 ? 0 : (double) readDiffusionCommands.sum() / readMessages);
+        return snapshot;
+    }
+
+    private static final class PendingWrite {
+        final Messages message;
+        final List<Long> allUserIds;
+        final List<Long> offlineUserIds;
+        final boolean large;
+
+        PendingWrite(Messages message, List<Long> allUserIds, List<Long> offlineUserIds, boolean large) {
+            this.message = message;
+            this.allUserIds = allUserIds;
+            this.offlineUserIds = offlineUserIds;
+            this.large = large;
         }
     }
 }
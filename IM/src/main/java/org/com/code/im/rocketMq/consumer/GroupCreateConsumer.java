@@ -5,8 +5,7 @@ import org.apache.rocketmq.spring.annotation.MessageModel;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
 import org.com.code.im.exception.DatabaseException;
-import org.com.code.im.mapper.UserMapper;
-import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import org.com.code.im.netty.nettyCluster.PushRouter;
 import org.com.code.im.pojo.dto.CreateSessionOrInviteRequest;
 import org.com.code.im.pojo.Messages;
 import org.com.code.im.pojo.Sessions;
@@ -14,13 +13,13 @@ import org.com.code.im.responseHandler.ResponseHandler;
 import org.com.code.im.rocketMq.producer.MsgProducer;
 import org.com.code.im.service.session.SessionService;
 import org.com.code.im.utils.SnowflakeIdUtil;
+import org.com.code.im.utils.UserNameCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.stream.Collectors;
 
 @Component
 @RocketMQMessageListener(topic = "${rocketmq.topics.topic1}",
@@ -32,12 +31,17 @@ import java.util.stream.Collectors;
         */
         maxReconsumeTimes=0)
 public class GroupCreateConsumer implements RocketMQListener<String> {
+    @Autowired
+    private PushRouter pushRouter;
     @Autowired
     private SessionService sessionService;
     @Autowired
     private MsgProducer msgProducer;
     @Autowired
-    UserMapper userMapper;
+    private UserNameCache userNameCache;
+
+    @Value("${app.group.notice-max-names:20}")
+    private int noticeMaxNames;
 
     @Override
     public void onMessage(String sessionInfo) {
@@ -55,20 +59,20 @@ public class GroupCreateConsumer implements RocketMQListener<String> {
             try {
                 sessionId = sessionService.createGroupChat(ownerId,userIdArray,session);
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SUCCESS,"创建群聊",null);
-                ChannelCrud.sendMessage(ownerId,response.toJSONString());
+                pushRouter.sendMessage(ownerId,response.toJSONString());
             }catch (Exception e){
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SERVER_ERROR,"创建群聊",null);
-                ChannelCrud.sendMessage(ownerId,response.toJSONString());
+                pushRouter.sendMessage(ownerId,response.toJSONString());
                 throw new DatabaseException("创建群聊");
             }
         }else if (requestType.equals("inviteUsersToGroup")) {
             try {
                 sessionId = sessionService.addGroupMember(session.getSessionId(),userIdArray);
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SUCCESS,"邀请用户入群聊",null);
-                ChannelCrud.sendMessage(ownerId,response.toJSONString());
+                pushRouter.sendMessage(ownerId,response.toJSONString());
             }catch (Exception e){
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SERVER_ERROR,"邀请用户入群聊",null);
-                ChannelCrud.sendMessage(ownerId,response.toJSONString());
+                pushRouter.sendMessage(ownerId,response.toJSONString());
                 throw new DatabaseException("邀请用户入群聊");
             }
         }
@@ -89,18 +93,14 @@ public class GroupCreateConsumer implements RocketMQListener<String> {
         if (requestType.equals("createGroup")) {
             messages.setContent("系统消息: 群聊创建成功，快来聊天吧");
         }else if (requestType.equals("inviteUsersToGroup")) {
-            List<Long> userIds=new ArrayList<>(Arrays.asList(userIdArray));
-            userIds.add(ownerId);
-
-            String invitedUser=null,stringOwner=null;
-
+            /**
+             * 用户名在入群时已经通过UserNameCache查询过,这里直接从缓存中取出,
+             * 邀请的人数很多时只列出前noticeMaxNames个
+             */
+            String invitedUser,stringOwner;
             try {
-                //如果查询成功，则使用用户名拼接字符串
-                List<String> userNameList=userMapper.queryUserNameByManyIds(userIds);
-                stringOwner=userNameList.get(userNameList.size()-1);
-                userNameList.remove(userNameList.size()-1);
-
-                invitedUser=userNameList.stream().map(String::valueOf).collect(Collectors.joining(","));
+                invitedUser = userNameCache.joinNames(Arrays.asList(userIdArray), noticeMaxNames);
+                stringOwner = userNameCache.namesOf(List.of(ownerId)).getOrDefault(ownerId, String.valueOf(ownerId));
             }catch (Exception e){
                 // 如果查询失败，使用 userIdArray 转换为字符串作为备选方案
                 invitedUser = Arrays.toString(userIdArray);
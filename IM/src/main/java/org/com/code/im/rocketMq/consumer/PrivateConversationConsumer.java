@@ -5,7 +5,7 @@ import org.apache.rocketmq.spring.annotation.MessageModel;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
 import org.com.code.im.exception.DatabaseException;
-import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import org.com.code.im.netty.nettyCluster.PushRouter;
 import org.com.code.im.pojo.dto.CreateSessionOrInviteRequest;
 import org.com.code.im.responseHandler.ResponseHandler;
 import org.com.code.im.service.session.SessionService;
@@ -23,6 +23,8 @@ import org.springframework.stereotype.Component;
         */
         maxReconsumeTimes=0)
 public class PrivateConversationConsumer implements RocketMQListener<String> {
+    @Autowired
+    private PushRouter pushRouter;
     @Autowired
     private SessionService sessionService;
 
@@ -35,11 +37,11 @@ public class PrivateConversationConsumer implements RocketMQListener<String> {
         try{
             Long sessionId = sessionService.createOrGetCurrentPrivateConversation(ownerId,targetId);
             ResponseHandler response = new ResponseHandler(ResponseHandler.SUCCESS,"创建或查找私人会话",sessionId);
-            ChannelCrud.sendMessage(ownerId,response.toJSONString());
+            pushRouter.sendMessage(ownerId,response.toJSONString());
         }catch (Exception e){
             e.printStackTrace();
             ResponseHandler response = new ResponseHandler(ResponseHandler.SERVER_ERROR,"创建或查找私人会话",null);
-            ChannelCrud.sendMessage(ownerId,response.toJSONString());
+            pushRouter.sendMessage(ownerId,response.toJSONString());
             throw new DatabaseException("创建或查找私人会话");
         }
     }
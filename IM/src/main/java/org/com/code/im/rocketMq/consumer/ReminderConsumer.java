@@ -4,7 +4,7 @@ import com.alibaba.fastjson.JSONObject;
 import org.apache.rocketmq.spring.annotation.MessageModel;
 import org.apache.rocketmq.spring.annotation.RocketMQMessageListener;
 import org.apache.rocketmq.spring.core.RocketMQListener;
-import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import org.com.code.im.netty.nettyCluster.PushRouter;
 import org.com.code.im.pojo.LearningTask;
 import org.com.code.im.responseHandler.ResponseHandler;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -22,6 +22,8 @@ import java.util.concurrent.TimeUnit;
         selectorExpression = "${rocketmq.tags.tag5}",
         messageModel = MessageModel.CLUSTERING)
 public class ReminderConsumer implements RocketMQListener<String> {
+    @Autowired
+    private PushRouter pushRouter;
 
     @Qualifier("redisTemplateLong")
     @Autowired
@@ -51,7 +53,7 @@ public class ReminderConsumer implements RocketMQListener<String> {
              * 用户在线,则发送消息给用户,发送后的消息不存储到数据库中
              */
             ResponseHandler responseHandler = new ResponseHandler(ResponseHandler.SUCCESS, "任务提醒消息",task);
-            ChannelCrud.sendMessage(task.getUserId(),JSONObject.toJSONString(responseHandler));
+            pushRouter.sendMessage(task.getUserId(),JSONObject.toJSONString(responseHandler));
         }
     }
 
@@ -8,15 +8,18 @@ import org.com.code.im.exception.DatabaseException;
 import org.com.code.im.mapper.GroupMemberMapper;
 import org.com.code.im.mapper.SessionMapper;
 import org.com.code.im.mapper.UserMapper;
-import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import org.com.code.im.netty.nettyCluster.PushRouter;
 import org.com.code.im.pojo.*;
 import org.com.code.im.pojo.query.GroupMemberQuery;
 import org.com.code.im.responseHandler.ResponseHandler;
+import org.com.code.im.service.session.impl.SessionListCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Component
 @RocketMQMessageListener(topic = "${rocketmq.topics.topic1}",
@@ -28,6 +31,8 @@ import java.util.List;
         */
         maxReconsumeTimes=0)
 public class querySessionConsumer implements RocketMQListener<String> {
+    @Autowired
+    private PushRouter pushRouter;
 
     @Autowired
     private SessionMapper sessionMapper;
@@ -35,6 +40,8 @@ public class querySessionConsumer implements RocketMQListener<String> {
     private GroupMemberMapper groupMemberMapper;
     @Autowired
     private UserMapper userMapper;
+    @Autowired
+    private SessionListCache sessionListCache;
 
     @Override
     public void onMessage(String message) {
@@ -46,6 +53,7 @@ public class querySessionConsumer implements RocketMQListener<String> {
         if(messageType.getType().equals("privateSessionList")){
             try {
 
+                long generation = sessionListCache.privateSessionsGeneration(messageType.getUserId());
                 List<PrivateMembers> sessionList=null;
                 /**
                  * 先查询用户对应的私人对话的sessionId和每个sessionId对应的两个用户id,
@@ -92,63 +100,76 @@ public class querySessionConsumer implements RocketMQListener<String> {
                  * 将查询到的用户名，头像加入sessionListWithUser列表中
                  * 最终获取到了所有用户聊天的会话列表，包含和其他人聊天的sessionId，对方的用户id，对方名字，对方头像，
                  * 然后通过websocket连接返回给前端
+                 * where id in (...) 不保证返回的顺序和传入的id一致,按id对应
                  */
-                for (int i = 0; i < sessionListWithUser.size(); i++) {
-                    sessionListWithUser.get(i).setUserName(userList.get(i).getUserName());
-                    sessionListWithUser.get(i).setAvatar(userList.get(i).getAvatar());
+                Map<Long, UserNameAndAvatar> users = new HashMap<>(userList.size() * 2);
+                for (UserNameAndAvatar user : userList) {
+                    users.put(user.getId(), user);
+                }
+                for (PrivateMemberQueryHandler sessionWithUser : sessionListWithUser) {
+                    UserNameAndAvatar user = users.get(sessionWithUser.getUserId());
+                    if (user != null) {
+                        sessionWithUser.setUserName(user.getUserName());
+                        sessionWithUser.setAvatar(user.getAvatar());
+                    }
                 }
+                sessionListCache.fillPrivateSessions(messageType.getUserId(), generation, sessionListWithUser);
 
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SUCCESS,"查询私人会话列表",sessionListWithUser);
-                ChannelCrud.sendMessage(messageType.getUserId(), response.toJSONString());
+                pushRouter.sendMessage(messageType.getUserId(), response.toJSONString());
 
             }catch (Exception e){
                 e.printStackTrace();
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SERVER_ERROR,"查询私人会话列表",null);
-                ChannelCrud.sendMessage(messageType.getUserId(),response.toJSONString());
+                pushRouter.sendMessage(messageType.getUserId(),response.toJSONString());
                 throw new DatabaseException("查询私人会话列表");
             }
 
         }else if(messageType.getType().equals("groupSessionList")){
             try {
 
+                long generation = sessionListCache.groupSessionsGeneration(messageType.getUserId());
                 List<Sessions> sessionList=null;
                 sessionList = sessionMapper.queryGroupSessionList(messageType.getUserId());
+                sessionListCache.fillGroupSessions(messageType.getUserId(), generation, sessionList);
 
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SUCCESS,"查询群聊列表",sessionList);
-                ChannelCrud.sendMessage(messageType.getUserId(),response.toJSONString());
+                pushRouter.sendMessage(messageType.getUserId(),response.toJSONString());
 
             }catch (Exception e){
                 e.printStackTrace();
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SERVER_ERROR,"查询群聊列表",null);
-                ChannelCrud.sendMessage(messageType.getUserId(),response.toJSONString());
+                pushRouter.sendMessage(messageType.getUserId(),response.toJSONString());
                 throw new DatabaseException("查询群聊列表");
             }
 
         }else if(messageType.getType().equals("groupMemberList")){
             try {
+                long generation = sessionListCache.groupMembersGeneration(messageType.getSessionId());
                 List<GroupMemberQuery> sessionList=null;
                 sessionList = groupMemberMapper.queryGroupMemberList(messageType.getSessionId());
+                sessionListCache.fillGroupMembers(messageType.getSessionId(), generation, sessionList);
 
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SUCCESS,"查询群成员列表",sessionList);
-                ChannelCrud.sendMessage(messageType.getUserId(),response.toJSONString());
+                pushRouter.sendMessage(messageType.getUserId(),response.toJSONString());
 
             }catch (Exception e){
                 e.printStackTrace();
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SERVER_ERROR,"查询群成员列表",null);
-                ChannelCrud.sendMessage(messageType.getUserId(),response.toJSONString());
+                pushRouter.sendMessage(messageType.getUserId(),response.toJSONString());
                 throw new DatabaseException("查询群成员列表");
             }
         }else if(messageType.getType().equals("groupInfo")){
             try {
                 Sessions session=null;
-                session = sessionMapper.queryGroupInfo(messageType.getSessionId());
+                session = sessionListCache.groupInfo(messageType.getSessionId());
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SUCCESS,"查询群信息",session);
-                ChannelCrud.sendMessage(messageType.getUserId(),response.toJSONString());
+                pushRouter.sendMessage(messageType.getUserId(),response.toJSONString());
 
             }catch (Exception e){
                 e.printStackTrace();
                 ResponseHandler response = new ResponseHandler(ResponseHandler.SERVER_ERROR,"查询群信息",null);
-                ChannelCrud.sendMessage(messageType.getUserId(),response.toJSONString());
+                pushRouter.sendMessage(messageType.getUserId(),response.toJSONString());
                 throw new DatabaseException("查询群信息");
             }
         }
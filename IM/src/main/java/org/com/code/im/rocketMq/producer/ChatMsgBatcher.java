@@ -0,0 +1,389 @@
+package org.com.code.im.rocketMq.producer;
+
+import com.alibaba.fastjson.JSON;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.com.code.im.netty.nettyHandler.ChannelCrud;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.responseHandler.ResponseHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 聊天消息的批量发送
+ *
+ * 原来每条聊天消息一次asyncSend,高峰期每条消息都是一次网络请求,而且没有指定队列,
+ * 同一个对话的消息可能进入不同的队列,消费的顺序就和发送的顺序不一样了
+ *
+ * 现在MsgProducer把聊天消息放进incoming队列,由一个发送线程:
+ * 1. 攒够maxMessages条或者等待了lingerMicros微秒之后,把攒到的消息一起发送
+ * 2. 按sessionId的hash选择topic下的队列,同一个对话的消息总是进入同一个队列,
+ *    发往同一个队列的消息合成一个RocketMQ批量消息,一次网络请求
+ * 3. 发送失败的消息放进spill(有界的内存队列),等待retryDelayMillis之后重新发送,最多重试maxRetries次,
+ *    不再像原来一样在回调线程中抛出异常(回调线程里抛出的异常没有人能捕获)
+ * 4. 重试之后仍然失败被放弃的消息记录在dropped中,发送者在收到消息的时候已经得到了成功的回复,
+ *    这里再给发送者在本机的设备发送一条带sequenceId的失败回复,由客户端重新发送
+ *
+ * 正常情况下同一个对话的消息按发送的顺序进入同一个队列,
+ * 发送失败重试的消息会排在重试之前已经发送成功的消息后面
+ */
+@Component
+public class ChatMsgBatcher {
+
+    @Autowired
+    @Qualifier("CustomizedTemplate")
+    private RocketMQTemplate producerTemplate;
+
+    @Value("${rocketmq.producer.batch.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 一批最多多少条消息
+     */
+    @Value("${rocketmq.producer.batch.max-messages:64}")
+    private int maxMessages;
+
+    /**
+     * 收到一批中的第一条消息之后最多等待多久
+     */
+    @Value("${rocketmq.producer.batch.linger-micros:500}")
+    private long lingerMicros;
+
+    /**
+     * 一个批量消息的最大字节数,RocketMQ默认限制一条消息4MB
+     */
+    @Value("${rocketmq.producer.batch.max-bytes:1048576}")
+    private int maxBytes;
+
+    @Value("${rocketmq.producer.batch.queue-capacity:65536}")
+    private int queueCapacity;
+
+    @Value("${rocketmq.producer.batch.spill-capacity:10000}")
+    private int spillCapacity;
+
+    @Value("${rocketmq.producer.batch.retry-delay-millis:200}")
+    private long retryDelayMillis;
+
+    @Value("${rocketmq.producer.batch.max-retries:5}")
+    private int maxRetries;
+
+    private static final long QUEUE_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private BlockingQueue<Pending> incoming;
+
+    /**
+     * 发送失败等待重试的消息,回调线程写入,发送线程读取
+     */
+    private final ArrayDeque<Pending> spill = new ArrayDeque<>();
+
+    /**
+     * topic -> 队列列表,只在发送线程中访问
+     */
+    private final Map<String, List<MessageQueue>> queuesByTopic = new HashMap<>();
+    private final Map<String, Long> queuesRefreshedAt = new HashMap<>();
+
+    private Thread sender;
+    private volatile boolean running;
+
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    /**
+     * 被放弃的消息中,已经给发送者发送了失败回复的数量
+     */
+    private final LongAdder droppedNotified = new LongAdder();
+    private final LongAdder fallback = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        incoming = new LinkedBlockingQueue<>(queueCapacity);
+        running = true;
+        sender = new Thread(this::runSender, "chat-msg-batcher");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (sender == null) {
+            return;
+        }
+        running = false;
+        sender.interrupt();
+        sender.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return false表示队列已满,调用者需要用sendOrderly逐条发送
+     */
+    public boolean offer(String topic, String tag, long sessionId, String json) {
+        Pending pending = new Pending(topic, tag, sessionId, json.getBytes(StandardCharsets.UTF_8));
+        if (incoming.offer(pending)) {
+            return true;
+        }
+        fallback.increment();
+        return false;
+    }
+
+    /**
+     * 不经过incoming队列,直接异步发送一条消息,按和批量发送相同的sessionId的hash选择队列,
+     * 用于队列已满或者没有开启批量发送的情况,发送失败的消息同样进入spill重试
+     * 不会阻塞调用线程(可能是netty的EventLoop)
+     */
+    public void sendOrderly(String topic, String tag, long sessionId, String json) {
+        Pending pending = new Pending(topic, tag, sessionId, json.getBytes(StandardCharsets.UTF_8));
+        try {
+            producerTemplate.getProducer().send(new Message(topic, tag, pending.body),
+                    (queues, message, arg) -> queues.get(Math.floorMod(Long.hashCode((Long) arg), queues.size())),
+                    sessionId, new SendCallback() {
+                        @Override
+                        public void onSuccess(SendResult sendResult) {
+                            messages.increment();
+                        }
+
+                        @Override
+                        public void onException(Throwable throwable) {
+                            spill(List.of(pending), throwable);
+                        }
+                    });
+        } catch (Exception e) {
+            spill(List.of(pending), e);
+        }
+    }
+
+    private void runSender() {
+        long lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+        List<Pending> batch = new ArrayList<>(maxMessages);
+        while (running || !incoming.isEmpty()) {
+            try {
+                Pending first = incoming.poll(retryDelayMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    long deadline = System.nanoTime() + lingerNanos;
+                    while (batch.size() < maxMessages) {
+                        long remaining = deadline - System.nanoTime();
+                        Pending next = remaining > 0 ? incoming.poll(remaining, TimeUnit.NANOSECONDS) : incoming.poll();
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                }
+                drainSpill(batch);
+                if (!batch.isEmpty()) {
+                    dispatch(batch);
+                    batch = new ArrayList<>(maxMessages);
+                }
+            } catch (InterruptedException e) {
+                // 停机时把剩下的消息发送完再退出
+                Thread.interrupted();
+                incoming.drainTo(batch);
+                if (!batch.isEmpty()) {
+                    dispatch(batch);
+                    batch = new ArrayList<>(maxMessages);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                batch = new ArrayList<>(maxMessages);
+            }
+        }
+    }
+
+    /**
+     * 把已经到了重试时间的消息加到这一批里
+     */
+    private void drainSpill(List<Pending> batch) {
+        long now = System.nanoTime();
+        synchronized (spill) {
+            Pending pending;
+            while ((pending = spill.peek()) != null && now >= pending.retryAt) {
+                batch.add(spill.poll());
+            }
+        }
+    }
+
+    /**
+     * 按队列分组,同一个队列的消息按加入的顺序合成批量消息,超过maxBytes就分成多批
+     */
+    private void dispatch(List<Pending> batch) {
+        Map<MessageQueue, List<Pending>> byQueue = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            MessageQueue queue = selectQueue(pending);
+            if (queue == null) {
+                spill(List.of(pending), null);
+                continue;
+            }
+            byQueue.computeIfAbsent(queue, k -> new ArrayList<>()).add(pending);
+        }
+        byQueue.forEach((queue, pendings) -> {
+            List<Pending> part = new ArrayList<>();
+            int bytes = 0;
+            for (Pending pending : pendings) {
+                if (!part.isEmpty() && bytes + pending.body.length > maxBytes) {
+                    send(queue, part);
+                    part = new ArrayList<>();
+                    bytes = 0;
+                }
+                part.add(pending);
+                bytes += pending.body.length;
+            }
+            send(queue, part);
+        });
+    }
+
+    private void send(MessageQueue queue, List<Pending> part) {
+        List<Message> batchMessages = new ArrayList<>(part.size());
+        for (Pending pending : part) {
+            batchMessages.add(new Message(pending.topic, pending.tag, pending.body));
+        }
+        try {
+            producerTemplate.getProducer().send(batchMessages, queue, new SendCallback() {
+                @Override
+                public void onSuccess(SendResult sendResult) {
+                    messages.add(part.size());
+                    batches.increment();
+                }
+
+                @Override
+                public void onException(Throwable throwable) {
+                    spill(part, throwable);
+                }
+            });
+        } catch (Exception e) {
+            spill(part, e);
+        }
+    }
+
+    private MessageQueue selectQueue(Pending pending) {
+        long now = System.nanoTime();
+        List<MessageQueue> queues = queuesByTopic.get(pending.topic);
+        Long refreshedAt = queuesRefreshedAt.get(pending.topic);
+        if (queues == null || refreshedAt == null || now - refreshedAt > QUEUE_REFRESH_NANOS) {
+            try {
+                DefaultMQProducer producer = producerTemplate.getProducer();
+                queues = producer.fetchPublishMessageQueues(pending.topic);
+                queuesByTopic.put(pending.topic, queues);
+                queuesRefreshedAt.put(pending.topic, now);
+            } catch (Exception e) {
+                // 路由信息暂时获取不到,继续用上一次的
+                e.printStackTrace();
+            }
+        }
+        if (queues == null || queues.isEmpty()) {
+            return null;
+        }
+        return queues.get(Math.floorMod(Long.hashCode(pending.sessionId), queues.size()));
+    }
+
+    private void spill(List<Pending> failed, Throwable cause) {
+        long retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelayMillis);
+        List<Pending> droppedPendings = null;
+        synchronized (spill) {
+            for (Pending pending : failed) {
+                // 没有开启批量发送时没有发送线程处理spill,直接放弃
+                if (++pending.attempts > maxRetries || spill.size() >= spillCapacity || sender == null) {
+                    dropped.increment();
+                    System.out.println("生产者发送消息失败,消息标签为:" + pending.topic + ":" + pending.tag
+                            + ", 消息体为:" + new String(pending.body, StandardCharsets.UTF_8)
+                            + (cause == null ? "" : ", 原因:" + cause.getMessage()));
+                    if (droppedPendings == null) {
+                        droppedPendings = new ArrayList<>();
+                    }
+                    droppedPendings.add(pending);
+                    continue;
+                }
+                pending.retryAt = retryAt;
+                spill.add(pending);
+                retried.increment();
+            }
+        }
+        if (droppedPendings != null) {
+            for (Pending pending : droppedPendings) {
+                notifySender(pending);
+            }
+        }
+    }
+
+    /**
+     * 告诉发送者这条消息最终没有发送到消息队列,
+     * 发送者的连接就在本机(MessagesHandler在本机收到消息之后才交给这里发送),不需要经过PushRouter
+     */
+    private void notifySender(Pending pending) {
+        try {
+            Messages message = JSON.parseObject(new String(pending.body, StandardCharsets.UTF_8), Messages.class);
+            if (message == null || message.getSenderId() == 0) {
+                return;
+            }
+            ChannelCrud.sendMessage(message.getSenderId(), new ResponseHandler(ResponseHandler.SERVER_ERROR,
+                    "消息发送失败", "服务器繁忙,消息没有送达,请重新发送", message.getSequenceId()).toJSONString());
+            droppedNotified.increment();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long sentMessages = messages.sum();
+        long sentBatches = batches.sum();
+        int spillSize;
+        synchronized (spill) {
+            spillSize = spill.size();
+        }
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("enabled", enabled);
+        snapshot.put("pending", incoming == null ? 0 : incoming.size());
+        snapshot.put("messages", sentMessages);
+        snapshot.put("batches", sentBatches);
+        snapshot.put("avgBatchSize", sentBatches == 0 ? 0 : (double) sentMessages / sentBatches);
+        snapshot.put("spill", spillSize);
+        snapshot.put("retried", retried.sum());
+        snapshot.put("dropped", dropped.sum());
+        snapshot.put("droppedNotified", droppedNotified.sum());
+        snapshot.put("fallback", fallback.sum());
+        return snapshot;
+    }
+
+    private static final class Pending {
+        final String topic;
+        final String tag;
+        final long sessionId;
+        final byte[] body;
+        int attempts;
+        long retryAt;
+
+        Pending(String topic, String tag, long sessionId, byte[] body) {
+            this.topic = topic;
+            this.tag = tag;
+            this.sessionId = sessionId;
+            this.body = body;
+        }
+    }
+}
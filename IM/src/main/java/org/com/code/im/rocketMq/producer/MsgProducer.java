@@ -5,6 +5,7 @@ import org.apache.rocketmq.client.producer.SendCallback;
 import org.apache.rocketmq.client.producer.SendResult;
 import org.apache.rocketmq.spring.core.RocketMQTemplate;
 import org.com.code.im.exception.RocketmqException;
+import org.com.code.im.pojo.Messages;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
@@ -18,6 +19,9 @@ public class MsgProducer {
     @Qualifier("CustomizedTemplate")
     private RocketMQTemplate producerTemplate;
 
+    @Autowired
+    private ChatMsgBatcher chatMsgBatcher;
+
     @Value("${rocketmq.topics.topic1}")
     private String topic1;
     
@@ -43,7 +47,16 @@ public class MsgProducer {
      * 发送聊天消息
      */
     public void sendChatMessage(Object content) {
-        asyncSendMessage(content, topic1, tag1);
+        /**
+         * 按sessionId选择队列,保证同一个对话的消息的顺序,见ChatMsgBatcher
+         * 批量发送的队列满了或者没有开启批量发送,就逐条发送到同一个队列
+         */
+        long sessionId = content instanceof Messages ? ((Messages) content).getSessionId() : 0;
+        String json = JSON.toJSONString(content);
+        if (chatMsgBatcher.isEnabled() && chatMsgBatcher.offer(topic1, tag1, sessionId, json)) {
+            return;
+        }
+        chatMsgBatcher.sendOrderly(topic1, tag1, sessionId, json);
     }
 
     /**
@@ -6,4 +6,10 @@ import java.util.List;
 
 public interface MessageService {
     void insertBatchMsg(List<Messages> messages);
+
+    /**
+     * 从新到旧翻页查询对话的历史消息,beforeMessageId为0时从最新的消息开始,
+     * 否则返回beforeMessageId那条消息之前的limit条消息
+     */
+    List<Messages> queryHistoryMessages(long sessionId, long beforeMessageId, int limit);
 }
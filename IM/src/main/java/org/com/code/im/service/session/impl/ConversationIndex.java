@@ -0,0 +1,319 @@
+package org.com.code.im.service.session.impl;
+
+import com.alibaba.fastjson.JSONObject;
+import org.com.code.im.mapper.SessionMapper;
+import org.com.code.im.pojo.Messages;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 每个用户的对话列表索引,增量维护,客户端打开对话列表时一次分页读取,不需要拉取全部未读消息再自己统计
+ *
+ * 原来只有unread_message_userId一个ZSet,客户端只能拿到全部未读消息的总数,
+ * 想显示每个对话的未读数量和最后一条消息,只能把所有未读消息都拉下来
+ *
+ * redis中每个用户三个key:
+ * conversation_order_userId    ZSet, sessionId -> 最后一条消息的时间戳, 对话列表按它从新到旧排序
+ * conversation_userId          Hash, sessionId -> 最后一条消息的概要 {lastMessageId, lastSeq, lastTimestamp, senderId, messageType, preview}
+ * conversation_unread_userId   Hash, sessionId -> 未读数量
+ *
+ * ChatMsgConsumer写入消息的同一个pipeline中调用update,每个对话每一批消息每个成员只写一次,
+ * 客户端打开对话之后调用markRead清零
+ *
+ * 成员数量达到阈值的大群不再给每个成员写入,见LargeGroupTimeline,分页查询时再合并进来
+ */
+@Component
+public class ConversationIndex {
+
+    public static final String ORDER_PREFIX = "conversation_order_";
+    public static final String SUMMARY_PREFIX = "conversation_";
+    public static final String UNREAD_PREFIX = "conversation_unread_";
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SessionMapper sessionMapper;
+
+    @Autowired
+    private LargeGroupTimeline largeGroupTimeline;
+
+    /**
+     * 最后一条消息的预览最多保留多少个字符
+     */
+    @Value("${app.conversation.preview-length:40}")
+    private int previewLength;
+
+    private final LongAdder updatedSessions = new LongAdder();
+    private final LongAdder updatedEntries = new LongAdder();
+    private final LongAdder pageQueries = new LongAdder();
+    private final LongAdder readMarks = new LongAdder();
+
+    /**
+     * 在ChatMsgConsumer的pipeline中调用,不单独访问redis
+     *
+     * @param messages  同一个对话这一批的消息,按发送顺序排列
+     * @param memberIds 对话的全部成员,包括发送者,发送者自己的对话列表也要更新最后一条消息
+     * @return 写入的命令数量
+     */
+    public long update(RedisConnection connection, List<Messages> messages, long[] memberIds) {
+        if (messages.isEmpty() || memberIds.length == 0) {
+            return 0;
+        }
+        Messages last = messages.get(messages.size() - 1);
+        byte[] sessionField = bytes(String.valueOf(last.getSessionId()));
+        byte[] summary = bytes(summaryOf(last));
+        long commands = 0;
+        for (long userId : memberIds) {
+            connection.zAdd(bytes(ORDER_PREFIX + userId), last.getTimestamp(), sessionField);
+            connection.hSet(bytes(SUMMARY_PREFIX + userId), sessionField, summary);
+            commands += 2;
+
+            /**
+             * 成员自己在这一批里发过消息,说明正在看这个对话,之前的未读清零,只算最后一次发言之后别人的消息
+             */
+            boolean sentInBatch = false;
+            long unread = 0;
+            for (Messages message : messages) {
+                if (message.getSenderId() == userId) {
+                    sentInBatch = true;
+                    unread = 0;
+                } else {
+                    unread++;
+                }
+            }
+            byte[] unreadKey = bytes(UNREAD_PREFIX + userId);
+            if (sentInBatch) {
+                if (unread > 0) {
+                    connection.hSet(unreadKey, sessionField, bytes(String.valueOf(unread)));
+                } else {
+                    connection.hDel(unreadKey, sessionField);
+                }
+                commands++;
+            } else if (unread > 0) {
+                connection.hIncrBy(unreadKey, sessionField, unread);
+                commands++;
+            }
+        }
+        updatedSessions.increment();
+        updatedEntries.add(memberIds.length);
+        return commands;
+    }
+
+    /**
+     * 最后一条消息的概要,大群的概要也用这个格式写入conversation_session
+     */
+    public String summaryOf(Messages message) {
+        JSONObject summary = new JSONObject(8);
+        summary.put("lastMessageId", String.valueOf(message.getMessageId()));
+        summary.put("lastSeq", String.valueOf(message.getSeq()));
+        summary.put("lastTimestamp", message.getTimestamp());
+        summary.put("senderId", String.valueOf(message.getSenderId()));
+        summary.put("messageType", message.getMessageType());
+        summary.put("preview", previewOf(message));
+        return summary.toJSONString();
+    }
+
+    /**
+     * 图片和文件的content是URL,不作为预览
+     */
+    private String previewOf(Messages message) {
+        if ("image".equals(message.getMessageType())) {
+            return "[图片]";
+        }
+        if ("file".equals(message.getMessageType())) {
+            return "[文件]";
+        }
+        String content = message.getContent();
+        if (content == null) {
+            return "";
+        }
+        if (content.length() <= previewLength) {
+            return content;
+        }
+        int end = previewLength;
+        // 不要把emoji之类的代理对从中间截断
+        if (Character.isHighSurrogate(content.charAt(end - 1))) {
+            end--;
+        }
+        return content.substring(0, end);
+    }
+
+    /**
+     * 按最后一条消息从新到旧分页查询对话列表,page从0开始
+     *
+     * 写扩散的对话在conversation_order_userId中已经排好序,
+     * 读扩散的大群(LargeGroupTimeline)不在里面,它们的概要在conversation_session中,
+     * 用户参与的大群只有少数几个,取出来之后和conversation_order_userId的前几页按时间合并
+     * 大群的未读数量 = 最新的seq - 读取游标
+     */
+    public List<Map<String, Object>> page(long userId, int page, int pageSize) {
+        pageQueries.increment();
+        List<Long> largeSessionIds = largeGroupTimeline.filterLarge(sessionMapper.queryAllSessionIdList(userId));
+        Set<String> largeFields = new HashSet<>();
+        for (Long sessionId : largeSessionIds) {
+            largeFields.add(String.valueOf(sessionId));
+        }
+
+        /**
+         * 群从写扩散切换到读扩散之前留在conversation_order_userId中的记录要跳过,所以多取largeFields.size()个
+         */
+        long end = (long) (page + 1) * pageSize + largeFields.size() - 1;
+        Set<ZSetOperations.TypedTuple<String>> order = stringRedisTemplate.opsForZSet()
+                .reverseRangeWithScores(ORDER_PREFIX + userId, 0, end);
+        List<String> candidates = new ArrayList<>();
+        Map<String, Double> lastTimestamps = new HashMap<>();
+        if (order != null) {
+            for (ZSetOperations.TypedTuple<String> tuple : order) {
+                if (!largeFields.contains(tuple.getValue())) {
+                    candidates.add(tuple.getValue());
+                    lastTimestamps.put(tuple.getValue(), tuple.getScore());
+                }
+            }
+        }
+        Map<String, JSONObject> largeSummaries = new HashMap<>();
+        if (!largeFields.isEmpty()) {
+            List<String> fields = new ArrayList<>(largeFields);
+            List<Object> summaries = stringRedisTemplate.opsForHash().multiGet(LargeGroupTimeline.SESSION_SUMMARY_KEY, fields);
+            for (int i = 0; i < fields.size(); i++) {
+                JSONObject summary = summaries.get(i) == null ? new JSONObject() : JSONObject.parseObject(summaries.get(i).toString());
+                largeSummaries.put(fields.get(i), summary);
+                candidates.add(fields.get(i));
+                lastTimestamps.put(fields.get(i), summary.getDoubleValue("lastTimestamp"));
+            }
+        }
+        candidates.sort((a, b) -> Double.compare(lastTimestamps.get(b), lastTimestamps.get(a)));
+
+        int from = (int) Math.min((long) page * pageSize, candidates.size());
+        List<String> sessionIds = candidates.subList(from, Math.min(from + pageSize, candidates.size()));
+        List<Map<String, Object>> conversations = new ArrayList<>();
+        if (sessionIds.isEmpty()) {
+            return conversations;
+        }
+        byte[][] fields = new byte[sessionIds.size()][];
+        for (int i = 0; i < sessionIds.size(); i++) {
+            fields[i] = bytes(sessionIds.get(i));
+        }
+        boolean anyLarge = !largeSummaries.isEmpty();
+        List<Object> results = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                connection.hMGet(bytes(SUMMARY_PREFIX + userId), fields);
+                connection.hMGet(bytes(UNREAD_PREFIX + userId), fields);
+                if (anyLarge) {
+                    connection.hMGet(bytes(SessionSync.SEQ_KEY), fields);
+                    connection.hMGet(bytes(LargeGroupTimeline.READ_CURSOR_PREFIX + userId), fields);
+                }
+                return null;
+            }
+        });
+        List<Object> summaries = (List<Object>) results.get(0);
+        List<Object> unreadCounts = (List<Object>) results.get(1);
+
+        for (int i = 0; i < sessionIds.size(); i++) {
+            String sessionId = sessionIds.get(i);
+            Map<String, Object> conversation = new LinkedHashMap<>();
+            conversation.put("sessionId", sessionId);
+            Object unread = unreadCounts.get(i);
+            long unreadCount = unread == null ? 0 : Long.parseLong(unread.toString());
+            Object summary = summaries.get(i);
+            JSONObject largeSummary = largeSummaries.get(sessionId);
+            if (largeSummary == null) {
+                conversation.put("unreadCount", unreadCount);
+                if (summary != null) {
+                    conversation.putAll(JSONObject.parseObject(summary.toString()));
+                }
+            } else {
+                Object latest = ((List<Object>) results.get(2)).get(i);
+                Object cursor = ((List<Object>) results.get(3)).get(i);
+                long latestSeq = latest == null ? 0 : Long.parseLong(latest.toString());
+                long readSeq;
+                if (cursor != null) {
+                    readSeq = Long.parseLong(cursor.toString());
+                } else if (summary != null) {
+                    // 还没有读取游标,用切换到读扩散之前写扩散记录的最后一条消息和未读数量推算
+                    readSeq = JSONObject.parseObject(summary.toString()).getLongValue("lastSeq") - unreadCount;
+                } else {
+                    readSeq = 0;
+                }
+                conversation.put("unreadCount", Math.max(0, latestSeq - readSeq));
+                conversation.putAll(largeSummary);
+            }
+            conversations.add(conversation);
+        }
+        return conversations;
+    }
+
+    /**
+     * 客户端打开对话之后清零这个对话的未读数量,读取游标移到最新的seq
+     */
+    public void markRead(long userId, long sessionId) {
+        readMarks.increment();
+        String sessionField = String.valueOf(sessionId);
+        stringRedisTemplate.opsForHash().delete(UNREAD_PREFIX + userId, sessionField);
+        Object latest = stringRedisTemplate.opsForHash().get(SessionSync.SEQ_KEY, sessionField);
+        if (latest != null) {
+            stringRedisTemplate.opsForHash().put(LargeGroupTimeline.READ_CURSOR_PREFIX + userId, sessionField, latest.toString());
+        }
+    }
+
+    /**
+     * 用户离开对话(被踢出群聊)之后,从他的对话列表中删除
+     */
+    public void remove(long userId, long sessionId) {
+        removeAll(new long[]{userId}, sessionId);
+    }
+
+    /**
+     * 群聊解散之后,从所有成员的对话列表中删除
+     */
+    public void removeAll(long[] memberIds, long sessionId) {
+        if (memberIds.length == 0) {
+            return;
+        }
+        byte[] sessionField = bytes(String.valueOf(sessionId));
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                for (long userId : memberIds) {
+                    connection.zRem(bytes(ORDER_PREFIX + userId), sessionField);
+                    connection.hDel(bytes(SUMMARY_PREFIX + userId), sessionField);
+                    connection.hDel(bytes(UNREAD_PREFIX + userId), sessionField);
+                    connection.hDel(bytes(LargeGroupTimeline.READ_CURSOR_PREFIX + userId), sessionField);
+                }
+                return null;
+            }
+        });
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("updatedSessions", updatedSessions.sum());
+        snapshot.put("updatedEntries", updatedEntries.sum());
+        snapshot.put("pageQueries", pageQueries.sum());
+        snapshot.put("readMarks", readMarks.sum());
+        return snapshot;
+    }
+}
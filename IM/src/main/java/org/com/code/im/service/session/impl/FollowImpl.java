@@ -165,9 +165,19 @@ public class FollowImpl implements FollowService {
            List<Long> friendIdList=Arrays.stream(friendIds).boxed().collect(Collectors.toList());
            List<UserNameAndAvatar> friendNameAndAvatarList = userMapper.selectNameAndAvatarByIds(friendIdList);
 
+           /**
+            * where id in (...) 不保证返回的顺序和传入的id一致,按id对应
+            */
+           Map<Long, UserNameAndAvatar> friendNameAndAvatarMap = new HashMap<>(friendNameAndAvatarList.size() * 2);
+           for (UserNameAndAvatar friend : friendNameAndAvatarList)
+               friendNameAndAvatarMap.put(friend.getId(), friend);
+
            List<UserFollowing> friendList = new ArrayList<>();
-           for (int i = 0; i < friendIds.length; i++)
-               friendList.add(new UserFollowing(friendIds[i],friendNameAndAvatarList.get(i).getUserName(),friendNameAndAvatarList.get(i).getAvatar()));
+           for (long friendId : friendIds) {
+               UserNameAndAvatar friend = friendNameAndAvatarMap.get(friendId);
+               if (friend != null)
+                   friendList.add(new UserFollowing(friendId, friend.getUserName(), friend.getAvatar()));
+           }
            return friendList;
        }catch (Exception e){
            e.printStackTrace();
@@ -0,0 +1,271 @@
+package org.com.code.im.service.session.impl;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.com.code.im.mapper.GroupMemberMapper;
+import org.com.code.im.mapper.MessageMapper;
+import org.com.code.im.mapper.SessionMapper;
+import org.com.code.im.netty.nettyCluster.PresenceRegistry;
+import org.com.code.im.pojo.Messages;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 解散群聊之后延期删除mysql中的数据(群信息,群成员,群消息)
+ *
+ * 原来在SessionImpl里用单线程的ScheduledExecutorService推迟2小时执行,
+ * 服务器在这2小时内重启,任务就丢了,群的数据永远留在mysql里;
+ * 而且一条 delete from messages where sessionId = ? 删除几百万条消息,是一个很大的事务,长时间锁住一大段范围
+ *
+ * 现在:
+ * 1. 任务记录在redis的group_dismiss_jobs(ZSet, sessionId -> 执行时间的毫秒时间戳),重启不会丢失
+ * 2. 每台服务器每隔pollIntervalMillis用lua领取一个已经到期的任务,领取的同时把分数改成 当前时间+leaseSeconds,
+ *    执行期间每删除一批就续期一次;服务器执行到一半崩溃,过了leaseSeconds任务重新到期,由任意一台服务器从头继续,
+ *    每一步都是幂等的,已经删除的部分不会重复删除
+ * 3. 消息按主键(sessionId, createdAt, messageId)分批删除,每批最多chunkSize条,一批一个事务,
+ *    批与批之间暂停throttleMillis,不会长时间锁表,也不会让主从延迟一下子变大
+ * 4. 进度记录在group_dismiss_progress_sessionId(阶段,已删除的消息数量和成员数量),完成之后保留progressRetentionHours
+ */
+@Component
+public class GroupDismissalJobs {
+
+    public static final String JOBS_KEY = "group_dismiss_jobs";
+    public static final String PROGRESS_PREFIX = "group_dismiss_progress_";
+
+    /**
+     * 领取一个已经到期的任务
+     * KEYS[1] group_dismiss_jobs
+     * ARGV[1] 当前时间, ARGV[2] 租约到期时间
+     */
+    private static final DefaultRedisScript<String> CLAIM_SCRIPT = new DefaultRedisScript<>(
+            "local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, 1) " +
+            "if #due == 0 then return false end " +
+            "redis.call('ZADD', KEYS[1], ARGV[2], due[1]) " +
+            "return due[1]",
+            String.class);
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SessionMapper sessionMapper;
+
+    @Autowired
+    private GroupMemberMapper groupMemberMapper;
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    /**
+     * 解散之后多久开始删除,要大于消息从redis写入mysql需要的时间(见MessageWriteBehind)
+     */
+    @Value("${app.group-dismiss.delay-minutes:120}")
+    private long delayMinutes;
+
+    @Value("${app.group-dismiss.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${app.group-dismiss.throttle-millis:50}")
+    private long throttleMillis;
+
+    @Value("${app.group-dismiss.poll-interval-millis:5000}")
+    private long pollIntervalMillis;
+
+    @Value("${app.group-dismiss.lease-seconds:60}")
+    private long leaseSeconds;
+
+    /**
+     * 执行失败之后多久重试
+     */
+    @Value("${app.group-dismiss.retry-delay-seconds:60}")
+    private long retryDelaySeconds;
+
+    @Value("${app.group-dismiss.progress-retention-hours:24}")
+    private long progressRetentionHours;
+
+    private ScheduledExecutorService executor;
+
+    private volatile boolean stopping;
+
+    /**
+     * 本机正在执行的任务,没有为0
+     */
+    private volatile long running;
+
+    private final LongAdder scheduled = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder deletedMessages = new LongAdder();
+    private final LongAdder deletedMembers = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "group-dismiss-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::poll, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 正在执行的任务在当前这一批删除完之后停下,把任务改成立即到期,由其他服务器或者重启之后继续
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        stopping = true;
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * SessionImpl.dismissGroup调用,delayMinutes之后开始删除mysql中的数据
+     */
+    public void schedule(long sessionId) {
+        long dueAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(delayMinutes);
+        String progressKey = PROGRESS_PREFIX + sessionId;
+        Map<String, String> progress = new HashMap<>();
+        progress.put("stage", "scheduled");
+        progress.put("dueAt", String.valueOf(dueAt));
+        progress.put("deletedMessages", "0");
+        progress.put("deletedMembers", "0");
+        stringRedisTemplate.opsForHash().putAll(progressKey, progress);
+        stringRedisTemplate.opsForZSet().add(JOBS_KEY, String.valueOf(sessionId), dueAt);
+        scheduled.increment();
+    }
+
+    /**
+     * 任务的进度,没有这个任务或者完成之后已经超过progressRetentionHours返回空Map
+     */
+    public Map<Object, Object> progress(long sessionId) {
+        return stringRedisTemplate.opsForHash().entries(PROGRESS_PREFIX + sessionId);
+    }
+
+    private void poll() {
+        try {
+            while (!stopping) {
+                long now = System.currentTimeMillis();
+                String job = (String) stringRedisTemplate.execute(CLAIM_SCRIPT, List.of(JOBS_KEY),
+                        String.valueOf(now), String.valueOf(now + TimeUnit.SECONDS.toMillis(leaseSeconds)));
+                if (job == null) {
+                    return;
+                }
+                run(Long.parseLong(job));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run(long sessionId) {
+        running = sessionId;
+        String job = String.valueOf(sessionId);
+        String progressKey = PROGRESS_PREFIX + sessionId;
+        try {
+            stringRedisTemplate.opsForHash().put(progressKey, "node", presenceRegistry.getNodeId());
+            stringRedisTemplate.opsForHash().putIfAbsent(progressKey, "startedAt", String.valueOf(System.currentTimeMillis()));
+
+            /**
+             * 消息最多,最先删除;群信息最后删除,删除之前任务都还能从mysql中看出这个群没有删干净
+             */
+            stringRedisTemplate.opsForHash().put(progressKey, "stage", "messages");
+            while (true) {
+                if (stopping) {
+                    release(job);
+                    return;
+                }
+                Messages boundary = messageMapper.queryGroupMessageChunkBoundary(sessionId, chunkSize - 1);
+                int deleted = boundary == null
+                        ? messageMapper.deleteGroupMessagesUpTo(sessionId, null, 0)
+                        : messageMapper.deleteGroupMessagesUpTo(sessionId, boundary.getCreatedAt(), boundary.getMessageId());
+                deletedMessages.add(deleted);
+                afterChunk(job, progressKey, "deletedMessages", deleted);
+                if (boundary == null) {
+                    break;
+                }
+                Thread.sleep(throttleMillis);
+            }
+
+            stringRedisTemplate.opsForHash().put(progressKey, "stage", "members");
+            while (true) {
+                if (stopping) {
+                    release(job);
+                    return;
+                }
+                int deleted = groupMemberMapper.deleteGroupMembersChunk(sessionId, chunkSize);
+                deletedMembers.add(deleted);
+                afterChunk(job, progressKey, "deletedMembers", deleted);
+                if (deleted < chunkSize) {
+                    break;
+                }
+                Thread.sleep(throttleMillis);
+            }
+
+            stringRedisTemplate.opsForHash().put(progressKey, "stage", "session");
+            sessionMapper.deleteGroupSession(sessionId);
+
+            stringRedisTemplate.opsForZSet().remove(JOBS_KEY, job);
+            stringRedisTemplate.opsForHash().put(progressKey, "stage", "done");
+            stringRedisTemplate.opsForHash().put(progressKey, "finishedAt", String.valueOf(System.currentTimeMillis()));
+            stringRedisTemplate.expire(progressKey, progressRetentionHours, TimeUnit.HOURS);
+            completed.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            release(job);
+        } catch (Exception e) {
+            e.printStackTrace();
+            failures.increment();
+            stringRedisTemplate.opsForHash().put(progressKey, "lastError", String.valueOf(e.getMessage()));
+            stringRedisTemplate.opsForZSet().add(JOBS_KEY, job,
+                    System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(retryDelaySeconds));
+        } finally {
+            running = 0;
+        }
+    }
+
+    /**
+     * 记录进度并续期租约
+     */
+    private void afterChunk(String job, String progressKey, String field, int deleted) {
+        chunks.increment();
+        stringRedisTemplate.opsForHash().increment(progressKey, field, deleted);
+        stringRedisTemplate.opsForHash().put(progressKey, "updatedAt", String.valueOf(System.currentTimeMillis()));
+        stringRedisTemplate.opsForZSet().add(JOBS_KEY, job,
+                System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(leaseSeconds));
+    }
+
+    private void release(String job) {
+        stringRedisTemplate.opsForZSet().add(JOBS_KEY, job, System.currentTimeMillis());
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("pending", stringRedisTemplate.opsForZSet().zCard(JOBS_KEY));
+        snapshot.put("running", running == 0 ? null : progress(running));
+        snapshot.put("scheduled", scheduled.sum());
+        snapshot.put("completed", completed.sum());
+        snapshot.put("failures", failures.sum());
+        snapshot.put("deletedMessages", deletedMessages.sum());
+        snapshot.put("deletedMembers", deletedMembers.sum());
+        snapshot.put("chunks", chunks.sum());
+        return snapshot;
+    }
+}
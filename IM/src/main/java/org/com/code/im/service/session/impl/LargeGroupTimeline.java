@@ -0,0 +1,219 @@
+package org.com.code.im.service.session.impl;
+
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.utils.SessionMembershipCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 大群的读扩散
+ *
+ * 写扩散: 一条消息给每个成员写一遍recent_messages_,recent_message_member,离线成员的unread_message_,
+ *        以及对话列表(ConversationIndex)的三个key,5000人的群一条消息就是两三万次redis写入
+ * 读扩散: 成员数量达到threshold的群,一条消息只写一次:
+ *        1. session_timeline_sessionId(SessionSync),按seq记录消息id,本来每个对话都会写
+ *        2. conversation_session,sessionId -> 最后一条消息的概要,对话列表读取时合并进来
+ *        每个成员只记录一个读取游标 read_cursor_userId: sessionId -> 已读到的seq,
+ *        未读数量 = session_seq中最新的seq - 读取游标,上线时从读取游标之后按seq拉取(见OfflineMessageHandler)
+ *        读取游标在入群时初始化为最新的seq,没有游标的成员在第一次离线推送时初始化为推送的起点,
+ *        每推送一页就向前移动到这一页的最后一个seq
+ *
+ * 在线成员照常实时推送,读扩散省掉的只是给每个成员的redis写入
+ *
+ * large_group_sessions记录当前按读扩散处理的群,ChatMsgConsumer每一批按成员数量重新判断,
+ * 群的人数在threshold上下变化时,切换前后的那几条消息可能会被推送两次(客户端按messageId去重),不会丢失
+ */
+@Component
+public class LargeGroupTimeline {
+
+    public static final String LARGE_GROUPS_KEY = "large_group_sessions";
+    public static final String SESSION_SUMMARY_KEY = "conversation_session";
+    public static final String READ_CURSOR_PREFIX = "read_cursor_";
+
+    /**
+     * 读取游标只向前移动,离线推送的回调晚于markRead到达时不会把游标移回去
+     * KEYS[1] read_cursor_userId
+     * ARGV[1] sessionId, ARGV[2] 已经推送到的seq
+     */
+    private static final DefaultRedisScript<Long> ADVANCE_SCRIPT = new DefaultRedisScript<>(
+            "local current = redis.call('HGET', KEYS[1], ARGV[1]) " +
+            "if current and tonumber(current) >= tonumber(ARGV[2]) then return 0 end " +
+            "redis.call('HSET', KEYS[1], ARGV[1], ARGV[2]) " +
+            "return 1",
+            Long.class);
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    /**
+     * 成员数量达到这个数的群按读扩散处理,小于这个数的群和私聊按写扩散处理
+     */
+    @Value("${app.large-group.threshold:500}")
+    private int threshold;
+
+    public boolean isLarge(SessionMembershipCache.SessionMembers members) {
+        return members != null && !members.isPrivateSession() && members.size() >= threshold;
+    }
+
+    /**
+     * 在ChatMsgConsumer的pipeline中调用,一个大群这一批消息只写入固定的几条命令,和成员数量无关
+     *
+     * @param messages 同一个对话这一批的消息,按发送顺序排列
+     * @param summary  最后一条消息的概要,见ConversationIndex.summaryOf
+     * @return 写入的命令数量
+     */
+    public long write(RedisConnection connection, List<Messages> messages, byte[] summary) {
+        Messages last = messages.get(messages.size() - 1);
+        byte[] sessionField = bytes(String.valueOf(last.getSessionId()));
+        connection.sAdd(bytes(LARGE_GROUPS_KEY), sessionField);
+        connection.hSet(bytes(SESSION_SUMMARY_KEY), sessionField, summary);
+        long commands = 2;
+        /**
+         * 发送者发言说明正在看这个群,读取游标移到自己最后一条消息
+         */
+        Map<Long, Long> lastSeqBySender = new HashMap<>();
+        for (Messages message : messages) {
+            lastSeqBySender.put(message.getSenderId(), message.getSeq());
+        }
+        for (Map.Entry<Long, Long> entry : lastSeqBySender.entrySet()) {
+            connection.hSet(bytes(READ_CURSOR_PREFIX + entry.getKey()), sessionField, bytes(String.valueOf(entry.getValue())));
+            commands++;
+        }
+        return commands;
+    }
+
+    /**
+     * 在ChatMsgConsumer的pipeline中调用,人数降到threshold以下的群回到写扩散
+     */
+    public long clear(RedisConnection connection, long sessionId) {
+        connection.sRem(bytes(LARGE_GROUPS_KEY), bytes(String.valueOf(sessionId)));
+        return 1;
+    }
+
+    /**
+     * 从sessionIds中挑出按读扩散处理的群,一个pipeline
+     */
+    public List<Long> filterLarge(List<Long> sessionIds) {
+        List<Long> large = new ArrayList<>();
+        if (sessionIds == null || sessionIds.isEmpty()) {
+            return large;
+        }
+        List<Object> results = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                byte[] key = bytes(LARGE_GROUPS_KEY);
+                for (Long sessionId : sessionIds) {
+                    connection.sIsMember(key, bytes(String.valueOf(sessionId)));
+                }
+                return null;
+            }
+        });
+        for (int i = 0; i < sessionIds.size(); i++) {
+            if (Boolean.TRUE.equals(results.get(i))) {
+                large.add(sessionIds.get(i));
+            }
+        }
+        return large;
+    }
+
+    /**
+     * 用户在这些对话中的读取游标,没有记录的对话不在返回的Map中
+     */
+    public Map<Long, Long> readCursors(long userId, List<Long> sessionIds) {
+        Map<Long, Long> cursors = new HashMap<>();
+        if (sessionIds.isEmpty()) {
+            return cursors;
+        }
+        List<String> fields = new ArrayList<>(sessionIds.size());
+        for (Long sessionId : sessionIds) {
+            fields.add(String.valueOf(sessionId));
+        }
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(READ_CURSOR_PREFIX + userId, fields);
+        for (int i = 0; i < sessionIds.size(); i++) {
+            Object value = values.get(i);
+            if (value != null) {
+                cursors.put(sessionIds.get(i), Long.parseLong(value.toString()));
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * 新成员入群时读取游标从当前最新的seq开始,不会把入群之前的消息全部算作未读
+     * session_seq中还没有这个群说明还没有消息,游标从0开始
+     */
+    public void initReadCursors(long sessionId, Collection<Long> memberIds) {
+        if (memberIds.isEmpty()) {
+            return;
+        }
+        Object latest = stringRedisTemplate.opsForHash().get(SessionSync.SEQ_KEY, String.valueOf(sessionId));
+        byte[] sessionField = bytes(String.valueOf(sessionId));
+        byte[] seq = bytes(latest == null ? "0" : latest.toString());
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                for (Long memberId : memberIds) {
+                    connection.hSet(bytes(READ_CURSOR_PREFIX + memberId), sessionField, seq);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 第一次读取时还没有读取游标的大群(入群早于切换到读扩散,或者入群时没有初始化成功),
+     * 游标记为这次推送的起点,已经有游标的不覆盖,一个pipeline
+     *
+     * @param startSeqs sessionId -> 这次推送从哪个seq之后开始
+     */
+    public void initMissingReadCursors(long userId, Map<Long, Long> startSeqs) {
+        if (startSeqs.isEmpty()) {
+            return;
+        }
+        byte[] key = bytes(READ_CURSOR_PREFIX + userId);
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                for (Map.Entry<Long, Long> entry : startSeqs.entrySet()) {
+                    connection.hSetNX(key, bytes(String.valueOf(entry.getKey())), bytes(String.valueOf(entry.getValue())));
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 离线推送把一页大群消息写出之后,读取游标移到这一页的最后一个seq
+     */
+    public void advanceReadCursor(long userId, long sessionId, long seq) {
+        stringRedisTemplate.execute(ADVANCE_SCRIPT, List.of(READ_CURSOR_PREFIX + userId),
+                String.valueOf(sessionId), String.valueOf(seq));
+    }
+
+    /**
+     * 群聊解散之后删除,成员的读取游标由ConversationIndex.removeAll删除
+     */
+    public void remove(long sessionId) {
+        stringRedisTemplate.opsForSet().remove(LARGE_GROUPS_KEY, String.valueOf(sessionId));
+        stringRedisTemplate.opsForHash().delete(SESSION_SUMMARY_KEY, String.valueOf(sessionId));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -3,10 +3,13 @@ package org.com.code.im.service.session.impl;
 import org.com.code.im.mapper.MessageMapper;
 import org.com.code.im.pojo.Messages;
 import org.com.code.im.service.session.MessageService;
+import org.com.code.im.utils.TimeConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 
 @Service
@@ -18,4 +21,24 @@ public class MessageImpl implements MessageService {
     public void insertBatchMsg(List<Messages> messages) {
         messageMapper.insertBatchMsg(messages);
     }
+
+    @Override
+    public List<Messages> queryHistoryMessages(long sessionId, long beforeMessageId, int limit) {
+        LocalDateTime cursorCreatedAt = null;
+        if (beforeMessageId != 0) {
+            cursorCreatedAt = messageMapper.queryCreatedAtOfMessage(sessionId, beforeMessageId);
+            if (cursorCreatedAt == null) {
+                // 游标消息不在这个对话里(或者还没有写入数据库)
+                return new ArrayList<>();
+            }
+        }
+        List<Messages> messages = messageMapper.queryMessagesBySessionCursor(sessionId, cursorCreatedAt, beforeMessageId, limit);
+        // 数据库里没有存时间戳,按createdAt的时区换算成前端用的时间戳
+        for (Messages message : messages) {
+            if (message.getCreatedAt() != null) {
+                message.setTimestamp(TimeConverter.toTimestamp(message.getCreatedAt()));
+            }
+        }
+        return messages;
+    }
 }
@@ -0,0 +1,64 @@
+package org.com.code.im.service.session.impl;
+
+import jakarta.annotation.PostConstruct;
+import org.com.code.im.mapper.MessageMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+/**
+ * messages表按月分区(见 表格设计.sql),这里负责提前创建未来几个月的分区
+ *
+ * 新消息不会因为没有分区而写入失败(最后还有一个pmax分区兜底),
+ * 但是写进pmax的消息越多,之后拆分pmax的代价越大,所以每天检查一次,始终保证当前月份之后还有monthsAhead个月的分区,
+ * 拆分的时候pmax是空的,REORGANIZE PARTITION只修改表的定义,很快就能完成
+ *
+ * 多台服务器同时执行时,后执行的会因为分区已存在而失败,下一次检查时会重新读取分区,不影响结果
+ */
+@Component
+public class MessagePartitionMaintainer {
+
+    private static final DateTimeFormatter PARTITION_NAME = DateTimeFormatter.ofPattern("'p'yyyyMM");
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Value("${app.messages.partition.months-ahead:3}")
+    private int monthsAhead;
+
+    @PostConstruct
+    public void init() {
+        ensurePartitions();
+    }
+
+    @Scheduled(cron = "0 0 3 * * ?")
+    public void ensurePartitions() {
+        try {
+            List<String> partitions = messageMapper.queryMessagePartitionNames();
+            if (partitions == null || partitions.isEmpty() || !partitions.contains("pmax")) {
+                System.out.println("messages表没有按月分区,请先执行 消息表按月分区迁移.sql");
+                return;
+            }
+            YearMonth current = YearMonth.now(ZoneId.of("Asia/Shanghai"));
+            for (int i = 0; i <= monthsAhead; i++) {
+                YearMonth month = current.plusMonths(i);
+                String partitionName = month.format(PARTITION_NAME);
+                if (partitions.contains(partitionName)) {
+                    continue;
+                }
+                LocalDate lessThan = month.plusMonths(1).atDay(1);
+                messageMapper.addMessagePartition(partitionName, lessThan.toString());
+                partitions.add(partitionName);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package org.com.code.im.service.session.impl;
+
+import com.alibaba.fastjson.JSONObject;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.com.code.im.netty.nettyCluster.PresenceRegistry;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.service.session.MessageService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 聊天消息持续写入mysql(write-behind),代替原来每小时一次的flushMessagesFromRedisToDataBase
+ *
+ * 原来每小时HGETALL整个messages,然后DEL,再一次性批量插入:
+ * HGETALL和DEL之间写入的消息会丢失,消息越多内存和那一次INSERT越大
+ *
+ * 现在ChatMsgConsumer写入messages的同时,把消息XADD到redis的stream(messages_stream),
+ * 每台服务器是消费者组message-persister里的一个消费者(名字是nodeId):
+ * 1. 每隔intervalMillis用XREADGROUP读取最多batchSize条,批量插入mysql,
+ *    INSERT IGNORE,重复插入同一条消息没有影响
+ * 2. 插入成功之后才XACK和XDEL,服务器在插入之前崩溃,消息还在自己的pending列表里,
+ *    重启之后先从0开始读取自己的pending消息;服务器再也没有回来,其他服务器会把超过claimIdleSeconds的pending消息认领过去
+ * 3. 插入成功的消息记录到messages_persisted(messageId -> 时间戳),
+ *    messages和recent_messages_中超过retentionMinutes并且已经写入mysql的消息才会被删除
+ * 4. 整批插入失败时逐条重新插入,插入成功的照常确认;
+ *    单独插入失败的消息在messages_persist_attempts中记录失败次数,失败maxAttempts次之后移到死信stream(messages_stream_dead)
+ *    并确认,不会让一条有问题的消息永远卡住后面的消息;mysql整个不可用(所有消息都因为连接失败插入失败)时不计入失败次数
+ */
+@Component
+public class MessageWriteBehind {
+
+    public static final String STREAM_KEY = "messages_stream";
+    private static final String GROUP = "message-persister";
+    private static final String PERSISTED_KEY = "messages_persisted";
+    public static final String DEAD_LETTER_KEY = "messages_stream_dead";
+    private static final String ATTEMPTS_KEY = "messages_persist_attempts";
+    private static final String TRIM_LOCK_KEY = "messages_trim_lock";
+    private static final String TRIM_CURSOR_KEY = "messages_trim_cursor";
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    @Autowired
+    @Qualifier("messageImpl")
+    private MessageService messagesService;
+
+    @Autowired
+    private PresenceRegistry presenceRegistry;
+
+    @Value("${app.persist.batch-size:500}")
+    private int batchSize;
+
+    @Value("${app.persist.interval-millis:200}")
+    private long intervalMillis;
+
+    /**
+     * 已经写入mysql的消息在redis的messages中继续缓存多久,用于未读消息和历史消息的查询
+     */
+    @Value("${app.persist.retention-minutes:60}")
+    private long retentionMinutes;
+
+    @Value("${app.persist.claim-idle-seconds:60}")
+    private long claimIdleSeconds;
+
+    /**
+     * 一条消息单独插入失败多少次之后移到死信stream
+     */
+    @Value("${app.persist.max-attempts:5}")
+    private int maxAttempts;
+
+    /**
+     * 清理recent_messages_时每次SSCAN多少个用户,每一段用一次lua脚本处理,不会长时间阻塞redis
+     */
+    @Value("${app.persist.trim-scan-count:500}")
+    private int trimScanCount;
+
+    /**
+     * 从messages_trim_cursor记录的游标继续SSCAN recent_message_member,处理这一段用户之后保存新的游标:
+     * 删除recent_messages_userId中超过保留时间并且已经写入mysql的消息,如果删完之后集合为空,再把userId从recent_message_member中删除,
+     * 必须是原子的,否则可能删掉ChatMsgConsumer刚刚加进去的userId
+     *
+     * 写入mysql的消息超过保留时间之后会先从messages中删除,所以messages中还有的消息就是还没有写入mysql的,保留
+     * KEYS[1] recent_message_member, KEYS[2] messages, KEYS[3] messages_trim_cursor
+     * ARGV[1] 保留时间的分界, ARGV[2] 每次SSCAN的数量
+     * 返回新的游标,为0表示这一轮扫描完了
+     */
+    private static final DefaultRedisScript<String> TRIM_RECENT_SCRIPT = new DefaultRedisScript<>(
+            "local cursor = redis.call('GET', KEYS[3]) or '0' " +
+            "local scan = redis.call('SSCAN', KEYS[1], cursor, 'COUNT', ARGV[2]) " +
+            "for _, userId in ipairs(scan[2]) do " +
+            "    local key = 'recent_messages_' .. userId " +
+            "    local expired = redis.call('ZRANGEBYSCORE', key, '-inf', ARGV[1]) " +
+            "    for _, messageId in ipairs(expired) do " +
+            "        if redis.call('HEXISTS', KEYS[2], messageId) == 0 then " +
+            "            redis.call('ZREM', key, messageId) " +
+            "        end " +
+            "    end " +
+            "    if redis.call('ZCARD', key) == 0 then " +
+            "        redis.call('SREM', KEYS[1], userId) " +
+            "    end " +
+            "end " +
+            "redis.call('SET', KEYS[3], scan[1]) " +
+            "return scan[1]",
+            String.class);
+
+    private ScheduledExecutorService executor;
+
+    private Consumer consumer;
+
+    /**
+     * true表示先读取自己pending列表中的消息(启动时,或者上一次插入失败之后)
+     */
+    private volatile boolean recovering = true;
+
+    private volatile long lastPersistedTimestamp;
+
+    private final LongAdder persisted = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder retriedSingly = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        consumer = Consumer.from(GROUP, presenceRegistry.getNodeId());
+        createGroup();
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::drain, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::claimAbandoned, claimIdleSeconds, claimIdleSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.streamCommands().xGroupCreate(bytes(STREAM_KEY), GROUP, ReadOffset.from("0"), true);
+                return null;
+            });
+        } catch (Exception e) {
+            // BUSYGROUP,消费者组已经存在
+        }
+    }
+
+    /**
+     * 一次把积压的消息都处理完,每一批最多batchSize条
+     */
+    private void drain() {
+        try {
+            while (persistBatch() == batchSize) {
+                // 还有积压,继续
+            }
+        } catch (Exception e) {
+            failures.increment();
+            recovering = true;
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return 这一批读到并且全部确认的消息数量,有消息留在pending列表里等待重试时返回0,这一次drain到此为止
+     */
+    private int persistBatch() {
+        ReadOffset offset = recovering ? ReadOffset.from("0") : ReadOffset.lastConsumed();
+        List<MapRecord<String, String, String>> records = stringRedisTemplate.opsForStream().read(consumer,
+                StreamReadOptions.empty().count(batchSize), StreamOffset.create(STREAM_KEY, offset));
+        if (records == null || records.isEmpty()) {
+            // 自己的pending消息已经处理完了
+            recovering = false;
+            return 0;
+        }
+        if (!persist(records)) {
+            recovering = true;
+            return 0;
+        }
+        return records.size();
+    }
+
+    /**
+     * @return false表示还有消息插入失败,留在pending列表里
+     */
+    private boolean persist(List<MapRecord<String, String, String>> records) {
+        List<Messages> messagesList = new ArrayList<>(records.size());
+        List<RecordId> recordIds = new ArrayList<>(records.size());
+        List<MapRecord<String, String, String>> deadRecords = new ArrayList<>();
+        List<Exception> deadCauses = new ArrayList<>();
+        for (MapRecord<String, String, String> record : records) {
+            String body = record.getValue().get("body");
+            try {
+                messagesList.add(JSONObject.parseObject(body, Messages.class));
+                recordIds.add(record.getId());
+            } catch (Exception e) {
+                // 消息体无法解析,重试也没有用,直接移到死信stream
+                deadRecords.add(record);
+                deadCauses.add(e);
+            }
+        }
+        if (!deadRecords.isEmpty()) {
+            deadLetter(deadRecords, deadCauses);
+        }
+        if (messagesList.isEmpty()) {
+            return true;
+        }
+        try {
+            messagesService.insertBatchMsg(messagesList);
+        } catch (Exception e) {
+            failures.increment();
+            e.printStackTrace();
+            return persistSingly(records, messagesList, recordIds);
+        }
+        acknowledge(messagesList, recordIds);
+        return true;
+    }
+
+    /**
+     * 整批插入失败之后逐条插入,找出有问题的消息
+     */
+    private boolean persistSingly(List<MapRecord<String, String, String>> records, List<Messages> messagesList,
+                                  List<RecordId> recordIds) {
+        List<Messages> succeeded = new ArrayList<>();
+        List<RecordId> succeededIds = new ArrayList<>();
+        List<Integer> failed = new ArrayList<>();
+        List<Exception> causes = new ArrayList<>();
+        for (int i = 0; i < messagesList.size(); i++) {
+            try {
+                messagesService.insertBatchMsg(List.of(messagesList.get(i)));
+                succeeded.add(messagesList.get(i));
+                succeededIds.add(recordIds.get(i));
+            } catch (Exception e) {
+                failed.add(i);
+                causes.add(e);
+            }
+        }
+        retriedSingly.add(messagesList.size());
+        if (!succeeded.isEmpty()) {
+            acknowledge(succeeded, succeededIds);
+        }
+
+        Map<RecordId, MapRecord<String, String, String>> recordsById = new LinkedHashMap<>();
+        for (MapRecord<String, String, String> record : records) {
+            recordsById.put(record.getId(), record);
+        }
+        List<MapRecord<String, String, String>> deadRecords = new ArrayList<>();
+        List<Exception> deadCauses = new ArrayList<>();
+        boolean remaining = false;
+        for (int i = 0; i < failed.size(); i++) {
+            RecordId recordId = recordIds.get(failed.get(i));
+            Exception cause = causes.get(i);
+            // 所有消息都因为mysql连不上而失败,不是消息本身的问题,不计入失败次数
+            if (succeeded.isEmpty() && cause instanceof DataAccessResourceFailureException) {
+                remaining = true;
+                continue;
+            }
+            Long attempts = stringRedisTemplate.opsForHash().increment(ATTEMPTS_KEY, recordId.getValue(), 1);
+            if (attempts != null && attempts >= maxAttempts) {
+                deadRecords.add(recordsById.get(recordId));
+                deadCauses.add(cause);
+            } else {
+                remaining = true;
+            }
+        }
+        if (!deadRecords.isEmpty()) {
+            deadLetter(deadRecords, deadCauses);
+        }
+        return !remaining;
+    }
+
+    private void acknowledge(List<Messages> messagesList, List<RecordId> recordIds) {
+        long maxTimestamp = 0;
+        for (Messages message : messagesList) {
+            maxTimestamp = Math.max(maxTimestamp, message.getTimestamp());
+        }
+        RecordId[] ids = recordIds.toArray(new RecordId[0]);
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                byte[] persistedKey = bytes(PERSISTED_KEY);
+                for (Messages message : messagesList) {
+                    connection.zAdd(persistedKey, message.getTimestamp(), bytes(String.valueOf(message.getMessageId())));
+                }
+                connection.streamCommands().xAck(bytes(STREAM_KEY), GROUP, ids);
+                connection.streamCommands().xDel(bytes(STREAM_KEY), ids);
+                byte[][] fields = new byte[ids.length][];
+                for (int i = 0; i < ids.length; i++) {
+                    fields[i] = bytes(ids[i].getValue());
+                }
+                connection.hDel(bytes(ATTEMPTS_KEY), fields);
+                return null;
+            }
+        });
+
+        persisted.add(messagesList.size());
+        batches.increment();
+        if (maxTimestamp > 0) {
+            lastPersistedTimestamp = maxTimestamp;
+        }
+    }
+
+    /**
+     * 把消息移到死信stream,记录原来的id,失败原因和失败次数,然后从messages_stream中确认并删除,
+     * 消息仍然留在redis的messages中,修复之后可以从死信stream重新XADD到messages_stream
+     */
+    private void deadLetter(List<MapRecord<String, String, String>> records, List<Exception> causes) {
+        RecordId[] ids = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            MapRecord<String, String, String> record = records.get(i);
+            ids[i] = record.getId();
+            Map<String, String> dead = new LinkedHashMap<>();
+            dead.put("body", String.valueOf(record.getValue().get("body")));
+            dead.put("sourceId", record.getId().getValue());
+            dead.put("error", String.valueOf(causes.get(i).getMessage()));
+            Object attempts = stringRedisTemplate.opsForHash().get(ATTEMPTS_KEY, record.getId().getValue());
+            dead.put("attempts", attempts == null ? "1" : attempts.toString());
+            stringRedisTemplate.opsForStream().add(DEAD_LETTER_KEY, dead);
+            System.out.println("消息写入mysql失败,已移到" + DEAD_LETTER_KEY + ": " + record.getId() + ", 原因:" + causes.get(i).getMessage());
+        }
+        stringRedisTemplate.opsForStream().acknowledge(STREAM_KEY, GROUP, ids);
+        stringRedisTemplate.opsForStream().delete(STREAM_KEY, ids);
+        stringRedisTemplate.opsForHash().delete(ATTEMPTS_KEY, Arrays.stream(ids).map(RecordId::getValue).toArray());
+        deadLettered.add(ids.length);
+    }
+
+    /**
+     * 认领其他服务器(已经停机)留下的超过claimIdleSeconds没有确认的消息,认领之后就在自己的pending列表里了
+     */
+    private void claimAbandoned() {
+        try {
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                    .pending(STREAM_KEY, GROUP, Range.unbounded(), batchSize);
+            List<RecordId> idle = new ArrayList<>();
+            Duration minIdle = Duration.ofSeconds(claimIdleSeconds);
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (!pendingMessage.getConsumerName().equals(consumer.getName())
+                        && pendingMessage.getElapsedTimeSinceLastDelivery().compareTo(minIdle) >= 0) {
+                    idle.add(pendingMessage.getId());
+                }
+            }
+            if (idle.isEmpty()) {
+                return;
+            }
+            List<MapRecord<String, String, String>> records = stringRedisTemplate.opsForStream()
+                    .claim(STREAM_KEY, GROUP, consumer.getName(), minIdle, idle.toArray(new RecordId[0]));
+            claimed.add(records.size());
+            recovering = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 删除已经写入mysql并且超过保留时间的缓存消息
+     * 每分钟只由一台服务器执行(messages_trim_lock),recent_message_member按游标分段扫描
+     */
+    @Scheduled(fixedRate = 60000)
+    public void trimPersistedCache() {
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(TRIM_LOCK_KEY, presenceRegistry.getNodeId(), 55, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(retentionMinutes);
+        Set<String> persistedIds = stringRedisTemplate.opsForZSet().rangeByScore(PERSISTED_KEY, Double.NEGATIVE_INFINITY, cutoff);
+        if (persistedIds != null && !persistedIds.isEmpty()) {
+            stringRedisTemplate.opsForHash().delete("messages", persistedIds.toArray());
+            stringRedisTemplate.opsForZSet().removeRangeByScore(PERSISTED_KEY, Double.NEGATIVE_INFINITY, cutoff);
+        }
+
+        // 游标回到0说明recent_message_member完整扫描了一轮,时间不够的话下一次从保存的游标继续
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(50);
+        String cursor;
+        do {
+            cursor = (String) stringRedisTemplate.execute(TRIM_RECENT_SCRIPT,
+                    List.of("recent_message_member", "messages", TRIM_CURSOR_KEY),
+                    String.valueOf(cutoff), String.valueOf(trimScanCount));
+        } while (cursor != null && !"0".equals(cursor) && System.currentTimeMillis() < deadline);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        try {
+            snapshot.put("streamLength", stringRedisTemplate.opsForStream().size(STREAM_KEY));
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(STREAM_KEY, GROUP);
+            snapshot.put("pending", summary == null ? 0 : summary.getTotalPendingMessages());
+        } catch (Exception e) {
+            snapshot.put("streamLength", -1);
+        }
+        try {
+            // stream的id的前半部分就是XADD时的毫秒时间戳,最早一条还没写入mysql的消息等了多久
+            List<MapRecord<String, String, String>> oldest = stringRedisTemplate.opsForStream()
+                    .range(STREAM_KEY, Range.unbounded(), Limit.limit().count(1));
+            snapshot.put("lagMillis", oldest == null || oldest.isEmpty()
+                    ? 0 : System.currentTimeMillis() - oldest.get(0).getId().getTimestamp());
+        } catch (Exception e) {
+            snapshot.put("lagMillis", -1);
+        }
+        snapshot.put("lastPersistedTimestamp", lastPersistedTimestamp);
+        snapshot.put("persisted", persisted.sum());
+        snapshot.put("batches", batches.sum());
+        snapshot.put("failures", failures.sum());
+        snapshot.put("claimed", claimed.sum());
+        snapshot.put("retriedSingly", retriedSingly.sum());
+        snapshot.put("deadLettered", deadLettered.sum());
+        try {
+            snapshot.put("deadLetterLength", stringRedisTemplate.opsForStream().size(DEAD_LETTER_KEY));
+        } catch (Exception e) {
+            snapshot.put("deadLetterLength", -1);
+        }
+        return snapshot;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
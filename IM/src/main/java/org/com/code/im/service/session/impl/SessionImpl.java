@@ -1,22 +1,24 @@
 package org.com.code.im.service.session.impl;
 
-import jakarta.annotation.PreDestroy;
 import org.com.code.im.exception.DatabaseException;
 import org.com.code.im.mapper.*;
 import org.com.code.im.pojo.*;
 import org.com.code.im.rocketMq.producer.MsgProducer;
 import org.com.code.im.service.session.SessionService;
+import org.com.code.im.utils.SessionMembershipCache;
 import org.com.code.im.utils.SnowflakeIdUtil;
+import org.com.code.im.utils.UserNameCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
 
@@ -40,6 +42,42 @@ public class SessionImpl implements SessionService {
     @Autowired
     private MsgProducer msgProducer;
 
+    /**
+     * 修改Session_sessionId之后都要调用sessionMembershipCache.invalidate,通知所有服务器删除本地缓存
+     */
+    @Autowired
+    private SessionMembershipCache sessionMembershipCache;
+
+    @Autowired
+    private ConversationIndex conversationIndex;
+
+    @Autowired
+    private LargeGroupTimeline largeGroupTimeline;
+
+    @Autowired
+    private UserNameCache userNameCache;
+
+    /**
+     * 私聊列表,群聊列表,群成员列表的缓存,修改mysql之后增量更新
+     */
+    @Autowired
+    private SessionListCache sessionListCache;
+
+    @Autowired
+    private GroupDismissalJobs groupDismissalJobs;
+
+    /**
+     * 批量写入群成员时每条insert语句最多多少个成员
+     */
+    @Value("${app.group.member-insert-chunk-size:500}")
+    private int memberInsertChunkSize;
+
+    /**
+     * 批量写入Session_sessionId时每条HMSET最多多少个成员
+     */
+    @Value("${app.group.redis-chunk-size:1000}")
+    private int redisChunkSize;
+
     /**
      *这个方法是创建私聊会话,如果两个用户之前没有会话,就创建一个会话,如果两个用户之前有会话,就不创建了,返回先前的会话
      */
@@ -94,6 +132,7 @@ public class SessionImpl implements SessionService {
          */
         map.put("private",0L);
         redisTemplate.opsForHash().putAll("Session_"+sessions.getSessionId(),map);
+        sessionListCache.onPrivateSessionCreated(sessions.getSessionId(), ownerId, userId);
 
         return sessions.getSessionId();
     }
@@ -121,22 +160,7 @@ public class SessionImpl implements SessionService {
 
         sessionMapper.createSession(sessions);
 
-        Map<String,Long> map = new HashMap<>();
-        List<GroupMembers> groupMemberList = new ArrayList<>();
-        /**
-         * 生成群组成员列表
-         *
-         * 该方法用于根据用户ID数组和群组信息，生成一个群组成员列表，并记录每个用户加入群组的时间
-         * 同时，将每个用户ID映射到一个操作次数（初始为0），存储在Map中
-         */
-        generateGroupMemberList(sessions.getSessionId(),userIds,groupMemberList,LocalDateTime.now(),map,ownerId);
-        groupMemberMapper.insertMembersToGroup(groupMemberList);
-        /**
-         * 把群的id和群成员的id全部都放在redis中
-         * Group_sessionId memberId 0
-         * 方便日后发送和接收消息时,方便快速找到接收者的id
-         */
-        redisTemplate.opsForHash().putAll("Session_"+sessions.getSessionId(),map);
+        writeGroupMembers(sessions.getSessionId(), userIds, ownerId, sessions.getCreatedAt());
 
         return sessions.getSessionId();
     }
@@ -144,82 +168,96 @@ public class SessionImpl implements SessionService {
     @Override
     @Transactional
     public Long addGroupMember(Long sessionId, Long[] userId) {
-        List<GroupMembers> groupMemberList = new ArrayList<>();
-        Map<String,Long> map = new HashMap<>();
-
-        LocalDateTime joinedTime = LocalDateTime.now();
-
-        generateGroupMemberList(sessionId, userId, groupMemberList, joinedTime, map,0);
-        groupMemberMapper.insertMembersToGroup(groupMemberList);
-        redisTemplate.opsForHash().putAll("Session_"+sessionId,map);
+        writeGroupMembers(sessionId, userId, 0, LocalDateTime.now());
+        sessionMembershipCache.invalidate(sessionId);
+        largeGroupTimeline.initReadCursors(sessionId, Arrays.asList(userId));
 
         return sessionId;
     }
 
     /**
-     * 生成群组成员列表
+     * 把成员写入group_members和redis的Session_sessionId
+     *
+     * ownerId不为0则是建群时调用,群主也作为成员写入;为0则是邀请成员入群时调用
+     *
+     * 1. 用户名从UserNameCache按id取出,不依赖查询结果的顺序
+     * 2. group_members按memberInsertChunkSize分批插入,几千人的邀请不会拼出一条过长的SQL,都在调用者的事务里
+     * 3. Session_sessionId按redisChunkSize分批HMSET,所有批次在同一个pipeline里,只有一次往返
      *
-     * 该方法用于根据用户ID数组和群组信息，生成一个群组成员列表，并记录每个用户加入群组的时间
-     * 同时，将每个用户ID映射到一个操作次数（初始为0），存储在Map中
+     * sessionId memberId1  0
+     *           memberId2  2
+     *           memberId3  0
+     *           ........
+     * 按照以上格式把群的id和群成员的id关联起来,存入redis中，方便日后发消息时候可以快速找到接收者的id
+     *
+     * 如果是群主,那么memberId的值设置为为2,群主建群之后,可以通过修改普通member后面的值为1,表明这个member是群管理员
+     * 如果是普通member,那么memberId的值设置为为0,如果是被禁言的member,那么memberId的值设置为为-1
      */
-    private void generateGroupMemberList(Long sessionId, Long[] userId, List<GroupMembers> groupMembersList, LocalDateTime joinedTime, Map<String, Long> map,long ownerId) {
-        // 初始化群组成员用户名列表
-        List<String> GroupMemberNameList;
-        // 将用户ID数组转换为列表
-        List<Long> GroupMemberIdList = new ArrayList<>(Arrays.asList(userId));
-        /**
-         *  ownerId不为0则是用于建群时候调用generateGroupMemberList方法
-         *         为0则是用于邀请成员入群时候调用generateGroupMemberList方法
-         */
-        if(ownerId!=0)
-            GroupMemberIdList.add(Long.valueOf(ownerId));
+    private void writeGroupMembers(long sessionId, Long[] userIds, long ownerId, LocalDateTime joinedTime) {
+        // 同一个用户在请求里出现多次只写入一次,群主不会同时作为普通成员
+        Set<Long> memberIdSet = new LinkedHashSet<>(Arrays.asList(userIds));
+        if (ownerId != 0) {
+            memberIdSet.remove(ownerId);
+        }
+        List<Long> memberIds = new ArrayList<>(memberIdSet);
+        List<Long> allIds = new ArrayList<>(memberIds);
+        if (ownerId != 0) {
+            allIds.add(ownerId);
+        }
+
+        Map<Long, String> names;
         try {
-            // 查询群组成员的用户名列表
-            if (!GroupMemberIdList.isEmpty()) {
-                GroupMemberNameList = userMapper.queryUserNameByManyIds(GroupMemberIdList);
-            } else {
-                GroupMemberNameList = new ArrayList<>();
-            }
+            names = userNameCache.namesOf(allIds);
         } catch (Exception e) {
             throw new DatabaseException("查询群组成员用户名列表失败");
         }
 
-        /**
-         * sessionId memberId1  0
-         *           memberId2  2
-         *           memberId3  0
-         *           ........
-         * 然后按照以上格式把群的id和群成员的id关联起来,存入redis中，方便日后发消息时候可以快速找到接收者的id
-         *
-         * 如果是群主,那么memberId的值设置为为2,群主建群之后,可以通过修改普通member后面的值为1,表明这个member是群管理员
-         * 如果是普通member,那么memberId的值设置为为0,如果是被禁言的member,那么memberId的值设置为为-1
-         *
-         * 初步建群,设置群主的member值为2,其他member的值都为0
-         * 邀请其他人入群,最初被邀请的member的值都为0
-         */
-
-        int i=0;
-        for (long id : userId) {
-            // 创建群组成员对象，设置群组会话ID、用户ID、用户名、加入时间和角色
-            groupMembersList.add(new GroupMembers(sessionId,id,GroupMemberNameList.get(i), joinedTime,"member"));
-            map.put(String.valueOf(id),Long.valueOf(0));
-            // 增加索引值，以获取下一个用户名
-            i++;
+        List<GroupMembers> added = new ArrayList<>(allIds.size());
+        List<GroupMembers> chunk = new ArrayList<>(Math.min(allIds.size(), memberInsertChunkSize));
+        for (Long id : allIds) {
+            String role = ownerId != 0 && id == ownerId ? "owner" : "member";
+            GroupMembers member = new GroupMembers(sessionId, id, names.getOrDefault(id, String.valueOf(id)), joinedTime, role);
+            added.add(member);
+            chunk.add(member);
+            if (chunk.size() >= memberInsertChunkSize) {
+                groupMemberMapper.insertMembersToGroup(chunk);
+                chunk = new ArrayList<>(memberInsertChunkSize);
+            }
         }
-        if(ownerId!=0){
-            groupMembersList.add(new GroupMembers(sessionId,ownerId,GroupMemberNameList.get(GroupMemberNameList.size()-1), joinedTime,"owner"));
-            map.put(String.valueOf(ownerId),Long.valueOf(2));
+        if (!chunk.isEmpty()) {
+            groupMemberMapper.insertMembersToGroup(chunk);
         }
-    }
-
 
+        /**
+         * redisTemplateLong的key和value最终都是字符串,这里直接写字节
+         */
+        byte[] sessionKey = ("Session_" + sessionId).getBytes(StandardCharsets.UTF_8);
+        redisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                Map<byte[], byte[]> fields = new HashMap<>();
+                for (Long id : allIds) {
+                    String role = ownerId != 0 && id == ownerId ? "2" : "0";
+                    fields.put(String.valueOf(id).getBytes(StandardCharsets.UTF_8), role.getBytes(StandardCharsets.UTF_8));
+                    if (fields.size() >= redisChunkSize) {
+                        connection.hMSet(sessionKey, fields);
+                        fields = new HashMap<>();
+                    }
+                }
+                if (!fields.isEmpty()) {
+                    connection.hMSet(sessionKey, fields);
+                }
+                return null;
+            }
+        });
+        sessionListCache.onMembersAdded(sessionId, added);
+    }
 
     @Override
     public String queryGroupRole(long sessionId,long userId){
-        long role;
-        try {
-            role = (long) redisTemplate.opsForHash().get("Session_"+sessionId,String.valueOf(userId));
-        }catch (Exception e){
+        SessionMembershipCache.SessionMembers members = sessionMembershipCache.get(sessionId);
+        Long role = members == null ? null : members.roleOf(userId);
+        if (role == null) {
             return "not in the group or session";
         }
         if(role==2){
@@ -261,11 +299,15 @@ public class SessionImpl implements SessionService {
 
             message=messageBuilder.append(targetUserName).append(" 被降级为普通成员").toString();
         }
+        sessionMembershipCache.invalidate(sessionId);
         try{
             groupMemberMapper.updateMemberRole(map);
         }catch (Exception e){
             throw new DatabaseException("数据库异常,禁言或者解禁失败,稍后再试");
         }
+        if (map.get("role") != null) {
+            sessionListCache.onMemberRoleUpdated(sessionId, targetUserId, (String) map.get("role"));
+        }
 
         groupNoticeMessageSender(sessionId, message);
     }
@@ -300,6 +342,7 @@ public class SessionImpl implements SessionService {
             redisTemplate.opsForHash().put("Session_"+sessionId,String.valueOf(targetUserId),Long.valueOf(0));
             message=messageBuilder.append(targetUserName).append(" 被管理员取消禁言了").toString();
         }
+        sessionMembershipCache.invalidate(sessionId);
 
         groupNoticeMessageSender(sessionId, message);
     }
@@ -322,11 +365,14 @@ public class SessionImpl implements SessionService {
     @Override
     public void kickOutGroupMember(long sessionId, long targetUserId) {
         redisTemplate.opsForHash().delete("Session_"+sessionId,String.valueOf(targetUserId));
+        sessionMembershipCache.invalidate(sessionId);
+        conversationIndex.remove(targetUserId, sessionId);
         try{
             groupMemberMapper.deleteGroupMember(sessionId,targetUserId);
         }catch (Exception e){
             throw new DatabaseException("数据库异常,踢出群成员失败,稍后再试");
         }
+        sessionListCache.onMemberRemoved(sessionId, targetUserId);
     }
 
     /**
@@ -335,9 +381,9 @@ public class SessionImpl implements SessionService {
      * 所以如果立马执行删除群聊操作,那么redis中的暂存的消息还没同步到mysql中,
      * 那么之后redis把一些群聊消息同步到数据库中后,这些消息相当于"无群认领",浪费内存
      * 所以我推迟执行删除群聊操作,在redis把这些消息同步到mysql后,再执行删除群聊操作
-     * 推迟的时间大于redis把缓存消息同步到mysql的间隔时间,这里推迟2小时
+     * 推迟的时间大于redis把缓存消息同步到mysql的间隔时间,默认推迟2小时
+     * 延期任务记录在redis中,由GroupDismissalJobs分批删除,服务器重启不会丢失
      */
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
     @Override
     public void dismissGroup(long sessionId) {
         /**
@@ -347,31 +393,18 @@ public class SessionImpl implements SessionService {
          * 第二redis删除该群的键值也很快
          */
 
+        SessionMembershipCache.SessionMembers members = sessionMembershipCache.get(sessionId);
         redisTemplate.delete("Session_"+sessionId);
-
-        scheduler.schedule(() -> {
-
-            /**
-             * 1. 删除群聊
-             * 2. 删除群聊中的所有成员
-             * 3. 删除群聊中的所有消息
-             * 4. 删除群聊中的所有redis中的数据
-             */
-            sessionMapper.deleteGroupSession(sessionId);
-            groupMemberMapper.deleteAllGroupMembers(sessionId);
-            messageMapper.deleteGroupMessages(sessionId);
-        }, 2, TimeUnit.HOURS);
-    }
-    @PreDestroy
-    public void shutdownScheduler() {
-        scheduler.shutdown();
-        try {
-            if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
-                scheduler.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            scheduler.shutdownNow();
+        sessionMembershipCache.invalidate(sessionId);
+        if (members != null) {
+            conversationIndex.removeAll(members.memberIds(), sessionId);
         }
+        sessionListCache.onGroupDismissed(sessionId, members == null ? new long[0] : members.memberIds());
+        largeGroupTimeline.remove(sessionId);
+        redisTemplate.delete(SessionSync.TIMELINE_PREFIX+sessionId);
+        redisTemplate.opsForHash().delete(SessionSync.SEQ_KEY, String.valueOf(sessionId));
+
+        groupDismissalJobs.schedule(sessionId);
     }
 
     @Override
@@ -382,5 +415,6 @@ public class SessionImpl implements SessionService {
         }catch (Exception e){
             throw new DatabaseException("数据库异常,更新群聊信息失败");
         }
+        sessionListCache.onGroupInfoUpdated(sessions.getSessionId());
     }
 }
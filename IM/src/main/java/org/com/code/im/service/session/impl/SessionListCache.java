@@ -0,0 +1,542 @@
+package org.com.code.im.service.session.impl;
+
+import com.alibaba.fastjson.JSONObject;
+import org.com.code.im.mapper.SessionMapper;
+import org.com.code.im.mapper.UserMapper;
+import org.com.code.im.pojo.GroupMembers;
+import org.com.code.im.pojo.PrivateMemberQueryHandler;
+import org.com.code.im.pojo.Sessions;
+import org.com.code.im.pojo.UserNameAndAvatar;
+import org.com.code.im.pojo.query.GroupMemberQuery;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.zset.DefaultTuple;
+import org.springframework.data.redis.connection.zset.Tuple;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 私聊列表,群聊列表,群成员列表和群信息的redis缓存
+ *
+ * 原来这些查询都要经过一次RocketMQ,由querySessionConsumer查询mysql再通过websocket推送结果,
+ * 什么都没有缓存,客户端每刷新一次就查一次mysql
+ *
+ * 现在:
+ * private_session_list_userId  ZSet, sessionId -> sessionId, 从新到旧   + private_session_peer_userId  Hash, sessionId -> 对方的id,用户名,头像
+ * group_session_list_userId    ZSet, sessionId -> sessionId, 从新到旧   + group_info_sessionId         String, 群信息
+ * group_member_list_sessionId  ZSet, userId -> 入群时间, 按入群顺序     + group_member_info_sessionId  Hash, userId -> 群成员信息
+ *
+ * 1. 每个ZSet里都有一个分数为-1的"loaded"成员,表示整个列表已经从mysql加载过了,空列表也能命中,
+ *    分页读取时只读分数>=0的部分
+ * 2. 命中时SessionController同步分页返回,没有命中才走原来的消息队列,querySessionConsumer查询mysql之后把整个列表写进来
+ * 3. 建群,邀请,踢人,解散,修改群信息,修改成员角色,建立私聊时由SessionImpl增量修改,
+ *    列表还没有加载过就不修改(用lua判断key是否存在),不会产生只有一部分数据的列表
+ * 4. 对方修改用户名或头像不会更新已经缓存的列表,所有key都有过期时间,最多ttlSeconds之后重新加载
+ * 5. 每个列表有一个版本号session_list_generation_列表的key,每次增量修改加1;
+ *    querySessionConsumer查询mysql之前先读版本号,整个列表先写入临时key,版本号没有变才RENAME成正式的key,
+ *    查询期间有人被踢出或者群被解散,这次加载的结果就丢掉,不会把刚删除的项又写回去
+ */
+@Component
+public class SessionListCache {
+
+    public static final String PRIVATE_LIST_PREFIX = "private_session_list_";
+    public static final String PRIVATE_PEER_PREFIX = "private_session_peer_";
+    public static final String GROUP_LIST_PREFIX = "group_session_list_";
+    public static final String GROUP_INFO_PREFIX = "group_info_";
+    public static final String MEMBER_LIST_PREFIX = "group_member_list_";
+    public static final String MEMBER_INFO_PREFIX = "group_member_info_";
+
+    public static final String GENERATION_PREFIX = "session_list_generation_";
+
+    private static final String LOADED = "loaded";
+
+    /**
+     * 版本号没有变才用临时key替换正式的key,变了就删除临时key
+     * KEYS[1] 版本号, KEYS[2] 临时的列表ZSet, KEYS[3] 列表ZSet, KEYS[4] 临时的数据Hash(可选), KEYS[5] 数据Hash(可选)
+     * ARGV[1] 查询mysql之前读到的版本号
+     */
+    private static final byte[] REPLACE_IF_UNCHANGED_SCRIPT = (
+            "local current = redis.call('GET', KEYS[1]) or '0' " +
+            "if current ~= ARGV[1] then " +
+            "  redis.call('DEL', KEYS[2]) " +
+            "  if #KEYS > 3 then redis.call('DEL', KEYS[4]) end " +
+            "  return 0 " +
+            "end " +
+            "redis.call('RENAME', KEYS[2], KEYS[3]) " +
+            "if #KEYS > 3 then " +
+            "  if redis.call('EXISTS', KEYS[4]) == 1 then redis.call('RENAME', KEYS[4], KEYS[5]) else redis.call('DEL', KEYS[5]) end " +
+            "end " +
+            "return 1").getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 列表已经加载过才加入新的一项
+     * KEYS[1] 列表的ZSet, KEYS[2] 数据的Hash(可选)
+     * ARGV[1] 分数, ARGV[2] 成员, ARGV[3] 数据
+     */
+    private static final byte[] ADD_IF_LOADED_SCRIPT = (
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return 0 end " +
+            "redis.call('ZADD', KEYS[1], ARGV[1], ARGV[2]) " +
+            "if #KEYS > 1 then redis.call('HSET', KEYS[2], ARGV[2], ARGV[3]) end " +
+            "return 1").getBytes(StandardCharsets.UTF_8);
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private SessionMapper sessionMapper;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Value("${app.session-list-cache.ttl-seconds:3600}")
+    private long ttlSeconds;
+
+    /**
+     * 整个列表写入redis时,每条命令最多多少项
+     */
+    @Value("${app.session-list-cache.write-chunk-size:1000}")
+    private int writeChunkSize;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder fills = new LongAdder();
+    private final LongAdder staleFills = new LongAdder();
+    private final LongAdder incrementalUpdates = new LongAdder();
+
+    // ---------------- 读取 ----------------
+
+    /**
+     * 分页读取私聊列表,page从0开始,没有缓存返回null
+     */
+    public List<PrivateMemberQueryHandler> pagePrivateSessions(long userId, int page, int size) {
+        List<String> sessionIds = pageIds(PRIVATE_LIST_PREFIX + userId, page, size, true);
+        if (sessionIds == null) {
+            return null;
+        }
+        List<PrivateMemberQueryHandler> sessions = new ArrayList<>(sessionIds.size());
+        if (sessionIds.isEmpty()) {
+            return sessions;
+        }
+        List<Object> peers = stringRedisTemplate.opsForHash().multiGet(PRIVATE_PEER_PREFIX + userId, sessionIds);
+        for (Object peer : peers) {
+            if (peer != null) {
+                sessions.add(JSONObject.parseObject(peer.toString(), PrivateMemberQueryHandler.class));
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * 分页读取群聊列表,page从0开始,没有缓存返回null
+     * 群信息是所有成员共用的,没有缓存的群信息从mysql读取之后补上
+     */
+    public List<Sessions> pageGroupSessions(long userId, int page, int size) {
+        List<String> sessionIds = pageIds(GROUP_LIST_PREFIX + userId, page, size, true);
+        if (sessionIds == null) {
+            return null;
+        }
+        List<Sessions> groups = new ArrayList<>(sessionIds.size());
+        if (sessionIds.isEmpty()) {
+            return groups;
+        }
+        List<String> infoKeys = new ArrayList<>(sessionIds.size());
+        for (String sessionId : sessionIds) {
+            infoKeys.add(GROUP_INFO_PREFIX + sessionId);
+        }
+        List<Object> infos = stringRedisTemplate.opsForValue().multiGet(infoKeys);
+        for (int i = 0; i < sessionIds.size(); i++) {
+            Object info = infos == null ? null : infos.get(i);
+            Sessions group = info != null
+                    ? JSONObject.parseObject(info.toString(), Sessions.class)
+                    : groupInfo(Long.parseLong(sessionIds.get(i)));
+            if (group != null) {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * 分页读取群成员列表,按入群顺序,page从0开始,没有缓存返回null
+     */
+    public List<GroupMemberQuery> pageGroupMembers(long sessionId, int page, int size) {
+        List<String> userIds = pageIds(MEMBER_LIST_PREFIX + sessionId, page, size, false);
+        if (userIds == null) {
+            return null;
+        }
+        List<GroupMemberQuery> members = new ArrayList<>(userIds.size());
+        if (userIds.isEmpty()) {
+            return members;
+        }
+        List<Object> infos = stringRedisTemplate.opsForHash().multiGet(MEMBER_INFO_PREFIX + sessionId, userIds);
+        for (Object info : infos) {
+            if (info != null) {
+                members.add(JSONObject.parseObject(info.toString(), GroupMemberQuery.class));
+            }
+        }
+        return members;
+    }
+
+    /**
+     * 缓存的群信息,没有缓存返回null
+     */
+    public Sessions cachedGroupInfo(long sessionId) {
+        Object info = stringRedisTemplate.opsForValue().get(GROUP_INFO_PREFIX + sessionId);
+        if (info == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return JSONObject.parseObject(info.toString(), Sessions.class);
+    }
+
+    /**
+     * 群信息,没有缓存时从mysql读取并缓存,群不存在返回null
+     */
+    public Sessions groupInfo(long sessionId) {
+        Sessions cached = cachedGroupInfo(sessionId);
+        if (cached != null) {
+            return cached;
+        }
+        Sessions group = sessionMapper.queryGroupInfo(sessionId);
+        if (group != null) {
+            putGroupInfo(group);
+        }
+        return group;
+    }
+
+    /**
+     * 列表没有加载过返回null
+     */
+    private List<String> pageIds(String key, int page, int size, boolean newestFirst) {
+        long offset = (long) page * size;
+        Set<String> ids = newestFirst
+                ? stringRedisTemplate.opsForZSet().reverseRangeByScore(key, 0, Double.POSITIVE_INFINITY, offset, size)
+                : stringRedisTemplate.opsForZSet().rangeByScore(key, 0, Double.POSITIVE_INFINITY, offset, size);
+        if (ids == null || ids.isEmpty()) {
+            // 空的一页也可能是已经加载过的空列表或者翻过了最后一页
+            if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return new ArrayList<>();
+        }
+        hits.increment();
+        return new ArrayList<>(ids);
+    }
+
+    // ---------------- 加载整个列表,querySessionConsumer查询mysql之前读取版本号,查询之后调用fill ----------------
+
+    public long privateSessionsGeneration(long userId) {
+        return generation(PRIVATE_LIST_PREFIX + userId);
+    }
+
+    public long groupSessionsGeneration(long userId) {
+        return generation(GROUP_LIST_PREFIX + userId);
+    }
+
+    public long groupMembersGeneration(long sessionId) {
+        return generation(MEMBER_LIST_PREFIX + sessionId);
+    }
+
+    private long generation(String listKey) {
+        Object generation = stringRedisTemplate.opsForValue().get(GENERATION_PREFIX + listKey);
+        return generation == null ? 0 : Long.parseLong(generation.toString());
+    }
+
+    public void fillPrivateSessions(long userId, long generation, List<PrivateMemberQueryHandler> sessions) {
+        Map<String, String> peers = new LinkedHashMap<>(sessions.size() * 2);
+        Map<String, Double> scores = new HashMap<>(sessions.size() * 2);
+        for (PrivateMemberQueryHandler session : sessions) {
+            String sessionId = String.valueOf(session.getSessionId());
+            peers.put(sessionId, JSONObject.toJSONString(session));
+            scores.put(sessionId, (double) session.getSessionId());
+        }
+        fill(PRIVATE_LIST_PREFIX + userId, generation, scores, PRIVATE_PEER_PREFIX + userId, peers);
+    }
+
+    public void fillGroupSessions(long userId, long generation, List<Sessions> groups) {
+        Map<String, Double> scores = new HashMap<>(groups.size() * 2);
+        for (Sessions group : groups) {
+            scores.put(String.valueOf(group.getSessionId()), (double) group.getSessionId());
+            putGroupInfo(group);
+        }
+        fill(GROUP_LIST_PREFIX + userId, generation, scores, null, null);
+    }
+
+    public void fillGroupMembers(long sessionId, long generation, List<GroupMemberQuery> members) {
+        Map<String, String> infos = new LinkedHashMap<>(members.size() * 2);
+        Map<String, Double> scores = new HashMap<>(members.size() * 2);
+        for (GroupMemberQuery member : members) {
+            String userId = String.valueOf(member.getUserId());
+            infos.put(userId, JSONObject.toJSONString(member));
+            scores.put(userId, (double) joinedAtMillis(member));
+        }
+        fill(MEMBER_LIST_PREFIX + sessionId, generation, scores, MEMBER_INFO_PREFIX + sessionId, infos);
+    }
+
+    public void putGroupInfo(Sessions group) {
+        stringRedisTemplate.opsForValue().set(GROUP_INFO_PREFIX + group.getSessionId(),
+                JSONObject.toJSONString(group), ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 整个列表替换,分批写入临时key,所有批次和最后的替换在同一个pipeline里
+     *
+     * @param generation 查询mysql之前读到的版本号,和当前的不一样说明查询期间列表被修改过,这次的结果不写入
+     */
+    private void fill(String listKey, long generation, Map<String, Double> scores, String dataKey, Map<String, String> data) {
+        fills.increment();
+        String suffix = "_filling_" + UUID.randomUUID();
+        byte[] list = bytes(listKey + suffix);
+        byte[] hash = dataKey == null ? null : bytes(dataKey + suffix);
+        List<Object> results = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                connection.zAdd(list, -1, bytes(LOADED));
+                Set<Tuple> chunk = new HashSet<>();
+                for (Map.Entry<String, Double> entry : scores.entrySet()) {
+                    chunk.add(new DefaultTuple(bytes(entry.getKey()), entry.getValue()));
+                    if (chunk.size() >= writeChunkSize) {
+                        connection.zAdd(list, chunk);
+                        chunk = new HashSet<>();
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    connection.zAdd(list, chunk);
+                }
+                connection.expire(list, ttlSeconds);
+                if (hash != null) {
+                    Map<byte[], byte[]> fields = new HashMap<>();
+                    for (Map.Entry<String, String> entry : data.entrySet()) {
+                        fields.put(bytes(entry.getKey()), bytes(entry.getValue()));
+                        if (fields.size() >= writeChunkSize) {
+                            connection.hMSet(hash, fields);
+                            fields = new HashMap<>();
+                        }
+                    }
+                    if (!fields.isEmpty()) {
+                        connection.hMSet(hash, fields);
+                    }
+                    connection.expire(hash, ttlSeconds);
+                    connection.eval(REPLACE_IF_UNCHANGED_SCRIPT, ReturnType.INTEGER, 5, bytes(GENERATION_PREFIX + listKey),
+                            list, bytes(listKey), hash, bytes(dataKey), bytes(String.valueOf(generation)));
+                } else {
+                    connection.eval(REPLACE_IF_UNCHANGED_SCRIPT, ReturnType.INTEGER, 3, bytes(GENERATION_PREFIX + listKey),
+                            list, bytes(listKey), bytes(String.valueOf(generation)));
+                }
+                return null;
+            }
+        });
+        if (Long.valueOf(0).equals(results.get(results.size() - 1))) {
+            staleFills.increment();
+        }
+    }
+
+    /**
+     * 在pipeline中调用,列表的版本号加1,正在进行的加载不会写入
+     * 版本号和列表一样ttlSeconds之后过期,过期之后读到0,比加载开始时读到的小,同样不会写入
+     */
+    private void bumpGeneration(RedisConnection connection, String listKey) {
+        byte[] key = bytes(GENERATION_PREFIX + listKey);
+        connection.incr(key);
+        connection.expire(key, ttlSeconds);
+    }
+
+    // ---------------- 增量修改,SessionImpl修改mysql和Session_sessionId之后调用 ----------------
+
+    /**
+     * 建群或邀请入群之后调用
+     * 1. 每个新成员的群聊列表加上这个群
+     * 2. 群成员列表已经加载过的话,加上新成员,头像按id分批查询
+     */
+    public void onMembersAdded(long sessionId, List<GroupMembers> members) {
+        if (members.isEmpty()) {
+            return;
+        }
+        incrementalUpdates.increment();
+        byte[] sessionField = bytes(String.valueOf(sessionId));
+        boolean memberListLoaded = Boolean.TRUE.equals(stringRedisTemplate.hasKey(MEMBER_LIST_PREFIX + sessionId));
+        Map<Long, String> avatars = memberListLoaded ? avatarsOf(members) : new HashMap<>();
+        byte[] memberList = bytes(MEMBER_LIST_PREFIX + sessionId);
+        byte[] memberInfo = bytes(MEMBER_INFO_PREFIX + sessionId);
+
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                bumpGeneration(connection, MEMBER_LIST_PREFIX + sessionId);
+                for (GroupMembers member : members) {
+                    bumpGeneration(connection, GROUP_LIST_PREFIX + member.getUserId());
+                    connection.eval(ADD_IF_LOADED_SCRIPT, ReturnType.INTEGER, 1,
+                            bytes(GROUP_LIST_PREFIX + member.getUserId()), sessionField, sessionField);
+                    if (memberListLoaded) {
+                        GroupMemberQuery query = new GroupMemberQuery(sessionId, member.getUserId(), member.getNickName(),
+                                avatars.get(member.getUserId()), member.getJoinedTime(), member.getRole());
+                        connection.eval(ADD_IF_LOADED_SCRIPT, ReturnType.INTEGER, 2, memberList, memberInfo,
+                                bytes(String.valueOf(joinedAtMillis(query))), bytes(String.valueOf(member.getUserId())),
+                                bytes(JSONObject.toJSONString(query)));
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private Map<Long, String> avatarsOf(List<GroupMembers> members) {
+        Map<Long, String> avatars = new HashMap<>(members.size() * 2);
+        for (int from = 0; from < members.size(); from += writeChunkSize) {
+            List<Long> ids = new ArrayList<>();
+            for (GroupMembers member : members.subList(from, Math.min(from + writeChunkSize, members.size()))) {
+                ids.add(member.getUserId());
+            }
+            for (UserNameAndAvatar user : userMapper.selectNameAndAvatarByIds(ids)) {
+                avatars.put(user.getId(), user.getAvatar());
+            }
+        }
+        return avatars;
+    }
+
+    /**
+     * 成员被踢出群聊之后调用
+     */
+    public void onMemberRemoved(long sessionId, long userId) {
+        incrementalUpdates.increment();
+        byte[] sessionField = bytes(String.valueOf(sessionId));
+        byte[] userField = bytes(String.valueOf(userId));
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                bumpGeneration(connection, GROUP_LIST_PREFIX + userId);
+                bumpGeneration(connection, MEMBER_LIST_PREFIX + sessionId);
+                connection.zRem(bytes(GROUP_LIST_PREFIX + userId), sessionField);
+                connection.zRem(bytes(MEMBER_LIST_PREFIX + sessionId), userField);
+                connection.hDel(bytes(MEMBER_INFO_PREFIX + sessionId), userField);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 群聊解散之后调用,从所有成员的群聊列表中删除
+     */
+    public void onGroupDismissed(long sessionId, long[] memberIds) {
+        incrementalUpdates.increment();
+        byte[] sessionField = bytes(String.valueOf(sessionId));
+        stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                bumpGeneration(connection, MEMBER_LIST_PREFIX + sessionId);
+                for (long memberId : memberIds) {
+                    bumpGeneration(connection, GROUP_LIST_PREFIX + memberId);
+                    connection.zRem(bytes(GROUP_LIST_PREFIX + memberId), sessionField);
+                }
+                connection.del(bytes(MEMBER_LIST_PREFIX + sessionId), bytes(MEMBER_INFO_PREFIX + sessionId),
+                        bytes(GROUP_INFO_PREFIX + sessionId));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 修改群名称或群头像之后调用,下次读取时重新加载
+     */
+    public void onGroupInfoUpdated(long sessionId) {
+        incrementalUpdates.increment();
+        stringRedisTemplate.delete(GROUP_INFO_PREFIX + sessionId);
+    }
+
+    /**
+     * 修改成员角色(admin/member)之后调用,成员列表没有加载过或者没有这个成员就不修改
+     */
+    public void onMemberRoleUpdated(long sessionId, long userId, String role) {
+        Object info = stringRedisTemplate.opsForHash().get(MEMBER_INFO_PREFIX + sessionId, String.valueOf(userId));
+        if (info == null) {
+            return;
+        }
+        incrementalUpdates.increment();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            bumpGeneration(connection, MEMBER_LIST_PREFIX + sessionId);
+            return null;
+        });
+        GroupMemberQuery member = JSONObject.parseObject(info.toString(), GroupMemberQuery.class);
+        member.setRole(role);
+        stringRedisTemplate.opsForHash().put(MEMBER_INFO_PREFIX + sessionId, String.valueOf(userId), JSONObject.toJSONString(member));
+    }
+
+    /**
+     * 建立私聊之后调用,双方的私聊列表已经加载过的话,加上对方
+     */
+    public void onPrivateSessionCreated(long sessionId, long userId1, long userId2) {
+        boolean loaded1 = Boolean.TRUE.equals(stringRedisTemplate.hasKey(PRIVATE_LIST_PREFIX + userId1));
+        boolean loaded2 = Boolean.TRUE.equals(stringRedisTemplate.hasKey(PRIVATE_LIST_PREFIX + userId2));
+        if (!loaded1 && !loaded2) {
+            return;
+        }
+        incrementalUpdates.increment();
+        Map<Long, UserNameAndAvatar> users = new HashMap<>(4);
+        for (UserNameAndAvatar user : userMapper.selectNameAndAvatarByIds(List.of(userId1, userId2))) {
+            users.put(user.getId(), user);
+        }
+        if (loaded1) {
+            addPrivatePeer(sessionId, userId1, userId2, users.get(userId2));
+        }
+        if (loaded2) {
+            addPrivatePeer(sessionId, userId2, userId1, users.get(userId1));
+        }
+    }
+
+    private void addPrivatePeer(long sessionId, long userId, long peerId, UserNameAndAvatar peer) {
+        PrivateMemberQueryHandler session = new PrivateMemberQueryHandler(sessionId, peerId,
+                peer == null ? null : peer.getUserName(), peer == null ? null : peer.getAvatar());
+        byte[] list = bytes(PRIVATE_LIST_PREFIX + userId);
+        byte[] hash = bytes(PRIVATE_PEER_PREFIX + userId);
+        byte[] sessionField = bytes(String.valueOf(sessionId));
+        byte[] data = bytes(JSONObject.toJSONString(session));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            bumpGeneration(connection, PRIVATE_LIST_PREFIX + userId);
+            return connection.eval(ADD_IF_LOADED_SCRIPT, ReturnType.INTEGER, 2, list, hash, sessionField, sessionField, data);
+        });
+    }
+
+    private static long joinedAtMillis(GroupMemberQuery member) {
+        return member.getJoinedTime() == null ? 0
+                : member.getJoinedTime().atZone(ZoneId.of("Asia/Shanghai")).toInstant().toEpochMilli();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public Map<String, Object> snapshot() {
+        long hit = hits.sum();
+        long miss = misses.sum();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("hits", hit);
+        snapshot.put("misses", miss);
+        snapshot.put("hitRatio", hit + miss == 0 ? 0 : (double) hit / (hit + miss));
+        snapshot.put("fills", fills.sum());
+        snapshot.put("staleFills", staleFills.sum());
+        snapshot.put("incrementalUpdates", incrementalUpdates.sum());
+        return snapshot;
+    }
+}
@@ -0,0 +1,370 @@
+package org.com.code.im.service.session.impl;
+
+import com.alibaba.fastjson.JSONObject;
+import org.com.code.im.exception.SyncNotReadyException;
+import org.com.code.im.mapper.MessageMapper;
+import org.com.code.im.mapper.SessionMapper;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.utils.TimeConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.Limit;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按对话的seq游标增量同步消息
+ *
+ * 原来客户端每次连接,OfflineMessageHandler都要取出全部未读消息,再推送最早未读消息之前15天的历史消息,
+ * 不管客户端本地是不是已经有了这些消息,断线重连一次的代价和这15天的消息量成正比
+ *
+ * 现在每个对话的消息都有一个递增的seq(ChatMsgConsumer分配,session_seq中记录每个对话最新的seq),
+ * 客户端用 sync=cursor 连接,然后把每个对话收到的最大seq发给服务器(见SessionSyncHandler):
+ * 1. plan: 一次HMGET取出用户所有对话最新的seq,和客户端的游标比较,只留下有缺口的对话
+ *    客户端没有给出游标的对话(新设备,新加入的对话)只同步最新的initialMessages条,
+ *    缺口超过maxMessagesPerSession的只同步最新的部分,更早的消息由客户端通过/api/chat/history按需翻页
+ * 2. loadPage: 每次读取一个对话缺口中的一页,
+ *    session_timeline_sessionId中保存着对话最近timelineMaxSize条消息的seq -> messageId,缺口在里面就从redis读取,
+ *    缺口的开始已经不在redis中,就按(sessionId, seq)从mysql读取,
+ *    mysql中的seq不连续,而缺口中的消息可能还在messages_stream中等待写入mysql时,抛出SyncNotReadyException,
+ *    由调用方稍后重试,不会把游标移到还没有同步的消息后面
+ * 3. acknowledge: 一页写出之后,把这一页的消息从unread_message_userId中删除,
+ *    没有同步到的未读消息留给不按游标同步的设备
+ *
+ * 这样重连的代价只和错过的消息数量成正比
+ */
+@Component
+public class SessionSync {
+
+    /**
+     * sessionId -> 对话最新的seq
+     */
+    public static final String SEQ_KEY = "session_seq";
+    /**
+     * session_timeline_sessionId, ZSet, seq -> messageId
+     */
+    public static final String TIMELINE_PREFIX = "session_timeline_";
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private MessageMapper messageMapper;
+
+    @Autowired
+    private SessionMapper sessionMapper;
+
+    /**
+     * 一页最多多少条消息,一页写完并且channel可写之后才读取下一页
+     */
+    @Value("${app.sync.page-size:200}")
+    private int pageSize;
+
+    @Value("${app.sync.timeline-max-size:1000}")
+    private long timelineMaxSize;
+
+    @Value("${app.sync.initial-messages:50}")
+    private long initialMessages;
+
+    @Value("${app.sync.max-messages-per-session:2000}")
+    private long maxMessagesPerSession;
+
+    /**
+     * 缺口中的消息还没有写入mysql时,隔多久重试,最多重试多少次,之后这个对话算作同步失败,游标不会越过缺口
+     */
+    @Value("${app.sync.not-ready-retry-millis:500}")
+    private long notReadyRetryMillis;
+
+    @Value("${app.sync.not-ready-max-retries:20}")
+    private int notReadyMaxRetries;
+
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder sessionsChecked = new LongAdder();
+    private final LongAdder sessionsBehind = new LongAdder();
+    private final LongAdder truncatedSessions = new LongAdder();
+    private final LongAdder pagesFromTimeline = new LongAdder();
+    private final LongAdder pagesFromDatabase = new LongAdder();
+    private final LongAdder messagesSynced = new LongAdder();
+    private final LongAdder notReadyPages = new LongAdder();
+
+    public long getTimelineMaxSize() {
+        return timelineMaxSize;
+    }
+
+    public long getNotReadyRetryMillis() {
+        return notReadyRetryMillis;
+    }
+
+    public int getNotReadyMaxRetries() {
+        return notReadyMaxRetries;
+    }
+
+    /**
+     * 找出用户所有需要同步的对话,在HandlerStage.OFFLINE_REPLAY的线程中调用
+     *
+     * @param cursors sessionId -> 客户端收到的最大seq
+     */
+    public List<Gap> plan(long userId, Map<Long, Long> cursors) {
+        syncs.increment();
+        return gapsOf(sessionMapper.queryAllSessionIdList(userId), cursors);
+    }
+
+    /**
+     * 按游标计算这些对话的缺口,游标之后没有新消息的对话不在返回的列表中
+     * OfflineMessageHandler也用它按读取游标推送大群的未读消息(见LargeGroupTimeline)
+     *
+     * @param cursors sessionId -> 已经收到的最大seq,没有游标的对话只同步最新的initialMessages条
+     */
+    public List<Gap> gapsOf(List<Long> sessionIds, Map<Long, Long> cursors) {
+        List<Gap> gaps = new ArrayList<>();
+        if (sessionIds == null || sessionIds.isEmpty()) {
+            return gaps;
+        }
+        List<String> fields = new ArrayList<>(sessionIds.size());
+        for (Long sessionId : sessionIds) {
+            fields.add(String.valueOf(sessionId));
+        }
+        List<Object> latestSequences = stringRedisTemplate.opsForHash().multiGet(SEQ_KEY, fields);
+        sessionsChecked.add(sessionIds.size());
+
+        for (int i = 0; i < sessionIds.size(); i++) {
+            Object latest = latestSequences.get(i);
+            long latestSeq = latest == null ? 0 : Long.parseLong(latest.toString());
+            Long cursor = cursors.get(sessionIds.get(i));
+            long afterSeq = cursor == null ? Math.max(0, latestSeq - initialMessages) : cursor;
+            if (latestSeq <= afterSeq) {
+                continue;
+            }
+            boolean truncated = false;
+            if (latestSeq - afterSeq > maxMessagesPerSession) {
+                afterSeq = latestSeq - maxMessagesPerSession;
+                truncated = true;
+                truncatedSessions.increment();
+            }
+            gaps.add(new Gap(sessionIds.get(i), afterSeq, latestSeq, truncated));
+        }
+        sessionsBehind.add(gaps.size());
+        return gaps;
+    }
+
+    /**
+     * 读取缺口中afterSeq之后的一页消息,按seq从小到大排列,在HandlerStage.OFFLINE_REPLAY的线程中调用
+     * 返回空列表表示这个对话已经没有可以同步的消息了
+     */
+    public List<Messages> loadPage(Gap gap) {
+        long sessionId = gap.getSessionId();
+        long afterSeq = gap.getAfterSeq();
+        long latestSeq = gap.getLatestSeq();
+        int limit = (int) Math.min(pageSize, latestSeq - afterSeq);
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        byte[] timelineKey = (TIMELINE_PREFIX + sessionId).getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined(new RedisCallback<Object>() {
+            @Override
+            public Object doInRedis(RedisConnection connection) throws DataAccessException {
+                // redis中最早的一条,判断缺口的开始是不是还在redis里
+                connection.zRangeWithScores(timelineKey, 0, 0);
+                connection.zRangeByScoreWithScores(timelineKey, afterSeq + 1, latestSeq, 0, limit);
+                return null;
+            }
+        });
+        Set<ZSetOperations.TypedTuple<Object>> oldest = (Set<ZSetOperations.TypedTuple<Object>>) results.get(0);
+        Set<ZSetOperations.TypedTuple<Object>> page = (Set<ZSetOperations.TypedTuple<Object>>) results.get(1);
+
+        boolean inTimeline = oldest != null && !oldest.isEmpty()
+                && oldest.iterator().next().getScore() <= afterSeq + 1;
+        if (!inTimeline) {
+            List<Messages> rows = messageMapper.queryMessagesBySessionSeq(sessionId, afterSeq, limit);
+            rows.removeIf(message -> message.getSeq() > latestSeq);
+            fillTimestamp(rows);
+            rows = contiguousPrefix(sessionId, afterSeq, rows);
+            if (!rows.isEmpty()) {
+                pagesFromDatabase.increment();
+                messagesSynced.add(rows.size());
+                return rows;
+            }
+            // mysql中没有,说明缺口开始的那部分消息已经丢失(比如redis中还没写入mysql的消息被清空),从redis中还有的部分继续
+        }
+        if (page == null || page.isEmpty()) {
+            return new ArrayList<>();
+        }
+        pagesFromTimeline.increment();
+
+        List<String> messageIds = new ArrayList<>(page.size());
+        for (ZSetOperations.TypedTuple<Object> tuple : page) {
+            messageIds.add(String.valueOf(tuple.getValue()));
+        }
+        List<Object> bodies = stringRedisTemplate.opsForHash().multiGet("messages", messageIds);
+        List<Messages> messages = new ArrayList<>(messageIds.size());
+        List<Long> inDatabase = new ArrayList<>();
+        for (int i = 0; i < messageIds.size(); i++) {
+            Object body = bodies.get(i);
+            if (body != null) {
+                messages.add(JSONObject.parseObject(body.toString(), Messages.class));
+            } else {
+                // 已经写入mysql并且从redis的messages中删除了
+                inDatabase.add(Long.parseLong(messageIds.get(i)));
+            }
+        }
+        if (!inDatabase.isEmpty()) {
+            List<Messages> rows = messageMapper.queryMessagesByIds(inDatabase);
+            fillTimestamp(rows);
+            messages.addAll(rows);
+        }
+        messages.sort(Comparator.comparingLong(Messages::getSeq));
+        messagesSynced.add(messages.size());
+        return messages;
+    }
+
+    /**
+     * seq从afterSeq + 1开始连续的部分;出现不连续的seq时,如果缺的消息可能还在messages_stream中等待写入mysql,
+     * 只返回前面连续的部分,一条都没有就抛出SyncNotReadyException
+     *
+     * messages_stream中最早的一条比缺口后面的那条消息还晚写入,说明缺的seq不是在等待写入,而是本来就没有用到
+     * (ChatMsgConsumer的seq只保证递增,不保证连续)或者已经丢失,这时候不再等待
+     */
+    private List<Messages> contiguousPrefix(long sessionId, long afterSeq, List<Messages> rows) {
+        int contiguous = 0;
+        while (contiguous < rows.size() && rows.get(contiguous).getSeq() == afterSeq + 1 + contiguous) {
+            contiguous++;
+        }
+        if (contiguous == rows.size() && !rows.isEmpty()) {
+            return rows;
+        }
+        long nextTimestamp = contiguous < rows.size() ? rows.get(contiguous).getTimestamp() : Long.MAX_VALUE;
+        Long oldestPending = oldestPendingTimestamp();
+        if (oldestPending == null || oldestPending > nextTimestamp) {
+            return rows;
+        }
+        notReadyPages.increment();
+        if (contiguous == 0) {
+            throw new SyncNotReadyException("对话" + sessionId + "的seq " + (afterSeq + 1) + " 还没有写入mysql");
+        }
+        return new ArrayList<>(rows.subList(0, contiguous));
+    }
+
+    /**
+     * messages_stream中最早一条消息的写入时间,stream为空返回null
+     */
+    private Long oldestPendingTimestamp() {
+        List<MapRecord<String, String, String>> oldest = stringRedisTemplate.opsForStream()
+                .range(MessageWriteBehind.STREAM_KEY, Range.unbounded(), Limit.limit().count(1));
+        return oldest == null || oldest.isEmpty() ? null : oldest.get(0).getId().getTimestamp();
+    }
+
+    /**
+     * 一页消息已经写出,从unread_message_userId中删除,在HandlerStage.OFFLINE_REPLAY的线程中调用
+     */
+    public void acknowledge(long userId, List<Messages> page) {
+        Object[] messageIds = new Object[page.size()];
+        for (int i = 0; i < page.size(); i++) {
+            messageIds[i] = String.valueOf(page.get(i).getMessageId());
+        }
+        stringRedisTemplate.opsForZSet().remove("unread_message_" + userId, messageIds);
+    }
+
+    /**
+     * mysql中没有存时间戳,按createdAt的时区换算成前端用的时间戳
+     */
+    private static void fillTimestamp(List<Messages> messages) {
+        for (Messages message : messages) {
+            if (message.getCreatedAt() != null) {
+                message.setTimestamp(TimeConverter.toTimestamp(message.getCreatedAt()));
+            }
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long pages = pagesFromTimeline.sum() + pagesFromDatabase.sum();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("syncs", syncs.sum());
+        snapshot.put("sessionsChecked", sessionsChecked.sum());
+        snapshot.put("sessionsBehind", sessionsBehind.sum());
+        snapshot.put("truncatedSessions", truncatedSessions.sum());
+        snapshot.put("pagesFromTimeline", pagesFromTimeline.sum());
+        snapshot.put("pagesFromDatabase", pagesFromDatabase.sum());
+        snapshot.put("messages", messagesSynced.sum());
+        snapshot.put("notReadyPages", notReadyPages.sum());
+        snapshot.put("avgPageSize", pages == 0 ? 0 : (double) messagesSynced.sum() / pages);
+        return snapshot;
+    }
+
+    /**
+     * 一个对话需要同步的范围 (afterSeq, latestSeq],afterSeq随着一页一页的同步向后移动
+     * 同一时间只在一个线程中修改(channel的EventLoop,或者正在读取下一页的stage线程)
+     */
+    public static final class Gap {
+        private final long sessionId;
+        private long afterSeq;
+        private final long latestSeq;
+        private final boolean truncated;
+        /**
+         * 连续遇到SyncNotReadyException的次数
+         */
+        private int notReadyRetries;
+
+        Gap(long sessionId, long afterSeq, long latestSeq, boolean truncated) {
+            this.sessionId = sessionId;
+            this.afterSeq = afterSeq;
+            this.latestSeq = latestSeq;
+            this.truncated = truncated;
+        }
+
+        public long getSessionId() {
+            return sessionId;
+        }
+
+        public long getAfterSeq() {
+            return afterSeq;
+        }
+
+        public void setAfterSeq(long afterSeq) {
+            this.afterSeq = afterSeq;
+        }
+
+        public long getLatestSeq() {
+            return latestSeq;
+        }
+
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public int incrementNotReadyRetries() {
+            return ++notReadyRetries;
+        }
+
+        public void resetNotReadyRetries() {
+            notReadyRetries = 0;
+        }
+
+        public Map<String, Object> toSummary() {
+            Map<String, Object> summary = new HashMap<>(4);
+            summary.put("sessionId", String.valueOf(sessionId));
+            summary.put("fromSeq", String.valueOf(afterSeq + 1));
+            summary.put("latestSeq", String.valueOf(latestSeq));
+            summary.put("truncated", truncated);
+            return summary;
+        }
+    }
+}
@@ -8,6 +8,7 @@ import org.com.code.im.exception.BadRequestException;
 import org.com.code.im.mapper.UserMapper;
 import org.com.code.im.pojo.User;
 import org.com.code.im.service.user.UserService;
+import org.com.code.im.utils.UserNameCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
@@ -36,6 +37,9 @@ public class UserImpl implements UserService {
     @Autowired
     private ESUserService esUserService;
 
+    @Autowired
+    private UserNameCache userNameCache;
+
     @Override
     @Transactional
     public Long selectUserIdByNameAndPasswordAndReturnUserId(User login) {
@@ -108,7 +112,10 @@ public class UserImpl implements UserService {
 
             esUserService.updateUserIndex(map);
 
-            return userMapper.updateUser(map);
+            Long result = userMapper.updateUser(map);
+            if (user.getUserName() != null)
+                userNameCache.invalidate(user.getId());
+            return result;
         }catch (Exception e) {
             e.printStackTrace();
             throw new DatabaseException("数据库修改用户发生错误");
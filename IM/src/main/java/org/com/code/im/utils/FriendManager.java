@@ -1,14 +1,37 @@
 package org.com.code.im.utils;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.roaringbitmap.longlong.Roaring64NavigableMap;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -17,6 +40,19 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * user1FollowUser2存放的是用户的关注列表
  * user1FollowedByUser2存放的是用户的粉丝列表
  * lockForEachUser则是针对每个用户的锁，用于确保线程安全，同时保证锁的颗粒度不会太大
+ *
+ * 持久化:
+ * 原来每10秒给每个用户重写 user_<id>_friendsXX.dat 和 user_<id>_followers.dat 两个文件,不管有没有修改,
+ * 而且要拿每个用户的写锁,用户一多,每10秒就是几百万次文件重写,期间关注,查询好友都要等锁
+ *
+ * 现在位图存放在 bitmap-path/store 下:
+ * 1. 用户按id打散到segmentCount个分段,每个分段一个文件(segment_XXXX.dat),写入和加载都用mmap
+ * 2. 每次关注/取关追加一条记录到变更日志(changes.log),每隔flushIntervalMillis写入磁盘并force,
+ *    同时标记这两个用户所在的分段为脏
+ * 3. 变更日志超过compactLogBytes之后,只重写脏的分段,写完之后清空变更日志;正常关闭时也会重写一次
+ * 4. 启动时并行mmap加载所有分段,再重放变更日志;有分段损坏时启动失败,不会用不完整的数据把它重写掉
+ * 5. 原来的 user_<id>_*.dat 第一次全部写入分段之后才创建迁移完成的标记(migrated),
+ *    没有标记之前每次启动都先读取原来的文件,迁移到一半崩溃留下的部分分段不会被当成全部数据
  */
 @Component
 public class FriendManager {
@@ -24,6 +60,42 @@ public class FriendManager {
     @Value("${app.data.bitmap-path}")
     private String BASE_FILE_PATH;
 
+    @Value("${app.friend-store.segments:64}")
+    private int configuredSegmentCount;
+
+    @Value("${app.friend-store.compact-log-bytes:16777216}")
+    private long compactLogBytes;
+
+    /**
+     * 启动时并行加载分段的线程数,0表示CPU核数
+     */
+    @Value("${app.friend-store.load-threads:0}")
+    private int loadThreads;
+
+    private static final int SEGMENT_MAGIC = 0x46524E44;
+    private static final int SEGMENT_VERSION = 1;
+    private static final int SEGMENT_HEADER_BYTES = 12;
+    private static final int RECORD_HEADER_BYTES = 13;
+    private static final String CHANGE_LOG_FILE = "changes.log";
+    private static final String MIGRATED_MARKER_FILE = "migrated";
+    /**
+     * 变更日志的一条记录: 操作, userId1, userId2
+     */
+    private static final int CHANGE_RECORD_BYTES = 17;
+    private static final byte OP_FOLLOW = 1;
+    private static final byte OP_UNFOLLOW = 2;
+
+    private static volatile int segmentCount = 64;
+    private static final Set<Integer> dirtySegments = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentLinkedQueue<long[]> pendingChanges = new ConcurrentLinkedQueue<>();
+
+    private Path storeDir;
+    private FileChannel changeLog;
+    /**
+     * 分段数量调小之后,编号超出范围的分段文件,下一次重写之后删除
+     */
+    private final List<Path> staleSegments = new ArrayList<>();
+
 
     private static final ConcurrentHashMap<Long, Roaring64NavigableMap> user1FollowUser2 = new ConcurrentHashMap<>();
     private static final ConcurrentHashMap<Long, Roaring64NavigableMap> user1FollowedByUser2 = new ConcurrentHashMap<>();
@@ -80,6 +152,7 @@ public class FriendManager {
         try {
             user1FollowUser2.computeIfAbsent(userId1, k -> new Roaring64NavigableMap()).add(userId2);
             user1FollowedByUser2.computeIfAbsent(userId2, k -> new Roaring64NavigableMap()).add(userId1);
+            recordChange(OP_FOLLOW, userId1, userId2);
         } catch (Exception e) {
             System.out.println("Error while updating follow relationships: " + e.getMessage());
         } finally {
@@ -117,6 +190,7 @@ public class FriendManager {
             if (followedBy != null) {
                 followedBy.removeLong(userId1);
             }
+            recordChange(OP_UNFOLLOW, userId1, userId2);
         } catch (Exception e) {
             System.out.println("Error while removing follow relationships: " + e.getMessage());
         } finally {
@@ -196,77 +270,392 @@ public class FriendManager {
     }
 
     /**
-     * 把位图信息每隔一小时更新到磁盘中,最新的位图数据序列化并覆盖磁盘上的旧文件。
+     * 修改位图之后调用,在持有锁的情况下调用,保证记录的顺序和修改的顺序一致
+     */
+    private static void recordChange(byte op, long userId1, long userId2) {
+        dirtySegments.add(segmentOf(userId1));
+        dirtySegments.add(segmentOf(userId2));
+        pendingChanges.add(new long[]{op, userId1, userId2});
+    }
+
+    private static int segmentOf(long userId) {
+        // 雪花id的低位大多是0,先打散再取模,否则大部分用户会落在同一个分段
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), segmentCount);
+    }
+
+    /**
+     * 1. 把这段时间的修改追加到变更日志,force到磁盘,服务器崩溃最多丢失flushIntervalMillis内的修改
+     * 2. 变更日志超过compactLogBytes之后,只重写有修改的分段,然后清空变更日志
      *
      * Spring 的 @Scheduled 默认使用一个单线程的任务调度器，这意味着在同一时间只有一个线程会执行被 @Scheduled 标记的方法。
-     * 如果定时任务的执行时间超过设定的时间间隔（如 fixedRate 或 fixedDelay），后续的任务会被推迟执行，而不会并发运行。
+     * 如果定时任务的执行时间超过设定的时间间隔，后续的任务会被推迟执行，而不会并发运行。
      */
-    @Scheduled(fixedRate = 10000)
+    @Scheduled(fixedDelayString = "${app.friend-store.flush-interval-millis:1000}")
     public void saveAllUsersToDisk() {
-        /**
-         *  _friendsXX.dat 这里的XX号是占位符,是为了凑成统一长度的文件名,方便加载数据的
-         */
-        saveUsersToDisk(user1FollowUser2, "_friendsXX.dat");
-        saveUsersToDisk(user1FollowedByUser2, "_followers.dat");
+        try {
+            flushChangeLog();
+            if (changeLog.size() >= compactLogBytes) {
+                compact();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
-    private void saveUsersToDisk(ConcurrentHashMap<Long, Roaring64NavigableMap> userMap, String suffix) {
-        for (Long userId : userMap.keySet()) {
-            //获取user1关注列表的锁
-            ReentrantReadWriteLock lock1 = lockForFollowing.computeIfAbsent(userId, k -> new ReentrantReadWriteLock());
-            //获取user1粉丝列表的锁a
-            ReentrantReadWriteLock lock2 = lockForFollowers.computeIfAbsent(userId, k -> new ReentrantReadWriteLock());
+    /**
+     * 正常关闭时把所有修改写入分段,下次启动不用重放变更日志
+     */
+    @PreDestroy
+    public void shutdown() {
+        try {
+            flushChangeLog();
+            compact();
+            changeLog.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            // 按照锁的哈希值排序，避免死锁
-            ReentrantReadWriteLock firstLock = lock1.hashCode() < lock2.hashCode() ? lock1 : lock2;
-            ReentrantReadWriteLock secondLock = lock1.hashCode() < lock2.hashCode() ? lock2 : lock1;
+    private synchronized void flushChangeLog() throws IOException {
+        if (pendingChanges.isEmpty()) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CHANGE_RECORD_BYTES * 1024);
+        long[] change;
+        while ((change = pendingChanges.poll()) != null) {
+            if (!buffer.hasRemaining()) {
+                writeFully(buffer);
+            }
+            buffer.put((byte) change[0]).putLong(change[1]).putLong(change[2]);
+        }
+        writeFully(buffer);
+        changeLog.force(false);
+    }
 
-            firstLock.writeLock().lock();
-            secondLock.writeLock().lock();
-            try {
-                Roaring64NavigableMap bitmap = userMap.get(userId);
-                if (bitmap != null) {
-                    try {
-                        String filePath = Paths.get(BASE_FILE_PATH, "user_" + userId + suffix).toString();
-                        try (DataOutputStream fos = new DataOutputStream(new FileOutputStream(filePath))) {
-                            bitmap.serialize(fos);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    } catch (Exception e) {
-                        System.out.println("Failed to save user " + userId + " data: " + e.getMessage());
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            changeLog.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * 重写有修改的分段,全部写完之后才清空变更日志,
+     * 中途崩溃的话变更日志还在,重启时重放,关注和取关都是幂等的,重放已经写进分段的修改不影响结果
+     */
+    private synchronized void compact() throws IOException {
+        if (dirtySegments.isEmpty() && staleSegments.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        Set<Integer> segments = new HashSet<>();
+        for (Integer segment : dirtySegments) {
+            // 先移除再写入,写入期间的修改会重新标记
+            dirtySegments.remove(segment);
+            segments.add(segment);
+        }
+        try {
+            Map<Integer, List<Long>> followingIds = idsBySegment(user1FollowUser2, segments);
+            Map<Integer, List<Long>> followerIds = idsBySegment(user1FollowedByUser2, segments);
+            for (Integer segment : segments) {
+                writeSegment(segment,
+                        followingIds.getOrDefault(segment, Collections.emptyList()),
+                        followerIds.getOrDefault(segment, Collections.emptyList()));
+            }
+        } catch (IOException | RuntimeException e) {
+            dirtySegments.addAll(segments);
+            throw e;
+        }
+        for (Path stale : staleSegments) {
+            Files.deleteIfExists(stale);
+        }
+        staleSegments.clear();
+        changeLog.truncate(0);
+        changeLog.force(true);
+        System.out.println("FriendManager rewrote " + segments.size() + " segments in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    private static Map<Integer, List<Long>> idsBySegment(ConcurrentHashMap<Long, Roaring64NavigableMap> userMap, Set<Integer> segments) {
+        Map<Integer, List<Long>> ids = new HashMap<>();
+        for (Long userId : userMap.keySet()) {
+            int segment = segmentOf(userId);
+            if (segments.contains(segment)) {
+                ids.computeIfAbsent(segment, k -> new ArrayList<>()).add(userId);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * 分段文件格式: MAGIC, VERSION, 记录数量, 然后每条记录是 类型(0关注列表,1粉丝列表), userId, 位图的字节数, 位图
+     * 先写临时文件,force之后再改名替换,替换是原子的,崩溃时旧的分段还在
+     */
+    private void writeSegment(int segment, List<Long> followingIds, List<Long> followerIds) throws IOException {
+        List<byte[]> records = new ArrayList<>(followingIds.size() + followerIds.size());
+        List<Long> recordUserIds = new ArrayList<>(followingIds.size() + followerIds.size());
+        List<Byte> recordKinds = new ArrayList<>(followingIds.size() + followerIds.size());
+        long size = SEGMENT_HEADER_BYTES;
+        for (int kind = 0; kind < 2; kind++) {
+            List<Long> userIds = kind == 0 ? followingIds : followerIds;
+            ConcurrentHashMap<Long, Roaring64NavigableMap> userMap = kind == 0 ? user1FollowUser2 : user1FollowedByUser2;
+            ConcurrentHashMap<Long, ReentrantReadWriteLock> locks = kind == 0 ? lockForFollowing : lockForFollowers;
+            for (Long userId : userIds) {
+                // 只需要这一个位图的读锁,不影响其他用户,也不阻塞对这个用户的查询
+                ReentrantReadWriteLock lock = locks.computeIfAbsent(userId, k -> new ReentrantReadWriteLock());
+                byte[] bytes;
+                lock.readLock().lock();
+                try {
+                    Roaring64NavigableMap bitmap = userMap.get(userId);
+                    if (bitmap == null || bitmap.isEmpty()) {
+                        continue;
                     }
+                    ByteArrayOutputStream out = new ByteArrayOutputStream((int) bitmap.serializedSizeInBytes());
+                    bitmap.serialize(new DataOutputStream(out));
+                    bytes = out.toByteArray();
+                } finally {
+                    lock.readLock().unlock();
                 }
-            } finally {
-                secondLock.writeLock().unlock();
-                firstLock.writeLock().unlock();
+                records.add(bytes);
+                recordUserIds.add(userId);
+                recordKinds.add((byte) kind);
+                size += RECORD_HEADER_BYTES + bytes.length;
             }
         }
+
+        Path target = segmentPath(segment);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).putInt(records.size());
+            for (int i = 0; i < records.size(); i++) {
+                byte[] bytes = records.get(i);
+                buffer.put(recordKinds.get(i)).putLong(recordUserIds.get(i)).putInt(bytes.length).put(bytes);
+            }
+            buffer.force();
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path segmentPath(int segment) {
+        return storeDir.resolve(String.format("segment_%04d.dat", segment));
     }
 
     /**
      * 每一次服务器重启后,从磁盘加载位图信息。
+     * 1. 多个线程并行地mmap读取所有分段,每个分段只有一个文件,不用像原来那样每个用户打开两个文件
+     * 2. 重放变更日志中上一次写入分段之后的修改
+     * 3. 还没有分段文件但是有原来的 user_<id>_friendsXX.dat / _followers.dat 时,从这些文件加载,然后写入分段
      * @PostConstruct 方法是单线程执行的
      */
     @PostConstruct
     public void loadAllUsersFromDisk() {
+        try {
+            load();
+        } catch (IOException | InterruptedException e) {
+            throw new IllegalStateException("Failed to load friend bitmaps from " + BASE_FILE_PATH, e);
+        }
+    }
+
+    private void load() throws IOException, InterruptedException {
+        segmentCount = configuredSegmentCount;
         File dir = new File(BASE_FILE_PATH);
-        if (dir.exists() && dir.isDirectory()) {
-            for (File file : dir.listFiles()) {
-                String fileName = file.getName();
-                if (fileName.startsWith("user_") && fileName.endsWith("_friendsXX.dat")) {
-                    loadFromDisk(file, fileName, user1FollowUser2);
-                }else if (fileName.startsWith("user_") && fileName.endsWith("_followers.dat")){
-                    loadFromDisk(file, fileName, user1FollowedByUser2);
-                }
-            }
-        }else{
+        if (!dir.exists()) {
             if (dir.mkdirs()) {
                 System.out.println("Directory created: " + BASE_FILE_PATH);
             } else {
                 System.out.println("Failed to create directory: " + BASE_FILE_PATH);
             }
         }
+        storeDir = Paths.get(BASE_FILE_PATH, "store");
+        Files.createDirectories(storeDir);
+
+        long start = System.nanoTime();
+        List<Path> segmentFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(storeDir, "segment_*.dat")) {
+            for (Path path : stream) {
+                segmentFiles.add(path);
+            }
+        }
+        Path migratedMarker = storeDir.resolve(MIGRATED_MARKER_FILE);
+        boolean migrated = Files.exists(migratedMarker);
+        if (!migrated) {
+            // 先读原来的文件,再用已经写好的分段覆盖,分段里的数据更新
+            loadLegacyFiles(dir);
+        }
+        if (!segmentFiles.isEmpty()) {
+            loadSegments(segmentFiles);
+        }
+        long replayed = replayChangeLog();
+        changeLog = FileChannel.open(storeDir.resolve(CHANGE_LOG_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        System.out.println("FriendManager loaded " + user1FollowUser2.size() + " following bitmaps and "
+                + user1FollowedByUser2.size() + " follower bitmaps from " + segmentFiles.size() + " segments, replayed "
+                + replayed + " changes in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        // 旧格式迁移,分段数量变化,或者重放过变更日志,马上写一次分段
+        if (!dirtySegments.isEmpty() || !staleSegments.isEmpty()) {
+            compact();
+        }
+        if (!migrated) {
+            writeMigratedMarker(migratedMarker);
+        }
+    }
+
+    /**
+     * compact成功返回之后调用,这时原来的文件中的数据都已经在分段里了
+     */
+    private static void writeMigratedMarker(Path marker) throws IOException {
+        try (FileChannel channel = FileChannel.open(marker, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * 任何一个分段读取失败都让启动失败:
+     * 跳过损坏的分段继续启动的话,这个分段的用户在内存中是空的,下一次compact会把空的数据写回去,覆盖掉还能修复的文件
+     */
+    private void loadSegments(List<Path> segmentFiles) throws IOException, InterruptedException {
+        int threads = loadThreads > 0 ? loadThreads : Runtime.getRuntime().availableProcessors();
+        ExecutorService loader = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, segmentFiles.size())));
+        Map<Path, Future<?>> results = new LinkedHashMap<>();
+        try {
+            for (Path path : segmentFiles) {
+                if (segmentOf(path) >= segmentCount) {
+                    // 分段数量调小了,这个分段的用户之后写到新的分段里
+                    staleSegments.add(path);
+                }
+                results.put(path, loader.submit(() -> {
+                    loadSegment(path);
+                    return null;
+                }));
+            }
+        } finally {
+            loader.shutdown();
+            loader.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        for (Map.Entry<Path, Future<?>> result : results.entrySet()) {
+            try {
+                result.getValue().get();
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to load friend segment " + result.getKey()
+                        + ", restore it from a backup or move it aside before restarting", e.getCause());
+            }
+        }
+        if (!staleSegments.isEmpty()) {
+            markAllDirty();
+        }
+    }
+
+    private void loadSegment(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < SEGMENT_HEADER_BYTES || buffer.getInt() != SEGMENT_MAGIC || buffer.getInt() != SEGMENT_VERSION) {
+                throw new IOException("Invalid friend segment header: " + path);
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                byte kind = buffer.get();
+                long userId = buffer.getLong();
+                int length = buffer.getInt();
+                ByteBuffer slice = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                Roaring64NavigableMap bitmap = new Roaring64NavigableMap();
+                bitmap.deserialize(new DataInputStream(new ByteBufferInputStream(slice)));
+                (kind == 0 ? user1FollowUser2 : user1FollowedByUser2).put(userId, bitmap);
+                if (segmentOf(userId) != segmentOf(path)) {
+                    // 分段数量变了,这个用户要移到新的分段,两个分段都要重写
+                    dirtySegments.add(segmentOf(userId));
+                    if (segmentOf(path) < segmentCount) {
+                        dirtySegments.add(segmentOf(path));
+                    }
+                }
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("Trailing bytes after " + count + " records in friend segment: " + path);
+            }
+        } catch (RuntimeException e) {
+            // 记录数量或者长度不对时ByteBuffer抛出的越界异常
+            throw new IOException("Corrupt friend segment: " + path, e);
+        }
+    }
+
+    private static int segmentOf(Path path) {
+        String name = path.getFileName().toString();
+        return Integer.parseInt(name.substring(8, name.length() - 4));
+    }
+
+    /**
+     * 变更日志最后一条记录可能只写了一半(写入时崩溃),不完整的记录忽略
+     */
+    private long replayChangeLog() throws IOException {
+        Path path = storeDir.resolve(CHANGE_LOG_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long replayed = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long complete = channel.size() / CHANGE_RECORD_BYTES * CHANGE_RECORD_BYTES;
+            if (complete > 0) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, complete);
+                while (buffer.hasRemaining()) {
+                    byte op = buffer.get();
+                    long userId1 = buffer.getLong();
+                    long userId2 = buffer.getLong();
+                    if (op == OP_FOLLOW) {
+                        user1FollowUser2.computeIfAbsent(userId1, k -> new Roaring64NavigableMap()).add(userId2);
+                        user1FollowedByUser2.computeIfAbsent(userId2, k -> new Roaring64NavigableMap()).add(userId1);
+                    } else if (op == OP_UNFOLLOW) {
+                        Roaring64NavigableMap following = user1FollowUser2.get(userId1);
+                        if (following != null) {
+                            following.removeLong(userId2);
+                        }
+                        Roaring64NavigableMap followedBy = user1FollowedByUser2.get(userId2);
+                        if (followedBy != null) {
+                            followedBy.removeLong(userId1);
+                        }
+                    }
+                    dirtySegments.add(segmentOf(userId1));
+                    dirtySegments.add(segmentOf(userId2));
+                    replayed++;
+                }
+            }
+            if (complete != channel.size()) {
+                channel.truncate(complete);
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * 原来每个用户两个文件的格式,在迁移完成的标记写入之前每次启动都读取,读取之后写入分段,原来的文件不会被删除
+     */
+    private void loadLegacyFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.startsWith("user_") && fileName.endsWith("_friendsXX.dat")) {
+                loadFromDisk(file, fileName, user1FollowUser2);
+            }else if (fileName.startsWith("user_") && fileName.endsWith("_followers.dat")){
+                loadFromDisk(file, fileName, user1FollowedByUser2);
+            }
+        }
+        if (!user1FollowUser2.isEmpty() || !user1FollowedByUser2.isEmpty()) {
+            System.out.println("FriendManager migrating per-user bitmap files in " + dir + " to " + storeDir
+                    + ", the old user_*.dat files can be removed afterwards");
+            markAllDirty();
+        }
+    }
+
+    private static void markAllDirty() {
+        for (int segment = 0; segment < segmentCount; segment++) {
+            dirtySegments.add(segment);
+        }
     }
 
     private static void loadFromDisk(File file, String fileName,ConcurrentHashMap<Long, Roaring64NavigableMap> userMap) {
@@ -279,4 +668,30 @@ public class FriendManager {
             System.out.println("Failed to load user " + userId + " data: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Roaring64NavigableMap只能从DataInput反序列化,这里直接读mmap的ByteBuffer,不复制到byte[]
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package org.com.code.im.utils;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 消费聊天消息时按messageId去重,代替原来的BloomFilters
+ *
+ * 原来的BloomFilters有几个问题:
+ * 1. 5个布隆过滤器每个只按10000条消息设计,一个小时超过1万条消息之后误判率迅速升高,正常的消息会被当成重复消息丢掉
+ * 2. 每次检查都要拿全局的写锁
+ * 3. 轮换用的是静态方法上的@Scheduled,BloomFilters不是Spring的Bean,实际上从来没有轮换过
+ *
+ * 现在按配置的吞吐量计算大小,把时间分成若干个桶(滑动窗口),每个桶一个布隆过滤器:
+ * 1. 每个桶的容量 = expectedPerHour * 桶的时长, 误判率 = fpp / 桶的数量,整个窗口的误判率不超过fpp
+ * 2. 位数组是AtomicLongArray,设置位用CAS,不需要加锁
+ * 3. 进入新的时间段时,用CAS把最旧的桶换成新的空桶,不需要定时任务
+ *
+ * 检查和记录分成两步: mightContain只检查,这一批消息全部写入redis之后才mark,
+ * 写入失败时RocketMQ重新投递的这一批消息不会被当成重复消息丢掉
+ *
+ * 这里只在本机去重,队列重新分配到其他服务器之后的重复投递由ChatMsgConsumer在redis中记录的
+ * msg_assigned_messageId处理(见ChatMsgConsumer.restoreAssignments)
+ *
+ * 命中不代表一定重复: ChatMsgConsumer只对命中的消息读取msg_assigned_messageId确认,
+ * 误判的代价是多一次redis读取,不会丢弃正常的消息
+ */
+@Component
+public class MessageDedup {
+
+    /**
+     * 每小时最多多少条聊天消息,按这个数量计算布隆过滤器的大小,超过之后误判率会升高
+     */
+    @Value("${app.dedup.expected-per-hour:1000000}")
+    private long expectedPerHour;
+
+    /**
+     * 整个窗口内把一条新消息误判为重复消息的概率
+     */
+    @Value("${app.dedup.fpp:0.00001}")
+    private double fpp;
+
+    /**
+     * 去重的时间窗口,重复投递的消息一般在几分钟之内
+     */
+    @Value("${app.dedup.window-minutes:60}")
+    private long windowMinutes;
+
+    @Value("${app.dedup.buckets:6}")
+    private int bucketNumber;
+
+    private long bucketMillis;
+    private int bitsPerBucket;
+    private int hashFunctions;
+
+    /**
+     * 下标 = 时间段 % 数组长度,比bucketNumber多一个,正在写入的桶和窗口内的旧桶互不覆盖
+     */
+    private AtomicReferenceArray<Bucket> buckets;
+
+    /**
+     * 当前时间,测试中替换成可以控制的时钟来验证桶的轮换
+     */
+    LongSupplier clock = System::currentTimeMillis;
+
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        bucketMillis = Math.max(1, TimeUnit.MINUTES.toMillis(windowMinutes) / bucketNumber);
+        long expectedPerBucket = Math.max(1, expectedPerHour * bucketMillis / TimeUnit.HOURS.toMillis(1));
+        double fppPerBucket = fpp / bucketNumber;
+        // m = -n * ln(p) / (ln2)^2, k = m / n * ln2
+        long bits = (long) Math.ceil(-expectedPerBucket * Math.log(fppPerBucket) / (Math.log(2) * Math.log(2)));
+        bitsPerBucket = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, bits));
+        hashFunctions = Math.max(1, (int) Math.round((double) bitsPerBucket / expectedPerBucket * Math.log(2)));
+        buckets = new AtomicReferenceArray<>(bucketNumber + 1);
+    }
+
+    public long getWindowMinutes() {
+        return windowMinutes;
+    }
+
+    /**
+     * 只检查,不记录
+     *
+     * @return true表示这条消息在窗口内可能已经mark过(也可能是误判),需要到redis中确认
+     */
+    public boolean mightContain(long messageId) {
+        checked.increment();
+        long slot = clock.getAsLong() / bucketMillis;
+        long h1 = mix(messageId);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+
+        for (long s = slot - bucketNumber + 1; s <= slot; s++) {
+            Bucket bucket = buckets.get(indexOf(s));
+            if (bucket != null && bucket.slot == s && bucket.mightContain(h1, h2, hashFunctions)) {
+                duplicates.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 记录这条消息已经处理完成,在消息写入redis成功之后调用
+     */
+    public void mark(long messageId) {
+        long slot = clock.getAsLong() / bucketMillis;
+        long h1 = mix(messageId);
+        long h2 = mix(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        currentBucket(slot).put(h1, h2, hashFunctions);
+    }
+
+    private Bucket currentBucket(long slot) {
+        int index = indexOf(slot);
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            if (bucket != null && bucket.slot == slot) {
+                return bucket;
+            }
+            // 旧的桶已经离开窗口,换成新的空桶,CAS失败说明其他线程已经换好了
+            Bucket fresh = new Bucket(slot, bitsPerBucket);
+            if (buckets.compareAndSet(index, bucket, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    private int indexOf(long slot) {
+        return (int) Math.floorMod(slot, (long) buckets.length());
+    }
+
+    /**
+     * murmur3的fmix64,snowflake生成的id低位变化很有规律,需要先打散
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    public Map<String, Object> snapshot() {
+        long slot = clock.getAsLong() / bucketMillis;
+        double notFalsePositive = 1;
+        double currentFill = 0;
+        for (long s = slot - bucketNumber + 1; s <= slot; s++) {
+            Bucket bucket = buckets.get(indexOf(s));
+            if (bucket == null || bucket.slot != s) {
+                continue;
+            }
+            double fill = bucket.fillRatio();
+            if (s == slot) {
+                currentFill = fill;
+            }
+            notFalsePositive *= 1 - Math.pow(fill, hashFunctions);
+        }
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("expectedPerHour", expectedPerHour);
+        snapshot.put("bitsPerBucket", bitsPerBucket);
+        snapshot.put("hashFunctions", hashFunctions);
+        snapshot.put("currentFillRatio", currentFill);
+        snapshot.put("estimatedFpp", 1 - notFalsePositive);
+        snapshot.put("checked", checked.sum());
+        snapshot.put("duplicates", duplicates.sum());
+        return snapshot;
+    }
+
+    private static final class Bucket {
+        final long slot;
+        final int bits;
+        final AtomicLongArray words;
+        final LongAdder setBits = new LongAdder();
+
+        Bucket(long slot, int bits) {
+            this.slot = slot;
+            this.bits = bits;
+            this.words = new AtomicLongArray((bits + 63) >>> 6);
+        }
+
+        boolean mightContain(long h1, long h2, int k) {
+            for (int i = 0; i < k; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) bits);
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return true表示至少设置了一个原来为0的位,也就是这个值之前不在桶里
+         */
+        boolean put(long h1, long h2, int k) {
+            boolean changed = false;
+            for (int i = 0; i < k; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) bits);
+                int index = bit >>> 6;
+                long mask = 1L << bit;
+                long word;
+                do {
+                    word = words.get(index);
+                    if ((word & mask) != 0) {
+                        break;
+                    }
+                } while (!words.compareAndSet(index, word, word | mask));
+                if ((word & mask) == 0) {
+                    setBits.increment();
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+        double fillRatio() {
+            return (double) setBits.sum() / bits;
+        }
+    }
+}
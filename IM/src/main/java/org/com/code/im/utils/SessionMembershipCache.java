@@ -0,0 +1,246 @@
+package org.com.code.im.utils;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对话成员的本地缓存
+ *
+ * 每条聊天消息都要读取redis中的 Session_sessionId (成员id -> 角色),
+ * 而对话的成员变化(进群,踢人,改角色,禁言,解散)远远少于消息的数量,所以在本机缓存一份:
+ *
+ * 1. 每个对话缓存一个排好序的long数组作为成员集合,角色放在下标对应的另一个long数组里,
+ *    查询用二分查找,不需要为每个成员创建Long和String对象
+ * 2. 最多缓存maxSessions个对话,超过之后淘汰最久没有访问的对话(LRU)
+ * 3. SessionImpl修改了对话成员之后调用invalidate,通过redis的发布订阅通知所有服务器删除自己的缓存,
+ *    万一通知丢失(比如和redis的连接断开重连),缓存的数据最多ttlSeconds之后也会重新加载
+ *
+ * 从redis加载的过程中如果收到了失效通知,加载的结果不放进缓存,避免把旧数据重新放回去
+ */
+@Component
+public class SessionMembershipCache implements MessageListener {
+
+    public static final String INVALIDATE_CHANNEL = "session_membership_invalidate";
+
+    @Qualifier("redisTemplateLong")
+    @Autowired
+    private RedisTemplate redisTemplate;
+
+    @Qualifier("strRedisTemplate")
+    @Autowired
+    private RedisTemplate stringRedisTemplate;
+
+    @Autowired
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${app.session-cache.max-sessions:10000}")
+    private int maxSessions;
+
+    @Value("${app.session-cache.ttl-seconds:300}")
+    private long ttlSeconds;
+
+    private Map<Long, SessionMembers> cache;
+
+    /**
+     * 每收到一次失效通知加1,加载前后比较,不一样说明加载期间有对话被修改了
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        cache = new LinkedHashMap<Long, SessionMembers>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, SessionMembers> eldest) {
+                if (size() > maxSessions) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 获取对话的成员,对话不存在(或已解散)返回null
+     */
+    public SessionMembers get(long sessionId) {
+        long now = System.nanoTime();
+        SessionMembers members;
+        synchronized (cache) {
+            members = cache.get(sessionId);
+        }
+        if (members != null && now < members.expireAt) {
+            hits.increment();
+            return members;
+        }
+        misses.increment();
+
+        long currentGeneration = generation.get();
+        Map<String, Long> entries = redisTemplate.opsForHash().entries("Session_" + sessionId);
+        if (entries == null || entries.isEmpty()) {
+            return null;
+        }
+        members = SessionMembers.of(entries, now + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        synchronized (cache) {
+            if (generation.get() == currentGeneration) {
+                cache.put(sessionId, members);
+            }
+        }
+        return members;
+    }
+
+    /**
+     * 对话成员在redis中修改完之后调用,通知所有服务器(包括本机)删除这个对话的缓存
+     */
+    public void invalidate(long sessionId) {
+        evict(sessionId);
+        try {
+            stringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, String.valueOf(sessionId));
+        } catch (Exception e) {
+            // 其他服务器最多ttlSeconds之后重新加载
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            evict(Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8)));
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void evict(long sessionId) {
+        invalidations.increment();
+        synchronized (cache) {
+            generation.incrementAndGet();
+            cache.remove(sessionId);
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long hit = hits.sum();
+        long miss = misses.sum();
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("size", size);
+        snapshot.put("hits", hit);
+        snapshot.put("misses", miss);
+        snapshot.put("hitRatio", hit + miss == 0 ? 0 : (double) hit / (hit + miss));
+        snapshot.put("evictions", evictions.sum());
+        snapshot.put("invalidations", invalidations.sum());
+        return snapshot;
+    }
+
+    /**
+     * 一个对话的成员,创建之后不再修改,可以在多个线程中共享
+     */
+    public static final class SessionMembers {
+        /**
+         * 从小到大排好序的成员id
+         */
+        private final long[] memberIds;
+        /**
+         * roles[i]是memberIds[i]的角色: 群聊中 -1 禁言, 0 普通成员, 1 管理员, 2 群主; 私聊中是发送状态
+         */
+        private final long[] roles;
+        private final boolean privateSession;
+        private final long expireAt;
+
+        private SessionMembers(long[] memberIds, long[] roles, boolean privateSession, long expireAt) {
+            this.memberIds = memberIds;
+            this.roles = roles;
+            this.privateSession = privateSession;
+            this.expireAt = expireAt;
+        }
+
+        static SessionMembers of(Map<String, Long> entries, long expireAt) {
+            boolean privateSession = entries.containsKey("private");
+            long[][] pairs = new long[entries.size()][];
+            int n = 0;
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                if ("private".equals(entry.getKey())) {
+                    continue;
+                }
+                Long role = entry.getValue();
+                pairs[n++] = new long[]{Long.parseLong(entry.getKey()), role == null ? 0 : role};
+            }
+            Arrays.sort(pairs, 0, n, (a, b) -> Long.compare(a[0], b[0]));
+            long[] memberIds = new long[n];
+            long[] roles = new long[n];
+            for (int i = 0; i < n; i++) {
+                memberIds[i] = pairs[i][0];
+                roles[i] = pairs[i][1];
+            }
+            return new SessionMembers(memberIds, roles, privateSession, expireAt);
+        }
+
+        public boolean contains(long userId) {
+            return Arrays.binarySearch(memberIds, userId) >= 0;
+        }
+
+        /**
+         * 不是成员返回null
+         */
+        public Long roleOf(long userId) {
+            int index = Arrays.binarySearch(memberIds, userId);
+            return index < 0 ? null : roles[index];
+        }
+
+        public boolean isPrivateSession() {
+            return privateSession;
+        }
+
+        public int size() {
+            return memberIds.length;
+        }
+
+        /**
+         * 返回的数组不能修改
+         */
+        public long[] memberIds() {
+            return memberIds;
+        }
+
+        /**
+         * 私聊中另一个用户的id,不是私聊或者userId不在这个对话里返回-1
+         */
+        public long peerOf(long userId) {
+            if (!privateSession || !contains(userId)) {
+                return -1;
+            }
+            for (long memberId : memberIds) {
+                if (memberId != userId) {
+                    return memberId;
+                }
+            }
+            return -1;
+        }
+    }
+}
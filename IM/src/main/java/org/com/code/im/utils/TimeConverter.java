@@ -10,4 +10,18 @@ public class TimeConverter {
                 ZoneId.of("Asia/Shanghai")
         );
     }
+
+    /**
+     * 毫秒时间戳 -> 数据库中createdAt使用的上海时间
+     */
+    public static LocalDateTime ofTimestamp(long timestampMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(timestampMillis), ZoneId.of("Asia/Shanghai"));
+    }
+
+    /**
+     * 数据库中的createdAt(上海时间) -> 前端使用的毫秒时间戳
+     */
+    public static long toTimestamp(LocalDateTime createdAt) {
+        return createdAt.atZone(ZoneId.of("Asia/Shanghai")).toInstant().toEpochMilli();
+    }
 }
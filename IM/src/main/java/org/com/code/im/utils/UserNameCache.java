@@ -0,0 +1,153 @@
+package org.com.code.im.utils;
+
+import jakarta.annotation.PostConstruct;
+import org.com.code.im.mapper.UserMapper;
+import org.com.code.im.pojo.User;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 用户id -> 用户名的本地缓存
+ *
+ * 建群,邀请入群时要查询每个成员的用户名写入group_members,GroupConsumer发送系统消息时又要再查一遍,
+ * 原来用queryUserNameByManyIds查询,它只返回用户名,调用的地方假设返回的顺序和传入的id一致(群主在最后),
+ * 但是 where id in (...) 并不保证顺序,顺序不一致时成员的昵称会对错人
+ *
+ * 现在按id查询id和用户名,放进Map按id对应:
+ * 1. 没有缓存的id按chunkSize分批查询,几千人的邀请也不会拼出一条过长的SQL
+ * 2. 最多缓存maxSize个用户,超过之后淘汰最久没有访问的用户(LRU),缓存ttlSeconds之后重新查询
+ * 3. 用户名只用于显示,修改用户名之后本机立即失效,其他服务器最多ttlSeconds之后更新
+ */
+@Component
+public class UserNameCache {
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Value("${app.user-name-cache.max-size:100000}")
+    private int maxSize;
+
+    @Value("${app.user-name-cache.ttl-seconds:600}")
+    private long ttlSeconds;
+
+    @Value("${app.user-name-cache.query-chunk-size:1000}")
+    private int chunkSize;
+
+    private Map<Long, Entry> cache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        cache = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * 返回这些用户的用户名,数据库中不存在的用户不在返回的Map中
+     */
+    public Map<Long, String> namesOf(Collection<Long> userIds) {
+        long now = System.nanoTime();
+        Map<Long, String> names = new HashMap<>(userIds.size() * 2);
+        List<Long> missing = new ArrayList<>();
+        synchronized (cache) {
+            for (Long userId : userIds) {
+                Entry entry = cache.get(userId);
+                if (entry != null && now < entry.expireAt) {
+                    names.put(userId, entry.userName);
+                } else {
+                    missing.add(userId);
+                }
+            }
+        }
+        hits.add(names.size());
+        misses.add(missing.size());
+        if (missing.isEmpty()) {
+            return names;
+        }
+
+        long expireAt = now + TimeUnit.SECONDS.toNanos(ttlSeconds);
+        for (int from = 0; from < missing.size(); from += chunkSize) {
+            List<Long> chunk = missing.subList(from, Math.min(from + chunkSize, missing.size()));
+            List<User> users = userMapper.queryIdAndNameByIds(chunk);
+            queries.increment();
+            synchronized (cache) {
+                for (User user : users) {
+                    names.put(user.getId(), user.getUserName());
+                    cache.put(user.getId(), new Entry(user.getUserName(), expireAt));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * 系统消息中列出的用户名,超过maxNames个只列出前maxNames个,后面加上总人数
+     */
+    public String joinNames(List<Long> userIds, int maxNames) {
+        List<Long> shown = userIds.size() > maxNames ? userIds.subList(0, maxNames) : userIds;
+        Map<Long, String> names = namesOf(shown);
+        StringBuilder sb = new StringBuilder();
+        for (Long userId : shown) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(names.getOrDefault(userId, String.valueOf(userId)));
+        }
+        if (userIds.size() > maxNames) {
+            sb.append("等").append(userIds.size()).append("人");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 修改用户名之后调用
+     */
+    public void invalidate(long userId) {
+        synchronized (cache) {
+            cache.remove(userId);
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long hit = hits.sum();
+        long miss = misses.sum();
+        int size;
+        synchronized (cache) {
+            size = cache.size();
+        }
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("size", size);
+        snapshot.put("hits", hit);
+        snapshot.put("misses", miss);
+        snapshot.put("hitRatio", hit + miss == 0 ? 0 : (double) hit / (hit + miss));
+        snapshot.put("queries", queries.sum());
+        return snapshot;
+    }
+
+    private static final class Entry {
+        final String userName;
+        final long expireAt;
+
+        Entry(String userName, long expireAt) {
+            this.userName = userName;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.com.code.im.netty.nettyCluster;
+
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.responseHandler.ResponseHandler;
+import org.com.code.im.rocketMq.producer.MsgProducer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * 本机是nodeA,消息队列的消费者在nodeA上,接收者连接在其他网关服务器上
+ */
+class PushRouterTest {
+
+    /**
+     * redis中的user_nodes_userId
+     */
+    private final Map<String, Set<String>> userNodes = new HashMap<>();
+    private List<Object> pipelineResults;
+
+    private MsgProducer msgProducer;
+    private PushRouter pushRouter;
+
+    @BeforeEach
+    void setUp() {
+        userNodes.put("user_nodes_2", Set.of("nodeB"));
+        userNodes.put("user_nodes_3", Set.of("nodeB", "nodeC"));
+        // nodeD的心跳已经过期
+        userNodes.put("user_nodes_4", Set.of("nodeD"));
+
+        RedisConnection connection = mock(RedisConnection.class, withSettings().defaultAnswer(invocation -> {
+            if ("sMembers".equals(invocation.getMethod().getName())) {
+                String key = new String((byte[]) invocation.getArgument(0), StandardCharsets.UTF_8);
+                pipelineResults.add(userNodes.getOrDefault(key, Collections.emptySet()));
+                return null;
+            }
+            return RETURNS_DEFAULTS.answer(invocation);
+        }));
+        RedisTemplate redis = mock(RedisTemplate.class);
+        when(redis.getStringSerializer()).thenReturn(RedisSerializer.string());
+        when(redis.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            pipelineResults = new ArrayList<>();
+            ((RedisCallback<?>) invocation.getArgument(0)).doInRedis(connection);
+            return pipelineResults;
+        });
+
+        PresenceRegistry presenceRegistry = new PresenceRegistry();
+        ReflectionTestUtils.setField(presenceRegistry, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(presenceRegistry, "nodeId", "nodeA");
+        ReflectionTestUtils.setField(presenceRegistry, "aliveNodes", Set.of("nodeA", "nodeB", "nodeC"));
+
+        msgProducer = mock(MsgProducer.class);
+        pushRouter = new PushRouter();
+        ReflectionTestUtils.setField(pushRouter, "presenceRegistry", presenceRegistry);
+        ReflectionTestUtils.setField(pushRouter, "msgProducer", msgProducer);
+    }
+
+    /**
+     * 连接在nodeB上的用户的推送转发到im_push_nodeB,每台服务器只转发一次,
+     * 连接在已经下线的服务器上的用户和不在线的用户一样返回给调用方存为未读消息
+     */
+    @Test
+    void pushIsForwardedToTheOwningNode() {
+        Messages message = new Messages();
+        message.setMessageId(1001);
+        message.setSessionId(7);
+        message.setSenderId(1);
+        message.setTimestamp(1_700_000_000_000L);
+        message.setContent("hello");
+        ResponseHandler response = new ResponseHandler(ResponseHandler.SUCCESS, "聊天消息", message);
+
+        List<Long> offline = pushRouter.push(response, List.of(2L, 3L, 4L, 5L));
+
+        assertEquals(List.of(4L, 5L), offline);
+        ArrayList<Long> sorted = new ArrayList<>();
+        NodePush toB = captured("im_push_nodeB");
+        for (long userId : toB.getUserIds()) {
+            sorted.add(userId);
+        }
+        Collections.sort(sorted);
+        assertEquals(List.of(2L, 3L), sorted);
+        assertEquals(1001, toB.getMessageId());
+        assertEquals(1_700_000_000_000L, toB.getTimestamp());
+        assertTrue(toB.getPayload().contains("hello"));
+
+        assertArrayEquals(new long[]{3}, captured("im_push_nodeC").getUserIds());
+        verify(msgProducer, times(2)).asyncSendMessage(any(), any(), eq(PushRouter.PUSH_TAG));
+    }
+
+    @Test
+    void singleUserMessageIsForwardedToTheOwningNode() {
+        pushRouter.sendMessage(2, "{\"code\":400}");
+
+        NodePush toB = captured("im_push_nodeB");
+        assertArrayEquals(new long[]{2}, toB.getUserIds());
+        assertEquals("{\"code\":400}", toB.getPayload());
+        verifyNoMoreInteractions(msgProducer);
+    }
+
+    private NodePush captured(String topic) {
+        ArgumentCaptor<Object> push = ArgumentCaptor.forClass(Object.class);
+        verify(msgProducer).asyncSendMessage(push.capture(), eq(topic), eq(PushRouter.PUSH_TAG));
+        return (NodePush) push.getValue();
+    }
+}
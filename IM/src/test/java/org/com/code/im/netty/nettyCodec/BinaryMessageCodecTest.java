@@ -0,0 +1,122 @@
+package org.com.code.im.netty.nettyCodec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.responseHandler.ResponseHandler;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BinaryMessageCodecTest {
+
+    private static final long[] VALUES = {
+            0, 1, 127, 128, 16_383, 16_384, Integer.MAX_VALUE, 1L << 35,
+            1_834_567_890_123_456_789L, Long.MAX_VALUE, -1, -128, Long.MIN_VALUE
+    };
+
+    @Test
+    void varLongRoundTrip() {
+        ByteBuf buf = Unpooled.buffer();
+        for (long value : VALUES) {
+            BinaryMessageCodec.writeVarLong(buf, value);
+        }
+        for (long value : VALUES) {
+            assertEquals(value, BinaryMessageCodec.readVarLong(buf));
+        }
+        assertEquals(0, buf.readableBytes());
+    }
+
+    /**
+     * 每个字节7位数据,负数不经过zigzag要占满10个字节
+     */
+    @Test
+    void varLongSize() {
+        assertEquals(1, sizeOf(0));
+        assertEquals(1, sizeOf(127));
+        assertEquals(2, sizeOf(128));
+        assertEquals(9, sizeOf(1_834_567_890_123_456_789L));
+        assertEquals(10, sizeOf(-1));
+    }
+
+    /**
+     * senderId和sequenceId经过zigzag,-1只占1个字节,解码之后还原成原来的值
+     */
+    @Test
+    void zigzagRoundTrip() {
+        for (long value : VALUES) {
+            Messages message = new Messages();
+            message.setMessageId(1_834_567_890_123_456_789L);
+            message.setSequenceId(3);
+            message.setSessionId(42);
+            message.setSenderId(value);
+            message.setTimestamp(1_700_000_000_000L);
+            message.setMessageType("text");
+            message.setContent("你好 😀");
+            message.setSeq(9);
+
+            ByteBuf buf = Unpooled.buffer();
+            BinaryMessageCodec.encodeResponse(new ResponseHandler(ResponseHandler.SUCCESS, "聊天消息", message, value), buf);
+
+            assertEquals(BinaryMessageCodec.FRAME_RESPONSE, buf.readByte());
+            assertEquals(ResponseHandler.SUCCESS, BinaryMessageCodec.readVarLong(buf));
+            assertEquals("聊天消息", BinaryMessageCodec.readString(buf));
+            assertEquals(value, unzigzag(BinaryMessageCodec.readVarLong(buf) - 1));
+            assertEquals(0x02, buf.readByte());
+            assertEquals(message.getMessageId(), BinaryMessageCodec.readVarLong(buf));
+            assertEquals(message.getSequenceId(), BinaryMessageCodec.readVarLong(buf));
+            assertEquals(message.getSessionId(), BinaryMessageCodec.readVarLong(buf));
+            int before = buf.readerIndex();
+            assertEquals(value, unzigzag(BinaryMessageCodec.readVarLong(buf)));
+            if (value == -1 || value == 0 || value == 1) {
+                assertEquals(1, buf.readerIndex() - before);
+            }
+            assertEquals(message.getTimestamp(), BinaryMessageCodec.readVarLong(buf));
+            assertEquals(message.getMessageType(), BinaryMessageCodec.readString(buf));
+            assertEquals(message.getContent(), BinaryMessageCodec.readString(buf));
+            assertEquals(message.getSeq(), BinaryMessageCodec.readVarLong(buf));
+            assertEquals(0, buf.readableBytes());
+        }
+    }
+
+    @Test
+    void clientMessageIsDecoded() {
+        ByteBuf buf = Unpooled.buffer();
+        BinaryMessageCodec.writeVarLong(buf, 5);
+        BinaryMessageCodec.writeVarLong(buf, 1_834_567_890_123_456_789L);
+        BinaryMessageCodec.writeString(buf, "text");
+        BinaryMessageCodec.writeString(buf, "hello");
+
+        Messages message = BinaryMessageCodec.decodeMessages(buf);
+        assertEquals(5, message.getSequenceId());
+        assertEquals(1_834_567_890_123_456_789L, message.getSessionId());
+        assertEquals("text", message.getMessageType());
+        assertEquals("hello", message.getContent());
+    }
+
+    @Test
+    void corruptedFramesAreRejected() {
+        ByteBuf tooLong = Unpooled.buffer();
+        for (int i = 0; i < 10; i++) {
+            tooLong.writeByte(0x80);
+        }
+        assertThrows(CorruptedFrameException.class, () -> BinaryMessageCodec.readVarLong(tooLong));
+
+        ByteBuf truncated = Unpooled.buffer();
+        BinaryMessageCodec.writeVarLong(truncated, 100);
+        truncated.writeByte('a');
+        assertThrows(CorruptedFrameException.class, () -> BinaryMessageCodec.readString(truncated));
+    }
+
+    private static int sizeOf(long value) {
+        ByteBuf buf = Unpooled.buffer();
+        BinaryMessageCodec.writeVarLong(buf, value);
+        return buf.readableBytes();
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
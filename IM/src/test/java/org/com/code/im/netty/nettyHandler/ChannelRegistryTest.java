@@ -0,0 +1,112 @@
+package org.com.code.im.netty.nettyHandler;
+
+import io.netty.channel.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+
+class ChannelRegistryTest {
+
+    private final ChannelRegistry registry = new ChannelRegistry();
+
+    @Test
+    void devicesAreKeptInLoginOrder() {
+        Channel phone = mock(Channel.class);
+        Channel pc = mock(Channel.class);
+        assertSame(ChannelRegistry.EMPTY, registry.add(1, phone, 3));
+        assertSame(ChannelRegistry.EMPTY, registry.add(1, pc, 3));
+
+        assertArrayEquals(new Channel[]{phone, pc}, registry.get(1));
+        assertSame(ChannelRegistry.EMPTY, registry.get(2));
+        assertEquals(1, registry.size());
+    }
+
+    /**
+     * 超过maxDevices时最早登录的设备被挤下线,maxDevices为0不限制
+     */
+    @Test
+    void earliestDeviceIsEvicted() {
+        Channel first = mock(Channel.class);
+        Channel second = mock(Channel.class);
+        Channel third = mock(Channel.class);
+        registry.add(1, first, 2);
+        registry.add(1, second, 2);
+
+        assertArrayEquals(new Channel[]{first}, registry.add(1, third, 2));
+        assertArrayEquals(new Channel[]{second, third}, registry.get(1));
+
+        assertSame(ChannelRegistry.EMPTY, registry.add(1, first, 0));
+        assertArrayEquals(new Channel[]{second, third, first}, registry.get(1));
+    }
+
+    @Test
+    void lastDeviceRemovalTakesUserOffline() {
+        Channel phone = mock(Channel.class);
+        Channel pc = mock(Channel.class);
+        registry.add(1, phone, 3);
+        registry.add(1, pc, 3);
+
+        assertFalse(registry.remove(1, mock(Channel.class)));
+        assertFalse(registry.remove(1, phone));
+        assertArrayEquals(new Channel[]{pc}, registry.get(1));
+        assertTrue(registry.remove(1, pc));
+        assertSame(ChannelRegistry.EMPTY, registry.get(1));
+        assertEquals(0, registry.size());
+        assertTrue(registry.remove(1, pc));
+        assertTrue(registry.remove(2, pc));
+
+        // 重新上线复用被删除的槽位
+        registry.add(1, phone, 3);
+        assertArrayEquals(new Channel[]{phone}, registry.get(1));
+        assertEquals(1, registry.size());
+    }
+
+    /**
+     * 足够多的用户上线下线,每个分片都会多次重建哈希表,重建之后所有在线用户都还能查到
+     */
+    @Test
+    void usersSurviveRehash() {
+        int users = 20_000;
+        Channel[] channels = new Channel[users];
+        for (int i = 0; i < users; i++) {
+            channels[i] = mock(Channel.class);
+            registry.add(userId(i), channels[i], 3);
+        }
+        assertEquals(users, registry.size());
+        for (int i = 0; i < users; i += 2) {
+            assertTrue(registry.remove(userId(i), channels[i]));
+        }
+        // 再上线一批新用户,触发丢弃TOMBSTONE的重建
+        for (int i = users; i < users * 2; i += 2) {
+            registry.add(userId(i), channels[i - users], 3);
+        }
+
+        Set<Long> online = new HashSet<>();
+        registry.forEachUser(online::add);
+        assertEquals(users, registry.size());
+        assertEquals(users, online.size());
+        for (int i = 0; i < users; i++) {
+            if (i % 2 == 0) {
+                assertSame(ChannelRegistry.EMPTY, registry.get(userId(i)));
+                assertArrayEquals(new Channel[]{channels[i]}, registry.get(userId(i + users)));
+            } else {
+                assertArrayEquals(new Channel[]{channels[i]}, registry.get(userId(i)));
+            }
+        }
+    }
+
+    /**
+     * 和雪花算法的id一样,低位变化不均匀
+     */
+    private static long userId(int i) {
+        return ((long) i << 22) | 7;
+    }
+}
@@ -0,0 +1,160 @@
+package org.com.code.im.netty.nettyHandler;
+
+import com.alibaba.fastjson.JSONObject;
+import org.com.code.im.mapper.MessageMapper;
+import org.com.code.im.mapper.SessionMapper;
+import org.com.code.im.pojo.Messages;
+import org.com.code.im.service.session.impl.LargeGroupTimeline;
+import org.com.code.im.service.session.impl.SessionSync;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class OfflineMessageHandlerTest {
+
+    private static final long USER_ID = 7;
+    private static final int UNREAD = 100_000;
+    private static final int PAGE_SIZE = 200;
+    private static final String SNAPSHOT_SUFFIX = USER_ID + "_test";
+    private static final String UNREAD_SNAPSHOT = "unread_replay_" + SNAPSHOT_SUFFIX;
+
+    private OfflineMessageHandler handler;
+    private MessageMapper messageMapper;
+
+    /**
+     * 每次从redis或mysql取出的消息体数量的最大值
+     */
+    private int maxIdsPerRange;
+    private int maxBodiesPerRead;
+    private int maxRowsPerQuery;
+
+    @BeforeEach
+    void setUp() {
+        RedisTemplate redis = mock(RedisTemplate.class);
+        ZSetOperations zSet = mock(ZSetOperations.class);
+        HashOperations hash = mock(HashOperations.class);
+        SetOperations set = mock(SetOperations.class);
+        when(redis.opsForZSet()).thenReturn(zSet);
+        when(redis.opsForHash()).thenReturn(hash);
+        when(redis.opsForSet()).thenReturn(set);
+
+        when(zSet.zCard(UNREAD_SNAPSHOT)).thenReturn((long) UNREAD);
+        when(zSet.range(eq(UNREAD_SNAPSHOT), anyLong(), anyLong())).thenAnswer(invocation -> {
+            long start = invocation.getArgument(1);
+            long end = Math.min(invocation.getArgument(2), UNREAD - 1L);
+            Set<String> ids = new LinkedHashSet<>();
+            for (long rank = start; rank <= end; rank++) {
+                ids.add(String.valueOf(rank + 1));
+            }
+            maxIdsPerRange = Math.max(maxIdsPerRange, ids.size());
+            return ids;
+        });
+        // 每10条消息有1条已经从redis中删除,只能从mysql读取
+        when(hash.multiGet(eq("messages"), anyCollection())).thenAnswer(invocation -> {
+            Collection<String> ids = invocation.getArgument(1);
+            List<Object> bodies = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                long messageId = Long.parseLong(id);
+                bodies.add(messageId % 10 == 0 ? null : JSONObject.toJSONString(message(messageId)));
+            }
+            maxBodiesPerRead = Math.max(maxBodiesPerRead, ids.size());
+            return bodies;
+        });
+
+        messageMapper = mock(MessageMapper.class);
+        when(messageMapper.queryMessagesByIds(anyList())).thenAnswer(invocation -> {
+            List<Long> ids = invocation.getArgument(0);
+            List<Messages> rows = new ArrayList<>(ids.size());
+            for (Long id : ids) {
+                Messages row = message(id);
+                row.setTimestamp(0);
+                row.setCreatedAt(LocalDateTime.now());
+                rows.add(row);
+            }
+            maxRowsPerQuery = Math.max(maxRowsPerQuery, rows.size());
+            return rows;
+        });
+
+        SessionMapper sessionMapper = mock(SessionMapper.class);
+        when(sessionMapper.queryAllSessionIdList(USER_ID)).thenReturn(new ArrayList<>());
+        LargeGroupTimeline largeGroupTimeline = mock(LargeGroupTimeline.class);
+        when(largeGroupTimeline.filterLarge(any())).thenReturn(new ArrayList<>());
+        when(set.members(anyString())).thenReturn(new LinkedHashSet<>());
+
+        handler = new OfflineMessageHandler();
+        handler.stringRedisTemplate = redis;
+        handler.messageMapper = messageMapper;
+        handler.sessionMapper = sessionMapper;
+        handler.largeGroupTimeline = largeGroupTimeline;
+        handler.sessionSync = mock(SessionSync.class);
+        ReflectionTestUtils.setField(handler, "pageSize", PAGE_SIZE);
+        ReflectionTestUtils.setField(handler, "historySessionBatch", 500);
+        ReflectionTestUtils.setField(handler, "userId", USER_ID);
+    }
+
+    /**
+     * 10万条未读消息分页推送,每次只有一页(pageSize条)消息体在内存里,全部按顺序推送,一条不少
+     */
+    @Test
+    void hundredThousandUnreadAreReplayedOnePageAtATime() {
+        ReflectionTestUtils.invokeMethod(handler, "prepareReplay", SNAPSHOT_SUFFIX);
+        assertEquals((long) UNREAD, ReflectionTestUtils.getField(handler, "unreadMessageNumber"));
+
+        long expectedId = 1;
+        int pages = 0;
+        while (true) {
+            Object page = ReflectionTestUtils.invokeMethod(handler, "loadNextPage");
+            String phase = String.valueOf(ReflectionTestUtils.getField(page, "phase"));
+            if ("DONE".equals(phase)) {
+                break;
+            }
+            assertEquals("UNREAD", phase);
+            List<Messages> messages = (List<Messages>) ReflectionTestUtils.getField(page, "messages");
+            assertTrue(messages.size() <= PAGE_SIZE, "page of " + messages.size());
+            for (Messages message : messages) {
+                assertEquals(expectedId++, message.getMessageId());
+            }
+            assertEquals(expectedId - 1, (long) ReflectionTestUtils.getField(page, "unreadEnd"));
+            pages++;
+        }
+
+        assertEquals(UNREAD + 1, expectedId);
+        assertEquals(UNREAD / PAGE_SIZE, pages);
+        assertTrue(maxIdsPerRange <= PAGE_SIZE, "ZRANGE returned " + maxIdsPerRange);
+        assertTrue(maxBodiesPerRead <= PAGE_SIZE, "HMGET read " + maxBodiesPerRead);
+        assertTrue(maxRowsPerQuery <= PAGE_SIZE, "mysql returned " + maxRowsPerQuery);
+    }
+
+    private static Messages message(long messageId) {
+        Messages message = new Messages();
+        message.setMessageId(messageId);
+        message.setSessionId(1);
+        message.setSenderId(2);
+        message.setContent("message " + messageId);
+        message.setMessageType("text");
+        message.setTimestamp(messageId);
+        return message;
+    }
+}
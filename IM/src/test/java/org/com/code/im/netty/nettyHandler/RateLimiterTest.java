@@ -0,0 +1,97 @@
+package org.com.code.im.netty.nettyHandler;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+
+class RateLimiterTest {
+
+    private static final long USER_ID = 7;
+    /**
+     * 每秒补充5个令牌,200毫秒一个
+     */
+    private static final long REFILL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+    private RateLimiter rateLimiter;
+
+    @BeforeEach
+    void setUp() {
+        rateLimiter = new RateLimiter();
+        ReflectionTestUtils.setField(rateLimiter, "enabled", true);
+        ReflectionTestUtils.setField(rateLimiter, "mode", "local");
+        ReflectionTestUtils.setField(rateLimiter, "burst", 10);
+        ReflectionTestUtils.setField(rateLimiter, "refillPerSecond", 5.0);
+        rateLimiter.nanoClock = now::get;
+    }
+
+    /**
+     * 一次性最多连发burst条,之后按照refillPerSecond补充
+     */
+    @Test
+    void burstThenRefill() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, rateLimiter.acquire(USER_ID));
+        }
+        assertEquals(REFILL_NANOS, rateLimiter.acquire(USER_ID), 1.0);
+
+        now.addAndGet(REFILL_NANOS / 2);
+        assertEquals(REFILL_NANOS / 2, rateLimiter.acquire(USER_ID), 1.0);
+
+        now.addAndGet(REFILL_NANOS / 2 + 1000);
+        assertEquals(0, rateLimiter.acquire(USER_ID));
+        assertTrue(rateLimiter.acquire(USER_ID) > 0);
+        assertEquals(11L, rateLimiter.snapshot().get("passed"));
+    }
+
+    /**
+     * 空闲再久,桶里也最多只有burst个令牌
+     */
+    @Test
+    void refillIsCappedAtBurst() {
+        assertEquals(0, rateLimiter.acquire(USER_ID));
+        now.addAndGet(TimeUnit.MINUTES.toNanos(10));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0, rateLimiter.acquire(USER_ID));
+        }
+        assertTrue(rateLimiter.acquire(USER_ID) > 0);
+    }
+
+    @Test
+    void usersHaveTheirOwnBuckets() {
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.acquire(USER_ID);
+        }
+        assertTrue(rateLimiter.acquire(USER_ID) > 0);
+        assertEquals(0, rateLimiter.acquire(USER_ID + 1));
+
+        rateLimiter.evict(USER_ID);
+        assertEquals(0, rateLimiter.acquire(USER_ID));
+    }
+
+    /**
+     * redis 模式下,其他服务器把redis桶里的令牌用完了,本机的令牌降到redis剩下的数量
+     */
+    @Test
+    void redisBucketLimitsLocalTokens() {
+        Answer<Object> redis = invocation -> "execute".equals(invocation.getMethod().getName())
+                ? 0L : RETURNS_DEFAULTS.answer(invocation);
+        ReflectionTestUtils.setField(rateLimiter, "stringRedisTemplate", mock(RedisTemplate.class, redis));
+        ReflectionTestUtils.setField(rateLimiter, "mode", "redis");
+
+        assertEquals(0, rateLimiter.acquire(USER_ID));
+        ReflectionTestUtils.invokeMethod(rateLimiter, "syncWithRedis");
+        assertEquals(REFILL_NANOS, rateLimiter.acquire(USER_ID), 1.0);
+        assertEquals(1L, rateLimiter.snapshot().get("redisSyncs"));
+    }
+}
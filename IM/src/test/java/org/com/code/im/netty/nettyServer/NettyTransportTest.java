@@ -0,0 +1,73 @@
+package org.com.code.im.netty.nettyServer;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUring;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mockStatic;
+
+class NettyTransportTest {
+
+    private MockedStatic<Epoll> epoll;
+    private MockedStatic<IOUring> ioUring;
+
+    @BeforeEach
+    void setUp() {
+        epoll = mockStatic(Epoll.class);
+        ioUring = mockStatic(IOUring.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        epoll.close();
+        ioUring.close();
+    }
+
+    private void available(boolean ioUringAvailable, boolean epollAvailable) {
+        ioUring.when(IOUring::isAvailable).thenReturn(ioUringAvailable);
+        epoll.when(Epoll::isAvailable).thenReturn(epollAvailable);
+    }
+
+    @Test
+    void availableTransportIsUsedAsConfigured() {
+        available(true, true);
+        assertEquals(NettyTransport.IO_URING, NettyTransport.IO_URING.resolve());
+        assertEquals(NettyTransport.EPOLL, NettyTransport.EPOLL.resolve());
+        assertEquals(NettyTransport.EPOLL, NettyTransport.AUTO.resolve());
+        assertEquals(NettyTransport.NIO, NettyTransport.NIO.resolve());
+    }
+
+    /**
+     * 内核不支持io_uring时降级到epoll
+     */
+    @Test
+    void ioUringFallsBackToEpoll() {
+        available(false, true);
+        assertEquals(NettyTransport.EPOLL, NettyTransport.IO_URING.resolve());
+    }
+
+    /**
+     * Windows/Mac上原生传输都不可用,全部降级到NIO
+     */
+    @Test
+    void everythingFallsBackToNio() {
+        available(false, false);
+        for (NettyTransport transport : NettyTransport.values()) {
+            assertEquals(NettyTransport.NIO, transport.resolve(), transport.name());
+            assertEquals(NioServerSocketChannel.class, transport.serverChannelClass(), transport.name());
+        }
+    }
+
+    @Test
+    void configuredNameIsParsed() {
+        assertEquals(NettyTransport.AUTO, NettyTransport.of(null));
+        assertEquals(NettyTransport.AUTO, NettyTransport.of(" "));
+        assertEquals(NettyTransport.IO_URING, NettyTransport.of("io-uring"));
+        assertEquals(NettyTransport.EPOLL, NettyTransport.of(" epoll "));
+    }
+}
@@ -0,0 +1,284 @@
+package org.com.code.im.rocketMq.consumer;
+
+import org.com.code.im.netty.nettyCluster.PushRouter;
+import org.com.code.im.responseHandler.ResponseHandler;
+import org.com.code.im.service.session.impl.ConversationIndex;
+import org.com.code.im.service.session.impl.LargeGroupTimeline;
+import org.com.code.im.service.session.impl.SessionSync;
+import org.com.code.im.utils.MessageDedup;
+import org.com.code.im.utils.SessionMembershipCache;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+class ChatMsgConsumerTest {
+
+    private static final long BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toMillis(20000));
+
+    /**
+     * redis中的msg_assigned_messageId和session_seq,只模拟ChatMsgConsumer读写的这两部分
+     */
+    private final Map<String, String> values = new HashMap<>();
+    private final Map<String, Long> sequences = new HashMap<>();
+    private List<Object> pipelineResults;
+    /**
+     * 实际发送到redis的命令数量,lua中每条消息的记录算作一条
+     */
+    private long issuedCommands;
+
+    private MessageDedup dedup;
+    private ChatMsgConsumer consumer;
+
+    @BeforeEach
+    void setUp() {
+        values.clear();
+        sequences.clear();
+        consumer = new ChatMsgConsumer();
+        ReflectionTestUtils.setField(consumer, "stringRedisTemplate", redisTemplate());
+        ReflectionTestUtils.setField(consumer, "pushRouter", mock(PushRouter.class, withSettings().stubOnly()));
+        ReflectionTestUtils.setField(consumer, "sessionMembershipCache", mock(SessionMembershipCache.class, withSettings().stubOnly()));
+        ReflectionTestUtils.setField(consumer, "sessionSync", mock(SessionSync.class, withSettings().stubOnly()));
+        ReflectionTestUtils.setField(consumer, "conversationIndex", mock(ConversationIndex.class, withSettings().stubOnly()));
+        ReflectionTestUtils.setField(consumer, "largeGroupTimeline", mock(LargeGroupTimeline.class, withSettings().stubOnly()));
+    }
+
+    private void useDedup(long expectedPerHour, double fpp) {
+        dedup = new MessageDedup();
+        ReflectionTestUtils.setField(dedup, "expectedPerHour", expectedPerHour);
+        ReflectionTestUtils.setField(dedup, "fpp", fpp);
+        ReflectionTestUtils.setField(dedup, "windowMinutes", 60L);
+        ReflectionTestUtils.setField(dedup, "bucketNumber", 6);
+        ReflectionTestUtils.setField(dedup, "clock", (LongSupplier) now::get);
+        dedup.init();
+        ReflectionTestUtils.setField(consumer, "messageDedup", dedup);
+    }
+
+    /**
+     * 一个小时100万条各不相同的消息,布隆过滤器填满之后会误判,但是误判的消息只会多一次确认,一条都不能丢
+     * 生产配置的误判率0.00001一个小时只有10次左右的误判,这里调高到0.001,保证确认的路径确实被走到
+     */
+    @Test
+    void noLegitimateMessageIsDroppedAtOneMillionPerHour() {
+        useDedup(1_000_000, 0.001);
+        int perBucket = 1_000_000 / 6;
+        int batchSize = 32;
+        long messageId = 1;
+        long sent = 0;
+        for (int bucket = 0; bucket < 6; bucket++) {
+            List<String> batch = new ArrayList<>(batchSize);
+            for (int i = 0; i < perBucket; i++) {
+                batch.add(json(messageId, messageId % 1000));
+                messageId++;
+                if (batch.size() == batchSize) {
+                    consumer.onMessages(batch);
+                    sent += batch.size();
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                consumer.onMessages(batch);
+                sent += batch.size();
+            }
+            now.addAndGet(BUCKET_MILLIS);
+        }
+
+        Map<String, Object> snapshot = consumer.snapshot();
+        assertEquals(sent, snapshot.get("messages"));
+        assertEquals(0L, snapshot.get("duplicateMessages"));
+        assertTrue((Long) snapshot.get("dedupFalseAlarms") > 0, "false positives were never exercised");
+    }
+
+    @Test
+    void deliveredMessageIsDroppedOnRedelivery() {
+        useDedup(1_000_000, 0.00001);
+        consumer.onMessages(List.of(json(42, 7)));
+        consumer.onMessages(List.of(json(42, 7)));
+
+        Map<String, Object> snapshot = consumer.snapshot();
+        assertEquals(1L, snapshot.get("messages"));
+        assertEquals(1L, snapshot.get("duplicateMessages"));
+    }
+
+    /**
+     * 其他服务器已经处理完成的消息,本机的布隆过滤器里没有,分配的lua读到完成标记之后丢弃
+     */
+    @Test
+    void messageDeliveredByAnotherNodeIsDropped() {
+        useDedup(1_000_000, 0.00001);
+        values.put(ChatMsgConsumer.ASSIGNED_PREFIX + 43, "1700000000000,3,1");
+        consumer.onMessages(List.of(json(43, 7), json(44, 7)));
+
+        Map<String, Object> snapshot = consumer.snapshot();
+        assertEquals(1L, snapshot.get("messages"));
+        assertEquals(1L, snapshot.get("duplicateMessages"));
+        assertEquals(0L, snapshot.get("dedupChecks"));
+    }
+
+    /**
+     * 上次写入redis失败的消息已经mark之前就失败了,布隆过滤器里没有,沿用第一次分配的seq
+     */
+    @Test
+    void unfinishedAssignmentIsReused() {
+        useDedup(1_000_000, 0.00001);
+        values.put(ChatMsgConsumer.ASSIGNED_PREFIX + 45, "1700000000000,9");
+        consumer.onMessages(List.of(json(45, 7)));
+
+        assertEquals("1700000000000,9,1", values.get(ChatMsgConsumer.ASSIGNED_PREFIX + 45));
+        assertEquals(1L, consumer.snapshot().get("redeliveredMessages"));
+    }
+
+    /**
+     * 50人的群写扩散,每个成员都要写入,500人和5000人的群读扩散,命令数量和成员数量无关;
+     * 每条命令只计数一次,按扩散方式统计的数量加上其他pipeline的命令,正好等于实际写入pipeline的命令数量
+     */
+    @Test
+    void diffusionCommandsAreCountedOncePerMessage() {
+        // 写扩散: 每个成员zAdd+sAdd, 每个离线成员zAdd, hSet+xAdd+timeline zAdd;
+        // 对话: zRemRangeByRank, sRem, 每个成员zAdd+hSet+未读数量一条
+        int members = 50;
+        Map<String, Object> snapshot = consumeOneMessage(members);
+        assertEquals(1L, snapshot.get("writeDiffusionMessages"));
+        assertEquals(2.0 * members + (members - 1) + 3 + 2 + 3.0 * members,
+                (Double) snapshot.get("writeDiffusionCommandsPerMessage"), 0);
+        assertEquals(issuedCommands, (double) snapshot.get("redisCommandsPerMessage"), 0);
+
+        // 读扩散: hSet+xAdd+timeline zAdd; 对话: zRemRangeByRank, sAdd+hSet, 发送者的读取游标
+        for (int largeMembers : new int[]{500, 5000}) {
+            setUp();
+            snapshot = consumeOneMessage(largeMembers);
+            assertEquals(1L, snapshot.get("readDiffusionMessages"));
+            assertEquals(0L, snapshot.get("writeDiffusionMessages"));
+            assertEquals(3 + 1 + 3, (Double) snapshot.get("readDiffusionCommandsPerMessage"), 0);
+            assertEquals(issuedCommands, (double) snapshot.get("redisCommandsPerMessage"), 0);
+        }
+    }
+
+    /**
+     * 成员1发送一条消息到有members个成员的群,除发送者之外的成员全部离线
+     */
+    private Map<String, Object> consumeOneMessage(int members) {
+        useDedup(1_000_000, 0.00001);
+        Map<String, Long> entries = new LinkedHashMap<>();
+        for (long userId = 1; userId <= members; userId++) {
+            entries.put(String.valueOf(userId), 0L);
+        }
+        SessionMembershipCache.SessionMembers sessionMembers = ReflectionTestUtils.invokeMethod(
+                SessionMembershipCache.SessionMembers.class, "of", entries, Long.MAX_VALUE);
+        SessionMembershipCache cache = mock(SessionMembershipCache.class, withSettings().stubOnly());
+        when(cache.get(7L)).thenReturn(sessionMembers);
+        PushRouter pushRouter = mock(PushRouter.class, withSettings().stubOnly());
+        when(pushRouter.push(any(ResponseHandler.class), anyList(), anyMap())).thenAnswer(invocation -> invocation.getArgument(1));
+
+        LargeGroupTimeline largeGroupTimeline = new LargeGroupTimeline();
+        ReflectionTestUtils.setField(largeGroupTimeline, "threshold", 500);
+        ConversationIndex conversationIndex = new ConversationIndex();
+        ReflectionTestUtils.setField(conversationIndex, "previewLength", 40);
+        ReflectionTestUtils.setField(consumer, "sessionMembershipCache", cache);
+        ReflectionTestUtils.setField(consumer, "pushRouter", pushRouter);
+        ReflectionTestUtils.setField(consumer, "largeGroupTimeline", largeGroupTimeline);
+        ReflectionTestUtils.setField(consumer, "conversationIndex", conversationIndex);
+
+        issuedCommands = 0;
+        consumer.onMessages(List.of(json(46, 7)));
+        return consumer.snapshot();
+    }
+
+    private static String json(long messageId, long sessionId) {
+        return "{\"messageId\":" + messageId + ",\"sessionId\":" + sessionId
+                + ",\"senderId\":1,\"content\":\"hi\",\"messageType\":\"text\"}";
+    }
+
+    private RedisTemplate redisTemplate() {
+        RedisStreamCommands streamCommands = mock(RedisStreamCommands.class, withSettings().stubOnly().defaultAnswer(invocation -> {
+            issuedCommands++;
+            return RETURNS_DEFAULTS.answer(invocation);
+        }));
+        RedisConnection connection = mock(RedisConnection.class, withSettings().stubOnly().defaultAnswer(invocation -> {
+            Object[] args = invocation.getArguments();
+            String command = invocation.getMethod().getName();
+            if (!"streamCommands".equals(command)) {
+                issuedCommands++;
+            }
+            switch (command) {
+                case "get":
+                    pipelineResults.add(values.get(string(args[0])));
+                    return null;
+                case "setEx":
+                    values.put(string(args[0]), string(args[2]));
+                    return null;
+                case "hIncrBy":
+                    long seq = sequences.merge(string(args[0]) + ":" + string(args[1]), ((Number) args[2]).longValue(), Long::sum);
+                    pipelineResults.add(seq);
+                    return null;
+                case "streamCommands":
+                    return streamCommands;
+                default:
+                    return RETURNS_DEFAULTS.answer(invocation);
+            }
+        }));
+        Answer<Object> answer = invocation -> {
+            switch (invocation.getMethod().getName()) {
+                case "executePipelined":
+                    pipelineResults = new ArrayList<>();
+                    ((RedisCallback<?>) invocation.getArgument(0)).doInRedis(connection);
+                    return pipelineResults;
+                case "execute":
+                    return assign(invocation);
+                default:
+                    return RETURNS_DEFAULTS.answer(invocation);
+            }
+        };
+        return mock(RedisTemplate.class, withSettings().stubOnly().defaultAnswer(answer));
+    }
+
+    /**
+     * ChatMsgConsumer.ASSIGN_SCRIPT: 没有记录的写入这次分配的值,已经有记录的返回原来的值
+     */
+    private List<Object> assign(InvocationOnMock invocation) {
+        Object[] arguments = invocation.getArguments();
+        List<String> keys = invocation.getArgument(1);
+        Object[] args = arguments.length == 3 && arguments[2] instanceof Object[]
+                ? (Object[]) arguments[2] : Arrays.copyOfRange(arguments, 2, arguments.length);
+        List<Object> assigned = new ArrayList<>(keys.size());
+        // ChatMsgConsumer把lua中每条消息的记录算作一条命令
+        issuedCommands += keys.size();
+        for (int i = 0; i < keys.size(); i++) {
+            String value = String.valueOf(args[i + 1]);
+            assigned.add(values.computeIfAbsent(keys.get(i), k -> value));
+        }
+        return assigned;
+    }
+
+    private static String string(Object value) {
+        return new String((byte[]) value, StandardCharsets.UTF_8);
+    }
+}
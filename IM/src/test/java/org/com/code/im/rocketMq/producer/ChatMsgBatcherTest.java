@@ -0,0 +1,76 @@
+package org.com.code.im.rocketMq.producer;
+
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.spring.core.RocketMQTemplate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ChatMsgBatcherTest {
+
+    private ChatMsgBatcher batcher;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        DefaultMQProducer producer = mock(DefaultMQProducer.class);
+        doThrow(new IllegalStateException("broker unavailable")).when(producer)
+                .send(any(Message.class), any(MessageQueueSelector.class), any(), any(SendCallback.class));
+        RocketMQTemplate template = mock(RocketMQTemplate.class);
+        when(template.getProducer()).thenReturn(producer);
+
+        batcher = new ChatMsgBatcher();
+        ReflectionTestUtils.setField(batcher, "producerTemplate", template);
+        ReflectionTestUtils.setField(batcher, "maxRetries", 2);
+        ReflectionTestUtils.setField(batcher, "spillCapacity", 100);
+        ReflectionTestUtils.setField(batcher, "retryDelayMillis", 0L);
+    }
+
+    /**
+     * 没有开启批量发送时没有发送线程重试,发送失败直接放弃,并给发送者回复失败
+     */
+    @Test
+    void droppedMessageIsCountedAndReported() {
+        batcher.sendOrderly("topic", "tag", 7, json());
+
+        Map<String, Object> snapshot = batcher.snapshot();
+        assertEquals(1L, snapshot.get("dropped"));
+        assertEquals(1L, snapshot.get("droppedNotified"));
+    }
+
+    /**
+     * 重试maxRetries次之后才放弃
+     */
+    @Test
+    void messageIsDroppedAfterMaxRetries() {
+        ReflectionTestUtils.setField(batcher, "sender", new Thread(() -> { }));
+        batcher.sendOrderly("topic", "tag", 7, json());
+        ArrayDeque<?> spill = (ArrayDeque<?>) ReflectionTestUtils.getField(batcher, "spill");
+        for (int attempt = 0; attempt < 2; attempt++) {
+            assertEquals(1, spill.size());
+            ReflectionTestUtils.invokeMethod(batcher, "spill", List.of(spill.poll()), new IllegalStateException("timeout"));
+        }
+
+        Map<String, Object> snapshot = batcher.snapshot();
+        assertEquals(0, spill.size());
+        assertEquals(2L, snapshot.get("retried"));
+        assertEquals(1L, snapshot.get("dropped"));
+        assertEquals(1L, snapshot.get("droppedNotified"));
+    }
+
+    private static String json() {
+        return "{\"messageId\":1001,\"sequenceId\":3,\"sessionId\":7,\"senderId\":1,\"content\":\"hi\",\"messageType\":\"text\"}";
+    }
+}
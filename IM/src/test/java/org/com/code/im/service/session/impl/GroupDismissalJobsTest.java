@@ -0,0 +1,159 @@
+package org.com.code.im.service.session.impl;
+
+import org.com.code.im.mapper.GroupMemberMapper;
+import org.com.code.im.mapper.MessageMapper;
+import org.com.code.im.mapper.SessionMapper;
+import org.com.code.im.netty.nettyCluster.PresenceRegistry;
+import org.com.code.im.pojo.Messages;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class GroupDismissalJobsTest {
+
+    private static final long SESSION_ID = 42;
+    private static final int CHUNK_SIZE = 1000;
+
+    /**
+     * mysql中这个群剩下的消息,按主键(createdAt, messageId)排好序
+     */
+    private final List<Messages> messages = new ArrayList<>();
+    private int members;
+    private int maxMessagesPerDelete;
+    private int failOnDelete = -1;
+    private int deletes;
+
+    private GroupDismissalJobs jobs;
+    private SessionMapper sessionMapper;
+    private ZSetOperations zSet;
+
+    @BeforeEach
+    void setUp() {
+        LocalDateTime start = LocalDateTime.of(2026, 1, 1, 0, 0);
+        for (int i = 0; i < 2500; i++) {
+            Messages message = new Messages();
+            // 每毫秒两条消息,边界上createdAt相同的消息靠messageId区分
+            message.setCreatedAt(start.plusNanos((i / 2) * 1_000_000L));
+            message.setMessageId(i + 1);
+            messages.add(message);
+        }
+        members = 2300;
+
+        MessageMapper messageMapper = mock(MessageMapper.class);
+        when(messageMapper.queryGroupMessageChunkBoundary(eq(SESSION_ID), anyInt())).thenAnswer(invocation -> {
+            int offset = invocation.getArgument(1);
+            if (messages.size() <= offset) {
+                return null;
+            }
+            Messages boundary = new Messages();
+            boundary.setCreatedAt(messages.get(offset).getCreatedAt());
+            boundary.setMessageId(messages.get(offset).getMessageId());
+            return boundary;
+        });
+        when(messageMapper.deleteGroupMessagesUpTo(eq(SESSION_ID), any(), anyLong())).thenAnswer(invocation -> {
+            if (deletes++ == failOnDelete) {
+                throw new IllegalStateException("Lock wait timeout exceeded");
+            }
+            LocalDateTime createdAt = invocation.getArgument(1);
+            long messageId = invocation.getArgument(2);
+            int before = messages.size();
+            messages.removeIf(message -> createdAt == null
+                    || message.getCreatedAt().isBefore(createdAt)
+                    || message.getCreatedAt().equals(createdAt) && message.getMessageId() <= messageId);
+            int deleted = before - messages.size();
+            maxMessagesPerDelete = Math.max(maxMessagesPerDelete, deleted);
+            return deleted;
+        });
+        GroupMemberMapper groupMemberMapper = mock(GroupMemberMapper.class);
+        when(groupMemberMapper.deleteGroupMembersChunk(eq(SESSION_ID), anyInt())).thenAnswer(invocation -> {
+            int deleted = Math.min(members, invocation.getArgument(1));
+            members -= deleted;
+            return deleted;
+        });
+        sessionMapper = mock(SessionMapper.class);
+        PresenceRegistry presenceRegistry = mock(PresenceRegistry.class);
+        when(presenceRegistry.getNodeId()).thenReturn("node-a");
+
+        RedisTemplate redis = mock(RedisTemplate.class);
+        zSet = mock(ZSetOperations.class);
+        when(redis.opsForZSet()).thenReturn(zSet);
+        when(redis.opsForHash()).thenReturn(mock(HashOperations.class));
+
+        jobs = new GroupDismissalJobs();
+        ReflectionTestUtils.setField(jobs, "stringRedisTemplate", redis);
+        ReflectionTestUtils.setField(jobs, "sessionMapper", sessionMapper);
+        ReflectionTestUtils.setField(jobs, "groupMemberMapper", groupMemberMapper);
+        ReflectionTestUtils.setField(jobs, "messageMapper", messageMapper);
+        ReflectionTestUtils.setField(jobs, "presenceRegistry", presenceRegistry);
+        ReflectionTestUtils.setField(jobs, "chunkSize", CHUNK_SIZE);
+        ReflectionTestUtils.setField(jobs, "throttleMillis", 0L);
+        ReflectionTestUtils.setField(jobs, "leaseSeconds", 60L);
+        ReflectionTestUtils.setField(jobs, "retryDelaySeconds", 60L);
+        ReflectionTestUtils.setField(jobs, "progressRetentionHours", 24L);
+    }
+
+    /**
+     * 2500条消息分成1000,1000,500三批删除,2300个成员分成1000,1000,300三批删除,最后删除群信息
+     */
+    @Test
+    void groupIsDeletedInChunks() {
+        ReflectionTestUtils.invokeMethod(jobs, "run", SESSION_ID);
+
+        assertTrue(messages.isEmpty());
+        assertEquals(0, members);
+        assertEquals(CHUNK_SIZE, maxMessagesPerDelete);
+        verify(sessionMapper).deleteGroupSession(SESSION_ID);
+        verify(zSet).remove(GroupDismissalJobs.JOBS_KEY, String.valueOf(SESSION_ID));
+
+        Map<String, Object> snapshot = jobs.snapshot();
+        assertEquals(2500L, snapshot.get("deletedMessages"));
+        assertEquals(2300L, snapshot.get("deletedMembers"));
+        assertEquals(6L, snapshot.get("chunks"));
+        assertEquals(1L, snapshot.get("completed"));
+        assertEquals(0L, snapshot.get("failures"));
+    }
+
+    /**
+     * 删除到一半失败,任务推迟retryDelaySeconds重试,重试时从剩下的消息继续,不重复删除
+     */
+    @Test
+    void failedJobResumesWhereItStopped() {
+        failOnDelete = 1;
+        ReflectionTestUtils.invokeMethod(jobs, "run", SESSION_ID);
+
+        assertEquals(1500, messages.size());
+        verify(sessionMapper, never()).deleteGroupSession(anyLong());
+        verify(zSet, never()).remove(any(), any());
+        assertEquals(1L, jobs.snapshot().get("failures"));
+        // 第一批之后续期一次,失败之后推迟重试一次
+        verify(zSet, times(2)).add(eq(GroupDismissalJobs.JOBS_KEY), eq(String.valueOf(SESSION_ID)), anyDouble());
+
+        ReflectionTestUtils.invokeMethod(jobs, "run", SESSION_ID);
+        assertTrue(messages.isEmpty());
+        assertEquals(0, members);
+        verify(sessionMapper).deleteGroupSession(SESSION_ID);
+        assertEquals(2500L, jobs.snapshot().get("deletedMessages"));
+        assertEquals(1L, jobs.snapshot().get("completed"));
+    }
+}
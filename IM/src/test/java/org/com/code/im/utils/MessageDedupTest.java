@@ -0,0 +1,100 @@
+package org.com.code.im.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageDedupTest {
+
+    /**
+     * 60分钟的窗口分成6个桶,每个桶10分钟,和application.yml一样按每小时100万条消息,误判率0.00001计算
+     * 这里只验证布隆过滤器本身;误判的消息不会被丢弃,见ChatMsgConsumerTest
+     */
+    private static final long EXPECTED_PER_HOUR = 1_000_000;
+    private static final int EXPECTED_PER_BUCKET = 166_666;
+    private static final double FPP = 0.00001;
+    private static final long BUCKET_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final AtomicLong now = new AtomicLong(TimeUnit.DAYS.toMillis(20000));
+
+    private MessageDedup dedup;
+
+    @BeforeEach
+    void setUp() {
+        dedup = new MessageDedup();
+        ReflectionTestUtils.setField(dedup, "expectedPerHour", EXPECTED_PER_HOUR);
+        ReflectionTestUtils.setField(dedup, "fpp", FPP);
+        ReflectionTestUtils.setField(dedup, "windowMinutes", 60L);
+        ReflectionTestUtils.setField(dedup, "bucketNumber", 6);
+        dedup.clock = now::get;
+        dedup.init();
+    }
+
+    @Test
+    void markedMessagesAreAlwaysReported() {
+        for (long id = 1; id <= EXPECTED_PER_BUCKET; id++) {
+            dedup.mark(id);
+        }
+        for (long id = 1; id <= EXPECTED_PER_BUCKET; id++) {
+            assertTrue(dedup.mightContain(id), "marked message " + id);
+        }
+    }
+
+    @Test
+    void checkingDoesNotMark() {
+        assertFalse(dedup.mightContain(42));
+        assertFalse(dedup.mightContain(42));
+        dedup.mark(42);
+        assertTrue(dedup.mightContain(42));
+    }
+
+    @Test
+    void falsePositiveRateStaysWithinConfiguredBound() {
+        // 整个窗口的每个桶都写满设计容量
+        long id = 0;
+        for (int bucket = 0; bucket < 6; bucket++) {
+            for (int i = 0; i < EXPECTED_PER_BUCKET; i++) {
+                dedup.mark(++id);
+            }
+            if (bucket < 5) {
+                now.addAndGet(BUCKET_MILLIS);
+            }
+        }
+
+        int probes = 2_000_000;
+        int falsePositives = 0;
+        for (int i = 0; i < probes; i++) {
+            if (dedup.mightContain(Long.MAX_VALUE - i)) {
+                falsePositives++;
+            }
+        }
+        // 期望20次左右,留出随机波动的余量
+        double rate = (double) falsePositives / probes;
+        assertTrue(rate <= FPP * 3, "false positive rate " + rate);
+    }
+
+    @Test
+    void bucketsRotateOutOfTheWindow() {
+        dedup.mark(7);
+
+        // 还在窗口内的最后一个桶
+        now.addAndGet(BUCKET_MILLIS * 5);
+        assertTrue(dedup.mightContain(7));
+
+        // 离开窗口之后不再被当成重复消息
+        now.addAndGet(BUCKET_MILLIS);
+        assertFalse(dedup.mightContain(7));
+
+        // 同一个数组下标换成新的桶之后,旧桶里的消息也不会被看到
+        now.addAndGet(BUCKET_MILLIS);
+        dedup.mark(8);
+        assertTrue(dedup.mightContain(8));
+        assertFalse(dedup.mightContain(7));
+    }
+}
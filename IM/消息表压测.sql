@@ -0,0 +1,142 @@
+-- 在本地的mysql中对比原来的messages表和按月分区的messages表
+-- 单独建一个im_bench库,不要在正式的库里执行
+--
+-- 用法:
+-- 1. 执行建表和存储过程
+-- 2. CALL generate_messages(100000000, 100000, 12); 生成1亿条消息,10万个对话,分布在最近12个月
+--    同样的数据会同时写入messages_flat(原来的结构)和messages(分区后的结构),生成需要较长时间
+-- 3. 执行最后的查询,对比EXPLAIN ANALYZE的结果(需要mysql 8.0.18以上)
+
+CREATE DATABASE IF NOT EXISTS `im_bench`;
+USE `im_bench`;
+
+-- 原来的结构
+CREATE TABLE IF NOT EXISTS messages_flat (
+    messageId BIGINT PRIMARY KEY,
+    sessionId BIGINT NOT NULL,
+    senderId BIGINT NOT NULL,
+    content TEXT,
+    messageType ENUM('text', 'image', 'file') DEFAULT 'text',
+    createdAt DATETIME(3) DEFAULT CURRENT_TIMESTAMP(3),
+
+    INDEX(createdAt,sessionId)
+)ENGINE=INNODB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
+-- 分区后的结构,分区的范围需要覆盖生成数据的时间范围
+CREATE TABLE IF NOT EXISTS messages (
+    messageId BIGINT NOT NULL,
+    sessionId BIGINT NOT NULL,
+    senderId BIGINT NOT NULL,
+    content TEXT,
+    messageType ENUM('text', 'image', 'file') DEFAULT 'text',
+    createdAt DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3),
+
+    PRIMARY KEY (sessionId, createdAt, messageId),
+    INDEX idx_messageId (messageId)
+)ENGINE=INNODB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci
+PARTITION BY RANGE COLUMNS(createdAt) (
+    PARTITION p000000 VALUES LESS THAN ('2025-10-01'),
+    PARTITION p202510 VALUES LESS THAN ('2025-11-01'),
+    PARTITION p202511 VALUES LESS THAN ('2025-12-01'),
+    PARTITION p202512 VALUES LESS THAN ('2026-01-01'),
+    PARTITION p202601 VALUES LESS THAN ('2026-02-01'),
+    PARTITION p202602 VALUES LESS THAN ('2026-03-01'),
+    PARTITION p202603 VALUES LESS THAN ('2026-04-01'),
+    PARTITION p202604 VALUES LESS THAN ('2026-05-01'),
+    PARTITION p202605 VALUES LESS THAN ('2026-06-01'),
+    PARTITION p202606 VALUES LESS THAN ('2026-07-01'),
+    PARTITION p202607 VALUES LESS THAN ('2026-08-01'),
+    PARTITION p202608 VALUES LESS THAN ('2026-09-01'),
+    PARTITION p202609 VALUES LESS THAN ('2026-10-01'),
+    PARTITION p202610 VALUES LESS THAN ('2026-11-01'),
+    PARTITION p202611 VALUES LESS THAN ('2026-12-01'),
+    PARTITION pmax VALUES LESS THAN (MAXVALUE)
+);
+
+-- 每批batchSize条,messageId按时间递增(和雪花算法一样),sessionId和senderId随机,
+-- 消息内容固定长度,保证两张表的行大小差不多
+DROP PROCEDURE IF EXISTS generate_messages;
+
+DELIMITER $$
+CREATE PROCEDURE generate_messages(IN total BIGINT, IN sessionCount INT, IN months INT)
+BEGIN
+    DECLARE batchSize INT DEFAULT 10000;
+    DECLARE generated BIGINT DEFAULT 0;
+    DECLARE startTime DATETIME(3) DEFAULT NOW(3) - INTERVAL months MONTH;
+    DECLARE spanMillis BIGINT DEFAULT TIMESTAMPDIFF(MICROSECOND, NOW(3) - INTERVAL months MONTH, NOW(3)) DIV 1000;
+
+    SET SESSION cte_max_recursion_depth = 100000;
+
+    WHILE generated < total DO
+        DROP TEMPORARY TABLE IF EXISTS bench_batch;
+        CREATE TEMPORARY TABLE bench_batch AS
+        WITH RECURSIVE seq(n) AS (
+            SELECT 0 UNION ALL SELECT n + 1 FROM seq WHERE n + 1 < batchSize
+        )
+        SELECT generated + n + 1 AS messageId,
+               FLOOR(RAND() * sessionCount) + 1 AS sessionId,
+               FLOOR(RAND() * sessionCount * 2) + 1 AS senderId,
+               RPAD('bench message ', 64, 'x') AS content,
+               startTime + INTERVAL ((generated + n) * spanMillis DIV total) * 1000 MICROSECOND AS createdAt
+        FROM seq;
+
+        START TRANSACTION;
+        INSERT INTO messages_flat(messageId, sessionId, senderId, content, messageType, createdAt)
+        SELECT messageId, sessionId, senderId, content, 'text', createdAt FROM bench_batch;
+        INSERT INTO messages(messageId, sessionId, senderId, content, messageType, createdAt)
+        SELECT messageId, sessionId, senderId, content, 'text', createdAt FROM bench_batch;
+        COMMIT;
+
+        SET generated = generated + batchSize;
+    END WHILE;
+    DROP TEMPORARY TABLE IF EXISTS bench_batch;
+END$$
+DELIMITER ;
+
+-- CALL generate_messages(100000000, 100000, 12);
+ANALYZE TABLE messages_flat, messages;
+
+-- 以下查询对应MessageMapper中的方法,@sessionId等变量换成实际存在的数据
+
+SET @sessionId = 42;
+SET @minTs = UNIX_TIMESTAMP(NOW() - INTERVAL 3 DAY) * 1000;
+SET @maxTs = UNIX_TIMESTAMP(NOW()) * 1000;
+
+-- queryMessagesBySessionCursor 第一页
+EXPLAIN ANALYZE
+SELECT messageId,sessionId,senderId,content,messageType,createdAt FROM messages_flat
+WHERE sessionId = @sessionId ORDER BY createdAt DESC, messageId DESC LIMIT 50;
+
+EXPLAIN ANALYZE
+SELECT messageId,sessionId,senderId,content,messageType,createdAt FROM messages
+WHERE sessionId = @sessionId ORDER BY createdAt DESC, messageId DESC LIMIT 50;
+
+-- queryMessagesBySessionCursor 后面的页,游标取上一页最后一条消息
+SELECT createdAt, messageId INTO @cursorCreatedAt, @cursorMessageId FROM (
+    SELECT createdAt, messageId FROM messages WHERE sessionId = @sessionId
+    ORDER BY createdAt DESC, messageId DESC LIMIT 1 OFFSET 49
+) lastOfPage;
+
+EXPLAIN ANALYZE
+SELECT messageId,sessionId,senderId,content,messageType,createdAt FROM messages
+WHERE sessionId = @sessionId
+  AND (createdAt < @cursorCreatedAt OR (createdAt = @cursorCreatedAt AND messageId < @cursorMessageId))
+ORDER BY createdAt DESC, messageId DESC LIMIT 50;
+
+-- queryMessagesByTimestamp
+EXPLAIN ANALYZE
+SELECT messageId,sessionId,senderId,content,messageType,createdAt FROM messages_flat
+WHERE sessionId IN (42,4242,42424)
+  AND createdAt > FROM_UNIXTIME(@minTs / 1000) AND createdAt < FROM_UNIXTIME(@maxTs / 1000)
+ORDER BY createdAt ASC;
+
+EXPLAIN ANALYZE
+SELECT messageId,sessionId,senderId,content,messageType,createdAt FROM messages
+WHERE sessionId IN (42,4242,42424)
+  AND createdAt > FROM_UNIXTIME(@minTs / 1000) AND createdAt < FROM_UNIXTIME(@maxTs / 1000)
+ORDER BY createdAt ASC;
+
+-- queryUnreadMessages
+EXPLAIN ANALYZE
+SELECT messageId,sessionId,senderId,content,messageType,createdAt FROM messages
+WHERE messageId IN (1, 50000000, 99999999);
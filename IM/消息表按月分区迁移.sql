@@ -0,0 +1,116 @@
+-- 把原来按messageId做主键的messages表迁移成按月分区,(sessionId, createdAt, messageId)为聚簇索引的表
+-- 新表的结构和 表格设计.sql 中的messages表一致
+--
+-- 步骤:
+-- 1. 创建新表messages_new,分区从旧表最早的消息所在的月份开始
+-- 2. 记下旧表当前最大的messageId作为快照边界,按messageId分批复制边界以内的数据,每批一个事务,不会长时间锁住旧表
+-- 3. 停止MessageWriteBehind的写入(或者停服),再用NOT EXISTS按批补上新表中还没有的消息,然后RENAME交换两张表
+--    MessageWriteBehind写入mysql的顺序和messageId的顺序不一致(批量写入,失败重试,消费积压),
+--    复制期间才写入旧表的消息id可能比已经复制过的范围还小,只按最大id继续复制会漏掉它们,所以交换之前必须补一遍
+--    MessageWriteBehind停止期间消息会留在redis的messages_stream中,恢复之后继续写入,不会丢失
+-- 4. 确认无误之后删除messages_old
+
+USE `im`;
+
+-- 1. 新表,分区按需要修改,至少覆盖旧表中最早的消息所在的月份,MessagePartitionMaintainer启动之后会自动补上未来的月份
+CREATE TABLE messages_new (
+    messageId BIGINT NOT NULL COMMENT '雪花算法',
+    sessionId BIGINT NOT NULL,
+    seq BIGINT NOT NULL DEFAULT 0 COMMENT '对话内递增的消息序号,旧消息没有序号,为0',
+    senderId BIGINT NOT NULL,
+    content TEXT COMMENT '文本内容或媒体URL',
+    messageType ENUM('text', 'image', 'file') DEFAULT 'text',
+    createdAt DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) COMMENT '把消息的创建时间精度设置成毫秒级别',
+
+    PRIMARY KEY (sessionId, createdAt, messageId),
+    INDEX idx_messageId (messageId),
+    INDEX idx_session_seq (sessionId, seq)
+)ENGINE=INNODB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci
+PARTITION BY RANGE COLUMNS(createdAt) (
+    PARTITION p000000 VALUES LESS THAN ('2025-01-01'),
+    PARTITION p202609 VALUES LESS THAN ('2026-10-01'),
+    PARTITION p202610 VALUES LESS THAN ('2026-11-01'),
+    PARTITION p202611 VALUES LESS THAN ('2026-12-01'),
+    PARTITION pmax VALUES LESS THAN (MAXVALUE)
+);
+
+-- 2. 分批复制(lastId, boundaryId]范围内的消息,可以重复执行,中断之后从新表中边界以内最大的id继续,已经复制过的消息会被忽略
+DROP PROCEDURE IF EXISTS copy_messages_to_partitioned;
+
+DELIMITER $$
+CREATE PROCEDURE copy_messages_to_partitioned(IN batchSize INT, IN boundaryId BIGINT)
+BEGIN
+    DECLARE lastId BIGINT DEFAULT -1;
+    DECLARE batchMaxId BIGINT;
+
+    SELECT IFNULL(MAX(messageId), -1) INTO lastId FROM messages_new WHERE messageId <= boundaryId;
+
+    copy_loop: LOOP
+        SELECT MAX(messageId) INTO batchMaxId FROM (
+            SELECT messageId FROM messages WHERE messageId > lastId AND messageId <= boundaryId
+            ORDER BY messageId LIMIT batchSize
+        ) batch;
+        IF batchMaxId IS NULL THEN
+            LEAVE copy_loop;
+        END IF;
+
+        START TRANSACTION;
+        INSERT IGNORE INTO messages_new(messageId, sessionId, senderId, content, messageType, createdAt)
+        SELECT messageId, sessionId, senderId, content, messageType, IFNULL(createdAt, CURRENT_TIMESTAMP(3))
+        FROM messages WHERE messageId > lastId AND messageId <= batchMaxId;
+        COMMIT;
+
+        SET lastId = batchMaxId;
+    END LOOP;
+END$$
+DELIMITER ;
+
+-- 3. 停止写入之后,按messageId分批扫描整张旧表,把新表中还没有的消息补上(走新表的idx_messageId),
+--    包括快照边界之后写入的消息,以及复制期间才写入的比边界小的消息
+DROP PROCEDURE IF EXISTS catch_up_messages_to_partitioned;
+
+DELIMITER $$
+CREATE PROCEDURE catch_up_messages_to_partitioned(IN batchSize INT)
+BEGIN
+    DECLARE lastId BIGINT DEFAULT -1;
+    DECLARE batchMaxId BIGINT;
+
+    catch_up_loop: LOOP
+        SELECT MAX(messageId) INTO batchMaxId FROM (
+            SELECT messageId FROM messages WHERE messageId > lastId ORDER BY messageId LIMIT batchSize
+        ) batch;
+        IF batchMaxId IS NULL THEN
+            LEAVE catch_up_loop;
+        END IF;
+
+        START TRANSACTION;
+        INSERT IGNORE INTO messages_new(messageId, sessionId, senderId, content, messageType, createdAt)
+        SELECT m.messageId, m.sessionId, m.senderId, m.content, m.messageType, IFNULL(m.createdAt, CURRENT_TIMESTAMP(3))
+        FROM messages m
+        WHERE m.messageId > lastId AND m.messageId <= batchMaxId
+          AND NOT EXISTS (SELECT 1 FROM messages_new n WHERE n.messageId = m.messageId);
+        COMMIT;
+
+        SET lastId = batchMaxId;
+    END LOOP;
+END$$
+DELIMITER ;
+
+-- 快照边界,中断之后重新执行时要使用同一个值,不要重新计算
+SELECT MAX(messageId) INTO @boundaryId FROM messages;
+CALL copy_messages_to_partitioned(10000, @boundaryId);
+
+-- 停止写入之后补上新表中缺少的消息,然后交换
+CALL catch_up_messages_to_partitioned(10000);
+
+RENAME TABLE messages TO messages_old, messages_new TO messages;
+
+DROP PROCEDURE IF EXISTS copy_messages_to_partitioned;
+DROP PROCEDURE IF EXISTS catch_up_messages_to_partitioned;
+
+-- 4. 核对数量之后删除旧表
+SELECT (SELECT COUNT(*) FROM messages_old) AS oldCount, (SELECT COUNT(*) FROM messages) AS newCount;
+-- DROP TABLE messages_old;
+
+-- 已经按上面的步骤迁移过,但是还没有seq列的表,补充seq列和索引
+-- ALTER TABLE messages ADD COLUMN seq BIGINT NOT NULL DEFAULT 0 AFTER sessionId, ADD INDEX idx_session_seq (sessionId, seq);
@@ -44,15 +44,26 @@ CREATE TABLE blocks (
 )ENGINE=INNODB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
 
 CREATE TABLE messages (
-    messageId BIGINT PRIMARY KEY COMMENT '主键（雪花算法）',
+    messageId BIGINT NOT NULL COMMENT '雪花算法',
     sessionId BIGINT NOT NULL,
+    seq BIGINT NOT NULL DEFAULT 0 COMMENT '对话内递增的消息序号,客户端按序号增量同步',
     senderId BIGINT NOT NULL,
     content TEXT COMMENT '文本内容或媒体URL',
     messageType ENUM('text', 'image', 'file') DEFAULT 'text',
-    createdAt DATETIME(3) DEFAULT CURRENT_TIMESTAMP(3) COMMENT '把消息的创建时间精度设置成毫秒级别',
+    createdAt DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) COMMENT '把消息的创建时间精度设置成毫秒级别',
     
-    INDEX(createdAt,sessionId)
-)ENGINE=INNODB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+    PRIMARY KEY (sessionId, createdAt, messageId) COMMENT '聚簇索引,同一个对话的消息按时间顺序存放在一起,按对话翻页查询历史消息只需要顺序读取',
+    INDEX idx_messageId (messageId) COMMENT '按messageId批量查询未读消息',
+    INDEX idx_session_seq (sessionId, seq) COMMENT '按seq游标增量同步'
+)ENGINE=INNODB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci
+-- 按月分区,查询带上createdAt的范围时只扫描对应月份的分区,删除很久以前的消息可以直接DROP PARTITION
+-- pmax之前的分区由MessagePartitionMaintainer每天检查并提前创建,已有的messages表按照 消息表按月分区迁移.sql 迁移
+PARTITION BY RANGE COLUMNS(createdAt) (
+    PARTITION p202609 VALUES LESS THAN ('2026-10-01'),
+    PARTITION p202610 VALUES LESS THAN ('2026-11-01'),
+    PARTITION p202611 VALUES LESS THAN ('2026-12-01'),
+    PARTITION pmax VALUES LESS THAN (MAXVALUE)
+);
 
 
 -- 核心会话表（单聊和群聊共用）